@@ -0,0 +1,254 @@
+/*
+ * Copyright 1999 by dreamBean Software,
+ * All rights reserved.
+ */
+package chat.client;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import chat.interfaces.Message;
+import chat.interfaces.TopicInfo;
+
+/**
+ *   Measures the throughput of sending files through the in-process
+ *   LocalTopicServer, from a client with an AttachmentUpload to one that
+ *   saves them to an AttachmentStore. While a file is sent the sender
+ *   also publishes text messages at the given rate, and the time until
+ *   the receiver has them shows how long they wait behind the chunks.
+ *
+ *   For every size a file of random data is written to a temporary
+ *   directory, sent once to warm up and then the given number of times.
+ *   A run takes from starting the upload until the receiver has the
+ *   whole file, which is then checked against the file sent.
+ *
+ *   Usage: AttachmentBenchmark [-sizes 1,16,256,1024] [-runs 3]
+ *                              [-chunk 65536] [-window 4] [-chat 100]
+ *                              [-dir path]
+ *
+ *   Sizes are in MB, and the chat rate in messages per second.
+ *
+ *   @see AttachmentUpload
+ *   @see AttachmentStore
+ *   @version $Revision:$
+ */
+public class AttachmentBenchmark
+{
+   // Constants -----------------------------------------------------
+   static final String CHAT = "chat ";
+   static final long TIMEOUT = 600000; // ms
+
+   // Attributes ----------------------------------------------------
+   String[] sizes = { "1", "16", "256", "1024" };
+   int runs = 3;
+   int chunkSize = AttachmentUpload.DEFAULT_CHUNK_SIZE;
+   int window = AttachmentUpload.DEFAULT_WINDOW;
+   int chatRate = 100;
+   File dir = new File(System.getProperty("java.io.tmpdir"), "AttachmentBenchmark");
+
+   // Static --------------------------------------------------------
+   public static void main(String[] args)
+      throws Exception
+   {
+      AttachmentBenchmark benchmark = new AttachmentBenchmark();
+      for (int i = 0; i < args.length; i++)
+      {
+         if (args[i].equals("-sizes"))
+            benchmark.sizes = args[++i].split(",");
+         else if (args[i].equals("-runs"))
+            benchmark.runs = Integer.parseInt(args[++i]);
+         else if (args[i].equals("-chunk"))
+            benchmark.chunkSize = Integer.parseInt(args[++i]);
+         else if (args[i].equals("-window"))
+            benchmark.window = Integer.parseInt(args[++i]);
+         else if (args[i].equals("-chat"))
+            benchmark.chatRate = Integer.parseInt(args[++i]);
+         else if (args[i].equals("-dir"))
+            benchmark.dir = new File(args[++i]);
+         else
+            throw new IllegalArgumentException("Unknown option:"+args[i]);
+      }
+
+      System.out.println("Chunks of "+benchmark.chunkSize+" bytes, window of "+benchmark.window+", "+benchmark.chatRate+" chat msg/s");
+      for (int i = 0; i < benchmark.sizes.length; i++)
+         benchmark.run(Long.parseLong(benchmark.sizes[i])*1024*1024);
+      System.exit(0);
+   }
+
+   /**
+    *   Write a file of the given size, and return its checksum.
+    */
+   static long createFile(File file, long size)
+      throws IOException
+   {
+      Random random = new Random(size);
+      byte[] block = new byte[1024*1024];
+      random.nextBytes(block);
+      CRC32 crc = new CRC32();
+      FileChannel channel = new FileOutputStream(file).getChannel();
+      try
+      {
+         for (long written = 0; written < size; written += block.length)
+         {
+            // Every block differs
+            block[0] = (byte)(written >> 20);
+            block[1] = (byte)(written >> 28);
+            int length = (int)Math.min(block.length, size-written);
+            crc.update(block, 0, length);
+            ByteBuffer buffer = ByteBuffer.wrap(block, 0, length);
+            while (buffer.hasRemaining())
+               channel.write(buffer);
+         }
+      } finally
+      {
+         channel.close();
+      }
+      return crc.getValue();
+   }
+
+   static long checksum(File file)
+      throws IOException
+   {
+      CRC32 crc = new CRC32();
+      byte[] block = new byte[1024*1024];
+      FileInputStream in = new FileInputStream(file);
+      try
+      {
+         int read;
+         while ((read = in.read(block)) != -1)
+            crc.update(block, 0, read);
+      } finally
+      {
+         in.close();
+      }
+      return crc.getValue();
+   }
+
+   static void delete(File file)
+   {
+      File[] files = file.listFiles();
+      for (int i = 0; files != null && i < files.length; i++)
+         delete(files[i]);
+      file.delete();
+   }
+
+   // Public --------------------------------------------------------
+   /**
+    *   Send a file of the given size and report the throughput.
+    */
+   public void run(long size)
+      throws Exception
+   {
+      delete(dir);
+      dir.mkdirs();
+      File file = new File(dir, "file-"+size+".bin");
+      long crc = createFile(file, size);
+
+      LocalTopicServer server = new LocalTopicServer();
+      TopicInfo topic = server.addTopic("Files", "Benchmark topic");
+      ChatClient sender = new ChatClient(server);
+      ChatClient receiver = new ChatClient(server);
+      sender.getInboundDispatcher().setHeadless(true);
+      receiver.getInboundDispatcher().setHeadless(true);
+      final Histogram chat = new Histogram("chat latency");
+      receiver.addMessageReceiver(new ChatClient.MessageReceiver()
+      {
+         public void handleMessage(Message message)
+         {
+            String content = String.valueOf(message.getContent());
+            if (content.startsWith(CHAT))
+               chat.record(System.nanoTime()-Long.parseLong(content.substring(CHAT.length())));
+         }
+      });
+      sender.login("Sender");
+      receiver.login("Receiver");
+      sender.subscribe(topic);
+      receiver.subscribe(topic);
+
+      final ChatClient chatter = sender;
+      ScheduledExecutorService chatting = Executors.newSingleThreadScheduledExecutor();
+      if (chatRate > 0)
+      {
+         chatting.scheduleAtFixedRate(new Runnable()
+         {
+            public void run()
+            {
+               chatter.publishMessage(new Message("Sender", Message.TEXT, CHAT+System.nanoTime()));
+            }
+         }, 0, 1000000/chatRate, TimeUnit.MICROSECONDS);
+      }
+
+      try
+      {
+         double best = 0;
+         double total = 0;
+         for (int i = 0; i <= runs; i++)
+         {
+            // A new store every run, as a store has each file only once
+            AttachmentStore store = new AttachmentStore(new File(dir, "run-"+i));
+            receiver.setAttachmentStore(store);
+            if (i == 1)
+               chat.reset();
+
+            long start = System.nanoTime();
+            AttachmentUpload upload = new AttachmentUpload(sender, topic, file, chunkSize, window);
+            upload.start(0);
+            AttachmentStore.Download download = await(store, upload);
+            long elapsed = System.nanoTime()-start;
+
+            if (checksum(download.getFile()) != crc)
+               throw new IllegalStateException("Received file differs from "+file);
+            store.close();
+            delete(store.getDirectory());
+
+            double rate = size/(1024.0*1024)/(elapsed/1e9);
+            if (i > 0)
+            {
+               best = Math.max(best, rate);
+               total += rate;
+            }
+         }
+
+         System.out.println("  "+(size/(1024*1024))+" MB: mean "+Math.round(total/runs)+" MB/s, best "+Math.round(best)+" MB/s, "
+            +chat.getCount()+" chat messages p50="+chat.getPercentile(50)/1000+" us p99="+chat.getPercentile(99)/1000+" us max="+chat.getMax()/1000+" us");
+      } finally
+      {
+         chatting.shutdownNow();
+         sender.logout();
+         receiver.logout();
+         server.shutdown();
+         delete(dir);
+      }
+   }
+
+   // Package protected ---------------------------------------------
+   /**
+    *   Wait until the store has the whole file.
+    */
+   AttachmentStore.Download await(AttachmentStore store, AttachmentUpload upload)
+      throws Exception
+   {
+      long deadline = System.currentTimeMillis()+TIMEOUT;
+      while (System.currentTimeMillis() < deadline)
+      {
+         if (upload.isDone() && upload.getException() != null)
+            throw upload.getException();
+
+         List downloads = store.getDownloads();
+         if (!downloads.isEmpty() && ((AttachmentStore.Download)downloads.get(0)).isComplete())
+            return (AttachmentStore.Download)downloads.get(0);
+         Thread.sleep(1);
+      }
+      throw new IllegalStateException("Timed out sending "+upload.getFile());
+   }
+}
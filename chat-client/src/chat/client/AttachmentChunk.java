@@ -0,0 +1,116 @@
+/*
+ * Copyright 1999 by dreamBean Software,
+ * All rights reserved.
+ */
+package chat.client;
+
+import java.io.Serializable;
+import java.util.zip.CRC32;
+
+/**
+ *   Content of one chunk of a file sent with an AttachmentUpload. Every
+ *   chunk says which transfer it is part of, the name and size of the
+ *   file and where in it the chunk goes, so that receivers can start on
+ *   any chunk and write each one straight to its place. The data has a
+ *   CRC32 checksum of its own. Like TracedContent the server must be
+ *   able to load the class.
+ *
+ *   @see AttachmentUpload
+ *   @see AttachmentStore
+ *   @version $Revision:$
+ */
+public class AttachmentChunk
+   implements Serializable
+{
+   // Constants -----------------------------------------------------
+   // The message type of chunks
+   public static final String TYPE = "Attachment";
+
+   // Attributes ----------------------------------------------------
+   long id;
+   String name;
+   long size;
+   int chunkSize;
+   long offset;
+   int crc;
+   byte[] data;
+
+   // Static --------------------------------------------------------
+   static int checksum(byte[] data, int length)
+   {
+      CRC32 crc = new CRC32();
+      crc.update(data, 0, length);
+      return (int)crc.getValue();
+   }
+
+   // Constructors --------------------------------------------------
+   public AttachmentChunk(long id, String name, long size, int chunkSize, long offset, int crc, byte[] data)
+   {
+      this.id = id;
+      this.name = name;
+      this.size = size;
+      this.chunkSize = chunkSize;
+      this.offset = offset;
+      this.crc = crc;
+      this.data = data;
+   }
+
+   // Public --------------------------------------------------------
+   /**
+    *   The id of the transfer, which is the same every time the same
+    *   file is sent.
+    */
+   public long getId()
+   {
+      return id;
+   }
+
+   public String getName()
+   {
+      return name;
+   }
+
+   /**
+    *   The size of the whole file.
+    */
+   public long getSize()
+   {
+      return size;
+   }
+
+   /**
+    *   The size of every chunk of the transfer but the last.
+    */
+   public int getChunkSize()
+   {
+      return chunkSize;
+   }
+
+   public long getOffset()
+   {
+      return offset;
+   }
+
+   public int getChecksum()
+   {
+      return crc;
+   }
+
+   public byte[] getData()
+   {
+      return data;
+   }
+
+   /**
+    *   Whether the data is what was sent.
+    */
+   public boolean isValid()
+   {
+      return checksum(data, data.length) == crc;
+   }
+
+   public String toString()
+   {
+      return "[attachment "+name+" "+offset+"-"+(offset+data.length)+" of "+size+" bytes]";
+   }
+}
@@ -0,0 +1,519 @@
+/*
+ * Copyright 1999 by dreamBean Software,
+ * All rights reserved.
+ */
+package chat.client;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import chat.interfaces.Message;
+
+/**
+ *   Saves the files sent to the topics of a client. The chunks of a file
+ *   are written to their place in a part file as they arrive, by a
+ *   writer thread of the store, so that neither the event thread nor the
+ *   thread that received them waits for the disk. Receiving waits only
+ *   if the writer falls MAX_QUEUED chunks behind. Chunks whose checksum
+ *   does not match are dropped, and so are the ones already written.
+ *   Once every chunk is there the part file gets the name of the file.
+ *
+ *   Files larger than the maximum size, chat.attachment.maxSize or else
+ *   1 GB, are not saved.
+ *
+ *   Which chunks a part file has is saved next to it every so often and
+ *   when the store is closed, so a download goes on where it was after
+ *   the client is started again and the file is sent again.
+ *
+ *   Files go to chat.attachment.dir, or .chat/attachments in the home
+ *   directory, in a directory per user.
+ *
+ *   @see AttachmentUpload
+ *   @see ChatClient#setAttachmentStore
+ *   @version $Revision:$
+ */
+public class AttachmentStore
+{
+   // Constants -----------------------------------------------------
+   public static final long DEFAULT_MAX_SIZE = Long.getLong("chat.attachment.maxSize", 1L << 30).longValue();
+
+   // Chunks written between saves of which ones a part file has
+   static final int SAVE_INTERVAL = 64;
+
+   // Chunks waiting for the writer before receiving waits
+   static final int MAX_QUEUED = 64;
+
+   static final long CLOSE_TIMEOUT = 10000; // ms
+
+   // Attributes ----------------------------------------------------
+   File directory;
+   long maxSize = DEFAULT_MAX_SIZE;
+   Map downloads = new HashMap(); // sender:id -> Download
+   Set refused = new HashSet(); // sender:id of files too large
+   boolean closed;
+
+   ExecutorService writer = ClientExecutors.newSerialExecutor("AttachmentStore");
+   Semaphore queued = new Semaphore(MAX_QUEUED);
+
+   // Static --------------------------------------------------------
+   public static File getDefaultDirectory(String user)
+   {
+      String base = System.getProperty("chat.attachment.dir");
+      File dir = base != null ? new File(base) : new File(new File(System.getProperty("user.home"), ".chat"), "attachments");
+      return new File(dir, MessageLog.toFileName(user));
+   }
+
+   /**
+    *   Return the messages without the attachment chunks, which are
+    *   saved to the store unless it is null or they were sent by self.
+    *   The lines saying that a download started or finished are handed
+    *   to the receiver by the writer.
+    */
+   static Collection received(AttachmentStore store, Collection messages, String self, ChatClient.MessageReceiver notices)
+   {
+      List result = null;
+      int index = 0;
+      Iterator mlist = messages.iterator();
+      while (mlist.hasNext())
+      {
+         Message message = (Message)mlist.next();
+         if (message.getType().equals(AttachmentChunk.TYPE))
+         {
+            if (result == null)
+            {
+               result = new ArrayList(messages.size());
+               Iterator copy = messages.iterator();
+               for (int i = 0; i < index; i++)
+                  result.add(copy.next());
+            }
+
+            // Chunks without data are only placeholders
+            if (store != null && message.getContent() instanceof AttachmentChunk && !message.getSender().equals(self))
+               store.writeLater(message.getSender(), (AttachmentChunk)message.getContent(), notices);
+         } else if (result != null)
+         {
+            result.add(message);
+         }
+         index++;
+      }
+      return result != null ? result : messages;
+   }
+
+   /**
+    *   A name for the file that cannot point outside of the directory.
+    */
+   static String toFileName(String name)
+   {
+      StringBuffer buf = new StringBuffer(name.length());
+      for (int i = 0; i < name.length(); i++)
+      {
+         char c = name.charAt(i);
+         buf.append(Character.isLetterOrDigit(c) || c == '-' || c == '_' || (c == '.' && i > 0) ? c : '_');
+      }
+      return buf.length() == 0 ? "_" : buf.toString();
+   }
+
+   static String formatSize(long size)
+   {
+      if (size < 1024)
+         return size+" bytes";
+      if (size < 1024*1024)
+         return (size/1024)+" KB";
+      return (size/(1024*1024))+" MB";
+   }
+
+   // Constructors --------------------------------------------------
+   public AttachmentStore(File directory)
+   {
+      this.directory = directory;
+   }
+
+   // Public --------------------------------------------------------
+   /**
+    *   Write the chunk sent by the sender. Return a line to show if it
+    *   started or finished the download, or if it could not be saved.
+    */
+   public Message write(String sender, AttachmentChunk chunk)
+   {
+      Download download;
+      boolean started = false;
+      synchronized (this)
+      {
+         if (closed)
+            return null;
+
+         String key = sender+":"+Long.toHexString(chunk.getId());
+         download = (Download)downloads.get(key);
+         if (download == null)
+         {
+            // Said once per file
+            if (chunk.getSize() > maxSize)
+            {
+               if (!refused.add(key))
+                  return null;
+               return new Message(Message.SYSTEM, Message.TEXT, "Not saving "+chunk.getName()+" ("+formatSize(chunk.getSize())+") from "+sender
+                  +", files are limited to "+formatSize(maxSize));
+            }
+
+            download = new Download(sender, chunk);
+            downloads.put(key, download);
+            started = true;
+         }
+      }
+
+      try
+      {
+         boolean finished = download.write(chunk);
+         if (finished)
+            return new Message(Message.SYSTEM, Message.TEXT, sender+" sent "+download.getFile());
+         if (started)
+            return new Message(Message.SYSTEM, Message.TEXT, "Receiving "+chunk.getName()+" ("+formatSize(chunk.getSize())+") from "+sender);
+      } catch (IOException e)
+      {
+         synchronized (this)
+         {
+            downloads.values().remove(download);
+         }
+         download.close();
+         return new Message(Message.SYSTEM, Message.TEXT, "Could not save "+chunk.getName()+" from "+sender+": "+e);
+      }
+      return null;
+   }
+
+   public File getDirectory()
+   {
+      return directory;
+   }
+
+   /**
+    *   Files larger than this many bytes are not saved.
+    */
+   public synchronized void setMaxSize(long maxSize)
+   {
+      this.maxSize = maxSize;
+   }
+
+   public synchronized long getMaxSize()
+   {
+      return maxSize;
+   }
+
+   public synchronized List getDownloads()
+   {
+      return new ArrayList(downloads.values());
+   }
+
+   /**
+    *   Save which chunks the part files have and close them, once the
+    *   chunk being written is done. Chunks still queued are dropped.
+    */
+   public void close()
+   {
+      List open;
+      synchronized (this)
+      {
+         closed = true;
+         open = new ArrayList(downloads.values());
+         downloads.clear();
+      }
+
+      writer.shutdown();
+      try
+      {
+         writer.awaitTermination(CLOSE_TIMEOUT, TimeUnit.MILLISECONDS);
+      } catch (InterruptedException e)
+      {
+         Thread.currentThread().interrupt();
+      }
+      for (int i = 0; i < open.size(); i++)
+         ((Download)open.get(i)).close();
+   }
+
+   // Package protected ---------------------------------------------
+   /**
+    *   Write the chunk on the writer, and hand the line write returns to
+    *   the receiver. Waits while the writer is MAX_QUEUED chunks behind.
+    */
+   void writeLater(final String sender, final AttachmentChunk chunk, final ChatClient.MessageReceiver notices)
+   {
+      queued.acquireUninterruptibly();
+      try
+      {
+         writer.execute(new Runnable()
+         {
+            public void run()
+            {
+               try
+               {
+                  Message notice = write(sender, chunk);
+                  if (notice != null && notices != null)
+                     notices.handleMessage(notice);
+               } finally
+               {
+                  queued.release();
+               }
+            }
+         });
+      } catch (RejectedExecutionException e)
+      {
+         // Closed
+         queued.release();
+      }
+   }
+
+   // Inner classes -------------------------------------------------
+   /**
+    *   A file being received. Its part file is opened with the first
+    *   chunk that arrives.
+    */
+   public class Download
+   {
+      String sender;
+      String name;
+      long size;
+      int chunkSize;
+      int chunkCount;
+      File part;
+      File progress;
+      File file;
+
+      FileChannel channel;
+      BitSet chunks = new BitSet();
+      long received;
+      int corrupt;
+      int unsaved;
+      boolean complete;
+
+      Download(String sender, AttachmentChunk chunk)
+      {
+         this.sender = sender;
+         this.name = chunk.getName();
+         this.size = chunk.getSize();
+         this.chunkSize = chunk.getChunkSize();
+         this.chunkCount = size == 0 ? 1 : (int)((size+chunkSize-1)/chunkSize);
+         String base = MessageLog.toFileName(sender)+"-"+Long.toHexString(chunk.getId());
+         this.part = new File(directory, base+".part");
+         this.progress = new File(directory, base+".chunks");
+      }
+
+      public String getSender()
+      {
+         return sender;
+      }
+
+      public String getName()
+      {
+         return name;
+      }
+
+      public long getSize()
+      {
+         return size;
+      }
+
+      public synchronized long getReceived()
+      {
+         return received;
+      }
+
+      /**
+       *   The number of chunks dropped because their checksum did not
+       *   match, or they did not fit the file.
+       */
+      public synchronized int getCorruptCount()
+      {
+         return corrupt;
+      }
+
+      public synchronized boolean isComplete()
+      {
+         return complete;
+      }
+
+      /**
+       *   The file once it is complete, or else the part file.
+       */
+      public synchronized File getFile()
+      {
+         return complete ? file : part;
+      }
+
+      /**
+       *   Write the chunk to its place, and return true if it was the
+       *   last one missing.
+       */
+      synchronized boolean write(AttachmentChunk chunk)
+         throws IOException
+      {
+         if (complete)
+            return false;
+
+         byte[] data = chunk.getData();
+         long offset = chunk.getOffset();
+         int index = (int)(offset/chunkSize);
+         if (chunk.getChunkSize() != chunkSize || chunk.getSize() != size || offset%chunkSize != 0 || index >= chunkCount
+            || data.length != Math.min(chunkSize, size-offset) || !chunk.isValid())
+         {
+            corrupt++;
+            return false;
+         }
+
+         if (channel == null)
+            open();
+         if (chunks.get(index))
+            return false;
+
+         ByteBuffer buffer = ByteBuffer.wrap(data);
+         while (buffer.hasRemaining())
+            channel.write(buffer, offset+buffer.position());
+         chunks.set(index);
+         received += data.length;
+
+         if (chunks.cardinality() == chunkCount)
+         {
+            finish();
+            return true;
+         }
+         if (++unsaved >= SAVE_INTERVAL)
+            save();
+         return false;
+      }
+
+      /**
+       *   Open the part file, and read which chunks it has if it was
+       *   there already.
+       */
+      void open()
+         throws IOException
+      {
+         directory.mkdirs();
+         if (part.exists() && progress.exists())
+         {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(progress)));
+            try
+            {
+               int ranges = in.readInt();
+               for (int i = 0; i < ranges; i++)
+               {
+                  int from = in.readInt();
+                  int to = Math.min(in.readInt(), chunkCount);
+                  if (from < to)
+                     chunks.set(from, to);
+               }
+            } catch (IOException e)
+            {
+               // Start over
+               chunks.clear();
+            } finally
+            {
+               in.close();
+            }
+            for (int i = chunks.nextSetBit(0); i >= 0; i = chunks.nextSetBit(i+1))
+               received += Math.min(chunkSize, size-(long)i*chunkSize);
+         }
+         channel = new RandomAccessFile(part, "rw").getChannel();
+      }
+
+      /**
+       *   Write which chunks the part file has, as ranges of indexes.
+       *   The chunks are made durable first, so the ranges never claim
+       *   more than the part file has.
+       */
+      void save()
+         throws IOException
+      {
+         channel.force(false);
+         List ranges = new ArrayList();
+         for (int from = chunks.nextSetBit(0); from >= 0; from = chunks.nextSetBit(from))
+         {
+            int to = chunks.nextClearBit(from);
+            ranges.add(new int[] { from, to });
+            from = to;
+         }
+
+         File temp = new File(directory, progress.getName()+".tmp");
+         DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+         try
+         {
+            out.writeInt(ranges.size());
+            for (int i = 0; i < ranges.size(); i++)
+            {
+               int[] range = (int[])ranges.get(i);
+               out.writeInt(range[0]);
+               out.writeInt(range[1]);
+            }
+         } finally
+         {
+            out.close();
+         }
+         progress.delete();
+         if (!temp.renameTo(progress))
+            throw new IOException("Could not save "+progress);
+         unsaved = 0;
+      }
+
+      /**
+       *   Give the part file the name of the file, or the name with a
+       *   number if that is taken.
+       */
+      void finish()
+         throws IOException
+      {
+         channel.close();
+         channel = null;
+
+         String fileName = toFileName(name);
+         int dot = fileName.lastIndexOf('.');
+         file = new File(directory, fileName);
+         for (int i = 1; file.exists(); i++)
+            file = new File(directory, dot > 0 ? fileName.substring(0, dot)+"-"+i+fileName.substring(dot) : fileName+"-"+i);
+         if (!part.renameTo(file))
+            throw new IOException("Could not rename "+part+" to "+file);
+         progress.delete();
+         complete = true;
+      }
+
+      synchronized void close()
+      {
+         if (channel == null)
+            return;
+
+         try
+         {
+            save();
+            channel.close();
+         } catch (IOException e)
+         {
+            e.printStackTrace();
+         }
+         channel = null;
+      }
+
+      public String toString()
+      {
+         return "Download["+name+" from "+sender+", "+getReceived()+"/"+size+" bytes]";
+      }
+   }
+}
@@ -0,0 +1,379 @@
+/*
+ * Copyright 1999 by dreamBean Software,
+ * All rights reserved.
+ */
+package chat.client;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+
+import chat.interfaces.Message;
+import chat.interfaces.TopicInfo;
+
+/**
+ *   Sends a file to a topic as a series of AttachmentChunk messages.
+ *   Chunks are read with positional reads of a FileChannel straight into
+ *   the array the message carries, and go through the publish pipeline
+ *   like any other message. Only a window of chunks is queued at a time,
+ *   and the next is read when the server has taken one, so a text
+ *   message published during an upload waits for no more than the
+ *   window of chunks before it.
+ *
+ *   The offset up to which the server has taken the file is kept, and
+ *   an upload that failed, for instance because the connection was lost,
+ *   can be resumed from there once the topic is subscribed to again.
+ *   Receivers keep the chunks they have, so sending a file again from
+ *   the start only fills in what they missed.
+ *
+ *   @see ChatClient#attach
+ *   @see AttachmentStore
+ *   @version $Revision:$
+ */
+public class AttachmentUpload
+   implements Runnable
+{
+   // Constants -----------------------------------------------------
+   public static final int DEFAULT_CHUNK_SIZE = Integer.getInteger("chat.attachment.chunkSize", 64*1024).intValue();
+
+   // Chunks in the publish queue or on their way to the server
+   public static final int DEFAULT_WINDOW = Integer.getInteger("chat.attachment.window", 16).intValue();
+
+   // Static --------------------------------------------------------
+   static ExecutorService readers = ClientExecutors.newPerTaskExecutor("AttachmentUpload");
+
+   // Attributes ----------------------------------------------------
+   ChatClient client;
+   TopicInfo topic;
+   File file;
+   long id;
+   long size;
+   int chunkSize;
+   int window;
+   int chunkCount;
+
+   FileChannel channel;
+   int next; // Chunk to read next
+   int acknowledged; // Chunks taken by the server, in order
+   int inFlight;
+   boolean scheduled;
+   boolean done;
+   Exception exception;
+   List listeners;
+   long started;
+   long finished;
+
+   // Static --------------------------------------------------------
+   /**
+    *   The id of a transfer of the file, which stays the same as long
+    *   as the file does not change.
+    */
+   static long transferId(File file)
+   {
+      long hash = 1125899906842597L;
+      String name = file.getName();
+      for (int i = 0; i < name.length(); i++)
+         hash = 31*hash+name.charAt(i);
+      hash = 31*hash+file.length();
+      return 31*hash+file.lastModified();
+   }
+
+   // Constructors --------------------------------------------------
+   public AttachmentUpload(ChatClient client, TopicInfo topic, File file)
+   {
+      this(client, topic, file, DEFAULT_CHUNK_SIZE, DEFAULT_WINDOW);
+   }
+
+   public AttachmentUpload(ChatClient client, TopicInfo topic, File file, int chunkSize, int window)
+   {
+      this.client = client;
+      this.topic = topic;
+      this.file = file;
+      this.chunkSize = chunkSize;
+      this.window = window;
+      this.id = transferId(file);
+      this.size = file.length();
+      this.chunkCount = size == 0 ? 1 : (int)((size+chunkSize-1)/chunkSize);
+   }
+
+   // Public --------------------------------------------------------
+   /**
+    *   Start sending the file from the chunk the offset is in.
+    */
+   public synchronized void start(long offset)
+      throws IOException
+   {
+      if (channel != null)
+         throw new IllegalStateException("Already sending "+file);
+
+      channel = new FileInputStream(file).getChannel();
+      if (channel.size() != size)
+      {
+         close();
+         throw new IOException("File changed:"+file);
+      }
+
+      next = acknowledged = (int)(Math.min(offset, size)/chunkSize);
+      done = false;
+      exception = null;
+      started = System.nanoTime();
+      if (next == chunkCount)
+      {
+         finish(null);
+         return;
+      }
+      schedule();
+   }
+
+   /**
+    *   Send the rest of the file after the upload failed.
+    */
+   public void resume()
+      throws IOException
+   {
+      start(getOffset());
+   }
+
+   /**
+    *   Stop sending. The chunks that are queued are still sent.
+    */
+   public void cancel()
+   {
+      finish(new IOException("Cancelled"));
+   }
+
+   public File getFile()
+   {
+      return file;
+   }
+
+   public TopicInfo getTopic()
+   {
+      return topic;
+   }
+
+   public long getId()
+   {
+      return id;
+   }
+
+   public long getSize()
+   {
+      return size;
+   }
+
+   /**
+    *   The number of bytes the server has taken.
+    */
+   public synchronized long getOffset()
+   {
+      return Math.min(size, (long)acknowledged*chunkSize);
+   }
+
+   public synchronized boolean isDone()
+   {
+      return done;
+   }
+
+   /**
+    *   The reason the upload failed, or null if it was sent or is still
+    *   being sent.
+    */
+   public synchronized Exception getException()
+   {
+      return exception;
+   }
+
+   /**
+    *   Time from starting the upload until it was done, or until now if
+    *   it is not done yet, in ns.
+    */
+   public synchronized long getElapsedNanos()
+   {
+      return (done ? finished : System.nanoTime())-started;
+   }
+
+   /**
+    *   Wait until the upload is done, or has failed.
+    */
+   public synchronized void await()
+      throws InterruptedException
+   {
+      while (!done)
+         wait();
+   }
+
+   /**
+    *   Run the listener once the upload is done, or has failed. It runs
+    *   on the thread that finished the upload, so it must not block.
+    */
+   public void addListener(Runnable listener)
+   {
+      synchronized (this)
+      {
+         if (!done)
+         {
+            if (listeners == null)
+               listeners = new ArrayList();
+            listeners.add(listener);
+            return;
+         }
+      }
+
+      listener.run();
+   }
+
+   public String toString()
+   {
+      return "AttachmentUpload["+file.getName()+" "+getOffset()+"/"+size+" bytes to "+topic+"]";
+   }
+
+   // Runnable implementation ---------------------------------------
+   /**
+    *   Read and publish chunks until the window is full.
+    */
+   public void run()
+   {
+      try
+      {
+         while (true)
+         {
+            int index;
+            FileChannel current;
+            synchronized (this)
+            {
+               if (done || inFlight >= window || next == chunkCount)
+               {
+                  scheduled = false;
+                  return;
+               }
+               index = next++;
+               inFlight++;
+               current = channel;
+            }
+
+            long offset = (long)index*chunkSize;
+            byte[] data = new byte[(int)Math.min(chunkSize, size-offset)];
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            while (buffer.hasRemaining())
+            {
+               if (current.read(buffer, offset+buffer.position()) == -1)
+                  throw new IOException("File changed:"+file);
+            }
+
+            AttachmentChunk chunk = new AttachmentChunk(id, file.getName(), size, chunkSize, offset, AttachmentChunk.checksum(data, data.length), data);
+            final int sent = index;
+            final PublishFuture future = client.sendAttachment(topic, new Message(client.getClientInfo().getName(), AttachmentChunk.TYPE, chunk));
+            future.addListener(new Runnable()
+            {
+               public void run()
+               {
+                  sent(sent, future.getException());
+               }
+            });
+         }
+      } catch (Exception e)
+      {
+         synchronized (this)
+         {
+            scheduled = false;
+         }
+         finish(e);
+      }
+   }
+
+   // Package protected ---------------------------------------------
+   /**
+    *   Called by the publisher thread when the chunk was taken by the
+    *   server, or failed.
+    */
+   void sent(int index, Exception e)
+   {
+      synchronized (this)
+      {
+         inFlight--;
+         if (done)
+            return;
+
+         if (e == null)
+         {
+            acknowledged = Math.max(acknowledged, index+1);
+            if (acknowledged < chunkCount)
+            {
+               schedule();
+               return;
+            }
+         }
+      }
+      finish(e);
+   }
+
+   /**
+    *   Read more chunks in the background, unless already doing so.
+    *   Called with the upload locked.
+    */
+   void schedule()
+   {
+      if (!scheduled)
+      {
+         scheduled = true;
+         readers.execute(this);
+      }
+   }
+
+   void finish(Exception e)
+   {
+      List toRun;
+      synchronized (this)
+      {
+         if (done)
+            return;
+
+         done = true;
+         exception = e;
+         finished = System.nanoTime();
+         close();
+         toRun = listeners;
+         listeners = null;
+         notifyAll();
+      }
+
+      if (toRun != null)
+      {
+         for (int i = 0; i < toRun.size(); i++)
+         {
+            try
+            {
+               ((Runnable)toRun.get(i)).run();
+            } catch (RuntimeException re)
+            {
+               re.printStackTrace();
+            }
+         }
+      }
+   }
+
+   /**
+    *   Close the file. Reads in progress fail, which is fine as the
+    *   upload is over. Called with the upload locked.
+    */
+   void close()
+   {
+      if (channel == null)
+         return;
+
+      try
+      {
+         channel.close();
+      } catch (IOException e)
+      {
+         // Ignore
+      }
+      channel = null;
+   }
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright 1999 by dreamBean Software,
+ * All rights reserved.
+ */
+package chat.client;
+
+import java.util.Random;
+
+/**
+ *   Exponential backoff with full jitter. The n:th delay is a random
+ *   time between zero and the base delay times 2^n, capped at the max
+ *   delay, so that clients that lost their connection at the same time
+ *   do not all come back at the same time.
+ *
+ *   @see Reconnector
+ *   @version $Revision:$
+ */
+public class Backoff
+{
+   // Attributes ----------------------------------------------------
+   long baseDelay;
+   long maxDelay;
+   int attempt;
+   Random random = new Random();
+
+   // Constructors --------------------------------------------------
+   public Backoff(long baseDelay, long maxDelay)
+   {
+      this.baseDelay = baseDelay;
+      this.maxDelay = maxDelay;
+   }
+
+   // Public --------------------------------------------------------
+   /**
+    *   The delay before the next attempt, in ms.
+    */
+   public long nextDelay()
+   {
+      long cap = attempt < 30 ? Math.min(maxDelay, baseDelay << attempt) : maxDelay;
+      attempt++;
+      return (long)(random.nextDouble()*cap);
+   }
+
+   public int getAttempts()
+   {
+      return attempt;
+   }
+
+   public void reset()
+   {
+      attempt = 0;
+   }
+}
@@ -0,0 +1,26 @@
+/*
+ * Copyright 1999 by dreamBean Software,
+ * All rights reserved.
+ */
+package chat.client;
+
+import java.rmi.RemoteException;
+import java.util.Collection;
+
+import chat.interfaces.Topic;
+
+/**
+ *   Optional extension of Topic for servers that can accept several
+ *   messages in one call. The publish pipeline uses it when the topic
+ *   implements it, and falls back to one publishMessage call per
+ *   message otherwise.
+ *
+ *   @see PublishPipeline
+ *   @version $Revision:$
+ */
+public interface BatchTopic
+   extends Topic
+{
+   public void publishMessages(Collection messages)
+      throws RemoteException;
+}
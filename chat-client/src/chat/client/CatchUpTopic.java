@@ -0,0 +1,41 @@
+/*
+ * Copyright 1999 by dreamBean Software,
+ * All rights reserved.
+ */
+package chat.client;
+
+import java.rmi.RemoteException;
+import java.util.Collection;
+
+import chat.interfaces.ListenerInfo;
+import chat.interfaces.Topic;
+
+/**
+ *   Optional extension of Topic for servers that keep a log of the
+ *   messages published on a topic, including joins and leaves. Every
+ *   message published on the topic gets the next sequence number.
+ *
+ *   After a reconnect the client asks for the messages between the last
+ *   sequence number it has seen and the sequence number of its new
+ *   subscription, instead of reloading the user list.
+ *
+ *   @see ChatClient#reconnect
+ *   @version $Revision:$
+ */
+public interface CatchUpTopic
+   extends Topic
+{
+   /**
+    *   The sequence number of the first message the listener will get
+    *   on its current subscription, or -1 if it is not subscribed.
+    */
+   public long getSequence(ListenerInfo listener)
+      throws RemoteException;
+
+   /**
+    *   The messages with sequence numbers from, inclusive, to to,
+    *   exclusive, as far as they are still in the log.
+    */
+   public Collection getMessages(long from, long to)
+      throws RemoteException;
+}
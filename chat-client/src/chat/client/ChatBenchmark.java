@@ -0,0 +1,1003 @@
+/*
+ * Copyright 1999 by dreamBean Software,
+ * All rights reserved.
+ */
+package chat.client;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.swing.SwingUtilities;
+
+import chat.interfaces.ListenerInfo;
+import chat.interfaces.Message;
+import chat.interfaces.TopicInfo;
+
+/**
+ *   Microbenchmarks for the client message path. Each benchmark is run
+ *   for a number of warmup iterations followed by measured iterations
+ *   of fixed duration, and the mean time per operation is reported with
+ *   its 99.9% confidence interval, in the same way as JMH does.
+ *
+ *   The codec benchmarks first check that a range of values survives
+ *   a round trip through the MessageCodec, and fail if one does not.
+ *   The compression benchmarks check that every text of their corpus
+ *   is inflated to what it was. The filter benchmarks compare the
+ *   keyword automaton of the MessageFilter with searching for every
+ *   keyword in turn. The outbox benchmarks publish through an Outbox
+ *   with each way of syncing it, and wait for the last message to be
+ *   taken. The search benchmarks query a MessageIndex of a million
+ *   messages, and compare it with scanning the messages for the text.
+ *   The stream benchmarks deliver batches to a MessageStream subscriber
+ *   with the client draining on the event thread and headless.
+ *
+ *   Usage: ChatBenchmark [name filter]
+ *
+ *   @see LoadGenerator
+ *   @version $Revision:$
+ */
+public class ChatBenchmark
+{
+   // Constants -----------------------------------------------------
+   static final int WARMUP_ITERATIONS = 5;
+   static final int MEASUREMENT_ITERATIONS = 10;
+   static final long ITERATION_TIME = 1000000000L; // 1s
+
+   // Static --------------------------------------------------------
+   public static void main(String[] args)
+      throws Exception
+   {
+      String filter = args.length > 0 ? args[0] : "";
+
+      List benchmarks = new ArrayList();
+      benchmarks.add(new DispatchBenchmark(1));
+      benchmarks.add(new DispatchBenchmark(16));
+      benchmarks.add(new DispatchBenchmark(256));
+      benchmarks.add(new UserListBenchmark(100));
+      benchmarks.add(new UserListBenchmark(10000));
+      benchmarks.add(new TopicSwitchBenchmark());
+      benchmarks.add(new CodecBenchmark(false, false));
+      benchmarks.add(new CodecBenchmark(false, true));
+      benchmarks.add(new CodecBenchmark(true, false));
+      benchmarks.add(new CodecBenchmark(true, true));
+      for (int i = 0; i < CompressionBenchmark.CORPORA.length; i++)
+      {
+         benchmarks.add(new CompressionBenchmark(CompressionBenchmark.CORPORA[i], false, false));
+         benchmarks.add(new CompressionBenchmark(CompressionBenchmark.CORPORA[i], true, false));
+         benchmarks.add(new CompressionBenchmark(CompressionBenchmark.CORPORA[i], true, true));
+      }
+      benchmarks.add(new FilterBenchmark(10, false));
+      benchmarks.add(new FilterBenchmark(10, true));
+      benchmarks.add(new FilterBenchmark(1000, false));
+      benchmarks.add(new FilterBenchmark(1000, true));
+      benchmarks.add(new OutboxBenchmark(Outbox.Sync.GROUP));
+      benchmarks.add(new OutboxBenchmark(Outbox.Sync.EACH));
+      benchmarks.add(new OutboxBenchmark(Outbox.Sync.NONE));
+      benchmarks.add(new SearchBenchmark("term"));
+      benchmarks.add(new SearchBenchmark("terms"));
+      benchmarks.add(new SearchBenchmark("prefix"));
+      benchmarks.add(new SearchBenchmark("sender"));
+      benchmarks.add(new SearchBenchmark("scan"));
+      benchmarks.add(new StreamBenchmark(16, false));
+      benchmarks.add(new StreamBenchmark(16, true));
+
+      for (int i = 0; i < benchmarks.size(); i++)
+      {
+         Benchmark benchmark = (Benchmark)benchmarks.get(i);
+         if (benchmark.getName().indexOf(filter) != -1)
+            System.out.println(run(benchmark));
+      }
+
+      System.exit(0);
+   }
+
+   static String run(Benchmark benchmark)
+      throws Exception
+   {
+      benchmark.setup();
+      try
+      {
+         for (int i = 0; i < WARMUP_ITERATIONS; i++)
+            iteration(benchmark);
+
+         double[] results = new double[MEASUREMENT_ITERATIONS];
+         double mean = 0;
+         for (int i = 0; i < results.length; i++)
+         {
+            results[i] = iteration(benchmark);
+            mean += results[i];
+         }
+         mean /= results.length;
+
+         double variance = 0;
+         for (int i = 0; i < results.length; i++)
+            variance += (results[i]-mean)*(results[i]-mean);
+         variance /= results.length-1;
+
+         // t-distribution, 99.9%, 9 degrees of freedom
+         double error = 4.781 * Math.sqrt(variance / results.length);
+
+         return format(benchmark.getName(), 40)+format(String.valueOf(Math.round(mean)), 12)
+            +" +- "+format(String.valueOf(Math.round(error)), 10)+" ns/op";
+      } finally
+      {
+         benchmark.tearDown();
+      }
+   }
+
+   /**
+    *   Run the benchmark for one iteration, doubling the number of
+    *   operations per call until the iteration time is used up.
+    */
+   static double iteration(Benchmark benchmark)
+      throws Exception
+   {
+      long ops = 0;
+      int batch = 1;
+      long start = System.nanoTime();
+      long elapsed;
+      do
+      {
+         benchmark.run(batch);
+         ops += batch;
+         elapsed = System.nanoTime()-start;
+         if (batch < 1<<20)
+            batch *= 2;
+      } while (elapsed < ITERATION_TIME);
+
+      return (double)elapsed / ops;
+   }
+
+   static String format(String value, int width)
+   {
+      StringBuffer buf = new StringBuffer(value);
+      while (buf.length() < width)
+         buf.append(' ');
+      return buf.toString();
+   }
+
+   // Inner classes -------------------------------------------------
+   static abstract class Benchmark
+   {
+      abstract String getName();
+
+      void setup()
+         throws Exception
+      {
+      }
+
+      abstract void run(int ops)
+         throws Exception;
+
+      void tearDown()
+         throws Exception
+      {
+      }
+   }
+
+   /**
+    *   Base for benchmarks that need a logged in and subscribed client
+    *   on an in-process server.
+    */
+   static abstract class ClientBenchmark
+      extends Benchmark
+   {
+      LocalTopicServer server;
+      ChatClient client;
+      TopicView view;
+
+      void setup()
+         throws Exception
+      {
+         server = new LocalTopicServer();
+         TopicInfo topic = server.addTopic("Benchmark", "Benchmark topic");
+         client = new ChatClient(server);
+         client.login("Benchmark");
+         view = client.subscribe(topic);
+      }
+
+      void tearDown()
+         throws Exception
+      {
+         client.logout();
+         server.shutdown();
+      }
+   }
+
+   /**
+    *   Cost of delivering one batch through messagePublished(Collection)
+    *   until the last message has been handled on the event thread.
+    */
+   static class DispatchBenchmark
+      extends ClientBenchmark
+   {
+      int batchSize;
+      Collection batch = new ArrayList();
+      long handled;
+
+      DispatchBenchmark(int batchSize)
+      {
+         this.batchSize = batchSize;
+      }
+
+      String getName()
+      {
+         return "messagePublished(Collection) batch="+batchSize;
+      }
+
+      void setup()
+         throws Exception
+      {
+         super.setup();
+         for (int i = 0; i < batchSize; i++)
+            batch.add(new Message("Sender", Message.TEXT, "Hello "+i+"!"));
+
+         client.addMessageReceiver(new ChatClient.MessageReceiver()
+         {
+            public void handleMessage(Message message)
+            {
+               handled++;
+            }
+         });
+      }
+
+      void run(int ops)
+         throws Exception
+      {
+         for (int i = 0; i < ops; i++)
+            client.messagePublished(batch);
+
+         // Wait until the event thread has drained all batches
+         SwingUtilities.invokeAndWait(new Runnable()
+         {
+            public void run()
+            {
+            }
+         });
+      }
+   }
+
+   /**
+    *   Cost of delivering one batch through messagePublished(Collection)
+    *   until a subscriber of a MessageStream of the client has the last
+    *   message.
+    */
+   static class StreamBenchmark
+      extends ClientBenchmark
+   {
+      static final int BUFFER_SIZE = 65536;
+      
+      int batchSize;
+      boolean headless;
+      Collection batch = new ArrayList();
+      MessageStream stream;
+      AtomicLong received = new AtomicLong();
+      
+      StreamBenchmark(int batchSize, boolean headless)
+      {
+         this.batchSize = batchSize;
+         this.headless = headless;
+      }
+      
+      String getName()
+      {
+         return "stream batch="+batchSize+(headless ? " headless" : "");
+      }
+      
+      void setup()
+         throws Exception
+      {
+         super.setup();
+         client.getInboundDispatcher().setHeadless(headless);
+         for (int i = 0; i < batchSize; i++)
+            batch.add(new Message("Sender", Message.TEXT, "Hello "+i+"!"));
+         
+         stream = new MessageStream(client);
+         stream.subscribe(new MessageStream.Subscriber()
+         {
+            public void onSubscribe(MessageStream.Subscription subscription)
+            {
+               subscription.request(Long.MAX_VALUE);
+            }
+            
+            public void onNext(Message message)
+            {
+               received.incrementAndGet();
+            }
+            
+            public void onError(Throwable error)
+            {
+               error.printStackTrace();
+            }
+            
+            public void onComplete()
+            {
+            }
+         }, null, BUFFER_SIZE);
+      }
+      
+      void run(int ops)
+         throws Exception
+      {
+         // Kept within the buffer, which overflows on the event thread
+         long expected = received.get();
+         for (int i = 0; i < ops; i++)
+         {
+            client.messagePublished(batch);
+            expected += batchSize;
+            while (expected-received.get() > BUFFER_SIZE/2)
+               Thread.yield();
+         }
+         while (received.get() < expected)
+            Thread.yield();
+      }
+      
+      void tearDown()
+         throws Exception
+      {
+         stream.close();
+         super.tearDown();
+      }
+   }
+   
+   /**
+    *   Cost of a USER_JOINED followed by a USER_LEFT on a user list
+    *   of the given size.
+    */
+   static class UserListBenchmark
+      extends ClientBenchmark
+   {
+      int size;
+      Message joined;
+      Message left;
+
+      UserListBenchmark(int size)
+      {
+         this.size = size;
+      }
+
+      String getName()
+      {
+         return "user list join/leave size="+size;
+      }
+
+      void setup()
+         throws Exception
+      {
+         super.setup();
+
+         // The users of the topic are loaded on the event thread
+         SwingUtilities.invokeAndWait(new Runnable()
+         {
+            public void run()
+            {
+            }
+         });
+
+         // Applied to the view, as the server has several topics
+         for (int i = 0; i < size; i++)
+            client.applyMessage(view, new Message(Message.SYSTEM, Message.USER_JOINED, new ListenerInfo("User"+i)));
+
+         ListenerInfo user = new ListenerInfo("Joiner");
+         joined = new Message(Message.SYSTEM, Message.USER_JOINED, user);
+         left = new Message(Message.SYSTEM, Message.USER_LEFT, user);
+      }
+
+      void run(int ops)
+         throws Exception
+      {
+         for (int i = 0; i < ops; i++)
+         {
+            client.applyMessage(view, joined);
+            client.applyMessage(view, left);
+         }
+      }
+   }
+   
+   /**
+    *   Cost of switching between two topics that are both subscribed
+    *   to, which only changes the current view.
+    */
+   static class TopicSwitchBenchmark
+      extends ClientBenchmark
+   {
+      TopicInfo first;
+      TopicInfo second;
+      
+      String getName()
+      {
+         return "topic switch";
+      }
+      
+      void setup()
+         throws Exception
+      {
+         super.setup();
+         first = client.getCurrentView().getInfo();
+         second = server.addTopic("Other", "Other benchmark topic");
+         client.subscribe(second);
+      }
+      
+      void run(int ops)
+         throws Exception
+      {
+         for (int i = 0; i < ops; i++)
+         {
+            client.subscribe(first);
+            client.subscribe(second);
+         }
+      }
+   }
+   
+   /**
+    *   Cost of encoding or decoding a batch of 16 text messages, as
+    *   pushed by the NIO transport, with the MessageCodec or with Java
+    *   serialization. The name shows the encoded size per message.
+    */
+   static class CodecBenchmark
+      extends Benchmark
+   {
+      static final int BATCH = 16;
+      
+      boolean codec;
+      boolean decode;
+      List batch = new ArrayList();
+      MessageCodec encoder = new MessageCodec();
+      MessageCodec decoder = new MessageCodec();
+      byte[] encoded;
+      
+      CodecBenchmark(boolean codec, boolean decode)
+      {
+         this.codec = codec;
+         this.decode = decode;
+         for (int i = 0; i < BATCH; i++)
+            batch.add(new Message("Hello"+(i % 4), Message.TEXT, "Hello "+(12345+i)+"!"));
+         
+         try
+         {
+            // The first batch fills the dictionaries, the one measured
+            // is a following one
+            encode();
+            if (codec)
+               decoder.decode(ByteBuffer.wrap(encoded));
+            encode();
+         } catch (IOException e)
+         {
+            throw new IllegalStateException(e.toString());
+         }
+      }
+      
+      String getName()
+      {
+         return (codec ? "codec" : "serialization")+(decode ? " decode" : " encode")
+            +" "+(encoded.length/BATCH)+" bytes/msg";
+      }
+      
+      void setup()
+         throws Exception
+      {
+         checkRoundTrip();
+      }
+      
+      void run(int ops)
+         throws Exception
+      {
+         for (int i = 0; i < ops; i++)
+         {
+            if (decode)
+               decode();
+            else
+               encode();
+         }
+      }
+      
+      void encode()
+         throws IOException
+      {
+         if (codec)
+         {
+            ByteBuffer buffer = encoder.encode(batch);
+            encoded = new byte[buffer.remaining()];
+            buffer.get(encoded);
+         } else
+         {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            ObjectOutputStream out = new ObjectOutputStream(bytes);
+            out.writeObject(batch);
+            out.close();
+            encoded = bytes.toByteArray();
+         }
+      }
+      
+      Object decode()
+         throws Exception
+      {
+         if (codec)
+            return decoder.decode(ByteBuffer.wrap(encoded));
+         return new ObjectInputStream(new ByteArrayInputStream(encoded)).readObject();
+      }
+      
+      /**
+       *   Send values through an encoder and decoder pair twice, so that
+       *   both the first use and the reuse of symbols are covered.
+       */
+      static void checkRoundTrip()
+         throws IOException
+      {
+         StringBuffer longText = new StringBuffer();
+         for (int i = 0; i < 100000; i++)
+            longText.append((char)('a'+i % 26));
+         
+         Object[] values = 
+         {
+            null,
+            "",
+            "Hello",
+            "\u00d6berg \u20ac \ud83d\ude00 \u0000",
+            longText.toString(),
+            new Integer(0), new Integer(-1), new Integer(Integer.MIN_VALUE), new Integer(Integer.MAX_VALUE),
+            new Long(Long.MIN_VALUE), new Long(Long.MAX_VALUE), new Long(300),
+            new ListenerInfo("Rickard"),
+            new TopicInfo("Topic", "A topic"),
+            new TopicInfo("Topic", null),
+            new Message("Rickard", Message.TEXT, "Hello!"),
+            new Message("Rickard", ChatGUI.TYPING, null),
+            new Message(Message.SYSTEM, Message.USER_JOINED, new ListenerInfo("Rickard")),
+            new Message(Message.SYSTEM, Message.TOPIC_CREATED, new TopicInfo("Other", "Another topic")),
+            new Message(null, Message.TEXT, "No sender"),
+            Arrays.asList(new Object[] { "a", new Integer(1), Arrays.asList(new Object[] { "b" }) }),
+            new Object[] { new TopicInfo("Topic", "A topic"), new ListenerInfo("Rickard"), new Long(1) },
+            new RemoteException("Failed"),
+            new Message("Rickard", Message.TEXT, new CompressedContent(7, 300, new byte[] { 1, 2, 3 })),
+            new Message("Rickard", Message.TEXT, new KeyedContent(-42L, 7, "Keyed")),
+         };
+         
+         MessageCodec encoder = new MessageCodec();
+         MessageCodec decoder = new MessageCodec();
+         for (int round = 0; round < 2; round++)
+         {
+            for (int i = 0; i < values.length; i++)
+            {
+               ByteBuffer buffer = encoder.encode(values[i]);
+               Object decoded = decoder.decode(buffer);
+               if (buffer.hasRemaining() || !describe(values[i]).equals(describe(decoded)))
+                  throw new IllegalStateException("Round trip failed for "+describe(values[i])+", got "+describe(decoded));
+            }
+         }
+         
+         // More symbols than fit in the dictionary
+         for (int i = 0; i < MessageCodec.MAX_SYMBOLS+100; i++)
+         {
+            Message message = new Message("User"+i, Message.TEXT, "Hi");
+            if (!describe(message).equals(describe(decoder.decode(encoder.encode(message)))))
+               throw new IllegalStateException("Round trip failed for "+describe(message));
+         }
+      }
+      
+      /**
+       *   Describe a value by its class and contents, as the interface
+       *   classes do not implement equals by content.
+       */
+      static String describe(Object value)
+      {
+         if (value == null)
+            return "null";
+         if (value instanceof Message)
+         {
+            Message message = (Message)value;
+            return "Message("+message.getSender()+","+message.getType()+","+describe(message.getContent())+")";
+         }
+         if (value instanceof TopicInfo)
+            return "TopicInfo("+value+","+((TopicInfo)value).getDescription()+")";
+         if (value instanceof ListenerInfo)
+            return "ListenerInfo("+((ListenerInfo)value).getName()+")";
+         if (value instanceof Object[])
+            return "Array"+describe(Arrays.asList((Object[])value));
+         if (value instanceof List)
+         {
+            StringBuffer buf = new StringBuffer("[");
+            List list = (List)value;
+            for (int i = 0; i < list.size(); i++)
+               buf.append(i == 0 ? "" : ",").append(describe(list.get(i)));
+            return buf.append("]").toString();
+         }
+         if (value instanceof Throwable)
+            return value.getClass().getName()+"("+((Throwable)value).getMessage()+")";
+         if (value instanceof CompressedContent)
+         {
+            CompressedContent content = (CompressedContent)value;
+            return "CompressedContent("+content.getDictionary()+","+content.getLength()+","+Arrays.toString(content.getData())+")";
+         }
+         if (value instanceof KeyedContent)
+         {
+            KeyedContent content = (KeyedContent)value;
+            return "KeyedContent("+content.getKey()+","+describe(content.getContent())+")";
+         }
+         return value.getClass().getName()+"("+value+")";
+      }
+   }
+   
+   /**
+    *   Cost of compressing or inflating one text of a chat corpus, with
+    *   or without dictionaries. The name shows the share of the bytes
+    *   of the corpus that is sent, after the texts below the threshold
+    *   and those skipped while compression did not pay.
+    *
+    *   The corpora are generated: chat lines, pasted server logs, stack
+    *   traces, code blocks and base64 of random bytes.
+    */
+   static class CompressionBenchmark
+      extends Benchmark
+   {
+      static final String[] CORPORA = { "chat", "log", "trace", "code", "random" };
+      static final int TEXTS = 64;
+      
+      String corpus;
+      boolean dictionaries;
+      boolean inflate;
+      List texts;
+      List compressed = new ArrayList();
+      ContentCompressor sender;
+      ContentCompressor receiver;
+      long original;
+      long sent;
+      int next;
+      
+      CompressionBenchmark(String corpus, boolean dictionaries, boolean inflate)
+      {
+         this.corpus = corpus;
+         this.dictionaries = dictionaries;
+         this.inflate = inflate;
+         texts = generate(corpus, new Random(42));
+         prime();
+      }
+      
+      String getName()
+      {
+         return (inflate ? "inflate " : "compress ")+corpus+(dictionaries ? " dict" : "")
+            +" "+(sent*100/original)+"% of "+(original/texts.size())+" bytes";
+      }
+      
+      /**
+       *   Send the corpus through a sender and receiver twice, so that
+       *   the dictionaries are trained as in a busy topic, and check that
+       *   the texts arrive unchanged.
+       */
+      void prime()
+      {
+         sender = new ContentCompressor(ContentCompressor.THRESHOLD, ContentCompressor.LEVEL, dictionaries);
+         receiver = new ContentCompressor(ContentCompressor.THRESHOLD, ContentCompressor.LEVEL, dictionaries);
+         for (int round = 0; round < 2; round++)
+         {
+            original = 0;
+            sent = 0;
+            compressed.clear();
+            for (int i = 0; i < texts.size(); i++)
+            {
+               Message message = (Message)texts.get(i);
+               Message compressedMessage = sender.compress(message);
+               List batch = new ArrayList();
+               Message announcement = sender.getAnnouncement(message.getSender());
+               if (announcement != null)
+                  batch.add(announcement);
+               batch.add(compressedMessage);
+               compressed.add(compressedMessage);
+               
+               byte[] text = message.getContent().toString().getBytes(ContentCompressor.UTF8);
+               original += text.length;
+               Object content = compressedMessage.getContent();
+               sent += content instanceof CompressedContent ? ((CompressedContent)content).getData().length : text.length;
+               
+               sender.received(batch);
+               List received = new ArrayList(receiver.received(batch));
+               Message inflated = (Message)received.get(received.size()-1);
+               if (!inflated.getContent().equals(message.getContent()))
+                  throw new IllegalStateException("Text "+i+" of "+corpus+" not inflated to the original: "+inflated.getContent());
+            }
+         }
+      }
+      
+      void run(int ops)
+         throws Exception
+      {
+         for (int i = 0; i < ops; i++)
+         {
+            int index = next++ % texts.size();
+            if (inflate)
+               receiver.received(Collections.singletonList(compressed.get(index)));
+            else
+               sender.compress((Message)texts.get(index));
+         }
+      }
+      
+      static List generate(String corpus, Random random)
+      {
+         String[] users = { "alice", "bob", "carol", "dave" };
+         List texts = new ArrayList();
+         for (int i = 0; i < TEXTS; i++)
+         {
+            StringBuffer text = new StringBuffer();
+            if (corpus.equals("chat"))
+            {
+               String[] words = { "the", "build", "is", "green", "again", "who", "broke", "server", "lunch", "?", "ok", "thanks", "deploying", "now", "topic", "client" };
+               int count = 3+random.nextInt(12);
+               for (int w = 0; w < count; w++)
+                  text.append(w == 0 ? "" : " ").append(words[random.nextInt(words.length)]);
+            } else if (corpus.equals("log"))
+            {
+               String[] levels = { "INFO ", "DEBUG", "WARN ", "ERROR" };
+               String[] loggers = { "chat.server.TopicImpl", "chat.server.TopicServerImpl", "chat.server.Delivery", "sun.rmi.transport.tcp" };
+               int lines = 20+random.nextInt(100);
+               for (int l = 0; l < lines; l++)
+               {
+                  text.append("2024-05-0").append(1+random.nextInt(9)).append(' ')
+                     .append(10+random.nextInt(14)).append(':').append(10+random.nextInt(50)).append(':').append(10+random.nextInt(50))
+                     .append(',').append(100+random.nextInt(900)).append(' ')
+                     .append(levels[random.nextInt(levels.length)]).append(" [pool-1-thread-").append(random.nextInt(8)).append("] ")
+                     .append(loggers[random.nextInt(loggers.length)]).append(" - Delivered ").append(random.nextInt(64))
+                     .append(" messages to ").append(users[random.nextInt(users.length)]).append(random.nextInt(1000)).append('\n');
+               }
+            } else if (corpus.equals("trace"))
+            {
+               String[] frames = { "chat.client.ChatClient.publishMessage(ChatClient.java:", "chat.client.PublishPipeline.send(PublishPipeline.java:", "sun.rmi.server.UnicastRef.invoke(UnicastRef.java:", "java.lang.reflect.Method.invoke(Method.java:", "java.lang.Thread.run(Thread.java:", "chat.client.InboundDispatcher.run(InboundDispatcher.java:" };
+               text.append("java.rmi.ConnectException: Connection refused to host: 10.0.0.").append(random.nextInt(255)).append('\n');
+               int depth = 10+random.nextInt(40);
+               for (int f = 0; f < depth; f++)
+                  text.append("\tat ").append(frames[random.nextInt(frames.length)]).append(random.nextInt(900)).append(")\n");
+            } else if (corpus.equals("code"))
+            {
+               String[] names = { "topic", "message", "listener", "view", "count", "server", "result", "batch" };
+               text.append("public class Example").append(i).append("\n{\n");
+               int methods = 3+random.nextInt(8);
+               for (int m = 0; m < methods; m++)
+               {
+                  String name = names[random.nextInt(names.length)];
+                  text.append("   public void handle").append(Character.toUpperCase(name.charAt(0))).append(name.substring(1)).append("(Object ").append(name).append(")\n   {\n")
+                     .append("      if (").append(name).append(" == null)\n         return;\n")
+                     .append("      for (int i = 0; i < ").append(random.nextInt(100)).append("; i++)\n         ")
+                     .append(names[random.nextInt(names.length)]).append(".add(").append(name).append(");\n   }\n\n");
+               }
+               text.append("}\n");
+            } else
+            {
+               byte[] bytes = new byte[1500+random.nextInt(6000)];
+               random.nextBytes(bytes);
+               String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+               for (int b = 0; b < bytes.length; b++)
+                  text.append(alphabet.charAt(bytes[b] & 63));
+            }
+            texts.add(new Message("Benchmark", Message.TEXT, text.toString()));
+         }
+         return texts;
+      }
+   }
+   
+   /**
+    *   Cost of publishing a message through an outbox, which takes it as
+    *   soon as it is written.
+    */
+   static class OutboxBenchmark
+      extends Benchmark
+   {
+      Outbox.Sync sync;
+      File file;
+      Outbox outbox;
+      Message message = new Message("Benchmark", Message.TEXT, "Hello, this message is kept in the outbox until it is taken");
+      
+      OutboxBenchmark(Outbox.Sync sync)
+      {
+         this.sync = sync;
+      }
+      
+      String getName()
+      {
+         return "outbox "+sync.name().toLowerCase()+" sync";
+      }
+      
+      void setup()
+         throws Exception
+      {
+         file = File.createTempFile("outbox", ".tmp");
+         outbox = new Outbox(file, sync);
+         outbox.setSender(new Outbox.Sender()
+         {
+            public PublishFuture send(Outbox.Entry entry)
+            {
+               PublishFuture sent = new PublishFuture(entry.getMessage());
+               sent.complete();
+               return sent;
+            }
+         });
+      }
+      
+      void run(int ops)
+         throws Exception
+      {
+         PublishFuture last = null;
+         for (int i = 0; i < ops; i++)
+            last = outbox.publish("Benchmark", message);
+         last.get();
+      }
+      
+      void tearDown()
+      {
+         long[] statistics = outbox.getStatistics();
+         outbox.close();
+         file.delete();
+         System.out.println("  "+statistics[0]+" messages written with "+statistics[1]+" syncs");
+      }
+   }
+   
+   /**
+    *   Cost of filtering one chat message with the given number of
+    *   highlight keywords, a few of which are found.
+    */
+   static class FilterBenchmark
+      extends Benchmark
+   {
+      int keywords;
+      boolean naive;
+      MessageFilter filter;
+      String[] words;
+      List texts;
+      int next;
+      
+      FilterBenchmark(int keywords, boolean naive)
+      {
+         this.keywords = keywords;
+         this.naive = naive;
+      }
+      
+      String getName()
+      {
+         return "filter "+keywords+" keywords"+(naive ? " naive" : "");
+      }
+      
+      void setup()
+      {
+         Random random = new Random(42);
+         List rules = new ArrayList();
+         words = new String[keywords];
+         for (int i = 0; i < keywords; i++)
+         {
+            // Mostly words that are not in the texts
+            StringBuffer word = new StringBuffer(i % 100 == 0 ? "deploying" : "");
+            while (word.length() < 6)
+               word.append((char)('a'+random.nextInt(26)));
+            words[i] = word.toString();
+            rules.add(new MessageFilter.Rule(MessageFilter.Rule.HIGHLIGHT, words[i]));
+         }
+         filter = new MessageFilter(rules);
+         texts = CompressionBenchmark.generate("chat", random);
+      }
+      
+      void run(int ops)
+      {
+         for (int i = 0; i < ops; i++)
+         {
+            Message message = (Message)texts.get(next++ % texts.size());
+            if (naive)
+            {
+               String text = ((String)message.getContent()).toLowerCase();
+               for (int w = 0; w < words.length; w++)
+               {
+                  if (text.indexOf(words[w]) != -1)
+                     break;
+               }
+            } else
+            {
+               filter.match(message);
+            }
+         }
+      }
+   }
+   
+   /**
+    *   Cost of finding the newest 50 messages that match a query among
+    *   a million chat messages with words of a large vocabulary.
+    */
+   static class SearchBenchmark
+      extends Benchmark
+   {
+      static final int MESSAGES = 1000000;
+      static final int VOCABULARY = 50000;
+      static final int MAX = 50;
+      
+      // Shared by all the search benchmarks
+      static String[] vocabulary;
+      static Message[] messages;
+      static MessageIndex index;
+      
+      String kind;
+      String query;
+      
+      SearchBenchmark(String kind)
+      {
+         this.kind = kind;
+      }
+      
+      String getName()
+      {
+         return "search "+kind;
+      }
+      
+      void setup()
+      {
+         if (index == null)
+         {
+            Random random = new Random(42);
+            vocabulary = new String[VOCABULARY];
+            for (int i = 0; i < VOCABULARY; i++)
+            {
+               StringBuffer word = new StringBuffer();
+               int length = 3+random.nextInt(7);
+               while (word.length() < length)
+                  word.append((char)('a'+random.nextInt(26)));
+               vocabulary[i] = word.toString();
+            }
+            
+            // Words are picked with a skewed distribution, the first ones the most
+            messages = new Message[MESSAGES];
+            for (int i = 0; i < MESSAGES; i++)
+            {
+               StringBuffer text = new StringBuffer();
+               int count = 3+random.nextInt(12);
+               for (int w = 0; w < count; w++)
+               {
+                  double skew = random.nextDouble();
+                  text.append(w == 0 ? "" : " ").append(vocabulary[(int)(skew*skew*skew*VOCABULARY)]);
+               }
+               messages[i] = new Message("user"+random.nextInt(200), Message.TEXT, text.toString());
+            }
+            
+            long start = System.nanoTime();
+            index = new MessageIndex(Integer.MAX_VALUE);
+            for (int i = 0; i < MESSAGES; i++)
+               index.add(i, messages[i]);
+            System.out.println("  "+index+" built in "+(System.nanoTime()-start)/1000000+" ms");
+         }
+         
+         if (kind.equals("term") || kind.equals("scan"))
+            query = vocabulary[VOCABULARY/2];
+         else if (kind.equals("terms"))
+            query = vocabulary[0]+" "+vocabulary[VOCABULARY/10];
+         else if (kind.equals("prefix"))
+            query = vocabulary[VOCABULARY/10].substring(0, 3)+"*";
+         else
+            query = "from:user7 "+vocabulary[10];
+      }
+      
+      void run(int ops)
+      {
+         for (int i = 0; i < ops; i++)
+         {
+            if (kind.equals("scan"))
+            {
+               // As MessageJournal.find, without reading the journal
+               int found = 0;
+               for (int m = MESSAGES-1; m >= 0 && found < MAX; m--)
+               {
+                  if (((String)messages[m].getContent()).indexOf(query) != -1)
+                     found++;
+               }
+            } else
+            {
+               index.search(query, MAX);
+            }
+         }
+      }
+   }
+}
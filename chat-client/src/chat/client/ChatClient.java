@@ -4,27 +4,25 @@
  */
 package chat.client;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.MalformedURLException;
 import java.rmi.Naming;
 import java.rmi.NotBoundException;
-import java.rmi.RMISecurityManager;
 import java.rmi.RemoteException;
-import java.rmi.ServerException;
-import java.rmi.registry.LocateRegistry;
-import java.rmi.registry.Registry;
-import java.rmi.server.UnicastRemoteObject;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.Properties;
 import java.util.Iterator;
 import java.util.StringTokenizer;
 
 import javax.swing.ListModel;
 import javax.swing.ComboBoxModel;
-import javax.swing.DefaultListModel;
-import javax.swing.DefaultComboBoxModel;
-import javax.swing.SwingUtilities;
 
 import javax.naming.Context;
 import javax.naming.InitialContext;
@@ -42,137 +40,161 @@ import chat.interfaces.ListenerInfo;
  *   This is the chat client model and controller. This is used
  *   by the GUI, but can also be used as a standalone application
  *   for testing purposes.
+ *
+ *   The client can be subscribed to several topics at once, each with
+ *   its own TopicView. One of them is the current topic, which messages
+ *   are published to.
+ *
+ *   Clients created by a SharedConnection are lightweight sessions that
+ *   share its connection, listener, publisher and topic list.
+ *
+ *   Creating a client does not connect it. The server is looked up and
+ *   the topic list loaded on login, or earlier by getTopicServer, which
+ *   the GUI calls in the background while the user enters a name.
+ *
+ *   The messages received are filtered by the MessageFilter of the
+ *   client on the thread that receives them, so that muted messages
+ *   never reach the event thread.
+ *
+ *   With an Outbox, the messages published are kept on disk until the
+ *   server has taken them, and sent again after a reconnect.
+ *
+ *   Received messages are handed to every MessageReceiver added, on the
+ *   event thread, or with a headless InboundDispatcher on a thread of
+ *   the dispatcher. A MessageStream hands them on to subscribers that
+ *   request them as they can take them.
+ *
+ *   With a FlowControl set, the client takes messages from a
+ *   FlowControlServer by credit, which a CreditWindow grants back as the
+ *   inbound dispatcher applies them.
+ *
+ *   With a TrafficRecorder, the traffic of the client is recorded for
+ *   TrafficReplay to play back.
+ *
+ *   Files are sent to a topic with attach, in chunks that take turns
+ *   with the other messages published, and the files others send are
+ *   written to the AttachmentStore of the client as the chunks arrive.
  *      
  *   @see ChatGUI
  *   @author Rickard berg (rickard@dreambean.com)
  *   @version $Revision:$
  */
 public class ChatClient
-   extends UnicastRemoteObject
-   implements MessageListener
+   implements TopicMessageListener, Outbox.Sender
 {
    // Constants -----------------------------------------------------
-   static final String TOPIC_SERVER = "chat-server";
    static final String REMOTE_SERVER = "129.21.108.223"; //"winterfel.student.rit.edu";
     
    // Attributes ----------------------------------------------------
+   Transport transport;
    TopicServer server;
+   SharedConnection connection; // Null unless this is a session
    
-   DefaultComboBoxModel topics;
-   DefaultListModel users;
+   TopicDirectory topics;
+   
+   // The views of the topics subscribed to, or seen before
+   Map views = new ConcurrentHashMap(); // TopicInfo -> TopicView
+   volatile TopicView currentView;
+   
+   // Without a MultiTopicServer, the one view that is subscribed
+   volatile TopicView subscribedView;
    
-   Topic currentTopic;
-   TopicInfo currentTopicInfo;
    ListenerInfo info;
    String title;
    
-   MessageReceiver messageReceiver;
+   List messageReceivers = new CopyOnWriteArrayList();
+   ConnectionListener connectionListener;
+   
+   Reconnector reconnector;
+   
+   // Batches received while catching up, delivered after the missed ones
+   volatile List holding;
+   Object holdLock = new Object();
+   
+   PublishPipeline publisher;
+   PublishPipeline.Backpressure backpressure = PublishPipeline.DEFAULT_BACKPRESSURE;
+   Outbox outbox;
+   
+   MessageLog messageLog;
+   File topicFile;
+   long lastLogOffset = -1;
+   TopicView lastView;
+   MessageFilter.Rule lastHighlight;
+   InboundDispatcher inbound;
+   volatile MessageFilter filter;
+   FlowControl flowControl = FlowControl.getDefault();
+   volatile CreditWindow credits;
+   volatile TrafficRecorder recorder;
+   volatile AttachmentStore attachments;
    
    // Static --------------------------------------------------------
    public static void main(String[] args)
-      throws IOException
+      throws Exception
    {
       // Performance tests
-      // This will test the throughput of the chat system
-      // Typically you should get about 0 ms/message (i.e. very low)
-      // The reason for this is that since the message delivery is 
-      // batched there will be a number of messages for each RMI call
-   
-      // Set security policy and security manager
-      // Policy allows everything
-      // System.setProperty("java.security.policy",ChatClient.class.getResource("/client.policy").toString());
-      // System.setSecurityManager(new SecurityManager());
-   
-      // Get test parameters
-      int clientCount = new Integer(args[0]).intValue();
-      int messageCount = new Integer(args[1]).intValue();
-      int topicIndex = args.length == 3 ? new Integer(args[2]).intValue()-1 : 0;
-      
-      // Create test clients and subscribe them to the default topic
-      Collection clients = new ArrayList();
-      ChatClient client = null;
-      // The following lines that get a time stamp of when the code starts logging
-      // in users.
-      long loginStart = System.currentTimeMillis();
-      for (int i = 0; i < clientCount; i++)
-      {
-         client = new ChatClient();
-         client.login("Hello"+i);
-         client.subscribe(((TopicInfo)client.getTopics().getElementAt(topicIndex)));
-         clients.add(client);
-         
-         // The following commented lines of code tests where the client gets logged
-         // in and immediately sends a message to the server, then the next client
-         // gets logged in and subscribes to the given topic.
-         
-         //Message message = new Message("Hello"+i,"Text","Hello "+i+"!");
-         //client.publishMessage(message);
-         
-         System.out.println("Client "+i+" created");
-      }
-      long loginStop = System.currentTimeMillis();
-      
-      System.out.println("Clients created");
-      
-      // Use the last client to send messages
-      long start = System.currentTimeMillis();
-      for (int i = 0; i < messageCount; i++)
+      // This will test the throughput of the chat system against the
+      // remote server. Latencies are reported as p50/p99/p999 in ns.
+      // The clients run concurrently, each on a thread of its own.
+      // See LoadGenerator for the clients x messages x topics matrix
+      // and for running against the in-process server, and
+      // ChatBenchmark for the microbenchmarks.
+      LoadGenerator.main(new String[]
       {
-         Message message = new Message("Hello"+(clientCount-1),"Text","Hello "+i+"!");
-         client.publishMessage(message);
-         if (i % 100 == 0)
-            System.out.println(i+" messages sent");
-      }
-      long end = System.currentTimeMillis();
-      long time = end - start;
-      
-      System.out.println("Test done");
-      
-      // The following code block iterates through all of the clients then
-      // switches the topic of the client to the the third topic in the topic list.
-      // There are time stamps to calculate the response time of switching topics.
-      /*Iterator iter1 = clients.iterator();
-      long topicStart = System.currentTimeMillis();
-      int i = 0;
-      while (iter1.hasNext())
-      {
-    	 client = (ChatClient)iter1.next();
-         //client.subscribe(((TopicInfo)client.getTopics().getElementAt(2)));
-      	 i++;
-      }
-      long topicStop = System.currentTimeMillis();
-      */
-      // Log off test clients
-      Iterator iter = clients.iterator();
-      long logoutStart = System.currentTimeMillis();
-      while (iter.hasNext())
-      {
-         client = (ChatClient)iter.next();
-         client.logout();
-      }
-      long logoutStop = System.currentTimeMillis();
-      
-      System.out.println("Clients removed");
-      
-      // Show results
-      System.out.println("Total time:"+time);
-      // The following lines just output the response times for login,
-      // logout and switching topics.
-      //System.out.println("Total login time:"+ (loginStop - loginStart));
-      //System.out.println("Total logout time:"+ (logoutStop - logoutStart));
-      //System.out.println("Total topic switch time:"+ (topicStop - topicStart));
-      System.out.println("Nr of clients:"+clientCount);
-      System.out.println("Total nr of messages:"+(messageCount*clientCount));
-      System.out.println("Time/message:"+(time/messageCount));
-      System.out.println("Time/(message*nr of test clients):"+(time/(messageCount*clientCount)));
-      System.out.println("Time/(message*(nr of test clients + 1)):"+(time/(messageCount*(clientCount+1))));
+         "-remote",
+         "-concurrent",
+         "-clients", args[0],
+         "-messages", args[1],
+         "-topic", args.length == 3 ? args[2] : "1"
+      });
+   }
+   
+   /**
+    *   Create the transport selected by the chat.transport system
+    *   property.
+    */
+   static Transport createTransport()
+   {
+      if (System.getProperty("chat.transport", "rmi").equals("nio"))
+         return new NioTransport();
+      return new RmiTransport();
    }
    
    // Constructors --------------------------------------------------
    public ChatClient()
       throws IOException
    {
-      getTopicServer();
+      this(createTransport());
+   }
+
+   public ChatClient(Transport transport)
+      throws IOException
+   {
+      this.transport = transport;
+      this.inbound = new InboundDispatcher(this);
+      this.filter = MessageFilter.getDefault();
+   }
+
+   /**
+    *   Create a client for an already resolved topic server, such as
+    *   the in-process LocalTopicServer used for testing.
+    */
+   public ChatClient(TopicServer server)
+      throws IOException
+   {
+      this(new DirectTransport(server));
+   }
+
+   /**
+    *   Create a session of the shared connection.
+    *
+    *   @see SharedConnection#createSession
+    */
+   ChatClient(SharedConnection connection)
+   {
+      this.connection = connection;
+      this.transport = connection.getTransport();
+      this.server = connection.getTopicServer();
+      this.inbound = new InboundDispatcher(this, InboundDispatcher.SESSION_QUEUE_SIZE);
    }
 
    // Public --------------------------------------------------------
@@ -181,115 +203,588 @@ public class ChatClient
    {
       info = new ListenerInfo(name);
       
-      getTopicServer().addListener(info, this);
+      if (connection != null)
+      {
+         // Sessions are reconnected by their connection
+         connection.addSession(this);
+         return;
+      }
+      
+      getTopicServer().addListener(info, transport.export(this));
+      openCredits();
+      reconnector = new Reconnector(new Reconnector.Target()
+      {
+         public boolean isConnected()
+            throws RemoteException
+         {
+            return ChatClient.this.isConnected();
+         }
+         
+         public void reconnect()
+            throws RemoteException
+         {
+            ChatClient.this.reconnect();
+         }
+         
+         public void connectionLost(Exception cause)
+         {
+            fireConnectionLost(cause);
+         }
+         
+         public void connectionRestored()
+         {
+            fireConnectionRestored();
+         }
+      });
    }
    
    public void logout()
       throws RemoteException
    {
-      if (currentTopic != null)
-         unsubscribe();
+      if (reconnector != null)
+      {
+         reconnector.stop();
+         reconnector = null;
+      }
+      
+      // What is not sent yet stays in the outbox for the next login
+      if (outbox != null)
+         outbox.setSender(null);
+      
+      if (publisher != null)
+      {
+         // Send what has already been queued before leaving
+         publisher.close();
+         publisher = null;
+      }
+      
+      if (outbox != null)
+      {
+         outbox.close();
+         outbox = null;
+      }
+      
+      Iterator vlist = getViews().iterator();
+      while (vlist.hasNext())
+      {
+         TopicView view = (TopicView)vlist.next();
+         if (view.isSubscribed())
+            unsubscribe(view.getInfo());
+      }
          
-      getTopicServer().removeListener(info);
+      if (connection != null)
+      {
+         connection.removeSession(this);
+      } else
+      {
+         getTopicServer().removeListener(info);
+         transport.close();
+      }
       server = null;
+      credits = null;
+      
+      if (recorder != null)
+      {
+         recorder.close();
+         recorder = null;
+      }
+      
+      if (attachments != null)
+      {
+         attachments.close();
+         attachments = null;
+      }
+      
+      if (topics != null)
+         topics.close();
+      
+      if (messageLog != null)
+         messageLog.close();
    }
 
-   public void subscribe(TopicInfo topicInfo)
+   /**
+    *   Subscribe to the topic and make it the current one. Topics that
+    *   are already subscribed to are only made current, without asking
+    *   the server. Servers that do not implement MultiTopicServer only
+    *   allow one subscription, so the previous topic is left first.
+    */
+   public TopicView subscribe(TopicInfo topicInfo)
       throws RemoteException
    {
-      if (currentTopic != null)
-         unsubscribe();
+      TopicView view = (TopicView)views.get(topicInfo);
+      if (view == null)
+      {
+         view = new TopicView(topicInfo);
+         views.put(topicInfo, view);
+      }
       
-      currentTopic = server.subscribe(topicInfo, info);
-      currentTopicInfo = topicInfo;
+      if (!view.isSubscribed())
+      {
+         if (!isMultiTopic())
+         {
+            TopicView previous = subscribedView;
+            if (previous != null && previous.isSubscribed())
+               unsubscribe(previous.getInfo());
+            subscribedView = view;
+         }
+         
+         view.received.set(0);
+         Topic topic = subscribeTopic(topicInfo);
+         view.subscribed(topic, topic instanceof CatchUpTopic ? ((CatchUpTopic)topic).getSequence(info) : 0);
+         view.loadUsers(inbound);
+         if (recorder != null)
+            recorder.subscribed(topicInfo);
+         
+         // Messages for the topic left in the outbox
+         if (outbox != null)
+            outbox.replay();
+      }
       
-      // Force user list to be loaded
-      getUsers();
+      currentView = view;
+      view.clearUnread();
+      return view;
    }
    
    public void unsubscribe()
       throws RemoteException
    {
-      server.unsubscribe(currentTopicInfo, info);
-      currentTopic = null;
-      currentTopicInfo = null;
-      users = null;
+      TopicView view = currentView;
+      if (view != null && view.isSubscribed())
+         unsubscribe(view.getInfo());
    }
    
-   public void publishMessage(Message message)
+   /**
+    *   Leave the topic. Its view and history are kept.
+    */
+   public void unsubscribe(TopicInfo topicInfo)
       throws RemoteException
    {
-      currentTopic.publishMessage(message);
+      TopicView view = (TopicView)views.get(topicInfo);
+      if (view == null || !view.isSubscribed())
+         return;
+      
+      if (connection != null)
+         connection.unsubscribe(this, topicInfo);
+      else
+         server.unsubscribe(topicInfo, info);
+      view.unsubscribed();
+      if (subscribedView == view)
+         subscribedView = null;
+      if (recorder != null)
+         recorder.unsubscribed(topicInfo);
+      
+      // Sessions do not keep the views of topics they leave
+      if (connection != null)
+         views.remove(topicInfo);
+   }
+   
+   /**
+    *   Publish a message to the current topic. The message is queued
+    *   and sent by the publish pipeline, and the returned future is
+    *   completed when the server has accepted it. Large text messages
+    *   are compressed if chat.compress is set, and text messages are
+    *   traced if chat.metrics.trace is set.
+    */
+   public synchronized PublishFuture publishMessage(Message message)
+   {
+      TopicView view = currentView;
+      Topic topic = view == null ? null : view.getTopic();
+      if (topic == null)
+         return PublishFuture.failed(message, new IllegalStateException("Not subscribed to a topic"));
+      
+      if (recorder != null)
+         recorder.published(view.getInfo(), message);
+      if (outbox != null && message.getType().equals(Message.TEXT))
+         return outbox.publish(view.getInfo().toString(), message);
+      return send(view, topic, message, null);
+   }
+   
+   /**
+    *   Send the file to the current topic. The upload goes on in the
+    *   background.
+    */
+   public AttachmentUpload attach(File file)
+      throws IOException
+   {
+      return attach(file, 0);
+   }
+   
+   /**
+    *   Send the file to the current topic from the given offset, to
+    *   resume an upload that did not finish.
+    */
+   public AttachmentUpload attach(File file, long offset)
+      throws IOException
+   {
+      TopicView view = currentView;
+      if (view == null || view.getTopic() == null)
+         throw new IllegalStateException("Not subscribed to a topic");
+      
+      AttachmentUpload upload = new AttachmentUpload(this, view.getInfo(), file);
+      upload.start(offset);
+      return upload;
+   }
+   
+   /**
+    *   Keep the chat messages published in the given outbox until they
+    *   are taken by the server. Messages left in it by an earlier login are
+    *   sent when their topics are subscribed to.
+    */
+   public void setOutbox(Outbox outbox)
+   {
+      this.outbox = outbox;
+      outbox.setSender(this);
+   }
+   
+   public Outbox getOutbox()
+   {
+      return outbox;
+   }
+   
+   /**
+    *   Send the message of the outbox entry, if subscribed to its topic.
+    */
+   public PublishFuture send(Outbox.Entry entry)
+   {
+      Iterator vlist = getViews().iterator();
+      while (vlist.hasNext())
+      {
+         TopicView view = (TopicView)vlist.next();
+         Topic topic = view.getTopic();
+         if (topic != null && view.getInfo().toString().equals(entry.getTopic()))
+            return send(view, topic, entry.getMessage(), entry);
+      }
+      return null;
+   }
+   
+   /**
+    *   Send a chunk of an upload to the topic, if still subscribed to
+    *   it. Chunks do not go through the outbox, as uploads are resumed
+    *   instead.
+    */
+   PublishFuture sendAttachment(TopicInfo topicInfo, Message message)
+   {
+      TopicView view = (TopicView)views.get(topicInfo);
+      Topic topic = view == null ? null : view.getTopic();
+      if (topic == null)
+         return PublishFuture.failed(message, new IllegalStateException("Not subscribed to "+topicInfo));
+      return send(view, topic, message, null);
+   }
+   
+   /**
+    *   Send the message to the topic through the publish pipeline, with
+    *   the key of the outbox entry if it is from one.
+    */
+   PublishFuture send(TopicView view, Topic topic, Message message, Outbox.Entry entry)
+   {
+      if (ContentCompressor.ENABLED)
+         message = compress(view, topic, message);
+      if (entry != null && Outbox.KEYS)
+         message = entry.withKey(message);
+      if (ClientMetrics.TRACE)
+         message = ClientMetrics.trace(message);
+      
+      final PublishFuture result = getPublisher().publish(topic, message);
+      result.addListener(new Runnable()
+      {
+         public void run()
+         {
+            if (result.getException() instanceof RemoteException)
+               connectionFailed(result.getException());
+         }
+      });
+      return result;
    }
    
    public void addMessageReceiver(MessageReceiver mr)
    {
-      this.messageReceiver = mr;
+      messageReceivers.add(mr);
    }
    
    public void removeMessageReceiver(MessageReceiver mr)
    {
-      if (this.messageReceiver == mr)
-         this.messageReceiver = null;
+      messageReceivers.remove(mr);
    }
    
+   public void addConnectionListener(ConnectionListener cl)
+   {
+      this.connectionListener = cl;
+   }
+   
+   public void removeConnectionListener(ConnectionListener cl)
+   {
+      if (this.connectionListener == cl)
+         this.connectionListener = null;
+   }
+   
+   /**
+    *   Check that the server still knows about this client. Only topics
+    *   that support catching up can tell, for others this returns true
+    *   as long as the call succeeds.
+    */
+   public boolean isConnected()
+      throws RemoteException
+   {
+      TopicView view = currentView;
+      Topic topic = view == null ? null : view.getTopic();
+      if (topic instanceof CatchUpTopic)
+         return ((CatchUpTopic)topic).getSequence(info) >= 0;
+      return server != null;
+   }
+   
+   /**
+    *   Whether the server allows subscriptions to several topics.
+    */
+   public boolean isMultiTopic()
+   {
+      return server instanceof MultiTopicServer;
+   }
+   
+   /**
+    *   The sequence number of the next message expected on the current
+    *   topic.
+    */
+   public long getSequence()
+   {
+      TopicView view = currentView;
+      return view == null ? 0 : view.getSequence();
+   }
+   
+   /**
+    *   Called when a call to the server has failed. Starts reconnecting
+    *   in the background.
+    */
+   public void connectionFailed(Exception e)
+   {
+      if (connection != null)
+      {
+         connection.connectionFailed(e);
+         return;
+      }
+      
+      Reconnector r = reconnector;
+      if (r != null)
+         r.start(e);
+   }
+   
+   /**
+    *   Get the server, connecting to it and loading the topic list if
+    *   not connected yet.
+    */
    public TopicServer getTopicServer()
       throws RemoteException
    {
       if (server == null)
       {
-         try
-         {
-            //Properties cfg = new Properties();
-            //cfg.load(getClass().getResourceAsStream("/jndi.properties"));
-            // server = (TopicServer)new InitialContext(cfg).lookup();
-            
-  /**/     	System.setSecurityManager(new RMISecurityManager());
-  /**/     	Registry registry = LocateRegistry.getRegistry(REMOTE_SERVER);
-  /**/      server = (TopicServer)registry.lookup(TOPIC_SERVER); 
-  
-            
-         } catch (NotBoundException e)
-         {
-            throw new ServerException("Could not access topic server", e);
-         } catch (IOException e)
-         {
-            throw new ServerException("Could not load jndi.properties", e);
-         }
+         long start = ClientMetrics.ENABLED ? System.nanoTime() : 0;
+         server = transport.connect();
+         if (ClientMetrics.ENABLED)
+            ClientMetrics.METRICS.lookup.record(System.nanoTime()-start);
          
          // Get topic list from server
-         topics = new DefaultComboBoxModel();
-         Iterator tlist = getTopicServer().getTopicInfos().iterator();
-         while(tlist.hasNext())
+         loadTopics();
+      }
+      
+      return server;
+   }
+   
+   public Transport getTransport()
+   {
+      return transport;
+   }
+   
+   /**
+    *   Register with the server again after the connection was lost,
+    *   resubscribe to the topics and catch up with what was missed in
+    *   between. Topics that support it deliver only the missed messages,
+    *   for others the user list is reloaded.
+    */
+   void reconnect()
+      throws RemoteException
+   {
+      hold();
+      try
+      {
+         server = transport.connect();
+         server.addListener(info, transport.export(this));
+         openCredits();
+         restore(server.getTopicInfos());
+      } finally
+      {
+         release();
+      }
+   }
+   
+   /**
+    *   Hold back the messages received from now on, until release is
+    *   called.
+    */
+   void hold()
+   {
+      synchronized (holdLock)
+      {
+         holding = new ArrayList();
+      }
+   }
+   
+   /**
+    *   Deliver what arrived since hold was called, after the missed
+    *   messages.
+    */
+   void release()
+   {
+      synchronized (holdLock)
+      {
+         Iterator batches = holding.iterator();
+         while (batches.hasNext())
          {
-            topics.addElement(tlist.next());
+            Object[] batch = (Object[])batches.next();
+            inbound.enqueue((TopicView)batch[0], (Collection)batch[1], (MessageFilter.Rule[])batch[2], ((Integer)batch[3]).intValue());
          }
+         holding = null;
+      }
+   }
+   
+   /**
+    *   Bring the topic list up to date and resubscribe to the topics,
+    *   once registered with the server again.
+    */
+   void restore(final Collection topicInfos)
+      throws RemoteException
+   {
+      if (topics != null)
+      {
+         inbound.execute(new Runnable()
+         {
+            public void run()
+            {
+               updateTopics(topicInfos);
+            }
+         });
       }
       
-      return server;
+      Iterator vlist = getViews().iterator();
+      while (vlist.hasNext())
+      {
+         TopicView view = (TopicView)vlist.next();
+         if (view.isSubscribed())
+            resubscribe(view);
+      }
+      
+      if (outbox != null)
+         outbox.replay();
+   }
+   
+   void resubscribe(final TopicView view)
+      throws RemoteException
+   {
+      long from = view.getSequence();
+      view.received.set(0);
+      Topic topic = subscribeTopic(view.getInfo());
+      if (topic instanceof CatchUpTopic)
+      {
+         CatchUpTopic catchUp = (CatchUpTopic)topic;
+         view.subscribed(topic, catchUp.getSequence(info));
+         Collection missed = catchUp.getMessages(from, view.base);
+         MessageFilter.Rule[][] highlights = new MessageFilter.Rule[1][];
+         missed = KeyedContent.received(missed, view.keys);
+         missed = AttachmentStore.received(attachments, missed, info.getName(), getStatusReceiver(view));
+         missed = filter(view.getCompressor().received(missed), highlights);
+         inbound.enqueue(view, missed, highlights[0]);
+         
+         // Our own leave may be among them
+         final ListenerInfo self = info;
+         inbound.execute(new Runnable()
+         {
+            public void run()
+            {
+               if (view.users != null)
+                  view.users.add(self);
+            }
+         });
+      } else
+      {
+         view.subscribed(topic, 0);
+         final Collection listenerInfos = topic.getListenerInfos();
+         inbound.execute(new Runnable()
+         {
+            public void run()
+            {
+               UserListModel users = view.users;
+               if (users == null)
+                  return;
+               users.beginUpdate();
+               users.clear();
+               users.addAll(listenerInfos);
+               users.endUpdate();
+            }
+         });
+      }
+   }
+   
+   /**
+    *   Bring the topic list in line with the given topics, without
+    *   touching the topics that are still there.
+    */
+   void updateTopics(Collection topicInfos)
+   {
+      topics.update(topicInfos);
+   }
+   
+   void fireConnectionLost(Exception e)
+   {
+      ConnectionListener cl = connectionListener;
+      if (cl != null)
+         cl.connectionLost(e);
+   }
+   
+   void fireConnectionRestored()
+   {
+      ConnectionListener cl = connectionListener;
+      if (cl != null)
+         cl.connectionRestored();
+   }
+   
+   /**
+    *   Load the topic directory, from the topic file if it is still
+    *   current.
+    */
+   void loadTopics()
+      throws RemoteException
+   {
+      TopicDirectory directory = new TopicDirectory(topicFile);
+      directory.load(server);
+      topics = directory;
    }
    
    public ComboBoxModel getTopics()
       throws RemoteException
    {
-      return topics;
+      return getTopicDirectory();
    }
    
-   public ListModel getUsers()
+   public TopicDirectory getTopicDirectory()
       throws RemoteException
    {
-      // Get list from server
-      if (users == null)
+      // Sessions only make a model of the shared topic list if asked to
+      if (topics == null && connection != null)
       {
-         users = new DefaultListModel();
-         Iterator tlist = currentTopic.getListenerInfos().iterator();
-         while(tlist.hasNext())
-         {
-            users.addElement(tlist.next());
-         }
+         TopicDirectory directory = new TopicDirectory(null);
+         directory.update(connection.getTopicInfos());
+         topics = directory;
       }
       
-      return users;
+      return topics;
+   }
+   
+   /**
+    *   The users of the current topic.
+    */
+   public ListModel getUsers()
+      throws RemoteException
+   {
+      TopicView view = currentView;
+      return view == null ? null : view.getUsers();
    }
    
    public ListenerInfo getClientInfo()
@@ -297,29 +792,432 @@ public class ChatClient
       return info;
    }
    
+   /**
+    *   The view of the current topic, or null if no topic has been
+    *   subscribed to.
+    */
+   public TopicView getCurrentView()
+   {
+      return currentView;
+   }
+   
+   /**
+    *   The view of the given topic, or null if it has not been
+    *   subscribed to.
+    */
+   public TopicView getView(TopicInfo topicInfo)
+   {
+      return (TopicView)views.get(topicInfo);
+   }
+   
+   public Collection getViews()
+   {
+      return new ArrayList(views.values());
+   }
+   
+   /**
+    *   Keep a local journal of the text messages of every topic in the
+    *   given log. Without a log, messages are not kept.
+    */
+   public void setMessageLog(MessageLog log)
+   {
+      this.messageLog = log;
+   }
+   
+   public MessageLog getMessageLog()
+   {
+      return messageLog;
+   }
+   
+   /**
+    *   Save the topic directory in the given file, so that the next
+    *   login does not have to fetch it again. This must be set before
+    *   logging in.
+    */
+   public void setTopicFile(File file)
+   {
+      this.topicFile = file;
+   }
+   
+   /**
+    *   Record the traffic of the client with the given recorder, or stop
+    *   recording if null. The recorder is closed on logout.
+    */
+   public void setRecorder(TrafficRecorder recorder)
+   {
+      this.recorder = recorder;
+   }
+   
+   public TrafficRecorder getRecorder()
+   {
+      return recorder;
+   }
+   
+   /**
+    *   Save the files sent to the topics to the given store, or drop
+    *   them if null. The store is closed on logout.
+    */
+   public void setAttachmentStore(AttachmentStore store)
+   {
+      this.attachments = store;
+   }
+   
+   public AttachmentStore getAttachmentStore()
+   {
+      return attachments;
+   }
+   
+   /**
+    *   Take messages from a FlowControlServer on the given terms, or as
+    *   the server sends them if null. Set before login; the default is
+    *   FlowControl.getDefault().
+    */
+   public void setFlowControl(FlowControl flow)
+   {
+      this.flowControl = flow;
+   }
+   
+   /**
+    *   What publishing does when the publish queue is full. Set before
+    *   the first message is published; sessions use the policy of their
+    *   connection.
+    */
+   public void setBackpressure(PublishPipeline.Backpressure backpressure)
+   {
+      this.backpressure = backpressure;
+   }
+   
+   public PublishPipeline.Backpressure getBackpressure()
+   {
+      return backpressure;
+   }
+   
+   public FlowControl getFlowControl()
+   {
+      return flowControl;
+   }
+   
+   /**
+    *   The credit window on the server, or null if the server does not
+    *   deliver by credit.
+    */
+   public CreditWindow getCreditWindow()
+   {
+      return credits;
+   }
+   
+   /**
+    *   Filter the messages received with the given filter, or not at
+    *   all if it is null. May be changed at any time.
+    */
+   public void setFilter(MessageFilter filter)
+   {
+      this.filter = filter;
+   }
+   
+   public MessageFilter getFilter()
+   {
+      return filter;
+   }
+   
+   /**
+    *   The journal of the current topic, or null if there is no log
+    *   or no current topic.
+    */
+   public MessageJournal getJournal()
+      throws IOException
+   {
+      TopicView view = currentView;
+      if (messageLog == null || view == null)
+         return null;
+      return messageLog.getJournal(view.getInfo());
+   }
+   
+   /**
+    *   The newest messages in the log of the current topic that match
+    *   the query, newest first. The query is searched in the index of
+    *   the topic, or if chat.index is false as text in the journal.
+    *
+    *   @see MessageIndex
+    */
+   public List find(String query, int max)
+      throws IOException
+   {
+      TopicView view = currentView;
+      if (messageLog == null || view == null)
+         return Collections.EMPTY_LIST;
+      
+      MessageJournal journal = messageLog.getJournal(view.getInfo());
+      if (!MessageIndex.ENABLED)
+         return journal.find(query, Long.MAX_VALUE, max);
+      return messageLog.getIndex(view.getInfo()).find(journal, query, max);
+   }
+   
+   /**
+    *   The journal offset of the message being handled by the message
+    *   receiver, or -1 if it was not journaled.
+    */
+   public long getLastLogOffset()
+   {
+      return lastLogOffset;
+   }
+   
+   /**
+    *   The view of the topic of the message being handled by the
+    *   message receiver, or null if it is not for a topic.
+    */
+   public TopicView getLastView()
+   {
+      return lastView;
+   }
+   
+   /**
+    *   The filter rule that highlights the message being handled by the
+    *   message receiver, or null if it is not highlighted.
+    */
+   public MessageFilter.Rule getLastHighlight()
+   {
+      return lastHighlight;
+   }
+   
+   public InboundDispatcher getInboundDispatcher()
+   {
+      return inbound;
+   }
+   
    // MessageListener implementation --------------------------------
-   public synchronized void messagePublished(final Collection messages)
+   /**
+    *   Messages without a topic. Without a MultiTopicServer, these are
+    *   for the one topic subscribed to as well.
+    */
+   public void messagePublished(Collection messages)
+   {
+      TopicView view = isMultiTopic() ? null : subscribedView;
+      received(view, messages, credits != null ? messages.size() : 0);
+   }   
+   
+   public void messagePublished(Message message)
+   {
+      applyMessage(isMultiTopic() ? null : subscribedView, message);
+   }   
+   
+   // TopicMessageListener implementation ---------------------------
+   public void messagePublished(TopicInfo topic, Collection messages)
    {
-      SwingUtilities.invokeLater(new Runnable()
+      TopicView view = null;
+      if (topic != null)
       {
-         public void run()
+         view = (TopicView)views.get(topic);
+         if (view == null)
          {
-            try
+            // Not subscribed anymore
+            releaseCredits(messages.size());
+            return;
+         }
+      }
+      received(view, messages, credits != null ? messages.size() : 0);
+   }
+   
+   // Package protected ---------------------------------------------
+   /**
+    *   Sessions subscribe through their connection, which has to know
+    *   from which message on the topic is theirs.
+    */
+   Topic subscribeTopic(TopicInfo topicInfo)
+      throws RemoteException
+   {
+      if (connection != null)
+         return connection.subscribe(this, topicInfo);
+      return server.subscribe(topicInfo, info);
+   }
+   
+   PublishPipeline getPublisher()
+   {
+      if (connection != null)
+         return connection.getPublisher();
+      
+      if (publisher == null)
+         publisher = new PublishPipeline(PublishPipeline.DEFAULT_QUEUE_SIZE, PublishPipeline.DEFAULT_BATCH_SIZE, PublishPipeline.DEFAULT_LINGER, backpressure);
+      return publisher;
+   }
+   
+   /**
+    *   Compress the message for the topic of the view. A new dictionary
+    *   is sent ahead of it.
+    */
+   Message compress(TopicView view, Topic topic, Message message)
+   {
+      final ContentCompressor compressor = view.getCompressor();
+      Message compressed = compressor.compress(message);
+      Message announcement = compressor.getAnnouncement(message.getSender());
+      if (announcement != null)
+      {
+         final PublishFuture announced = getPublisher().publish(topic, announcement);
+         announced.addListener(new Runnable()
+         {
+            public void run()
             {
-               Iterator mlist = messages.iterator();
-               while (mlist.hasNext())
-               {
-                  messagePublished((Message)mlist.next());
-               }
-            } catch (Exception e)
+               if (announced.getException() != null)
+                  compressor.announceAgain();
+            }
+         });
+      }
+      return compressed;
+   }
+   
+   /**
+    *   Called by the RMI threads, the messages are applied on the event
+    *   thread by the inbound dispatcher.
+    */
+   void received(TopicView view, Collection messages)
+   {
+      received(view, messages, 0);
+   }
+   
+   /**
+    *   Receive messages that were sent for the given credits, which are
+    *   released once they are applied.
+    */
+   void received(TopicView view, Collection messages, int credits)
+   {
+      if (ClientMetrics.ENABLED)
+      {
+         ClientMetrics.METRICS.received(messages.size());
+         if (ClientMetrics.TRACE)
+            messages = ClientMetrics.untrace(messages);
+      }
+      
+      // Keep track of where we are in the topic
+      if (view != null)
+      {
+         Iterator mlist = messages.iterator();
+         while (mlist.hasNext())
+         {
+            // A summary of skipped messages stands in for all of them
+            Message message = (Message)mlist.next();
+            if (message.getType().equals(FlowControl.SKIPPED))
+               view.received.addAndGet(((FlowControl.Skipped)message.getContent()).getCount());
+            else if (isTopicMessage(message))
+               view.received.incrementAndGet();
+         }
+      }
+      
+      // Copies of messages sent again by an outbox are dropped
+      if (view != null)
+      {
+         messages = KeyedContent.received(messages, view.keys);
+         messages = view.getCompressor().received(messages);
+      }
+      
+      // Attachments go to the writer of the store
+      messages = AttachmentStore.received(attachments, messages, info.getName(), getStatusReceiver(view));
+      
+      if (recorder != null)
+         recorder.received(view == null ? null : view.getInfo(), messages);
+      
+      // Filtered here, so that what is dropped is not queued
+      MessageFilter.Rule[][] highlights = new MessageFilter.Rule[1][];
+      messages = filter(messages, highlights);
+      
+      if (holding != null)
+      {
+         synchronized (holdLock)
+         {
+            if (holding != null)
             {
-               e.printStackTrace();
+               holding.add(new Object[] { view, messages, highlights[0], new Integer(credits) });
+               return;
             }
          }
-      });
-   }   
+      }
+      
+      inbound.enqueue(view, messages, highlights[0], credits);
+   }
+   
+   /**
+    *   Open a credit window on the server if it takes one, or close the
+    *   current one otherwise.
+    */
+   void openCredits()
+      throws RemoteException
+   {
+      CreditWindow window = null;
+      if (flowControl != null && connection == null && server instanceof FlowControlServer)
+      {
+         window = new CreditWindow((FlowControlServer)server, info, flowControl);
+         window.open();
+      }
+      credits = window;
+   }
+   
+   /**
+    *   Called by the inbound dispatcher with the credits of the messages
+    *   it is done with.
+    */
+   void releaseCredits(int count)
+   {
+      CreditWindow window = credits;
+      if (window != null && count > 0)
+         window.release(count);
+   }
+   
+   /**
+    *   Drop the messages the filter mutes, and return the rest. The
+    *   rules that highlight them are put in highlights[0].
+    */
+   Collection filter(Collection messages, MessageFilter.Rule[][] highlights)
+   {
+      MessageFilter current = filter;
+      if (current == null)
+         return messages;
+      return current.filter(messages, highlights);
+   }
+   
+   /**
+    *   Called by the inbound dispatcher around every drain, so that the
+    *   changes of one drain are reported to the views as one update.
+    */
+   void beginUpdate()
+   {
+      Iterator vlist = views.values().iterator();
+      while (vlist.hasNext())
+      {
+         UserListModel users = ((TopicView)vlist.next()).users;
+         if (users != null)
+            users.beginUpdate();
+      }
+   }
    
-   public synchronized void messagePublished(Message message)
+   void endUpdate()
+   {
+      Iterator vlist = views.values().iterator();
+      while (vlist.hasNext())
+      {
+         UserListModel users = ((TopicView)vlist.next()).users;
+         if (users != null)
+            users.endUpdate();
+      }
+   }
+   
+   /**
+    *   Whether the message was published on the current topic, as
+    *   opposed to topic list changes and greetings sent to this client.
+    */
+   static boolean isTopicMessage(Message message)
+   {
+      if (!message.getSender().equals(Message.SYSTEM))
+         return true;
+      
+      String type = message.getType();
+      return !(type.equals(Message.TOPIC_CREATED) || type.equals(Message.TOPIC_REMOVED) || type.equals(Message.GREETING));
+   }
+   
+   /**
+    *   Apply one message of the given topic to the models. Only called
+    *   on the event thread, which owns the models, so no locking is
+    *   needed.
+    */
+   void applyMessage(TopicView view, Message message)
    {
       if (server == null)
       {
@@ -327,56 +1225,115 @@ public class ChatClient
          return;
       }
       
-      try
+      if (message.getSender().equals(Message.SYSTEM))
       {
-         if (message.getSender().equals(Message.SYSTEM))
+         // System messages
+         if (message.getType().equals(Message.TOPIC_CREATED))
          {
-            // System messages
-            if (message.getType().equals(Message.TOPIC_CREATED))
-            {
-               ((DefaultComboBoxModel)getTopics()).addElement(message.getContent());
-            } else if (message.getType().equals(Message.TOPIC_REMOVED))
-            {
-               ((DefaultComboBoxModel)getTopics()).removeElement(message.getContent());
-            } else if (message.getType().equals(Message.USER_JOINED))
-            {
-               if (currentTopic == null) 
-                  return; // Ignore
-               
-               ((DefaultListModel)getUsers()).addElement(message.getContent());
-            } else if (message.getType().equals(Message.USER_LEFT))
-            {
-               if (currentTopic == null) 
-                  return; // Ignore
-               
-               ((DefaultListModel)getUsers()).removeElement(message.getContent());
-            } else
-            {
-               // Normal message
-               addMessage(message);
-            } 
+            if (topics != null)
+               topics.add(message.getContent());
+         } else if (message.getType().equals(Message.TOPIC_REMOVED))
+         {
+            if (topics != null)
+               topics.remove(message.getContent());
+         } else if (message.getType().equals(Message.USER_JOINED))
+         {
+            if (view == null || view.users == null) 
+               return; // Ignore
+            
+            view.users.add(message.getContent());
+         } else if (message.getType().equals(Message.USER_LEFT))
+         {
+            if (view == null || view.users == null) 
+               return; // Ignore
+            
+            view.users.remove(message.getContent());
+         } else if (message.getType().equals(FlowControl.SKIPPED))
+         {
+            addStatus(view, message.getContent().toString());
          } else
          {
             // Normal message
-            addMessage(message);
-         }
-      } catch (RemoteException e)
+            addMessage(view, message);
+         } 
+      } else
       {
-         e.printStackTrace();
+         // Normal message
+         addMessage(view, message);
       }
    }   
    
    // Protected -----------------------------------------------------
-   void addMessage(Message message)
+   void addMessage(TopicView view, Message message)
    {
-      if (messageReceiver != null)
-         messageReceiver.handleMessage(message);
+      lastLogOffset = -1;
+      if (view != null && message.getType().equals(Message.TEXT))
+      {
+         if (messageLog != null)
+         {
+            try
+            {
+               lastLogOffset = messageLog.append(view.getInfo(), message);
+            } catch (IOException e)
+            {
+               e.printStackTrace();
+            }
+         }
+         
+         if (view != currentView)
+            view.unread.incrementAndGet();
+      }
+      
+      lastView = view;
+      Iterator rlist = messageReceivers.iterator();
+      while (rlist.hasNext())
+         ((MessageReceiver)rlist.next()).handleMessage(message);
+      lastLogOffset = -1;
+      lastView = null;
    }
     
+   /**
+    *   Show a line that was not published to the topic. It is not
+    *   written to the message log.
+    */
+   void addStatus(TopicView view, String text)
+   {
+      Message message = new Message(Message.SYSTEM, Message.TEXT, text);
+      lastView = view;
+      Iterator rlist = messageReceivers.iterator();
+      while (rlist.hasNext())
+         ((MessageReceiver)rlist.next()).handleMessage(message);
+      lastView = null;
+   }
+   
+   /**
+    *   A receiver that shows the messages handed to it as status lines
+    *   of the view, on the thread messages are applied on.
+    */
+   MessageReceiver getStatusReceiver(final TopicView view)
+   {
+      return new MessageReceiver()
+      {
+         public void handleMessage(final Message message)
+         {
+            inbound.execute(new Runnable()
+            {
+               public void run()
+               {
+                  addStatus(view, message.getContent().toString());
+               }
+            });
+         }
+      };
+   }
+   
+   /**
+    *   Show the error as a line that is neither logged nor indexed.
+    */
    void addMessage(Throwable error)
    {
       error.printStackTrace();
-      addMessage(new Message(Message.SYSTEM, Message.TEXT, error.toString()));
+      addStatus(currentView, error.toString());
    }
    
    // Inner classes -------------------------------------------------
@@ -384,4 +1341,15 @@ public class ChatClient
    {
       public void handleMessage(Message message);
    }
+   
+   public interface ConnectionListener
+   {
+      /**
+       *   The connection to the server was lost, and the client is
+       *   reconnecting in the background.
+       */
+      public void connectionLost(Exception e);
+      
+      public void connectionRestored();
+   }
 }
\ No newline at end of file
@@ -6,6 +6,8 @@ package chat.client;
 
 import java.awt.event.ActionListener;
 import java.awt.event.ActionEvent;
+import java.awt.event.ComponentAdapter;
+import java.awt.event.ComponentEvent;
 import java.awt.event.KeyAdapter;
 import java.awt.event.KeyEvent;
 import java.awt.Color;
@@ -13,13 +15,20 @@ import java.awt.Component;
 import java.awt.Container;
 import java.awt.BorderLayout;
 import java.awt.CardLayout;
+import java.awt.Rectangle;
+import java.io.File;
 import java.io.IOException;
 import java.net.MalformedURLException;
 import java.rmi.NotBoundException;
 import java.rmi.RemoteException;
 import java.util.Properties;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
 
+import javax.swing.ComboBoxModel;
 import javax.swing.JApplet;
 import javax.swing.JComboBox;
 import javax.swing.JLabel;
@@ -44,6 +53,17 @@ import chat.interfaces.ListenerInfo;
 /**
  *   This is the chat client applet GUI. This allow the user
  *   to interact with the server through a user interface. 
+ *
+ *   Calls to the server are made in order on a thread of their own, so
+ *   that a slow server never holds up the event thread. The login card
+ *   is shown at once and the client connects on that thread while the
+ *   user enters a name, so that logging in only has to register.
+ *
+ *   Messages are formatted and wrapped by a MessageRenderer off the
+ *   event thread, which then only draws the rows made for them.
+ *
+ *   If chat.outbox is set, messages sent are kept in an Outbox until
+ *   the server has them, so that they are not lost with the connection.
  *      
  *   @see ChatClient
  *   @author Rickard berg (rickard@dreambean.com)
@@ -51,12 +71,28 @@ import chat.interfaces.ListenerInfo;
  */
 public class ChatGUI
    extends JApplet
-   implements ChatClient.MessageReceiver, ActionListener
+   implements ChatClient.MessageReceiver, ChatClient.ConnectionListener, Scrollback.Formatter, TypingTracker.Listener, ActionListener
 {
    // Constants -----------------------------------------------------
    // This message is sent when user starts typing
    // It allows GUI to denote that user is currently typing a message
    static final String TYPING = "IsTyping"; 
+   
+   // This message is sent when user stops typing without sending anything
+   static final String TYPING_STOPPED = "StoppedTyping";
+   
+   // Messages starting with this searches the history instead
+   static final String FIND = "/find ";
+   
+   // Filter commands, which mute and unmute a sender, and show the rules
+   static final String MUTE = "/mute ";
+   static final String UNMUTE = "/unmute ";
+   static final String FILTERS = "/filters";
+   static final int FIND_MAX = 50;
+   
+   // Sends a file to the current topic, and resumes the last one that failed
+   static final String SEND = "/send ";
+   static final String RESUME = "/resume";
     
    // Attributes ----------------------------------------------------
    CardLayout mainLayout = new CardLayout();
@@ -67,16 +103,46 @@ public class ChatGUI
    JLabel loginLabel = new JLabel("Welcome to the chat!", JLabel.CENTER);
    
    TitledBorder title;
-   JTextArea messages = new JTextArea();
+   MessageStore history = new MessageStore();
+   JList messages = new JList(history)
+   {
+      // Lines are as wide as the view, so the list never has to
+      // measure every line to compute its preferred width
+      public boolean getScrollableTracksViewportWidth()
+      {
+         return true;
+      }
+   };
    JScrollPane scroll = new JScrollPane(messages);
+   MessageRenderer renderer;
+   boolean scrollPending;
+   
+   // Run once rendered messages are in the history
+   Runnable scrollAction = new Runnable()
+   {
+      public void run()
+      {
+         scrollToEnd();
+      }
+   };
    JTextField input = new JTextField();
    JComboBox topics = new JComboBox();
    JList users = new JList();
    JScrollPane userScroll = new JScrollPane(users);
+   Set shown = new HashSet(); // TopicView
    
    ChatClient client;
    
-   HashMap isTyping = new HashMap();
+   // Connected while the login card is shown. Only used on the calls thread
+   ChatClient prepared;
+   
+   // The last file sent. Only used on the calls thread
+   AttachmentUpload upload;
+   
+   // Blocking calls to the server, in the order they are made
+   ExecutorService calls = ClientExecutors.newSerialExecutor("ChatGUI-calls");
+   
+   TypingTracker typing = new TypingTracker(this);
    
    // Constructors --------------------------------------------------
    public ChatGUI()
@@ -95,8 +161,19 @@ public class ChatGUI
       title.setTitleJustification(TitledBorder.CENTER);
       scroll.setBorder(title);
       scroll.setBackground(messages.getBackground());
-      messages.setEnabled(false);
-      messages.setDisabledTextColor(getContentPane().getForeground());
+      messages.setFocusable(false);
+      // Fixed cell sizes let the list lay out rows without rendering them,
+      // so only the visible rows are ever rendered
+      renderer = new MessageRenderer(messages);
+      messages.setFixedCellWidth(1);
+      scroll.getViewport().addComponentListener(new ComponentAdapter()
+      {
+         public void componentResized(ComponentEvent e)
+         {
+            renderer.setWidth(scroll.getViewport().getWidth());
+            renderer.relayout(history);
+         }
+      });
       input.setBorder(BorderFactory.createTitledBorder("Enter message"));
       userScroll.setBorder(BorderFactory.createTitledBorder("Users"));
       userScroll.setBackground(users.getBackground());
@@ -113,8 +190,26 @@ public class ChatGUI
       input.addActionListener(this);
       topics.addActionListener(this);
       
+      // Unread messages renderer
+      final ListCellRenderer topicRenderer = topics.getRenderer();
+      topics.setRenderer(new ListCellRenderer()
+      {
+         public Component getListCellRendererComponent(JList list,
+                                                         Object value,
+                                                         int index,
+                                                         boolean isSelected,
+                                                         boolean cellHasFocus)
+         {
+            TopicView view = client == null || !(value instanceof TopicInfo) ? null : client.getView((TopicInfo)value);
+            if (view != null && view.getUnread() > 0)
+               value = value+" ("+view.getUnread()+")";
+            
+            return topicRenderer.getListCellRendererComponent(list, value, index, isSelected, cellHasFocus);
+         }
+      });
+      
       // IsTyping renderer
-      final ListCellRenderer renderer = users.getCellRenderer();
+      final ListCellRenderer userRenderer = users.getCellRenderer();
       users.setCellRenderer(new ListCellRenderer()
       {
          public Component getListCellRendererComponent(JList list,
@@ -123,8 +218,8 @@ public class ChatGUI
                                                          boolean isSelected,
                                                          boolean cellHasFocus)
          {
-            Component c = renderer.getListCellRendererComponent(list, value, index, isSelected, cellHasFocus);
-            if (isTyping.get(value.toString()) != null)
+            Component c = userRenderer.getListCellRendererComponent(list, value, index, isSelected, cellHasFocus);
+            if (typing.isTyping(value.toString()))
                c.setBackground(MetalLookAndFeel.getControlShadow());
             
             return c;
@@ -136,10 +231,8 @@ public class ChatGUI
       {
          public void keyPressed(KeyEvent e)
          {
-            if (input.getText().equals(""))
-            {
-               sendMessage(new Message(client.getClientInfo().getName(), TYPING, null));
-            }
+            if (e.getKeyCode() != KeyEvent.VK_ENTER)
+               typing.keyPressed();
          }
       });
    }
@@ -147,24 +240,27 @@ public class ChatGUI
    // MessageReceiver implementation --------------------------------
    public void handleMessage(Message message)
    {
-      if (message.getType().equals(Message.TEXT))
+      // Messages of topics in the background only go to their history
+      TopicView view = client == null ? null : client.getLastView();
+      if (view != null && view != client.getCurrentView())
       {
-         String msg;
-         if (message.getSender().equals(Message.SYSTEM))
+         if (message.getType().equals(Message.TEXT))
          {
-            msg = (String)message.getContent();
-            users.repaint();
-         } else
-         {
-            // Normal message
-            msg = message.getSender()+": "+message.getContent();
-   
-            // Reset typing
-            isTyping.remove(message.getSender());
-            users.repaint();
+            renderer.render(message, client.getLastHighlight() != null, client.getLastLogOffset(), view.getHistory(), null);
+            topics.repaint();
          }
-         messages.append(msg+"\n");
-         messages.setCaretPosition(messages.getText().length());
+         return;
+      }
+      
+      if (message.getType().equals(Message.TEXT))
+      {
+         // Reset typing
+         if (!message.getSender().equals(Message.SYSTEM))
+            typing.stopped(message.getSender());
+         if (client == null)
+            renderer.render(message, -1, history, scrollAction);
+         else
+            renderer.render(message, client.getLastHighlight() != null, client.getLastLogOffset(), history, scrollAction);
       } else if (message.getType().equals(Message.GREETING))
       {
          title.setTitle(message.getContent().toString());
@@ -172,11 +268,55 @@ public class ChatGUI
       } else if (message.getType().equals(TYPING))
       {
          // Mark that this user is typing
-         isTyping.put(message.getSender(), message.getSender());
+         typing.started(message.getSender());
+      } else if (message.getType().equals(TYPING_STOPPED))
+      {
+         typing.stopped(message.getSender());
+      }
+   }
+   
+   // ConnectionListener implementation -----------------------------
+   public void connectionLost(Exception e)
+   {
+      showSystemMessage("Connection lost, reconnecting: "+e.getMessage());
+   }
+   
+   public void connectionRestored()
+   {
+      showSystemMessage("Reconnected");
+   }
+   
+   // TypingTracker.Listener implementation ------------------------
+   public void sendTyping(boolean isTyping)
+   {
+      if (client != null)
+         sendMessage(new Message(client.getClientInfo().getName(), isTyping ? TYPING : TYPING_STOPPED, null));
+   }
    
-         // Repaint user list
+   /**
+    *   Repaint only the row of the user, if it is shown.
+    */
+   public void typingChanged(String user)
+   {
+      if (!(users.getModel() instanceof UserListModel))
+      {
          users.repaint();
+         return;
       }
+      
+      int index = ((UserListModel)users.getModel()).indexOf(user);
+      if (index == -1)
+         return;
+      
+      Rectangle bounds = users.getCellBounds(index, index);
+      if (bounds != null)
+         users.repaint(bounds);
+   }
+   
+   // Scrollback.Formatter implementation ---------------------------
+   public Object format(Message message)
+   {
+      return renderer.format(message);
    }
    
    // ActionListener implementation ---------------------------------
@@ -185,83 +325,455 @@ public class ChatGUI
       if (e.getSource() == loginField) // Login name entered
       {
          // Register with server
-         try
+         final String name = loginField.getText();
+         loginField.setEnabled(false);
+         calls.execute(new Runnable()
          {
-            client = new ChatClient();
-            client.addMessageReceiver(this);
-            
-            client.login(loginField.getText());
-            
-            topics.setModel(client.getTopics());
-            
-            mainLayout.show(mainPanel, "Chat");
-         } catch (IOException exc)
-         {
-            error(exc);
-         }
+            public void run()
+            {
+               final ChatClient c;
+               try
+               {
+                  c = prepared != null ? prepared : createClient();
+               } catch (IOException exc)
+               {
+                  failed(exc);
+                  return;
+               }
+               prepared = null;
+               
+               boolean loggedIn = false;
+               try
+               {
+                  c.addMessageReceiver(ChatGUI.this);
+                  c.addConnectionListener(ChatGUI.this);
+                  
+                  c.login(name);
+                  loggedIn = true;
+                  c.setMessageLog(new MessageLog(MessageLog.getDefaultDirectory(name)));
+                  if (Outbox.ENABLED)
+                     c.setOutbox(new Outbox(Outbox.getDefaultFile(c.getTransport().toString(), name)));
+                  c.setRecorder(TrafficRecorder.getDefault(name));
+                  c.setAttachmentStore(new AttachmentStore(AttachmentStore.getDefaultDirectory(name)));
+                  
+                  final ComboBoxModel model = c.getTopics();
+                  SwingUtilities.invokeLater(new Runnable()
+                  {
+                     public void run()
+                     {
+                        client = c;
+                        topics.setModel(model);
+                        loginField.setEnabled(true);
+                        mainLayout.show(mainPanel, "Chat");
+                     }
+                  });
+               } catch (IOException exc)
+               {
+                  // The next login starts with a new client
+                  try
+                  {
+                     if (loggedIn)
+                        c.logout();
+                     else
+                        c.getTransport().close();
+                  } catch (IOException closeExc)
+                  {
+                     closeExc.printStackTrace();
+                  }
+                  failed(exc);
+               }
+            }
+         });
          
          // Reset input field
          loginField.setText("");
       } else if (e.getSource() == input) // Send chat message
       {
-         // Send message
-         final String msg = input.getText();
-         // Use a new thread to minimize lag
-         SwingUtilities.invokeLater(new Runnable()
+         if (client == null)
+            return;
+         
+         if (input.getText().startsWith(FIND))
          {
-            public void run()
-            {
-               sendMessage(new Message(client.getClientInfo().getName(), Message.TEXT, msg));
-            }
-         });
+            find(input.getText().substring(FIND.length()).trim());
+         } else if (input.getText().startsWith(MUTE) || input.getText().startsWith(UNMUTE) || input.getText().equals(FILTERS))
+         {
+            filter(input.getText());
+         } else if (input.getText().startsWith(SEND) || input.getText().equals(RESUME))
+         {
+            attach(input.getText());
+         } else
+         {
+            // Send message, this only queues it so the GUI does not lag
+            typing.messageSent();
+            sendMessage(new Message(client.getClientInfo().getName(), Message.TEXT, input.getText()));
+         }
          
          // Reset input field
          input.setText("");
       } else if (e.getSource() == topics)
       {
-         try
-         {
-            client.subscribe(((TopicInfo)topics.getSelectedItem()));
-            users.setModel(client.getUsers());
-            
-            handleMessage(new Message(Message.SYSTEM, Message.TEXT, ((TopicInfo)topics.getSelectedItem()).getDescription()));
-         } catch (IOException exc)
+         final ChatClient c = client;
+         final TopicInfo topicInfo = (TopicInfo)topics.getSelectedItem();
+         if (c == null || topicInfo == null)
+            return;
+         
+         calls.execute(new Runnable()
          {
-            error(exc);
-         }
+            public void run()
+            {
+               try
+               {
+                  // Topics subscribed to before are shown as they are
+                  final TopicView view = c.subscribe(topicInfo);
+                  SwingUtilities.invokeLater(new Runnable()
+                  {
+                     public void run()
+                     {
+                        // Unless logged out meanwhile
+                        if (client != c)
+                           return;
+                        
+                        try
+                        {
+                           users.setModel(view.getUsers());
+                           showView(view);
+                        } catch (IOException exc)
+                        {
+                           error(exc);
+                        }
+                     }
+                  });
+               } catch (IOException exc)
+               {
+                  failed(exc);
+               }
+            }
+         });
       }
 
    }
 
    
    // Applet overrides ----------------------------------------------
-   public void destroy()
+   /**
+    *   Connect in the background, unless logged in already.
+    */
+   public void start()
    {
-      try
+      if (client != null)
+         return;
+      
+      calls.execute(new Runnable()
       {
-         if (client != null)
-            client.logout();
-      } catch (IOException exc)
+         public void run()
+         {
+            if (prepared != null)
+               return;
+            
+            try
+            {
+               ChatClient c = createClient();
+               c.getTopicServer();
+               prepared = c;
+            } catch (IOException exc)
+            {
+               // Logging in tries again and shows the error
+            }
+         }
+      });
+   }
+   
+   public void destroy()
+   {
+      typing.stop();
+      renderer.close();
+      
+      final ChatClient c = client;
+      calls.execute(new Runnable()
       {
-         error(exc);
-      }
+         public void run()
+         {
+            try
+            {
+               if (c != null)
+                  c.logout();
+               else if (prepared != null)
+                  prepared.getTransport().close();
+            } catch (IOException exc)
+            {
+               exc.printStackTrace();
+            }
+         }
+      });
+      calls.shutdown();
    }
 
    // Protected -----------------------------------------------------
-   protected void sendMessage(Message message)
+   protected ChatClient createClient()
+      throws IOException
+   {
+      ChatClient c = new ChatClient();
+      c.getInboundDispatcher().setHeadless(false); // Swing models are updated by the drains
+      c.setBackpressure(PublishPipeline.Backpressure.FAIL_FAST); // The event thread must not wait for the queue
+      c.setTopicFile(TopicDirectory.getDefaultFile(c.getTransport().toString()));
+      return c;
+   }
+   
+   /**
+    *   Scroll to the last line once the current batch of messages has
+    *   been handled.
+    */
+   protected void scrollToEnd()
+   {
+      if (scrollPending)
+         return;
+      
+      scrollPending = true;
+      SwingUtilities.invokeLater(new Runnable()
+      {
+         public void run()
+         {
+            scrollPending = false;
+            if (history.getSize() > 0)
+               messages.ensureIndexIsVisible(history.getSize()-1);
+         }
+      });
+   }
+   
+   /**
+    *   Show the history of the topic. The first time a topic is shown,
+    *   the older history from the local log is added.
+    */
+   protected void showView(TopicView view)
+      throws IOException
    {
-      try
+      history = view.getHistory();
+      messages.setModel(history);
+      renderer.relayout(history);
+      topics.repaint();
+      
+      if (shown.add(view))
       {
-         client.publishMessage(message);
-      } catch (IOException exc)
+         MessageJournal journal = client.getJournal();
+         if (journal != null)
+            history.setScrollback(new Scrollback(journal, this));
+         
+         handleMessage(new Message(Message.SYSTEM, Message.TEXT, view.getInfo().getDescription()));
+      }
+      scrollToEnd();
+   }
+   
+   /**
+    *   Show the newest messages in the local log of the current topic
+    *   that match the given query. The log is searched off the event
+    *   thread.
+    *
+    *   @see MessageIndex
+    */
+   protected void find(final String text)
+   {
+      final ChatClient c = client;
+      calls.execute(new Runnable()
       {
-         error(exc);
+         public void run()
+         {
+            try
+            {
+               final List found = c.find(text, FIND_MAX);
+               SwingUtilities.invokeLater(new Runnable()
+               {
+                  public void run()
+                  {
+                     handleMessage(new Message(Message.SYSTEM, Message.TEXT, found.size()+" messages found for \""+text+"\""));
+                     // Rendered after the line above
+                     for (int i = found.size()-1; i >= 0; i--)
+                     {
+                        MessageJournal.Entry entry = (MessageJournal.Entry)found.get(i);
+                        renderer.render(entry.getMessage(), -1, history, scrollAction);
+                     }
+                  }
+               });
+            } catch (IOException e)
+            {
+               showSystemMessage("Could not search for \""+text+"\": "+e.getMessage());
+            }
+         }
+      });
+   }
+   
+   /**
+    *   Mute or unmute a sender, or show the filter rules and their hits.
+    */
+   protected void filter(String command)
+   {
+      if (client == null)
+         return;
+      
+      MessageFilter filter = client.getFilter();
+      if (filter == null)
+         filter = new MessageFilter(new ArrayList());
+      
+      if (command.startsWith(MUTE))
+      {
+         String sender = command.substring(MUTE.length()).trim();
+         if (sender.length() == 0)
+            return;
+         client.setFilter(filter.with(new MessageFilter.Rule(MessageFilter.Rule.MUTE, sender)));
+         showSystemMessage(sender+" muted");
+      } else if (command.startsWith(UNMUTE))
+      {
+         String sender = command.substring(UNMUTE.length()).trim();
+         if (sender.length() == 0)
+            return;
+         client.setFilter(filter.without(new MessageFilter.Rule(MessageFilter.Rule.MUTE, sender)));
+         showSystemMessage(sender+" unmuted");
+      } else
+      {
+         showSystemMessage(filter.getRules().size()+" filter rules");
+         for (int i = 0; i < filter.getRules().size(); i++)
+         {
+            MessageFilter.Rule rule = (MessageFilter.Rule)filter.getRules().get(i);
+            showSystemMessage("  "+rule+": "+rule.getHits()+" hits");
+         }
       }
    }
+   
+   /**
+    *   Send a file to the current topic, or resume the last file sent if
+    *   it failed. The upload goes on in the background.
+    *
+    *   @see AttachmentUpload
+    */
+   protected void attach(final String command)
+   {
+      final ChatClient c = client;
+      calls.execute(new Runnable()
+      {
+         public void run()
+         {
+            final File file = command.equals(RESUME) ? (upload == null ? null : upload.getFile()) : new File(command.substring(SEND.length()).trim());
+            try
+            {
+               if (command.equals(RESUME))
+               {
+                  if (upload == null || upload.getException() == null)
+                  {
+                     showSystemMessage("Nothing to resume");
+                     return;
+                  }
+                  upload.resume();
+               } else
+               {
+                  upload = c.attach(file);
+               }
+               
+               final AttachmentUpload current = upload;
+               showSystemMessage("Sending "+file.getName()+" ("+AttachmentStore.formatSize(current.getSize())+")");
+               current.addListener(new Runnable()
+               {
+                  public void run()
+                  {
+                     if (current.getException() == null)
+                        showSystemMessage("Sent "+file.getName()+" in "+current.getElapsedNanos()/1000000+" ms");
+                     else
+                        showSystemMessage("Could not send "+file.getName()+": "+current.getException().getMessage()
+                           +", "+RESUME+" goes on from "+AttachmentStore.formatSize(current.getOffset()));
+                  }
+               });
+            } catch (IOException e)
+            {
+               showSystemMessage("Could not send "+file+": "+e.getMessage());
+            } catch (IllegalStateException e)
+            {
+               showSystemMessage("Could not send "+file+": "+e.getMessage());
+            }
+         }
+      });
+   }
+   
+   protected void sendMessage(final Message message)
+   {
+      if (client == null)
+         return;
+      
+      final PublishFuture result = client.publishMessage(message);
+      result.addListener(new Runnable()
+      {
+         public void run()
+         {
+            // Lost connections are restored by the client
+            Exception e = result.getException();
+            if (e == null || e instanceof RemoteException)
+               return;
+            
+            // A full publish queue only loses the message, and a lost
+            // typing change is not worth a line
+            if (e instanceof IllegalStateException)
+            {
+               if (message.getType().equals(Message.TEXT))
+                  showSystemMessage("Could not send message: "+e.getMessage());
+               return;
+            }
+            
+            failed(e);
+         }
+      });
+   }
     
+   /**
+    *   Show a status line in the message history. May be called from
+    *   any thread.
+    */
+   public void showSystemMessage(final String status)
+   {
+      SwingUtilities.invokeLater(new Runnable()
+      {
+         public void run()
+         {
+            handleMessage(new Message(Message.SYSTEM, Message.TEXT, status));
+         }
+      });
+   }
+   
+   /**
+    *   Show the error of a call to the server on the event thread.
+    */
+   protected void failed(final Exception e)
+   {
+      SwingUtilities.invokeLater(new Runnable()
+      {
+         public void run()
+         {
+            error(e);
+         }
+      });
+   }
+   
+   /**
+    *   Log out and show the error on the login card.
+    */
    protected void error(Exception e)
    {
+      final ChatClient c = client;
       client = null;
+      if (c != null)
+      {
+         calls.execute(new Runnable()
+         {
+            public void run()
+            {
+               try
+               {
+                  c.logout();
+               } catch (IOException exc)
+               {
+                  exc.printStackTrace();
+               }
+            }
+         });
+      }
+      
+      loginField.setEnabled(true);
       loginLabel.setText(e.getMessage());
       e.printStackTrace();
       mainLayout.show(mainPanel, "Login");
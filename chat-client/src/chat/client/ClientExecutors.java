@@ -0,0 +1,133 @@
+/*
+ * Copyright 1999 by dreamBean Software,
+ * All rights reserved.
+ */
+package chat.client;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ *   Threads for blocking remote calls. On a JVM with virtual threads
+ *   every task gets a virtual thread of its own, so that thousands of
+ *   clients can each wait on the server without a platform thread
+ *   apiece. They are found by reflection, since the client is built for
+ *   older JVMs, which get daemon platform threads instead.
+ *
+ *   Set the chat.threads system property to platform to use platform
+ *   threads even where virtual ones are available.
+ *
+ *   @see Phase
+ *   @see LoadGenerator
+ *   @version $Revision:$
+ */
+public class ClientExecutors
+{
+   // Constants -----------------------------------------------------
+   static final boolean PLATFORM = System.getProperty("chat.threads", "virtual").equals("platform");
+
+   // Static --------------------------------------------------------
+   static Method ofVirtual;
+   static Method name;
+   static Method factory;
+   static Method newThreadPerTaskExecutor;
+
+   static
+   {
+      if (!PLATFORM)
+      {
+         try
+         {
+            Class builder = Class.forName("java.lang.Thread$Builder");
+            ofVirtual = Thread.class.getMethod("ofVirtual", new Class[0]);
+            name = builder.getMethod("name", new Class[] { String.class, Long.TYPE });
+            factory = builder.getMethod("factory", new Class[0]);
+            newThreadPerTaskExecutor = Executors.class.getMethod("newThreadPerTaskExecutor", new Class[] { ThreadFactory.class });
+         } catch (Exception e)
+         {
+            // No virtual threads before Java 21
+            ofVirtual = null;
+         }
+      }
+   }
+
+   /**
+    *   Whether tasks run on virtual threads.
+    */
+   public static boolean isVirtual()
+   {
+      return ofVirtual != null;
+   }
+
+   /**
+    *   A factory of virtual threads if available, or else of daemon
+    *   platform threads. Threads are named by the prefix and a count.
+    */
+   public static ThreadFactory newThreadFactory(final String prefix)
+   {
+      if (isVirtual())
+      {
+         try
+         {
+            Object builder = ofVirtual.invoke(null, new Object[0]);
+            builder = name.invoke(builder, new Object[] { prefix+"-", new Long(0) });
+            return (ThreadFactory)factory.invoke(builder, new Object[0]);
+         } catch (Exception e)
+         {
+            // Fall back to platform threads
+         }
+      }
+
+      return newPlatformThreadFactory(prefix);
+   }
+
+   /**
+    *   A factory of daemon platform threads, named by the prefix and a
+    *   count.
+    */
+   public static ThreadFactory newPlatformThreadFactory(final String prefix)
+   {
+      return new ThreadFactory()
+      {
+         int count = 0;
+
+         public synchronized Thread newThread(Runnable r)
+         {
+            Thread t = new Thread(r, prefix+"-"+(count++));
+            t.setDaemon(true);
+            return t;
+         }
+      };
+   }
+
+   /**
+    *   An executor that starts a thread for every task. Platform
+    *   threads are pooled, as they are too costly to start per task.
+    */
+   public static ExecutorService newPerTaskExecutor(String prefix)
+   {
+      ThreadFactory threads = newThreadFactory(prefix);
+      if (isVirtual())
+      {
+         try
+         {
+            return (ExecutorService)newThreadPerTaskExecutor.invoke(null, new Object[] { threads });
+         } catch (Exception e)
+         {
+            threads = newPlatformThreadFactory(prefix);
+         }
+      }
+      return Executors.newCachedThreadPool(threads);
+   }
+
+   /**
+    *   An executor that runs its tasks one at a time, in order, on a
+    *   thread of its own.
+    */
+   public static ExecutorService newSerialExecutor(String prefix)
+   {
+      return Executors.newSingleThreadExecutor(newThreadFactory(prefix));
+   }
+}
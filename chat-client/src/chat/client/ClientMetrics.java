@@ -0,0 +1,296 @@
+/*
+ * Copyright 1999 by dreamBean Software,
+ * All rights reserved.
+ */
+package chat.client;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.ObjectName;
+
+import chat.interfaces.Message;
+
+/**
+ *   Metrics of the message path of all clients in the JVM: publish round
+ *   trips, the size of the batches received, the delay from receiving
+ *   a batch until the event thread applies it, the server lookup time
+ *   and, if messages are traced, the end to end latency.
+ *
+ *   Metrics are off unless the chat.metrics system property is true.
+ *   Every instrumented spot checks ENABLED first, which the JIT reduces
+ *   to nothing when it is false. When on, the metrics are registered
+ *   as the MBean chat.client:type=ClientMetrics, and are logged every
+ *   chat.metrics.logInterval ms if that is set. With chat.metrics.trace
+ *   the text messages sent are traced.
+ *
+ *   @see Histogram
+ *   @see TracedContent
+ *   @version $Revision:$
+ */
+public class ClientMetrics
+   implements ClientMetricsMBean
+{
+   // Constants -----------------------------------------------------
+   public static final boolean ENABLED = Boolean.getBoolean("chat.metrics");
+   public static final boolean TRACE = ENABLED && Boolean.getBoolean("chat.metrics.trace");
+   static final long LOG_INTERVAL = Long.getLong("chat.metrics.logInterval", 0).longValue();
+   static final String OBJECT_NAME = "chat.client:type=ClientMetrics";
+
+   // Static --------------------------------------------------------
+   static final ClientMetrics METRICS = ENABLED ? new ClientMetrics() : null;
+
+   static
+   {
+      if (METRICS != null)
+         METRICS.start();
+   }
+
+   /**
+    *   The metrics of the JVM, or null if they are off.
+    */
+   public static ClientMetrics getMetrics()
+   {
+      return METRICS;
+   }
+
+   /**
+    *   Trace the message if it is a text message.
+    */
+   static Message trace(Message message)
+   {
+      if (!message.getType().equals(Message.TEXT) || message.getContent() instanceof TracedContent)
+         return message;
+      return new Message(message.getSender(), message.getType(), new TracedContent(message.getContent()));
+   }
+
+   /**
+    *   Record the latency of the traced messages and return the
+    *   messages with their real content.
+    */
+   static Collection untrace(Collection messages)
+   {
+      List result = null;
+      int index = 0;
+      Iterator mlist = messages.iterator();
+      while (mlist.hasNext())
+      {
+         Message message = (Message)mlist.next();
+         if (message.getContent() instanceof TracedContent)
+         {
+            if (result == null)
+            {
+               result = new ArrayList(messages.size());
+               Iterator copy = messages.iterator();
+               for (int i = 0; i < index; i++)
+                  result.add(copy.next());
+            }
+
+            TracedContent traced = (TracedContent)message.getContent();
+            METRICS.endToEnd.record(traced.getAge());
+            message = new Message(message.getSender(), message.getType(), traced.getContent());
+         }
+
+         if (result != null)
+            result.add(message);
+         index++;
+      }
+      return result == null ? messages : result;
+   }
+
+   // Attributes ----------------------------------------------------
+   Histogram publish = new Histogram("publish round trip");
+   Histogram batchSize = new Histogram("inbound batch", "messages");
+   Histogram dispatch = new Histogram("callback to dispatch");
+   Histogram lookup = new Histogram("server lookup");
+   Histogram endToEnd = new Histogram("end to end");
+
+   AtomicLong published = new AtomicLong();
+   AtomicLong publishFailures = new AtomicLong();
+   AtomicLong received = new AtomicLong();
+
+   Timer timer;
+
+   // Public --------------------------------------------------------
+   public Histogram getPublishHistogram()
+   {
+      return publish;
+   }
+
+   public Histogram getBatchSizeHistogram()
+   {
+      return batchSize;
+   }
+
+   public Histogram getDispatchHistogram()
+   {
+      return dispatch;
+   }
+
+   public Histogram getLookupHistogram()
+   {
+      return lookup;
+   }
+
+   public Histogram getEndToEndHistogram()
+   {
+      return endToEnd;
+   }
+
+   // ClientMetricsMBean implementation -----------------------------
+   public long getPublished()
+   {
+      return published.get();
+   }
+
+   public long getPublishFailures()
+   {
+      return publishFailures.get();
+   }
+
+   public long getPublishP50()
+   {
+      return publish.getPercentile(50);
+   }
+
+   public long getPublishP99()
+   {
+      return publish.getPercentile(99);
+   }
+
+   public long getPublishMax()
+   {
+      return publish.getMax();
+   }
+
+   public long getReceived()
+   {
+      return received.get();
+   }
+
+   public long getBatches()
+   {
+      return batchSize.getCount();
+   }
+
+   public long getMeanBatchSize()
+   {
+      return batchSize.getMean();
+   }
+
+   public long getMaxBatchSize()
+   {
+      return batchSize.getMax();
+   }
+
+   public long getDispatchP50()
+   {
+      return dispatch.getPercentile(50);
+   }
+
+   public long getDispatchP99()
+   {
+      return dispatch.getPercentile(99);
+   }
+
+   public long getDispatchMax()
+   {
+      return dispatch.getMax();
+   }
+
+   public long getLookupP99()
+   {
+      return lookup.getPercentile(99);
+   }
+
+   public long getLookupMax()
+   {
+      return lookup.getMax();
+   }
+
+   public long getEndToEndP50()
+   {
+      return endToEnd.getPercentile(50);
+   }
+
+   public long getEndToEndP99()
+   {
+      return endToEnd.getPercentile(99);
+   }
+
+   public long getEndToEndMax()
+   {
+      return endToEnd.getMax();
+   }
+
+   public String getSummary()
+   {
+      StringBuffer summary = new StringBuffer();
+      summary.append("published=").append(getPublished())
+             .append(" failed=").append(getPublishFailures())
+             .append(" received=").append(getReceived());
+
+      Histogram[] all = { publish, batchSize, dispatch, lookup, endToEnd };
+      for (int i = 0; i < all.length; i++)
+      {
+         if (all[i].getCount() > 0)
+            summary.append("; ").append(all[i]);
+      }
+      return summary.toString();
+   }
+
+   public void reset()
+   {
+      published.set(0);
+      publishFailures.set(0);
+      received.set(0);
+      publish.reset();
+      batchSize.reset();
+      dispatch.reset();
+      lookup.reset();
+      endToEnd.reset();
+   }
+
+   // Package protected ---------------------------------------------
+   void published(long start, int count)
+   {
+      publish.record(System.nanoTime()-start);
+      published.addAndGet(count);
+   }
+
+   void received(int count)
+   {
+      batchSize.record(count);
+      received.addAndGet(count);
+   }
+
+   // Private -------------------------------------------------------
+   void start()
+   {
+      try
+      {
+         ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(OBJECT_NAME));
+      } catch (Exception e)
+      {
+         System.err.println("Could not register client metrics: "+e);
+      }
+
+      if (LOG_INTERVAL > 0)
+      {
+         timer = new Timer("ChatClient-metrics", true);
+         timer.schedule(new TimerTask()
+         {
+            public void run()
+            {
+               System.out.println("Client metrics: "+getSummary());
+            }
+         }, LOG_INTERVAL, LOG_INTERVAL);
+      }
+   }
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright 1999 by dreamBean Software,
+ * All rights reserved.
+ */
+package chat.client;
+
+/**
+ *   Management interface of the client metrics. Times are in ns.
+ *
+ *   @see ClientMetrics
+ *   @version $Revision:$
+ */
+public interface ClientMetricsMBean
+{
+   public long getPublished();
+
+   public long getPublishFailures();
+
+   public long getPublishP50();
+
+   public long getPublishP99();
+
+   public long getPublishMax();
+
+   public long getReceived();
+
+   public long getBatches();
+
+   public long getMeanBatchSize();
+
+   public long getMaxBatchSize();
+
+   public long getDispatchP50();
+
+   public long getDispatchP99();
+
+   public long getDispatchMax();
+
+   public long getLookupP99();
+
+   public long getLookupMax();
+
+   public long getEndToEndP50();
+
+   public long getEndToEndP99();
+
+   public long getEndToEndMax();
+
+   /**
+    *   All histograms, as in the periodic log line.
+    */
+   public String getSummary();
+
+   public void reset();
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright 1999 by dreamBean Software,
+ * All rights reserved.
+ */
+package chat.client;
+
+import java.io.Serializable;
+
+/**
+ *   Content of a compressed text message: the UTF-8 bytes of the text,
+ *   deflated with the dictionary of the sender that has the given id,
+ *   or without one if it is 0. For messages announcing a dictionary
+ *   it holds the deflated dictionary, and the id is that of the new
+ *   dictionary. Like TracedContent the server must be able to load the
+ *   class.
+ *
+ *   @see ContentCompressor
+ *   @version $Revision:$
+ */
+public class CompressedContent
+   implements Serializable
+{
+   // Attributes ----------------------------------------------------
+   int dictionary;
+   int length;
+   byte[] data;
+
+   // Constructors --------------------------------------------------
+   public CompressedContent(int dictionary, int length, byte[] data)
+   {
+      this.dictionary = dictionary;
+      this.length = length;
+      this.data = data;
+   }
+
+   // Public --------------------------------------------------------
+   public int getDictionary()
+   {
+      return dictionary;
+   }
+
+   /**
+    *   The number of bytes when inflated.
+    */
+   public int getLength()
+   {
+      return length;
+   }
+
+   public byte[] getData()
+   {
+      return data;
+   }
+
+   public String toString()
+   {
+      return "[compressed "+length+" bytes]";
+   }
+}
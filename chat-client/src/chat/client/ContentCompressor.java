@@ -0,0 +1,366 @@
+/*
+ * Copyright 1999 by dreamBean Software,
+ * All rights reserved.
+ */
+package chat.client;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import chat.interfaces.Message;
+
+/**
+ *   Compresses the large text messages sent to a topic, and inflates
+ *   the compressed messages received from it. There is one for every
+ *   TopicView.
+ *
+ *   Sending compressed messages is off unless the chat.compress system
+ *   property is true. Only texts of at least chat.compress.threshold
+ *   bytes are compressed. They are deflated with a dictionary made from
+ *   the recent text of the topic, which is sent to the topic in a
+ *   DICTIONARY message before the first text compressed with it, and
+ *   again whenever a user joins the topic. A new dictionary is made
+ *   after every chat.compress.retrain bytes of text.
+ *
+ *   The compression ratio is followed as a moving average. If it gets
+ *   worse than chat.compress.maxRatio percent, as it does for texts
+ *   that are already compressed or random, compression is skipped for
+ *   the next chat.compress.probeInterval large texts, after which one
+ *   is compressed again to see whether it has become worth it.
+ *
+ *   Compressed messages are always inflated when received, whether
+ *   sending them is on or not.
+ *
+ *   @see CompressedContent
+ *   @see ChatClient#publishMessage
+ *   @version $Revision:$
+ */
+public class ContentCompressor
+{
+   // Constants -----------------------------------------------------
+   public static final boolean ENABLED = Boolean.getBoolean("chat.compress");
+   static final int THRESHOLD = Integer.getInteger("chat.compress.threshold", 1024).intValue();
+   static final int LEVEL = Integer.getInteger("chat.compress.level", Deflater.DEFAULT_COMPRESSION).intValue();
+   static final int DICTIONARY_SIZE = Integer.getInteger("chat.compress.dictionarySize", 4096).intValue();
+   static final int RETRAIN = Integer.getInteger("chat.compress.retrain", 262144).intValue();
+   static final int MAX_RATIO = Integer.getInteger("chat.compress.maxRatio", 70).intValue();
+   static final int PROBE_INTERVAL = Integer.getInteger("chat.compress.probeInterval", 32).intValue();
+
+   // Dictionaries of other senders kept
+   static final int MAX_DICTIONARIES = 64;
+
+   // Message type of dictionaries, which have a CompressedContent
+   public static final String DICTIONARY = "CompressionDictionary";
+
+   static final Charset UTF8 = Charset.forName("UTF-8");
+
+   // Attributes ----------------------------------------------------
+   int threshold;
+   int level;
+   boolean training;
+
+   // Recent text of the topic, to make dictionaries of
+   LinkedList recent = new LinkedList(); // byte[]
+   int recentSize;
+   long seen; // Bytes seen since the dictionary was made
+
+   // Sending
+   byte[] dictionary;
+   int dictionaryId = new Random().nextInt(1 << 24);
+   boolean announced = true;
+   Deflater deflater;
+   byte[] buffer = new byte[1024];
+   int ratio = -1; // Moving average, in percent
+   int skip;
+
+   // Receiving
+   Map dictionaries = new LinkedHashMap(16, 0.75f, true) // Sender and id -> byte[]
+   {
+      protected boolean removeEldestEntry(Map.Entry eldest)
+      {
+         return size() > MAX_DICTIONARIES;
+      }
+   };
+   Inflater inflater;
+
+   // Statistics
+   long compressed;
+   long bytesIn;
+   long bytesOut;
+
+   // Constructors --------------------------------------------------
+   public ContentCompressor()
+   {
+      this(THRESHOLD, LEVEL, ENABLED);
+   }
+
+   /**
+    *   Create a compressor with the given threshold and deflate level,
+    *   which makes dictionaries of the text received only if training.
+    */
+   public ContentCompressor(int threshold, int level, boolean training)
+   {
+      this.threshold = threshold;
+      this.level = level;
+      this.training = training;
+   }
+
+   // Public --------------------------------------------------------
+   /**
+    *   Return the message with its text compressed, or the message
+    *   itself if it is too small or compression is not worth it.
+    */
+   public synchronized Message compress(Message message)
+   {
+      if (!message.getType().equals(Message.TEXT) || !(message.getContent() instanceof String))
+         return message;
+
+      byte[] text = ((String)message.getContent()).getBytes(UTF8);
+      if (text.length < threshold)
+         return message;
+
+      if (skip > 0)
+      {
+         skip--;
+         return message;
+      }
+
+      if (dictionary == null ? recentSize >= DICTIONARY_SIZE/4 : seen >= RETRAIN)
+         train();
+
+      byte[] data = deflate(text, dictionary, text.length);
+
+      // Back off while compression does not pay
+      int percent = data == null ? 100 : data.length*100/text.length;
+      ratio = ratio == -1 ? percent : (ratio*7+percent)/8;
+      if (ratio > MAX_RATIO)
+         skip = PROBE_INTERVAL;
+
+      if (data == null)
+         return message;
+
+      compressed++;
+      bytesIn += text.length;
+      bytesOut += data.length;
+      return new Message(message.getSender(), message.getType(), new CompressedContent(dictionary == null ? 0 : dictionaryId, text.length, data));
+   }
+
+   /**
+    *   The dictionary to send before the messages compressed with it,
+    *   or null if it has been sent already.
+    */
+   public synchronized Message getAnnouncement(String sender)
+   {
+      if (announced || dictionary == null)
+         return null;
+
+      announced = true;
+      return new Message(sender, DICTIONARY, new CompressedContent(dictionaryId, dictionary.length, deflate(dictionary, null, Integer.MAX_VALUE)));
+   }
+
+   /**
+    *   Send the dictionary again before the next compressed message,
+    *   as when sending it failed.
+    */
+   public synchronized void announceAgain()
+   {
+      announced = false;
+   }
+
+   /**
+    *   Take in the dictionaries of the received messages, and return
+    *   them with compressed texts inflated. The texts are used to make
+    *   the dictionaries if training.
+    */
+   public synchronized Collection received(Collection messages)
+   {
+      List result = null;
+      int index = 0;
+      Iterator mlist = messages.iterator();
+      while (mlist.hasNext())
+      {
+         Message message = (Message)mlist.next();
+         Object content = message.getContent();
+         if (message.getType().equals(DICTIONARY) && content instanceof CompressedContent)
+         {
+            CompressedContent dictionaryContent = (CompressedContent)content;
+            try
+            {
+               dictionaries.put(message.getSender()+'\0'+dictionaryContent.getDictionary(), inflate(dictionaryContent, null));
+            } catch (DataFormatException e)
+            {
+               System.err.println("Invalid dictionary from "+message.getSender()+": "+e);
+            }
+         } else if (message.getType().equals(Message.USER_JOINED) && message.getSender().equals(Message.SYSTEM))
+         {
+            // The new user does not have our dictionary
+            if (dictionary != null)
+               announced = false;
+         } else if (message.getType().equals(Message.TEXT))
+         {
+            if (content instanceof CompressedContent)
+            {
+               content = inflate(message.getSender(), (CompressedContent)content);
+               if (result == null)
+               {
+                  result = new ArrayList(messages.size());
+                  Iterator copy = messages.iterator();
+                  for (int i = 0; i < index; i++)
+                     result.add(copy.next());
+               }
+               message = new Message(message.getSender(), message.getType(), content);
+            }
+
+            if (training && content instanceof String)
+               observe(((String)content).getBytes(UTF8));
+         }
+
+         if (result != null)
+            result.add(message);
+         index++;
+      }
+      return result != null ? result : messages;
+   }
+
+   /**
+    *   The number of texts compressed, and the bytes before and after.
+    */
+   public synchronized long[] getStatistics()
+   {
+      return new long[] { compressed, bytesIn, bytesOut };
+   }
+
+   // Package protected ---------------------------------------------
+   /**
+    *   Keep the last dictionary size of text.
+    */
+   void observe(byte[] text)
+   {
+      recent.add(text);
+      recentSize += text.length;
+      seen += text.length;
+      while (recentSize-((byte[])recent.getFirst()).length >= DICTIONARY_SIZE)
+         recentSize -= ((byte[])recent.removeFirst()).length;
+   }
+
+   /**
+    *   Make a new dictionary of the recent text. The most recent text
+    *   goes last, where deflate finds it at the shortest distances.
+    */
+   void train()
+   {
+      byte[] made = new byte[Math.min(recentSize, DICTIONARY_SIZE)];
+      int end = made.length;
+      Iterator tlist = recent.descendingIterator();
+      while (tlist.hasNext() && end > 0)
+      {
+         byte[] text = (byte[])tlist.next();
+         int length = Math.min(text.length, end);
+         System.arraycopy(text, text.length-length, made, end-length, length);
+         end -= length;
+      }
+
+      dictionary = made;
+      dictionaryId = (dictionaryId+1) & Integer.MAX_VALUE;
+      if (dictionaryId == 0)
+         dictionaryId = 1;
+      announced = false;
+      seen = 0;
+   }
+
+   /**
+    *   Deflate the bytes, or return null if they do not get smaller
+    *   than max.
+    */
+   byte[] deflate(byte[] bytes, byte[] preset, int max)
+   {
+      if (deflater == null)
+         deflater = new Deflater(level);
+      deflater.reset();
+      if (preset != null)
+         deflater.setDictionary(preset);
+      deflater.setInput(bytes);
+      deflater.finish();
+
+      int length = 0;
+      while (!deflater.finished())
+      {
+         if (length >= max)
+            return null;
+         if (length == buffer.length)
+         {
+            byte[] larger = new byte[buffer.length*2];
+            System.arraycopy(buffer, 0, larger, 0, length);
+            buffer = larger;
+         }
+         length += deflater.deflate(buffer, length, buffer.length-length);
+      }
+      if (length >= max)
+         return null;
+
+      byte[] data = new byte[length];
+      System.arraycopy(buffer, 0, data, 0, length);
+      return data;
+   }
+
+   /**
+    *   Inflate the text of the sender, or describe why it could not be.
+    */
+   String inflate(String sender, CompressedContent content)
+   {
+      byte[] preset = null;
+      if (content.getDictionary() != 0)
+      {
+         preset = (byte[])dictionaries.get(sender+'\0'+content.getDictionary());
+         if (preset == null)
+            return "[Compressed message, dictionary "+content.getDictionary()+" of "+sender+" not received]";
+      }
+
+      try
+      {
+         return new String(inflate(content, preset), UTF8);
+      } catch (DataFormatException e)
+      {
+         return "[Compressed message could not be inflated: "+e.getMessage()+"]";
+      } catch (IllegalArgumentException e)
+      {
+         return "[Compressed message could not be inflated: wrong dictionary]";
+      }
+   }
+
+   byte[] inflate(CompressedContent content, byte[] preset)
+      throws DataFormatException
+   {
+      if (inflater == null)
+         inflater = new Inflater();
+      inflater.reset();
+      inflater.setInput(content.getData());
+
+      byte[] result = new byte[content.getLength()];
+      int length = 0;
+      while (length < result.length)
+      {
+         int count = inflater.inflate(result, length, result.length-length);
+         if (count == 0)
+         {
+            if (!inflater.needsDictionary())
+               throw new DataFormatException("Truncated data");
+            if (preset == null)
+               throw new DataFormatException("No dictionary");
+            inflater.setDictionary(preset);
+         }
+         length += count;
+      }
+      return result;
+   }
+}
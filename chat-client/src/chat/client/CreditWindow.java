@@ -0,0 +1,109 @@
+/*
+ * Copyright 1999 by dreamBean Software,
+ * All rights reserved.
+ */
+package chat.client;
+
+import java.rmi.RemoteException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import chat.interfaces.ListenerInfo;
+
+/**
+ *   The credits of a client on a FlowControlServer. Messages are released
+ *   once the inbound dispatcher has applied them, or dropped them, and
+ *   once a quarter of the window is released it is granted back to the
+ *   server in the background. The server can so never have more than a
+ *   window of messages on their way to the client, and a client whose
+ *   event thread or consumers fall behind stops getting more.
+ *
+ *   @see FlowControlServer
+ *   @see InboundDispatcher
+ *   @version $Revision:$
+ */
+public class CreditWindow
+   implements Runnable
+{
+   // Static --------------------------------------------------------
+   static ExecutorService grants = ClientExecutors.newPerTaskExecutor("CreditWindow");
+
+   // Attributes ----------------------------------------------------
+   FlowControlServer server;
+   ListenerInfo info;
+   FlowControl flow;
+   int threshold;
+
+   AtomicInteger released = new AtomicInteger();
+   AtomicBoolean granting = new AtomicBoolean();
+   AtomicLong granted = new AtomicLong();
+
+   // Constructors --------------------------------------------------
+   public CreditWindow(FlowControlServer server, ListenerInfo info, FlowControl flow)
+   {
+      this.server = server;
+      this.info = info;
+      this.flow = flow;
+      this.threshold = Math.max(1, flow.getCredits()/4);
+   }
+
+   // Public --------------------------------------------------------
+   /**
+    *   Tell the server the terms of the listener, which starts with a
+    *   full window.
+    */
+   public void open()
+      throws RemoteException
+   {
+      released.set(0);
+      server.setFlowControl(info, flow);
+   }
+
+   /**
+    *   The client is done with that many messages.
+    */
+   public void release(int count)
+   {
+      if (released.addAndGet(count) >= threshold && granting.compareAndSet(false, true))
+         grants.execute(this);
+   }
+
+   public FlowControl getFlowControl()
+   {
+      return flow;
+   }
+
+   /**
+    *   The credits granted since the window was opened.
+    */
+   public long getGranted()
+   {
+      return granted.get();
+   }
+
+   public String toString()
+   {
+      return "CreditWindow["+flow+", granted="+granted+"]";
+   }
+
+   // Runnable implementation ---------------------------------------
+   public void run()
+   {
+      do
+      {
+         int count = released.getAndSet(0);
+         try
+         {
+            if (count > 0)
+               server.grant(info, count);
+            granted.addAndGet(count);
+         } catch (RemoteException e)
+         {
+            // The window is opened again on reconnect
+         }
+         granting.set(false);
+      } while (released.get() >= threshold && granting.compareAndSet(false, true));
+   }
+}
@@ -0,0 +1,43 @@
+/*
+ * Copyright 1999 by dreamBean Software,
+ * All rights reserved.
+ */
+package chat.client;
+
+import chat.interfaces.MessageListener;
+import chat.interfaces.TopicServer;
+
+/**
+ *   Transport for a server in the same JVM, such as LocalTopicServer.
+ *   Calls go directly to the server.
+ *
+ *   @see Transport
+ *   @version $Revision:$
+ */
+public class DirectTransport
+   implements Transport
+{
+   // Attributes ----------------------------------------------------
+   TopicServer server;
+
+   // Constructors --------------------------------------------------
+   public DirectTransport(TopicServer server)
+   {
+      this.server = server;
+   }
+
+   // Transport implementation --------------------------------------
+   public TopicServer connect()
+   {
+      return server;
+   }
+
+   public MessageListener export(MessageListener listener)
+   {
+      return listener;
+   }
+
+   public void close()
+   {
+   }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright 1999 by dreamBean Software,
+ * All rights reserved.
+ */
+package chat.client;
+
+import java.io.Serializable;
+
+/**
+ *   The terms on which a listener takes messages from a server that
+ *   implements FlowControlServer. The server sends no more messages than
+ *   the listener has credits for, no more than maxBatch at a time, and
+ *   waits up to linger ms for a batch to fill. Messages it cannot send
+ *   are kept up to maxBacklog, after which the oldest chat messages are
+ *   skipped and summed up in one SKIPPED message per topic.
+ *
+ *   The defaults are chat.flow.credits, chat.flow.maxBatch,
+ *   chat.flow.linger and chat.flow.maxBacklog. As a listener that falls
+ *   behind loses messages, flow control is off unless chat.flow.credits
+ *   is set.
+ *
+ *   @see FlowControlServer
+ *   @see CreditWindow
+ *   @version $Revision:$
+ */
+public class FlowControl
+   implements Serializable
+{
+   // Constants -----------------------------------------------------
+   // The type of the system message put in place of skipped messages
+   public static final String SKIPPED = "Skipped";
+
+   public static final int DEFAULT_CREDITS = Integer.getInteger("chat.flow.credits", 0).intValue();
+   public static final int DEFAULT_MAX_BATCH = Integer.getInteger("chat.flow.maxBatch", 256).intValue();
+   public static final long DEFAULT_LINGER = Long.getLong("chat.flow.linger", 0).longValue(); // ms
+   public static final int DEFAULT_MAX_BACKLOG = Integer.getInteger("chat.flow.maxBacklog", 16384).intValue();
+
+   // Attributes ----------------------------------------------------
+   int credits;
+   int maxBatch;
+   long linger;
+   int maxBacklog;
+
+   // Static --------------------------------------------------------
+   /**
+    *   The default flow control, or null if it is off.
+    */
+   public static FlowControl getDefault()
+   {
+      if (DEFAULT_CREDITS <= 0)
+         return null;
+      return new FlowControl(DEFAULT_CREDITS, DEFAULT_MAX_BATCH, DEFAULT_LINGER, DEFAULT_MAX_BACKLOG);
+   }
+
+   // Constructors --------------------------------------------------
+   public FlowControl(int credits, int maxBatch, long linger, int maxBacklog)
+   {
+      this.credits = credits;
+      this.maxBatch = maxBatch;
+      this.linger = linger;
+      this.maxBacklog = maxBacklog;
+   }
+
+   // Public --------------------------------------------------------
+   /**
+    *   The messages the listener can take before it grants more.
+    */
+   public int getCredits()
+   {
+      return credits;
+   }
+
+   public int getMaxBatch()
+   {
+      return maxBatch;
+   }
+
+   public long getLinger()
+   {
+      return linger;
+   }
+
+   public int getMaxBacklog()
+   {
+      return maxBacklog;
+   }
+
+   public String toString()
+   {
+      return "FlowControl[credits="+credits+", maxBatch="+maxBatch+", linger="+linger+"ms, maxBacklog="+maxBacklog+"]";
+   }
+
+   // Inner classes -------------------------------------------------
+   /**
+    *   Content of a SKIPPED message: how many messages of the topic were
+    *   skipped, and a line saying so.
+    */
+   public static class Skipped
+      implements Serializable
+   {
+      int count;
+      String text;
+
+      public Skipped(int count, String text)
+      {
+         this.count = count;
+         this.text = text;
+      }
+
+      public int getCount()
+      {
+         return count;
+      }
+
+      public String toString()
+      {
+         return text;
+      }
+   }
+}
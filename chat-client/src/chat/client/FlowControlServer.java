@@ -0,0 +1,39 @@
+/*
+ * Copyright 1999 by dreamBean Software,
+ * All rights reserved.
+ */
+package chat.client;
+
+import java.rmi.RemoteException;
+
+import chat.interfaces.ListenerInfo;
+import chat.interfaces.TopicServer;
+
+/**
+ *   Optional extension of TopicServer for servers that deliver messages
+ *   by credit. A listener that sets a FlowControl gets no more messages
+ *   than it has granted, so that a client that falls behind holds up its
+ *   own deliveries instead of queuing them until it runs out of memory.
+ *   Clients of servers without it take what the server sends.
+ *
+ *   @see FlowControl
+ *   @see CreditWindow
+ *   @version $Revision:$
+ */
+public interface FlowControlServer
+   extends TopicServer
+{
+   /**
+    *   Deliver to the listener on the given terms from now on, starting
+    *   with the credits of the flow control. Null sends everything as
+    *   before.
+    */
+   public void setFlowControl(ListenerInfo info, FlowControl flow)
+      throws RemoteException;
+
+   /**
+    *   Let the server send the listener that many more messages.
+    */
+   public void grant(ListenerInfo info, int credits)
+      throws RemoteException;
+}
@@ -0,0 +1,237 @@
+/*
+ * Copyright 1999 by dreamBean Software,
+ * All rights reserved.
+ */
+package chat.client;
+
+import java.awt.Graphics;
+import java.awt.image.BufferedImage;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.swing.DefaultListCellRenderer;
+import javax.swing.JList;
+import javax.swing.JScrollPane;
+import javax.swing.SwingUtilities;
+
+import chat.interfaces.Message;
+
+/**
+ *   Measures how well the message history keeps up its frames while
+ *   messages arrive in bursts. Messages are handed to the event thread
+ *   in bursts at the given rate, as the client delivers them, while a
+ *   frame of the history is painted every 16 ms. The frame time is the
+ *   time from when a frame was due until it was painted, so it includes
+ *   the time the frame waited for the event thread.
+ *
+ *   The modes are:
+ *
+ *   - legacy: messages are formatted on the event thread, not wrapped,
+ *     and drawn with the default cell renderer
+ *   - edt: messages are wrapped by the MessageRenderer on the event thread
+ *   - staged: messages are wrapped by the MessageRenderer in the background
+ *
+ *   Runs headless, painting into an image.
+ *
+ *   Usage: FrameBenchmark [-mode legacy,edt,staged] [-rate 10000]
+ *                         [-burst 100] [-seconds 5]
+ *
+ *   @see MessageRenderer
+ *   @see LatencyRecorder
+ *   @version $Revision:$
+ */
+public class FrameBenchmark
+{
+   // Constants -----------------------------------------------------
+   static final long FRAME = 16;
+   static final int WIDTH = 600;
+   static final int HEIGHT = 400;
+
+   static final String[] SENDERS = { "Alice", "Bob", "Carol", "Dave", "Eve", "Mallory", "Trent", "Peggy" };
+   static final String[] WORDS =
+   {
+      "the", "message", "history", "is", "wrapped", "to", "the", "width", "of", "the", "list",
+      "and", "drawn", "row", "by", "row", "while", "new", "lines", "keep", "arriving", "from",
+      "topic", "server", "client", "rendering", "thread", "supercalifragilisticexpialidocious",
+   };
+
+   // Attributes ----------------------------------------------------
+   String[] modes = { "legacy", "edt", "staged" };
+   int rate = 10000;
+   int burst = 100;
+   int seconds = 5;
+
+   // Static --------------------------------------------------------
+   public static void main(String[] args)
+      throws Exception
+   {
+      FrameBenchmark benchmark = new FrameBenchmark();
+      for (int i = 0; i < args.length; i++)
+      {
+         if (args[i].equals("-mode"))
+            benchmark.modes = args[++i].split(",");
+         else if (args[i].equals("-rate"))
+            benchmark.rate = Integer.parseInt(args[++i]);
+         else if (args[i].equals("-burst"))
+            benchmark.burst = Integer.parseInt(args[++i]);
+         else if (args[i].equals("-seconds"))
+            benchmark.seconds = Integer.parseInt(args[++i]);
+         else
+            throw new IllegalArgumentException("Unknown option:"+args[i]);
+      }
+
+      for (int i = 0; i < benchmark.modes.length; i++)
+         benchmark.run(benchmark.modes[i]);
+      System.exit(0);
+   }
+
+   /**
+    *   Make the messages to send, of mixed lengths, some with several
+    *   lines and some from the system.
+    */
+   static Message[] createMessages(int count)
+   {
+      Random random = new Random(42);
+      Message[] messages = new Message[count];
+      for (int i = 0; i < count; i++)
+      {
+         StringBuffer text = new StringBuffer();
+         int words = 1+(random.nextInt(4) == 0 ? random.nextInt(80) : random.nextInt(12));
+         for (int j = 0; j < words; j++)
+         {
+            if (j > 0)
+               text.append(random.nextInt(30) == 0 ? '\n' : ' ');
+            text.append(WORDS[random.nextInt(WORDS.length)]);
+         }
+
+         String sender = random.nextInt(20) == 0 ? Message.SYSTEM : SENDERS[random.nextInt(SENDERS.length)];
+         messages[i] = new Message(sender, Message.TEXT, text.toString());
+      }
+      return messages;
+   }
+
+   // Public --------------------------------------------------------
+   /**
+    *   Run one mode and report its frame times.
+    */
+   public void run(final String mode)
+      throws Exception
+   {
+      final Message[] messages = createMessages(rate);
+      final JList list = new JList();
+      final JScrollPane scroll = new JScrollPane(list);
+      final MessageStore store = new MessageStore();
+      final MessageRenderer[] renderer = new MessageRenderer[1];
+      final BufferedImage image = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB);
+      SwingUtilities.invokeAndWait(new Runnable()
+      {
+         public void run()
+         {
+            list.setModel(store);
+            if (mode.equals("legacy"))
+               list.setFixedCellHeight(new DefaultListCellRenderer().getListCellRendererComponent(list, "X", 0, false, false).getPreferredSize().height);
+            else
+               renderer[0] = new MessageRenderer(list);
+            list.setFixedCellWidth(1);
+            scroll.setSize(WIDTH, HEIGHT);
+            scroll.validate();
+            if (renderer[0] != null)
+               renderer[0].setWidth(scroll.getViewport().getWidth());
+         }
+      });
+
+      final LatencyRecorder frames = new LatencyRecorder(mode+" frame");
+      final AtomicLong slow = new AtomicLong();
+      final AtomicLong sent = new AtomicLong();
+      final long end = System.currentTimeMillis()+seconds*1000L;
+      final CountDownLatch done = new CountDownLatch(1);
+      ScheduledExecutorService timer = Executors.newScheduledThreadPool(2);
+
+      // Bursts of messages
+      long interval = Math.max(1, 1000L*burst/rate);
+      timer.scheduleAtFixedRate(new Runnable()
+      {
+         public void run()
+         {
+            if (System.currentTimeMillis() >= end)
+               return;
+
+            final int first = (int)(sent.getAndAdd(burst) % messages.length);
+            SwingUtilities.invokeLater(new Runnable()
+            {
+               public void run()
+               {
+                  for (int i = 0; i < burst; i++)
+                  {
+                     Message message = messages[(first+i) % messages.length];
+                     if (mode.equals("legacy"))
+                     {
+                        if (message.getSender().equals(Message.SYSTEM))
+                           store.add(message.getContent());
+                        else
+                           store.add(message.getSender()+": "+message.getContent());
+                     } else if (mode.equals("edt"))
+                     {
+                        store.add(renderer[0].layout(message, false, renderer[0].width).getRows(), -1);
+                     } else
+                     {
+                        renderer[0].render(message, -1, store, null);
+                     }
+                  }
+               }
+            });
+         }
+      }, 0, interval, TimeUnit.MILLISECONDS);
+
+      // Frames
+      timer.scheduleAtFixedRate(new Runnable()
+      {
+         public void run()
+         {
+            final long due = System.nanoTime();
+            final boolean last = System.currentTimeMillis() >= end;
+            SwingUtilities.invokeLater(new Runnable()
+            {
+               public void run()
+               {
+                  if (done.getCount() == 0)
+                     return;
+
+                  if (store.getSize() > 0)
+                     list.ensureIndexIsVisible(store.getSize()-1);
+                  scroll.validate();
+                  Graphics g = image.getGraphics();
+                  scroll.paint(g);
+                  g.dispose();
+
+                  long time = System.nanoTime()-due;
+                  frames.record(time);
+                  if (time > TimeUnit.MILLISECONDS.toNanos(FRAME))
+                     slow.incrementAndGet();
+                  if (last)
+                     done.countDown();
+               }
+            });
+         }
+      }, FRAME, FRAME, TimeUnit.MILLISECONDS);
+
+      done.await();
+      timer.shutdownNow();
+      if (renderer[0] != null)
+         renderer[0].close();
+
+      System.out.println(mode+": "+sent.get()+" messages, "+frames.getCount()+" frames, "
+         +slow.get()+" over "+FRAME+" ms, frame time p50="+micros(frames.getPercentile(50))
+         +" p99="+micros(frames.getPercentile(99))+" max="+micros(frames.getMax())+" us");
+   }
+
+   // Package protected ---------------------------------------------
+   static long micros(long nanos)
+   {
+      return nanos/1000;
+   }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright 1999 by dreamBean Software,
+ * All rights reserved.
+ */
+package chat.client;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ *   Lock free histogram of non-negative values, such as latencies in
+ *   ns. Every power of two is split into SUB_BUCKETS linear buckets, so
+ *   a percentile is within 1/SUB_BUCKETS of the recorded value at any
+ *   magnitude, using a fixed set of counters. Recording is a few atomic
+ *   updates and never blocks, and readers do not stop the writers.
+ *
+ *   Unlike the LatencyRecorder it does not keep the samples, so it can
+ *   be left running in long lived clients.
+ *
+ *   @see ClientMetrics
+ *   @see LatencyRecorder
+ *   @version $Revision:$
+ */
+public class Histogram
+{
+   // Constants -----------------------------------------------------
+   static final int SUB_BITS = 4;
+   static final int SUB_BUCKETS = 1 << SUB_BITS;
+   static final int BUCKETS = (64-SUB_BITS+1) << SUB_BITS;
+
+   // Attributes ----------------------------------------------------
+   String name;
+   String unit;
+   AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+   AtomicLong count = new AtomicLong();
+   AtomicLong total = new AtomicLong();
+   AtomicLong max = new AtomicLong();
+
+   // Static --------------------------------------------------------
+   static int indexOf(long value)
+   {
+      if (value < SUB_BUCKETS)
+         return (int)value;
+
+      int exponent = 63-Long.numberOfLeadingZeros(value);
+      int sub = (int)(value >>> (exponent-SUB_BITS)) & (SUB_BUCKETS-1);
+      return ((exponent-SUB_BITS+1) << SUB_BITS) + sub;
+   }
+
+   /**
+    *   The lowest value counted in the bucket.
+    */
+   static long valueOf(int index)
+   {
+      if (index < SUB_BUCKETS)
+         return index;
+
+      int exponent = (index >> SUB_BITS)+SUB_BITS-1;
+      int sub = index & (SUB_BUCKETS-1);
+      return ((long)(SUB_BUCKETS+sub)) << (exponent-SUB_BITS);
+   }
+
+   // Constructors --------------------------------------------------
+   public Histogram(String name)
+   {
+      this(name, "ns");
+   }
+
+   public Histogram(String name, String unit)
+   {
+      this.name = name;
+      this.unit = unit;
+   }
+
+   // Public --------------------------------------------------------
+   public void record(long value)
+   {
+      if (value < 0)
+         value = 0;
+
+      counts.incrementAndGet(indexOf(value));
+      count.incrementAndGet();
+      total.addAndGet(value);
+
+      long current = max.get();
+      while (value > current && !max.compareAndSet(current, value))
+         current = max.get();
+   }
+
+   public String getName()
+   {
+      return name;
+   }
+
+   public long getCount()
+   {
+      return count.get();
+   }
+
+   public long getMax()
+   {
+      return max.get();
+   }
+
+   public long getMean()
+   {
+      long n = count.get();
+      return n == 0 ? 0 : total.get() / n;
+   }
+
+   /**
+    *   Get the given percentile, e.g. 99.9 for p999. This is the highest
+    *   value of the bucket the percentile falls in.
+    */
+   public long getPercentile(double percentile)
+   {
+      long n = 0;
+      for (int i = 0; i < BUCKETS; i++)
+         n += counts.get(i);
+      if (n == 0)
+         return 0;
+
+      long rank = Math.max(1, (long)Math.ceil(percentile / 100.0 * n));
+      long seen = 0;
+      for (int i = 0; i < BUCKETS; i++)
+      {
+         seen += counts.get(i);
+         if (seen >= rank)
+            return i+1 < BUCKETS ? Math.min(valueOf(i+1)-1, getMax()) : getMax();
+      }
+      return getMax();
+   }
+
+   /**
+    *   Start over. Values recorded meanwhile may be kept or lost.
+    */
+   public void reset()
+   {
+      for (int i = 0; i < BUCKETS; i++)
+         counts.set(i, 0);
+      count.set(0);
+      total.set(0);
+      max.set(0);
+   }
+
+   public String toString()
+   {
+      return name+": n="+getCount()
+         +" p50="+getPercentile(50)
+         +" p99="+getPercentile(99)
+         +" p999="+getPercentile(99.9)
+         +" max="+getMax()
+         +" mean="+getMean()+" ("+unit+")";
+   }
+}
@@ -0,0 +1,288 @@
+/*
+ * Copyright 1999 by dreamBean Software,
+ * All rights reserved.
+ */
+package chat.client;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.swing.SwingUtilities;
+
+import chat.interfaces.Message;
+
+/**
+ *   Hands inbound messages from the RMI callback threads over to the
+ *   event thread. Batches of messages are put on a lock free InboundQueue
+ *   together with the view of their topic, and at most one drain is
+ *   scheduled on the event thread at any time, which applies everything
+ *   that has arrived since the last drain in one pass.
+ *
+ *   A headless dispatcher drains on a thread of its own instead, for
+ *   clients without a GUI. It is headless if chat.headless is true.
+ *
+ *   Batches delivered by credit are released to the CreditWindow of the
+ *   client once drained, so the server sends more as the queue empties.
+ *
+ *   Counters for the queue depth and drain timings are kept so that the
+ *   inbound path can be monitored.
+ *
+ *   @see ChatClient#messagePublished(Collection)
+ *   @version $Revision:$
+ */
+public class InboundDispatcher
+   implements Runnable, Executor
+{
+   // Constants -----------------------------------------------------
+   // In batches
+   static final int DEFAULT_QUEUE_SIZE = Integer.getInteger("chat.inbound.queueSize", 65536).intValue();
+
+   // For the sessions of a SharedConnection, of which there may be thousands
+   static final int SESSION_QUEUE_SIZE = Integer.getInteger("chat.inbound.sessionQueueSize", 1024).intValue();
+
+   // Messages applied per drain before yielding the event thread
+   static final int MAX_DRAIN = 4096;
+
+   static final boolean HEADLESS = Boolean.getBoolean("chat.headless");
+
+   // Attributes ----------------------------------------------------
+   ChatClient client;
+   InboundQueue queue;
+   AtomicBoolean scheduled = new AtomicBoolean();
+   volatile ExecutorService executor; // Null to drain on the event thread
+   volatile long scheduledAt;
+
+   AtomicLong drainCount = new AtomicLong();
+   AtomicLong drainedMessages = new AtomicLong();
+   volatile long lastDrainNanos;
+   volatile long maxDrainNanos;
+   volatile long lastDispatchDelayNanos;
+   volatile long maxDispatchDelayNanos;
+
+   // Constructors --------------------------------------------------
+   public InboundDispatcher(ChatClient client)
+   {
+      this(client, DEFAULT_QUEUE_SIZE);
+   }
+
+   public InboundDispatcher(ChatClient client, int queueSize)
+   {
+      this.client = client;
+      this.queue = new InboundQueue(queueSize);
+      setHeadless(HEADLESS);
+   }
+
+   // Public --------------------------------------------------------
+   /**
+    *   Queue the messages of the given topic to be applied. The view
+    *   is null for messages that are not for a topic. Called by the RMI
+    *   callback threads.
+    */
+   public void enqueue(TopicView view, Collection messages)
+   {
+      enqueue(view, messages, null);
+   }
+
+   /**
+    *   Queue the messages together with the filter rules that highlight
+    *   them, which are null for the messages that are not highlighted.
+    *   The rules are null if none are.
+    *
+    *   @see ChatClient#getLastHighlight
+    */
+   public void enqueue(TopicView view, Collection messages, MessageFilter.Rule[] highlights)
+   {
+      enqueue(view, messages, highlights, 0);
+   }
+
+   /**
+    *   Queue the messages, and release the given number of credits once
+    *   they are applied. That is the number of messages the server sent,
+    *   some of which may have been dropped on the way.
+    *
+    *   @see CreditWindow
+    */
+   public void enqueue(TopicView view, Collection messages, MessageFilter.Rule[] highlights, int credits)
+   {
+      if (messages.isEmpty())
+      {
+         client.releaseCredits(credits);
+         return;
+      }
+
+      Batch batch = new Batch(view, messages, highlights, credits);
+      if (!queue.offer(batch))
+      {
+         // Full - make sure a drain is on its way, then wait
+         schedule();
+         queue.put(batch);
+      }
+
+      schedule();
+   }
+
+   /**
+    *   Drain on a thread of the dispatcher if headless, or else on the
+    *   event thread. Set before the client is logged in.
+    */
+   public synchronized void setHeadless(boolean headless)
+   {
+      if (headless && executor == null)
+      {
+         executor = ClientExecutors.newSerialExecutor("InboundDispatcher");
+      } else if (!headless && executor != null)
+      {
+         executor.shutdown();
+         executor = null;
+      }
+   }
+
+   public boolean isHeadless()
+   {
+      return executor != null;
+   }
+
+   /**
+    *   Run the task on the thread the messages are applied on, after
+    *   the drains scheduled before it.
+    */
+   public void execute(Runnable task)
+   {
+      ExecutorService current = executor;
+      if (current != null)
+         current.execute(task);
+      else
+         SwingUtilities.invokeLater(task);
+   }
+
+   public int getQueueDepth()
+   {
+      return queue.size();
+   }
+
+   public long getDrainCount()
+   {
+      return drainCount.get();
+   }
+
+   public long getDrainedMessages()
+   {
+      return drainedMessages.get();
+   }
+
+   /**
+    *   Time spent applying messages in the last drain, in ns.
+    */
+   public long getLastDrainNanos()
+   {
+      return lastDrainNanos;
+   }
+
+   public long getMaxDrainNanos()
+   {
+      return maxDrainNanos;
+   }
+
+   /**
+    *   Time from scheduling the last drain until the event thread ran
+    *   it, in ns.
+    */
+   public long getLastDispatchDelayNanos()
+   {
+      return lastDispatchDelayNanos;
+   }
+
+   public long getMaxDispatchDelayNanos()
+   {
+      return maxDispatchDelayNanos;
+   }
+
+   // Runnable implementation ---------------------------------------
+   public void run()
+   {
+      long start = System.nanoTime();
+      long delay = start-scheduledAt;
+      lastDispatchDelayNanos = delay;
+      if (delay > maxDispatchDelayNanos)
+         maxDispatchDelayNanos = delay;
+
+      int count = 0;
+      int credits = 0;
+      Batch batch;
+      client.beginUpdate();
+      try
+      {
+         while (count < MAX_DRAIN && (batch = (Batch)queue.poll()) != null)
+         {
+            if (ClientMetrics.ENABLED)
+               ClientMetrics.METRICS.dispatch.record(System.nanoTime()-batch.received);
+            
+            Iterator mlist = batch.messages.iterator();
+            for (int i = 0; mlist.hasNext(); i++)
+            {
+               client.lastHighlight = batch.highlights == null ? null : batch.highlights[i];
+               try
+               {
+                  client.applyMessage(batch.view, (Message)mlist.next());
+               } catch (Exception e)
+               {
+                  e.printStackTrace();
+               }
+               count++;
+            }
+            client.lastHighlight = null;
+            credits += batch.credits;
+         }
+      } finally
+      {
+         client.endUpdate();
+         client.releaseCredits(credits);
+      }
+
+      long time = System.nanoTime()-start;
+      lastDrainNanos = time;
+      if (time > maxDrainNanos)
+         maxDrainNanos = time;
+      drainCount.incrementAndGet();
+      drainedMessages.addAndGet(count);
+
+      // Messages queued during the drain get a new one
+      scheduled.set(false);
+      if (!queue.isEmpty())
+         schedule();
+   }
+
+   // Package protected ---------------------------------------------
+   void schedule()
+   {
+      if (scheduled.compareAndSet(false, true))
+      {
+         scheduledAt = System.nanoTime();
+         execute(this);
+      }
+   }
+
+   // Inner classes -------------------------------------------------
+   static class Batch
+   {
+      TopicView view;
+      Collection messages;
+      MessageFilter.Rule[] highlights;
+      int credits;
+      long received; // If metrics are on
+
+      Batch(TopicView view, Collection messages, MessageFilter.Rule[] highlights, int credits)
+      {
+         this.view = view;
+         this.messages = messages;
+         this.highlights = highlights;
+         this.credits = credits;
+         if (ClientMetrics.ENABLED)
+            received = System.nanoTime();
+      }
+   }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright 1999 by dreamBean Software,
+ * All rights reserved.
+ */
+package chat.client;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ *   Bounded multi-producer, single-consumer ring buffer. Producers
+ *   claim a slot by advancing the tail with a CAS and then publish the
+ *   element into it, so RMI callback threads never take a lock. Only
+ *   the event thread polls, so the head needs no synchronization.
+ *
+ *   @see InboundDispatcher
+ *   @version $Revision:$
+ */
+public class InboundQueue
+{
+   // Attributes ----------------------------------------------------
+   AtomicReferenceArray slots;
+   int capacity;
+   int mask;
+
+   AtomicLong tail = new AtomicLong();
+   volatile long head;
+
+   // Constructors --------------------------------------------------
+   /**
+    *   Create a queue with room for at least the given number of
+    *   elements. The capacity is rounded up to a power of two.
+    */
+   public InboundQueue(int minCapacity)
+   {
+      capacity = 1;
+      while (capacity < minCapacity)
+         capacity <<= 1;
+      mask = capacity-1;
+      slots = new AtomicReferenceArray(capacity);
+   }
+
+   // Public --------------------------------------------------------
+   /**
+    *   Add an element, or return false if the queue is full.
+    */
+   public boolean offer(Object element)
+   {
+      while (true)
+      {
+         long t = tail.get();
+         if (t-head >= capacity)
+            return false;
+
+         if (tail.compareAndSet(t, t+1))
+         {
+            slots.lazySet((int)t & mask, element);
+            return true;
+         }
+      }
+   }
+
+   /**
+    *   Add an element, waiting for the consumer to make room if the
+    *   queue is full.
+    */
+   public void put(Object element)
+   {
+      int spins = 0;
+      while (!offer(element))
+      {
+         if (spins++ < 100)
+            Thread.yield();
+         else
+            LockSupport.parkNanos(50000);
+      }
+   }
+
+   /**
+    *   Remove the oldest element, or return null if there is none.
+    *   Must only be called by the consumer thread.
+    */
+   public Object poll()
+   {
+      long h = head;
+      int index = (int)h & mask;
+      Object element = slots.get(index);
+      if (element == null)
+         return null; // Empty, or the producer has not published yet
+
+      slots.lazySet(index, null);
+      head = h+1;
+      return element;
+   }
+
+   public int size()
+   {
+      return (int)Math.max(0, tail.get()-head);
+   }
+
+   public boolean isEmpty()
+   {
+      return size() == 0;
+   }
+
+   public int getCapacity()
+   {
+      return capacity;
+   }
+}
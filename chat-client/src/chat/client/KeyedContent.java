@@ -0,0 +1,112 @@
+/*
+ * Copyright 1999 by dreamBean Software,
+ * All rights reserved.
+ */
+package chat.client;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import chat.interfaces.Message;
+
+/**
+ *   Content of a message sent from an Outbox. It wraps the real content
+ *   with the idempotency key of the message, which is the origin of the
+ *   outbox and the sequence number of the message in it, so that the
+ *   receivers can drop the copies of a message the outbox sent again.
+ *   It shows as the real content, but like TracedContent the server
+ *   must be able to load the class.
+ *
+ *   @see Outbox
+ *   @version $Revision:$
+ */
+public class KeyedContent
+   implements Serializable
+{
+   // Attributes ----------------------------------------------------
+   long origin;
+   long sequence;
+   Object content;
+
+   // Static --------------------------------------------------------
+   /**
+    *   Return the messages with their keyed contents unwrapped, without
+    *   the ones whose keys are in seen. The keys of the others are added
+    *   to it.
+    */
+   static Collection received(Collection messages, Map seen)
+   {
+      List result = null;
+      int index = 0;
+      Iterator mlist = messages.iterator();
+      while (mlist.hasNext())
+      {
+         Message message = (Message)mlist.next();
+         if (message.getContent() instanceof KeyedContent)
+         {
+            if (result == null)
+            {
+               result = new ArrayList(messages.size());
+               Iterator copy = messages.iterator();
+               for (int i = 0; i < index; i++)
+                  result.add(copy.next());
+            }
+
+            KeyedContent keyed = (KeyedContent)message.getContent();
+            boolean duplicate;
+            synchronized (seen)
+            {
+               duplicate = seen.put(keyed.getKey(), Boolean.TRUE) != null;
+            }
+            if (!duplicate)
+               result.add(new Message(message.getSender(), message.getType(), keyed.getContent()));
+         } else if (result != null)
+         {
+            result.add(message);
+         }
+         index++;
+      }
+      return result != null ? result : messages;
+   }
+
+   // Constructors --------------------------------------------------
+   public KeyedContent(long origin, long sequence, Object content)
+   {
+      this.origin = origin;
+      this.sequence = sequence;
+      this.content = content;
+   }
+
+   // Public --------------------------------------------------------
+   public long getOrigin()
+   {
+      return origin;
+   }
+
+   public long getSequence()
+   {
+      return sequence;
+   }
+
+   public Object getContent()
+   {
+      return content;
+   }
+
+   /**
+    *   The idempotency key, unique for every message of every outbox.
+    */
+   public String getKey()
+   {
+      return Long.toHexString(origin)+":"+sequence;
+   }
+
+   public String toString()
+   {
+      return String.valueOf(content);
+   }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright 1999 by dreamBean Software,
+ * All rights reserved.
+ */
+package chat.client;
+
+import java.util.Arrays;
+
+/**
+ *   Collects latency samples in nanoseconds and reports percentiles.
+ *   Samples are kept exactly, so the recorder is meant for the bounded
+ *   runs of the load generator, not for long lived clients.
+ *
+ *   @see LoadGenerator
+ *   @version $Revision:$
+ */
+public class LatencyRecorder
+{
+   // Attributes ----------------------------------------------------
+   String name;
+   long[] samples = new long[1024];
+   int count;
+
+   // Constructors --------------------------------------------------
+   public LatencyRecorder(String name)
+   {
+      this.name = name;
+   }
+
+   // Public --------------------------------------------------------
+   public synchronized void record(long nanos)
+   {
+      if (count == samples.length)
+         samples = Arrays.copyOf(samples, count*2);
+      samples[count++] = nanos;
+   }
+
+   public synchronized int getCount()
+   {
+      return count;
+   }
+
+   /**
+    *   Get the given percentile, e.g. 99.9 for p999, in nanoseconds.
+    */
+   public synchronized long getPercentile(double percentile)
+   {
+      if (count == 0)
+         return 0;
+
+      Arrays.sort(samples, 0, count);
+      int index = (int)Math.ceil(percentile / 100.0 * count) - 1;
+      return samples[Math.max(0, Math.min(count-1, index))];
+   }
+
+   public synchronized long getMax()
+   {
+      long max = 0;
+      for (int i = 0; i < count; i++)
+         max = Math.max(max, samples[i]);
+      return max;
+   }
+
+   public synchronized long getMean()
+   {
+      if (count == 0)
+         return 0;
+
+      long total = 0;
+      for (int i = 0; i < count; i++)
+         total += samples[i];
+      return total / count;
+   }
+
+   public String toString()
+   {
+      return name+": n="+getCount()
+         +" p50="+getPercentile(50)
+         +" p99="+getPercentile(99)
+         +" p999="+getPercentile(99.9)
+         +" max="+getMax()
+         +" mean="+getMean()+" (ns)";
+   }
+}
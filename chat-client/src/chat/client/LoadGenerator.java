@@ -0,0 +1,490 @@
+/*
+ * Copyright 1999 by dreamBean Software,
+ * All rights reserved.
+ */
+package chat.client;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.StringTokenizer;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import chat.interfaces.Message;
+import chat.interfaces.TopicInfo;
+
+/**
+ *   Load generator for the chat system. For every combination of the
+ *   configured client, message and topic counts it logs in the clients,
+ *   subscribes them round robin to the topics, publishes the messages
+ *   and logs the clients out again. Latency percentiles are reported
+ *   for login, subscribe, publish-to-delivery and logout.
+ *
+ *   By default the test is run against an in-process LocalTopicServer.
+ *   With -transport nio the clients reach it over a loopback socket
+ *   through a NioServer, so that the cost of the transport can be
+ *   compared with direct calls. Use -remote to run it against the
+ *   remote server instead, over the transport selected by the
+ *   chat.transport system property. With -outage
+ *   the local server is taken offline for the given time halfway through,
+ *   so that the clients have to reconnect and catch up. With -shared
+ *   the clients are sessions of one SharedConnection instead of each
+ *   having a connection of its own.
+ *
+ *   The clients are run one after the other, unless -concurrent is
+ *   given. Each client then logs in, subscribes, publishes its share of
+ *   the messages of its topic and logs out on a thread of its own, a
+ *   virtual one where available, one phase at a time. The login and
+ *   logout rates show how the server copes with concurrent clients.
+ *
+ *   Run with -Dchat.metrics=true to also see the client metrics of
+ *   each scenario.
+ *
+ *   Usage: LoadGenerator [-clients 1,10,100] [-messages 1000]
+ *                        [-topics 1,4] [-outage ms]
+ *                        [-transport direct|nio] [-shared]
+ *                        [-concurrent]
+ *                        [-remote [-topic index]]
+ *
+ *   @see LocalTopicServer
+ *   @see LatencyRecorder
+ *   @see Phase
+ *   @version $Revision:$
+ */
+public class LoadGenerator
+{
+   // Constants -----------------------------------------------------
+   static final String SENDER_PREFIX = "Hello";
+   static final String CONTENT_PREFIX = "Hello ";
+   static final long DELIVERY_TIMEOUT = 60000;
+
+   // Attributes ----------------------------------------------------
+   int[] clientCounts = { 10 };
+   int[] messageCounts = { 1000 };
+   int[] topicCounts = { 1 };
+   boolean remote = false;
+   String transport = "direct";
+   boolean shared = false;
+   boolean concurrent = false;
+   int topicIndex = 0;
+   long outage = 0;
+
+   // Static --------------------------------------------------------
+   public static void main(String[] args)
+      throws Exception
+   {
+      LoadGenerator generator = new LoadGenerator();
+      for (int i = 0; i < args.length; i++)
+      {
+         if (args[i].equals("-clients"))
+            generator.clientCounts = parseCounts(args[++i]);
+         else if (args[i].equals("-messages"))
+            generator.messageCounts = parseCounts(args[++i]);
+         else if (args[i].equals("-topics"))
+            generator.topicCounts = parseCounts(args[++i]);
+         else if (args[i].equals("-remote"))
+            generator.remote = true;
+         else if (args[i].equals("-transport"))
+            generator.transport = args[++i];
+         else if (args[i].equals("-shared"))
+            generator.shared = true;
+         else if (args[i].equals("-concurrent"))
+            generator.concurrent = true;
+         else if (args[i].equals("-outage"))
+            generator.outage = Long.parseLong(args[++i]);
+         else if (args[i].equals("-topic"))
+            generator.topicIndex = Integer.parseInt(args[++i])-1;
+         else
+            throw new IllegalArgumentException("Unknown option:"+args[i]);
+      }
+
+      generator.run();
+      System.exit(0);
+   }
+
+   static int[] parseCounts(String list)
+   {
+      StringTokenizer tokens = new StringTokenizer(list, ",");
+      int[] counts = new int[tokens.countTokens()];
+      for (int i = 0; i < counts.length; i++)
+         counts[i] = Integer.parseInt(tokens.nextToken().trim());
+      return counts;
+   }
+
+   // Public --------------------------------------------------------
+   public void run()
+      throws Exception
+   {
+      for (int c = 0; c < clientCounts.length; c++)
+         for (int m = 0; m < messageCounts.length; m++)
+            for (int t = 0; t < topicCounts.length; t++)
+               runScenario(clientCounts[c], messageCounts[m], topicCounts[t]);
+   }
+
+   public void runScenario(int clientCount, int messageCount, int topicCount)
+      throws Exception
+   {
+      System.out.println("Clients:"+clientCount+" messages/topic:"+messageCount+" topics:"+topicCount+(remote ? " (remote, "+System.getProperty("chat.transport", "rmi") : " (local, "+transport)+(shared ? ", shared" : "")+(concurrent ? ", concurrent on "+(ClientExecutors.isVirtual() ? "virtual" : "platform")+" threads)" : ")"));
+
+      LocalTopicServer server = null;
+      NioServer nioServer = null;
+      List topicInfos = new ArrayList();
+      if (!remote)
+      {
+         server = new LocalTopicServer();
+         for (int i = 0; i < topicCount; i++)
+            topicInfos.add(server.addTopic("Topic "+i, "Load test topic "+i));
+         
+         if (transport.equals("nio"))
+            nioServer = new NioServer(server, 0);
+      }
+
+      SharedConnection connection = null;
+      if (shared)
+      {
+         if (remote)
+            connection = new SharedConnection(ChatClient.createTransport());
+         else if (nioServer != null)
+            connection = new SharedConnection(new NioTransport("localhost", nioServer.getPort()));
+         else
+            connection = new SharedConnection(server);
+      }
+
+      ExecutorService executor = null;
+      if (concurrent)
+         executor = ClientExecutors.newPerTaskExecutor("LoadGenerator-client");
+
+      LatencyRecorder login = new LatencyRecorder("login");
+      LatencyRecorder subscribe = new LatencyRecorder("subscribe");
+      LatencyRecorder delivery = new LatencyRecorder("publish-to-delivery");
+      LatencyRecorder logout = new LatencyRecorder("logout");
+
+      try
+      {
+         // The first client finds the topics of a remote server
+         ChatClient[] clients = new ChatClient[clientCount];
+         clients[0] = createClient(server, nioServer, connection);
+         if (remote && topicInfos.isEmpty())
+         {
+            TopicDirectory directory = clients[0].getTopicDirectory();
+            for (int t = 0; t < topicCount; t++)
+               topicInfos.add(directory.getTopic((topicIndex+t) % directory.getSize()));
+         }
+
+         // Clients are subscribed round robin to the topics
+         int[] subscribers = new int[topicCount];
+         for (int i = 0; i < clientCount; i++)
+            subscribers[i % topicCount]++;
+
+         Phase joined = new Phase("login phase", executor);
+         for (int i = 0; i < clientCount; i++)
+         {
+            Join join = new Join(clients, i, server, nioServer, connection, topicInfos, login, subscribe);
+            if (concurrent)
+               joined.fork(join);
+            else
+               join.call();
+         }
+         joined.join();
+
+         // Every subscriber is expected to see every message on its topic
+         long expected = 0;
+         for (int t = 0; t < topicCount; t++)
+            expected += (long)messageCount*subscribers[t];
+         AtomicLongArray sendTimes = new AtomicLongArray(messageCount*topicCount);
+         Receiver receiver = new Receiver(sendTimes, delivery, expected);
+         for (int i = 0; i < clientCount; i++)
+            clients[i].addMessageReceiver(receiver);
+
+         // Publish, interleaving the topics. One client of each topic
+         // publishes, or all of them share the messages if concurrent
+         PublishFuture[] sent = new PublishFuture[clientCount];
+         int publishers = concurrent ? clientCount : Math.min(clientCount, topicCount);
+         long start = System.nanoTime();
+         if (server != null && outage > 0)
+         {
+            publish(clients, publishers, 0, messageCount/2, topicCount, subscribers, sendTimes, sent, executor);
+            outage(server, sent);
+            publish(clients, publishers, messageCount/2, messageCount, topicCount, subscribers, sendTimes, sent, executor);
+         } else
+         {
+            publish(clients, publishers, 0, messageCount, topicCount, subscribers, sendTimes, sent, executor);
+         }
+         long published = System.nanoTime();
+
+         boolean complete = receiver.await(DELIVERY_TIMEOUT);
+         long delivered = System.nanoTime();
+
+         // Log off test clients
+         Phase left = new Phase("logout phase", executor);
+         for (int i = 0; i < clientCount; i++)
+         {
+            Leave leave = new Leave(clients[i], logout);
+            if (concurrent)
+               left.fork(leave);
+            else
+               leave.call();
+         }
+         left.join();
+
+         // Show results
+         System.out.println("  "+login);
+         System.out.println("  "+subscribe);
+         System.out.println("  "+delivery+(complete ? "" : " INCOMPLETE, "+receiver.getRemaining()+" deliveries missing"));
+         System.out.println("  "+logout);
+         System.out.println("  login rate:"+rate(clientCount, joined.getElapsed())+" clients/s"
+            +" logout rate:"+rate(clientCount, left.getElapsed())+" clients/s");
+         System.out.println("  publish rate:"+rate(messageCount*topicCount, published-start)+" msg/s"
+            +" delivery rate:"+rate(expected-receiver.getRemaining(), delivered-start)+" msg/s");
+         if (ClientMetrics.ENABLED)
+         {
+            System.out.println("  client metrics: "+ClientMetrics.getMetrics().getSummary());
+            ClientMetrics.getMetrics().reset();
+         }
+      } finally
+      {
+         if (executor != null)
+            executor.shutdownNow();
+         if (connection != null)
+            connection.close();
+         if (nioServer != null)
+            nioServer.close();
+         if (server != null)
+            server.shutdown();
+      }
+   }
+
+   // Private -------------------------------------------------------
+   ChatClient createClient(LocalTopicServer server, NioServer nioServer, SharedConnection connection)
+      throws Exception
+   {
+      if (connection != null)
+         return connection.createSession();
+      else if (remote)
+         return new ChatClient();
+      else if (nioServer != null)
+         return new ChatClient(new NioTransport("localhost", nioServer.getPort()));
+      else
+         return new ChatClient(server);
+   }
+
+   /**
+    *   Publish the messages from up to to on every topic. Publisher p is
+    *   client p, which publishes on topic p % topicCount the messages
+    *   that are its share among the publishers of the topic.
+    */
+   void publish(ChatClient[] clients, int publishers, int from, int to, int topicCount, int[] subscribers, AtomicLongArray sendTimes, PublishFuture[] sent, ExecutorService executor)
+      throws Exception
+   {
+      if (!concurrent)
+      {
+         for (int i = from; i < to; i++)
+         {
+            for (int t = 0; t < publishers; t++)
+               sent[t] = send(clients[t], i*topicCount+t, sendTimes);
+         }
+         return;
+      }
+
+      Phase phase = new Phase("publish phase", executor);
+      for (int p = 0; p < publishers; p++)
+         phase.fork(new Publish(clients, p, from, to, topicCount, subscribers[p % topicCount], sendTimes, sent));
+      phase.join();
+   }
+
+   static PublishFuture send(ChatClient client, int seq, AtomicLongArray sendTimes)
+   {
+      sendTimes.set(seq, System.nanoTime());
+      return client.publishMessage(new Message(client.getClientInfo().getName(), Message.TEXT, CONTENT_PREFIX+seq+"!"));
+   }
+
+   /**
+    *   Take the server offline once what has been published so far has
+    *   been accepted, and bring it back after the outage time.
+    */
+   void outage(LocalTopicServer server, PublishFuture[] sent)
+      throws Exception
+   {
+      for (int t = 0; t < sent.length; t++)
+      {
+         if (sent[t] != null)
+            sent[t].get();
+      }
+      
+      System.out.println("  Server offline for "+outage+" ms");
+      server.setOnline(false);
+      Thread.sleep(outage);
+      server.setOnline(true);
+   }
+   
+   static long rate(long count, long nanos)
+   {
+      return nanos == 0 ? 0 : count*1000000000L/nanos;
+   }
+
+   // Inner classes -------------------------------------------------
+   /**
+    *   Creates a client, unless created already, logs it in and
+    *   subscribes it to its topic.
+    */
+   class Join
+      implements Callable
+   {
+      ChatClient[] clients;
+      int index;
+      LocalTopicServer server;
+      NioServer nioServer;
+      SharedConnection connection;
+      List topicInfos;
+      LatencyRecorder login;
+      LatencyRecorder subscribe;
+
+      Join(ChatClient[] clients, int index, LocalTopicServer server, NioServer nioServer, SharedConnection connection,
+           List topicInfos, LatencyRecorder login, LatencyRecorder subscribe)
+      {
+         this.clients = clients;
+         this.index = index;
+         this.server = server;
+         this.nioServer = nioServer;
+         this.connection = connection;
+         this.topicInfos = topicInfos;
+         this.login = login;
+         this.subscribe = subscribe;
+      }
+
+      public Object call()
+         throws Exception
+      {
+         ChatClient client = clients[index];
+         if (client == null)
+            client = createClient(server, nioServer, connection);
+
+         long start = System.nanoTime();
+         client.login(SENDER_PREFIX+index);
+         login.record(System.nanoTime()-start);
+
+         start = System.nanoTime();
+         client.subscribe((TopicInfo)topicInfos.get(index % topicInfos.size()));
+         subscribe.record(System.nanoTime()-start);
+
+         clients[index] = client;
+         return null;
+      }
+   }
+
+   /**
+    *   Publishes the share of one client of the messages of its topic.
+    */
+   static class Publish
+      implements Callable
+   {
+      ChatClient[] clients;
+      int publisher;
+      int from;
+      int to;
+      int topicCount;
+      int publishers; // On the topic
+      AtomicLongArray sendTimes;
+      PublishFuture[] sent;
+
+      Publish(ChatClient[] clients, int publisher, int from, int to, int topicCount, int publishers,
+              AtomicLongArray sendTimes, PublishFuture[] sent)
+      {
+         this.clients = clients;
+         this.publisher = publisher;
+         this.from = from;
+         this.to = to;
+         this.topicCount = topicCount;
+         this.publishers = publishers;
+         this.sendTimes = sendTimes;
+         this.sent = sent;
+      }
+
+      public Object call()
+      {
+         int topic = publisher % topicCount;
+         int share = publisher / topicCount;
+         for (int i = from; i < to; i++)
+         {
+            if (i % publishers == share)
+               sent[publisher] = send(clients[publisher], i*topicCount+topic, sendTimes);
+         }
+         return null;
+      }
+   }
+
+   static class Leave
+      implements Callable
+   {
+      ChatClient client;
+      LatencyRecorder logout;
+
+      Leave(ChatClient client, LatencyRecorder logout)
+      {
+         this.client = client;
+         this.logout = logout;
+      }
+
+      public Object call()
+         throws Exception
+      {
+         long start = System.nanoTime();
+         client.logout();
+         logout.record(System.nanoTime()-start);
+         return null;
+      }
+   }
+
+   /**
+    *   Records the delivery latency of test messages. The sequence
+    *   number of a message is encoded in its content.
+    */
+   static class Receiver
+      implements ChatClient.MessageReceiver
+   {
+      AtomicLongArray sendTimes;
+      LatencyRecorder delivery;
+      CountDownLatch remaining;
+
+      Receiver(AtomicLongArray sendTimes, LatencyRecorder delivery, long expected)
+      {
+         this.sendTimes = sendTimes;
+         this.delivery = delivery;
+         this.remaining = new CountDownLatch((int)Math.min(expected, Integer.MAX_VALUE));
+      }
+
+      public void handleMessage(Message message)
+      {
+         if (!message.getType().equals(Message.TEXT) || !message.getSender().startsWith(SENDER_PREFIX))
+            return;
+
+         String content = message.getContent().toString();
+         if (!content.startsWith(CONTENT_PREFIX) || !content.endsWith("!"))
+            return;
+
+         try
+         {
+            int seq = Integer.parseInt(content.substring(CONTENT_PREFIX.length(), content.length()-1));
+            delivery.record(System.nanoTime()-sendTimes.get(seq));
+            remaining.countDown();
+         } catch (RuntimeException e)
+         {
+            // Not one of ours
+         }
+      }
+
+      boolean await(long timeout)
+         throws InterruptedException
+      {
+         return remaining.await(timeout, TimeUnit.MILLISECONDS);
+      }
+
+      long getRemaining()
+      {
+         return remaining.getCount();
+      }
+   }
+}
@@ -0,0 +1,715 @@
+/*
+ * Copyright 1999 by dreamBean Software,
+ * All rights reserved.
+ */
+package chat.client;
+
+import java.rmi.ConnectException;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import chat.interfaces.ListenerInfo;
+import chat.interfaces.Message;
+import chat.interfaces.MessageListener;
+import chat.interfaces.Topic;
+import chat.interfaces.TopicInfo;
+import chat.interfaces.TopicServer;
+
+/**
+ *   This is an in-process stand-in for the chat server. It implements
+ *   the same TopicServer/Topic contract as the RMI server, including
+ *   batched delivery of messages to listeners, but runs entirely within
+ *   the JVM so that benchmarks and load tests work without a network.
+ *
+ *   Messages for a listener are queued and delivered by a small pool of
+ *   dispatcher threads, so that a listener gets all messages published
+ *   since its last delivery in one messagePublished call. Listeners that
+ *   implement TopicMessageListener are told which topic the messages are
+ *   for, and may be subscribed to several topics.
+ *
+ *   Listeners that set a FlowControl get messages by credit instead, in
+ *   batches of up to maxBatch that wait up to linger ms to fill. When
+ *   more than maxBacklog messages are waiting for credits, the oldest
+ *   chat messages are skipped until half of them are left, and a
+ *   FlowControl.SKIPPED message per topic says how many were skipped
+ *   and from whom.
+ *
+ *   Topics keep a log of their last messages for clients catching up
+ *   after a reconnect, without the data of attachment chunks, and the
+ *   server can be taken offline to simulate a network failure.
+ *
+ *   @see ChatClient
+ *   @see LoadGenerator
+ *   @version $Revision:$
+ */
+public class LocalTopicServer
+   implements MultiTopicServer, PagedTopicServer, FlowControlServer
+{
+   // Constants -----------------------------------------------------
+   static final int DEFAULT_DISPATCHERS = 2;
+   static final int LOG_SIZE = 100000;
+
+   // Attributes ----------------------------------------------------
+   Map topics = new HashMap(); // TopicInfo -> LocalTopic
+   List topicInfos = new ArrayList();
+   long topicVersion;
+   Map listeners = new HashMap(); // ListenerInfo -> Delivery
+   Map deliveries = new IdentityHashMap(); // MessageListener -> Delivery
+
+   ScheduledExecutorService dispatcher;
+   volatile boolean online = true;
+
+   // Constructors --------------------------------------------------
+   public LocalTopicServer()
+   {
+      this(DEFAULT_DISPATCHERS);
+   }
+
+   public LocalTopicServer(int dispatcherCount)
+   {
+      dispatcher = Executors.newScheduledThreadPool(dispatcherCount, new ThreadFactory()
+      {
+         int count = 0;
+
+         public synchronized Thread newThread(Runnable r)
+         {
+            Thread t = new Thread(r, "LocalTopicServer-dispatcher-"+(count++));
+            t.setDaemon(true);
+            return t;
+         }
+      });
+   }
+
+   // Public --------------------------------------------------------
+   public TopicInfo addTopic(String name, String description)
+   {
+      TopicInfo info = new TopicInfo(name, description);
+      synchronized (this)
+      {
+         topics.put(info, new LocalTopic(info));
+         topicInfos.add(info);
+         topicVersion++;
+      }
+
+      broadcast(new Message(Message.SYSTEM, Message.TOPIC_CREATED, info));
+      return info;
+   }
+
+   public void removeTopic(TopicInfo info)
+   {
+      synchronized (this)
+      {
+         topics.remove(info);
+         if (topicInfos.remove(info))
+            topicVersion++;
+      }
+
+      broadcast(new Message(Message.SYSTEM, Message.TOPIC_REMOVED, info));
+   }
+
+   public void shutdown()
+   {
+      dispatcher.shutdownNow();
+   }
+
+   /**
+    *   Take the server offline or bring it back. Going offline drops all
+    *   listeners and their subscriptions, including undelivered messages,
+    *   and calls fail until the server is back online.
+    */
+   public void setOnline(boolean online)
+   {
+      if (!online)
+      {
+         Collection dropped;
+         synchronized (this)
+         {
+            dropped = new ArrayList(listeners.keySet());
+            Iterator dlist = deliveries.values().iterator();
+            while (dlist.hasNext())
+               ((Delivery)dlist.next()).closed = true;
+            listeners.clear();
+            deliveries.clear();
+         }
+
+         Iterator iter = dropped.iterator();
+         while (iter.hasNext())
+         {
+            ListenerInfo info = (ListenerInfo)iter.next();
+            Object[] all;
+            synchronized (this)
+            {
+               all = topics.values().toArray();
+            }
+            for (int i = 0; i < all.length; i++)
+            {
+               LocalTopic topic = (LocalTopic)all[i];
+               if (topic.removeSubscriber(info))
+                  topic.log(new Message(Message.SYSTEM, Message.USER_LEFT, info));
+            }
+         }
+      }
+
+      this.online = online;
+   }
+
+   // TopicServer implementation ------------------------------------
+   /**
+    *   Register the listener. A listener registered for several infos,
+    *   like that of a SharedConnection, shares one delivery between them
+    *   and gets every message once.
+    */
+   public void addListener(ListenerInfo info, MessageListener listener)
+      throws RemoteException
+   {
+      checkOnline();
+      synchronized (this)
+      {
+         Delivery delivery = (Delivery)deliveries.get(listener);
+         if (delivery == null)
+         {
+            delivery = new Delivery(listener);
+            deliveries.put(listener, delivery);
+         }
+         
+         Delivery old = (Delivery)listeners.put(info, delivery);
+         if (old != delivery)
+         {
+            delivery.references++;
+            if (old != null)
+               release(old);
+         }
+      }
+   }
+
+   public void removeListener(ListenerInfo info)
+      throws RemoteException
+   {
+      checkOnline();
+      synchronized (this)
+      {
+         Delivery delivery = (Delivery)listeners.remove(info);
+         if (delivery != null)
+            release(delivery);
+      }
+   }
+
+   public Topic subscribe(TopicInfo topicInfo, ListenerInfo info)
+      throws RemoteException
+   {
+      checkOnline();
+      LocalTopic topic = getTopic(topicInfo);
+      topic.addSubscriber(info);
+
+      Delivery delivery = getDelivery(info);
+      if (delivery != null)
+         delivery.deliver(topic.info, new Message(Message.SYSTEM, Message.GREETING, topicInfo.getDescription()));
+
+      return topic;
+   }
+
+   public void unsubscribe(TopicInfo topicInfo, ListenerInfo info)
+      throws RemoteException
+   {
+      checkOnline();
+      LocalTopic topic = getTopic(topicInfo);
+      if (topic.removeSubscriber(info))
+         topic.publishMessage(new Message(Message.SYSTEM, Message.USER_LEFT, info));
+   }
+
+   public Collection getTopicInfos()
+      throws RemoteException
+   {
+      checkOnline();
+      synchronized (this)
+      {
+         return new ArrayList(topicInfos);
+      }
+   }
+
+   /**
+    *   The number of messages skipped for the listener because it fell
+    *   behind.
+    */
+   public long getSkippedCount(ListenerInfo info)
+   {
+      Delivery delivery = getDelivery(info);
+      return delivery == null ? 0 : delivery.skipped;
+   }
+
+   // FlowControlServer implementation ------------------------------
+   public void setFlowControl(ListenerInfo info, FlowControl flow)
+      throws RemoteException
+   {
+      checkOnline();
+      Delivery delivery = getDelivery(info);
+      if (delivery == null)
+         throw new RemoteException("No such listener:"+info);
+      delivery.setFlowControl(flow);
+   }
+
+   public void grant(ListenerInfo info, int credits)
+      throws RemoteException
+   {
+      checkOnline();
+      Delivery delivery = getDelivery(info);
+      if (delivery != null)
+         delivery.grant(credits);
+   }
+
+   // PagedTopicServer implementation -------------------------------
+   public synchronized long getTopicVersion()
+      throws RemoteException
+   {
+      checkOnline();
+      return topicVersion;
+   }
+
+   public synchronized int getTopicCount()
+      throws RemoteException
+   {
+      checkOnline();
+      return topicInfos.size();
+   }
+
+   public synchronized Collection getTopicInfos(long version, int from, int count)
+      throws RemoteException
+   {
+      checkOnline();
+      if (version != topicVersion)
+         return null;
+
+      int start = Math.min(from, topicInfos.size());
+      int end = Math.min(start+count, topicInfos.size());
+      return new ArrayList(topicInfos.subList(start, end));
+   }
+
+   // Package protected ---------------------------------------------
+   void checkOnline()
+      throws RemoteException
+   {
+      if (!online)
+         throw new ConnectException("Server is offline");
+   }
+
+   synchronized Delivery getDelivery(ListenerInfo info)
+   {
+      return (Delivery)listeners.get(info);
+   }
+
+   /**
+    *   Close the delivery once no info refers to it. Called with the
+    *   server locked.
+    */
+   void release(Delivery delivery)
+   {
+      if (--delivery.references == 0)
+      {
+         delivery.closed = true;
+         deliveries.remove(delivery.listener);
+      }
+   }
+
+   synchronized LocalTopic getTopic(TopicInfo info)
+      throws RemoteException
+   {
+      LocalTopic topic = (LocalTopic)topics.get(info);
+      if (topic == null)
+         throw new RemoteException("No such topic:"+info);
+      return topic;
+   }
+
+   void broadcast(Message message)
+   {
+      Collection all;
+      synchronized (this)
+      {
+         all = new ArrayList(deliveries.values());
+      }
+
+      Iterator iter = all.iterator();
+      while (iter.hasNext())
+      {
+         ((Delivery)iter.next()).deliver(null, message);
+      }
+   }
+
+   // Inner classes -------------------------------------------------
+   class LocalTopic
+      implements BatchTopic, CatchUpTopic, PagedTopic
+   {
+      TopicInfo info;
+      List subscribers = new ArrayList();
+      Map subscribedAt = new HashMap(); // ListenerInfo -> Long
+
+      // The last LOG_SIZE messages, the first having sequence logStart
+      List log = new ArrayList();
+      long logStart;
+
+      LocalTopic(TopicInfo info)
+      {
+         this.info = info;
+      }
+
+      /**
+       *   Publish the join and subscribe the listener, in that order, so
+       *   that the join is the last message before its subscription.
+       */
+      synchronized void addSubscriber(ListenerInfo listener)
+         throws RemoteException
+      {
+         if (subscribers.contains(listener))
+            return;
+
+         publishMessage(new Message(Message.SYSTEM, Message.USER_JOINED, listener));
+         subscribers.add(listener);
+         subscribedAt.put(listener, new Long(logStart+log.size()));
+      }
+
+      synchronized boolean removeSubscriber(ListenerInfo listener)
+      {
+         subscribedAt.remove(listener);
+         return subscribers.remove(listener);
+      }
+
+      /**
+       *   Add the message to the log and deliver it to the subscribers.
+       *   Both happen under the topic lock, so every subscriber sees the
+       *   messages in log order. Subscribers that share a delivery get
+       *   the message once.
+       */
+      public synchronized void publishMessage(Message message)
+         throws RemoteException
+      {
+         checkOnline();
+         log(message);
+         Set shared = null;
+         for (int i = 0; i < subscribers.size(); i++)
+         {
+            Delivery delivery = getDelivery((ListenerInfo)subscribers.get(i));
+            if (delivery == null)
+               continue;
+            
+            if (delivery.references > 1)
+            {
+               if (shared == null)
+                  shared = Collections.newSetFromMap(new IdentityHashMap());
+               if (!shared.add(delivery))
+                  continue;
+            }
+            delivery.deliver(info, message);
+         }
+      }
+
+      /**
+       *   Add the message to the log. Attachment chunks are logged without
+       *   their data, which would soon fill the memory. Clients catching up
+       *   so miss them until the file is sent again.
+       */
+      synchronized void log(Message message)
+      {
+         if (message.getContent() instanceof AttachmentChunk)
+            message = new Message(message.getSender(), message.getType(), null);
+         log.add(message);
+         if (log.size() > LOG_SIZE)
+         {
+            log.subList(0, LOG_SIZE/10).clear();
+            logStart += LOG_SIZE/10;
+         }
+      }
+
+      public synchronized long getSequence(ListenerInfo listener)
+         throws RemoteException
+      {
+         checkOnline();
+         Long sequence = (Long)subscribedAt.get(listener);
+         return sequence == null ? -1 : sequence.longValue();
+      }
+
+      public synchronized Collection getMessages(long from, long to)
+         throws RemoteException
+      {
+         checkOnline();
+         from = Math.max(from, logStart);
+         to = Math.min(to, logStart+log.size());
+         if (from >= to)
+            return new ArrayList();
+         return new ArrayList(log.subList((int)(from-logStart), (int)(to-logStart)));
+      }
+
+      public void publishMessages(Collection messages)
+         throws RemoteException
+      {
+         Iterator iter = messages.iterator();
+         while (iter.hasNext())
+         {
+            publishMessage((Message)iter.next());
+         }
+      }
+
+      public synchronized Collection getListenerInfos()
+         throws RemoteException
+      {
+         checkOnline();
+         return new ArrayList(subscribers);
+      }
+
+      public synchronized int getListenerCount()
+         throws RemoteException
+      {
+         checkOnline();
+         return subscribers.size();
+      }
+
+      public synchronized Collection getListenerInfos(int from, int count)
+         throws RemoteException
+      {
+         checkOnline();
+         from = Math.min(from, subscribers.size());
+         return new ArrayList(subscribers.subList(from, Math.min(subscribers.size(), from+count)));
+      }
+   }
+
+   /**
+    *   Pending messages for one listener. The delivery is scheduled on
+    *   the dispatcher when the first message is queued, and everything
+    *   queued until it runs is sent as one batch, or as one batch per
+    *   run of messages for the same topic to a TopicMessageListener.
+    *   With a flow control the batch is limited by the credits left.
+    */
+   class Delivery
+      implements Runnable
+   {
+      MessageListener listener;
+      List pending = new ArrayList();
+      List pendingTopics = new ArrayList(); // TopicInfo of each message, or null
+      AtomicBoolean scheduled = new AtomicBoolean();
+      volatile boolean closed;
+      volatile int references; // Infos registered with this delivery
+
+      FlowControl flow; // Null to send everything pending
+      int credits;
+      volatile long skipped;
+
+      Delivery(MessageListener listener)
+      {
+         this.listener = listener;
+      }
+
+      void deliver(TopicInfo topic, Message message)
+      {
+         synchronized (this)
+         {
+            pending.add(message);
+            pendingTopics.add(topic);
+            if (flow != null && pending.size() > flow.getMaxBacklog())
+               skip();
+         }
+
+         schedule();
+      }
+
+      void setFlowControl(FlowControl flow)
+      {
+         synchronized (this)
+         {
+            this.flow = flow;
+            credits = flow == null ? 0 : flow.getCredits();
+         }
+
+         schedule();
+      }
+
+      void grant(int count)
+      {
+         synchronized (this)
+         {
+            credits += count;
+         }
+
+         schedule();
+      }
+
+      /**
+       *   Schedule a run if there is something to send and credits to
+       *   send it with. A batch that is not full waits for the linger.
+       */
+      void schedule()
+      {
+         long delay = 0;
+         synchronized (this)
+         {
+            if (pending.isEmpty())
+               return;
+            if (flow != null)
+            {
+               if (credits == 0)
+                  return; // Until granted more
+               if (pending.size() < Math.min(credits, flow.getMaxBatch()))
+                  delay = flow.getLinger();
+            }
+         }
+
+         if (scheduled.compareAndSet(false, true))
+         {
+            if (delay == 0)
+               dispatcher.execute(this);
+            else
+               dispatcher.schedule(this, delay, TimeUnit.MILLISECONDS);
+         }
+      }
+
+      /**
+       *   Skip the oldest chat messages until half of the backlog is
+       *   left, and put a summary of them in place of the first one
+       *   skipped for each topic. Joins, leaves and system messages are
+       *   kept. Called with the delivery locked.
+       */
+      void skip()
+      {
+         int excess = pending.size()-flow.getMaxBacklog()/2;
+         List kept = new ArrayList(pending.size()-excess+1);
+         List keptTopics = new ArrayList(pending.size()-excess+1);
+         Map summaries = new HashMap(); // TopicInfo -> Summary
+         for (int i = 0; i < pending.size(); i++)
+         {
+            Message message = (Message)pending.get(i);
+            Object topic = pendingTopics.get(i);
+            if (excess > 0 && message.getType().equals(Message.TEXT) && !Message.SYSTEM.equals(message.getSender()))
+            {
+               Summary summary = (Summary)summaries.get(topic);
+               if (summary == null)
+               {
+                  summary = new Summary(kept.size());
+                  summaries.put(topic, summary);
+                  kept.add(null);
+                  keptTopics.add(topic);
+               }
+               summary.add(message.getSender());
+               excess--;
+               skipped++;
+            } else
+            {
+               kept.add(message);
+               keptTopics.add(topic);
+            }
+         }
+
+         Iterator slist = summaries.values().iterator();
+         while (slist.hasNext())
+         {
+            Summary summary = (Summary)slist.next();
+            kept.set(summary.index, summary.toMessage());
+         }
+         pending = kept;
+         pendingTopics = keptTopics;
+      }
+
+      public void run()
+      {
+         List batch;
+         List batchTopics;
+         synchronized (this)
+         {
+            int count = pending.size();
+            if (flow != null)
+            {
+               count = Math.min(count, Math.min(credits, flow.getMaxBatch()));
+               credits -= count;
+            }
+
+            if (count == pending.size())
+            {
+               batch = pending;
+               batchTopics = pendingTopics;
+               pending = new ArrayList();
+               pendingTopics = new ArrayList();
+            } else
+            {
+               batch = new ArrayList(pending.subList(0, count));
+               batchTopics = new ArrayList(pendingTopics.subList(0, count));
+               pending.subList(0, count).clear();
+               pendingTopics.subList(0, count).clear();
+            }
+         }
+
+         try
+         {
+            if (batch.isEmpty() || closed)
+            {
+               // Nothing to do
+            } else if (listener instanceof TopicMessageListener)
+            {
+               int start = 0;
+               for (int i = 1; i <= batch.size(); i++)
+               {
+                  if (i == batch.size() || batchTopics.get(i) != batchTopics.get(start))
+                  {
+                     ((TopicMessageListener)listener).messagePublished((TopicInfo)batchTopics.get(start), new ArrayList(batch.subList(start, i)));
+                     start = i;
+                  }
+               }
+            } else
+            {
+               listener.messagePublished(batch);
+            }
+         } catch (Exception e)
+         {
+            e.printStackTrace();
+         }
+
+         // Only one dispatcher may deliver to a listener at a time, so
+         // messages queued while this batch was sent are rescheduled here
+         scheduled.set(false);
+         schedule();
+      }
+   }
+
+   /**
+    *   Messages of one topic skipped for a listener that fell behind.
+    */
+   static class Summary
+   {
+      static final int MAX_SENDERS = 3;
+
+      int index; // Of the summary among the messages kept
+      int count;
+      Set senders = new LinkedHashSet();
+
+      Summary(int index)
+      {
+         this.index = index;
+      }
+
+      void add(String sender)
+      {
+         count++;
+         senders.add(sender);
+      }
+
+      Message toMessage()
+      {
+         StringBuffer text = new StringBuffer("Skipped ").append(count).append(count == 1 ? " message" : " messages").append(" from ");
+         Iterator slist = senders.iterator();
+         for (int i = 0; i < MAX_SENDERS && slist.hasNext(); i++)
+            text.append(i == 0 ? "" : ", ").append(slist.next());
+         if (senders.size() > MAX_SENDERS)
+            text.append(" and ").append(senders.size()-MAX_SENDERS).append(" others");
+         return new Message(Message.SYSTEM, FlowControl.SKIPPED, new FlowControl.Skipped(count, text.toString()));
+      }
+   }
+}
@@ -0,0 +1,519 @@
+/*
+ * Copyright 1999 by dreamBean Software,
+ * All rights reserved.
+ */
+package chat.client;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import chat.interfaces.ListenerInfo;
+import chat.interfaces.Message;
+import chat.interfaces.TopicInfo;
+
+/**
+ *   Compact binary encoding of messages and the other values sent over
+ *   the NIO transport. Every value starts with a tag byte, lengths and
+ *   numbers are varints, and strings are encoded like
+ *   DataOutput.writeUTF does.
+ *
+ *   Senders, message types, topic names and user names are symbols:
+ *   the first time a symbol is sent it is sent in full, after that only
+ *   its index in the dictionary of the connection is sent. Both ends
+ *   build the same dictionary, so the values of a connection must be
+ *   decoded in the order they were encoded, and every connection needs
+ *   its own codec. Values the codec does not know are sent with Java
+ *   serialization. The symbols added by a value that could not be
+ *   encoded, or that is discarded, are taken out of the dictionary
+ *   again, so that it stays the one the other end has.
+ *
+ *   Encoding uses a buffer that is reused for every value. Decoding
+ *   reads straight from the given buffer.
+ *
+ *   @see NioConnection
+ *   @version $Revision:$
+ */
+public class MessageCodec
+{
+   // Constants -----------------------------------------------------
+   static final byte NULL = 0;
+   static final byte MESSAGE = 1;
+   static final byte STRING = 2;
+   static final byte LIST = 3;
+   static final byte ARRAY = 4;
+   static final byte INT = 5;
+   static final byte LONG = 6;
+   static final byte TOPIC_INFO = 7;
+   static final byte LISTENER_INFO = 8;
+   static final byte SERIALIZED = 9;
+   static final byte COMPRESSED = 10;
+   static final byte KEYED = 11;
+   static final byte ATTACHMENT = 12;
+
+   // Java serialization streams start with this byte, which is not a tag
+   static final byte SERIALIZATION_MAGIC = (byte)0xAC;
+
+   static final int MAX_SYMBOLS = Integer.getInteger("chat.codec.maxSymbols", 4096).intValue();
+
+   // Attributes ----------------------------------------------------
+   // Encoding
+   Map symbols = new HashMap(); // String -> Integer
+   byte[] buf = new byte[256];
+   int count;
+   int mark; // Symbols before the last value encoded
+
+   // Decoding
+   String[] dictionary = new String[64];
+   int dictionarySize;
+   char[] chars = new char[256];
+
+   // Public --------------------------------------------------------
+   /**
+    *   Encode the value. The returned buffer is only valid until the
+    *   next call.
+    */
+   public ByteBuffer encode(Object value)
+      throws IOException
+   {
+      count = 0;
+      mark = symbols.size();
+      boolean encoded = false;
+      try
+      {
+         write(value);
+         encoded = true;
+      } finally
+      {
+         if (!encoded)
+            discard();
+      }
+      return ByteBuffer.wrap(buf, 0, count);
+   }
+
+   /**
+    *   Take the symbols added by the last value encoded out of the
+    *   dictionary, as it will not be sent after all.
+    */
+   public void discard()
+   {
+      if (symbols.size() == mark)
+         return;
+
+      Iterator iter = symbols.values().iterator();
+      while (iter.hasNext())
+      {
+         if (((Integer)iter.next()).intValue() >= mark)
+            iter.remove();
+      }
+   }
+
+   /**
+    *   Decode one value from the buffer, which is left positioned after
+    *   it.
+    */
+   public Object decode(ByteBuffer in)
+      throws IOException
+   {
+      try
+      {
+         return read(in);
+      } catch (BufferUnderflowException e)
+      {
+         throw new IOException("Truncated value");
+      } catch (ClassCastException e)
+      {
+         IOException ex = new IOException("Corrupt value");
+         ex.initCause(e);
+         throw ex;
+      }
+   }
+
+   /**
+    *   Whether the buffer holds a Java serialization stream rather
+    *   than an encoded value.
+    */
+   public static boolean isSerialized(ByteBuffer in)
+   {
+      return in.hasRemaining() && in.get(in.position()) == SERIALIZATION_MAGIC;
+   }
+
+   // Private -------------------------------------------------------
+   void write(Object value)
+      throws IOException
+   {
+      if (value == null)
+      {
+         writeByte(NULL);
+      } else if (value.getClass() == Message.class && isSymbols(((Message)value).getSender(), ((Message)value).getType()))
+      {
+         Message message = (Message)value;
+         writeByte(MESSAGE);
+         writeSymbol(message.getSender());
+         writeSymbol(message.getType());
+         write(message.getContent());
+      } else if (value instanceof String)
+      {
+         writeByte(STRING);
+         writeString((String)value);
+      } else if (value instanceof List)
+      {
+         List list = (List)value;
+         writeByte(LIST);
+         writeVarint(list.size());
+         for (int i = 0; i < list.size(); i++)
+            write(list.get(i));
+      } else if (value.getClass() == Object[].class)
+      {
+         Object[] array = (Object[])value;
+         writeByte(ARRAY);
+         writeVarint(array.length);
+         for (int i = 0; i < array.length; i++)
+            write(array[i]);
+      } else if (value instanceof Integer)
+      {
+         writeByte(INT);
+         writeVarlong(zigzag(((Integer)value).intValue()));
+      } else if (value instanceof Long)
+      {
+         writeByte(LONG);
+         writeVarlong(zigzag(((Long)value).longValue()));
+      } else if (value.getClass() == TopicInfo.class && isSymbols(value.toString(), ""))
+      {
+         TopicInfo info = (TopicInfo)value;
+         writeByte(TOPIC_INFO);
+         writeSymbol(info.toString());
+         write(info.getDescription());
+      } else if (value.getClass() == ListenerInfo.class && isSymbols(((ListenerInfo)value).getName(), ""))
+      {
+         writeByte(LISTENER_INFO);
+         writeSymbol(((ListenerInfo)value).getName());
+      } else if (value.getClass() == CompressedContent.class)
+      {
+         CompressedContent content = (CompressedContent)value;
+         writeByte(COMPRESSED);
+         writeVarint(content.getDictionary());
+         writeVarint(content.getLength());
+         writeVarint(content.getData().length);
+         ensure(content.getData().length);
+         System.arraycopy(content.getData(), 0, buf, count, content.getData().length);
+         count += content.getData().length;
+      } else if (value.getClass() == KeyedContent.class)
+      {
+         KeyedContent keyed = (KeyedContent)value;
+         writeByte(KEYED);
+         writeVarlong(zigzag(keyed.getOrigin()));
+         writeVarlong(zigzag(keyed.getSequence()));
+         write(keyed.getContent());
+      } else if (value.getClass() == AttachmentChunk.class)
+      {
+         AttachmentChunk chunk = (AttachmentChunk)value;
+         writeByte(ATTACHMENT);
+         writeVarlong(zigzag(chunk.getId()));
+         writeString(chunk.getName());
+         writeVarlong(chunk.getSize());
+         writeVarint(chunk.getChunkSize());
+         writeVarlong(chunk.getOffset());
+         writeVarlong(chunk.getChecksum() & 0xFFFFFFFFL);
+         writeVarint(chunk.getData().length);
+         ensure(chunk.getData().length);
+         System.arraycopy(chunk.getData(), 0, buf, count, chunk.getData().length);
+         count += chunk.getData().length;
+      } else
+      {
+         ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+         ObjectOutputStream out = new ObjectOutputStream(bytes);
+         out.writeObject(value);
+         out.close();
+
+         writeByte(SERIALIZED);
+         writeVarint(bytes.size());
+         ensure(bytes.size());
+         System.arraycopy(bytes.toByteArray(), 0, buf, count, bytes.size());
+         count += bytes.size();
+      }
+   }
+
+   Object read(ByteBuffer in)
+      throws IOException
+   {
+      byte tag = in.get();
+      switch (tag)
+      {
+         case NULL:
+            return null;
+
+         case MESSAGE:
+         {
+            String sender = readSymbol(in);
+            String type = readSymbol(in);
+            return new Message(sender, type, read(in));
+         }
+
+         case STRING:
+            return readString(in);
+
+         case LIST:
+         {
+            int size = readLength(in);
+            List list = new ArrayList(size);
+            for (int i = 0; i < size; i++)
+               list.add(read(in));
+            return list;
+         }
+
+         case ARRAY:
+         {
+            Object[] array = new Object[readLength(in)];
+            for (int i = 0; i < array.length; i++)
+               array[i] = read(in);
+            return array;
+         }
+
+         case INT:
+            return new Integer((int)unzigzag(readVarlong(in)));
+
+         case LONG:
+            return new Long(unzigzag(readVarlong(in)));
+
+         case TOPIC_INFO:
+         {
+            String name = readSymbol(in);
+            return new TopicInfo(name, (String)read(in));
+         }
+
+         case LISTENER_INFO:
+            return new ListenerInfo(readSymbol(in));
+
+         case COMPRESSED:
+         {
+            long dictionary = readVarlong(in);
+            long length = readVarlong(in);
+            if (dictionary < 0 || dictionary > Integer.MAX_VALUE || length < 0 || length > Integer.MAX_VALUE)
+               throw new IOException("Bad compressed content");
+            byte[] data = new byte[readLength(in)];
+            in.get(data);
+            return new CompressedContent((int)dictionary, (int)length, data);
+         }
+
+         case KEYED:
+         {
+            long origin = unzigzag(readVarlong(in));
+            long sequence = unzigzag(readVarlong(in));
+            return new KeyedContent(origin, sequence, read(in));
+         }
+
+         case ATTACHMENT:
+         {
+            long id = unzigzag(readVarlong(in));
+            String name = readString(in);
+            long size = readVarlong(in);
+            long chunkSize = readVarlong(in);
+            long offset = readVarlong(in);
+            long crc = readVarlong(in);
+            if (size < 0 || chunkSize <= 0 || chunkSize > Integer.MAX_VALUE || offset < 0 || crc < 0 || crc > 0xFFFFFFFFL)
+               throw new IOException("Bad attachment chunk");
+            byte[] data = new byte[readLength(in)];
+            in.get(data);
+            return new AttachmentChunk(id, name, size, (int)chunkSize, offset, (int)crc, data);
+         }
+
+         case SERIALIZED:
+         {
+            int length = readLength(in);
+            ByteBuffer bytes = in.slice();
+            bytes.limit(length);
+            in.position(in.position()+length);
+            try
+            {
+               return new ObjectInputStream(new NioConnection.BufferInputStream(bytes)).readObject();
+            } catch (ClassNotFoundException e)
+            {
+               IOException ex = new IOException("Could not decode value");
+               ex.initCause(e);
+               throw ex;
+            }
+         }
+
+         default:
+            throw new IOException("Unknown tag:"+tag);
+      }
+   }
+
+   static boolean isSymbols(String first, String second)
+   {
+      return first != null && second != null;
+   }
+
+   void writeSymbol(String symbol)
+   {
+      Integer index = (Integer)symbols.get(symbol);
+      if (index != null)
+      {
+         writeVarint(index.intValue()+1);
+         return;
+      }
+
+      writeVarint(0);
+      writeString(symbol);
+      if (symbols.size() < MAX_SYMBOLS)
+         symbols.put(symbol, new Integer(symbols.size()));
+   }
+
+   String readSymbol(ByteBuffer in)
+      throws IOException
+   {
+      long index = readVarlong(in);
+      if (index != 0)
+      {
+         if (index < 0 || index > dictionarySize)
+            throw new IOException("Unknown symbol:"+index);
+         return dictionary[(int)index-1];
+      }
+
+      String symbol = readString(in);
+      if (dictionarySize < MAX_SYMBOLS)
+      {
+         if (dictionarySize == dictionary.length)
+         {
+            String[] larger = new String[dictionary.length*2];
+            System.arraycopy(dictionary, 0, larger, 0, dictionarySize);
+            dictionary = larger;
+         }
+         dictionary[dictionarySize++] = symbol;
+      }
+      return symbol;
+   }
+
+   void writeString(String value)
+   {
+      int length = value.length();
+      writeVarint(length);
+      ensure(length*3);
+      for (int i = 0; i < length; i++)
+      {
+         char c = value.charAt(i);
+         if (c >= 0x0001 && c <= 0x007F)
+         {
+            buf[count++] = (byte)c;
+         } else if (c <= 0x07FF)
+         {
+            buf[count++] = (byte)(0xC0 | (c >> 6));
+            buf[count++] = (byte)(0x80 | (c & 0x3F));
+         } else
+         {
+            buf[count++] = (byte)(0xE0 | (c >> 12));
+            buf[count++] = (byte)(0x80 | ((c >> 6) & 0x3F));
+            buf[count++] = (byte)(0x80 | (c & 0x3F));
+         }
+      }
+   }
+
+   /**
+    *   Read a string, decoding into a char buffer that is reused.
+    */
+   String readString(ByteBuffer in)
+      throws IOException
+   {
+      int length = readLength(in);
+      if (length > chars.length)
+         chars = new char[Math.max(length, chars.length*2)];
+
+      for (int i = 0; i < length; i++)
+      {
+         int b = in.get() & 0xFF;
+         if (b < 0x80)
+         {
+            chars[i] = (char)b;
+         } else if ((b & 0xE0) == 0xC0)
+         {
+            chars[i] = (char)(((b & 0x1F) << 6) | (in.get() & 0x3F));
+         } else if ((b & 0xF0) == 0xE0)
+         {
+            int b2 = in.get() & 0x3F;
+            chars[i] = (char)(((b & 0x0F) << 12) | (b2 << 6) | (in.get() & 0x3F));
+         } else
+         {
+            throw new IOException("Bad string encoding");
+         }
+      }
+      return new String(chars, 0, length);
+   }
+
+   void writeByte(byte b)
+   {
+      ensure(1);
+      buf[count++] = b;
+   }
+
+   void writeVarint(int value)
+   {
+      writeVarlong(value & 0xFFFFFFFFL);
+   }
+
+   void writeVarlong(long value)
+   {
+      ensure(10);
+      while ((value & ~0x7FL) != 0)
+      {
+         buf[count++] = (byte)((value & 0x7F) | 0x80);
+         value >>>= 7;
+      }
+      buf[count++] = (byte)value;
+   }
+
+   long readVarlong(ByteBuffer in)
+      throws IOException
+   {
+      long value = 0;
+      for (int shift = 0; shift < 64; shift += 7)
+      {
+         byte b = in.get();
+         value |= (long)(b & 0x7F) << shift;
+         if ((b & 0x80) == 0)
+            return value;
+      }
+      throw new IOException("Bad varint");
+   }
+
+   /**
+    *   Read a length. Every element takes at least one byte, so it can
+    *   not be more than what is left of the buffer.
+    */
+   int readLength(ByteBuffer in)
+      throws IOException
+   {
+      long length = readVarlong(in);
+      if (length < 0 || length > in.remaining())
+         throw new IOException("Bad length:"+length);
+      return (int)length;
+   }
+
+   static long zigzag(long value)
+   {
+      return (value << 1) ^ (value >> 63);
+   }
+
+   static long unzigzag(long value)
+   {
+      return (value >>> 1) ^ -(value & 1);
+   }
+
+   void ensure(int size)
+   {
+      if (count+size > buf.length)
+      {
+         byte[] larger = new byte[Math.max(count+size, buf.length*2)];
+         System.arraycopy(buf, 0, larger, 0, count);
+         buf = larger;
+      }
+   }
+}
@@ -0,0 +1,486 @@
+/*
+ * Copyright 1999 by dreamBean Software,
+ * All rights reserved.
+ */
+package chat.client;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+import chat.interfaces.Message;
+
+/**
+ *   Rules for the messages received, which are applied on the thread
+ *   that receives them, before they are queued for the event thread.
+ *   The rules are:
+ *
+ *   - mute sender: drop the messages of the sender
+ *   - drop type: drop the messages of the type
+ *   - highlight keyword: highlight the messages containing the keyword,
+ *     in any case
+ *   - regex pattern: highlight the messages the pattern is found in
+ *
+ *   A filter is compiled once from its rules and never changed, so that
+ *   it can be used by any thread. Muted senders and dropped types are
+ *   looked up in hash maps, and all the keywords are searched for in
+ *   one pass over the text, by an Aho-Corasick automaton. Changing the
+ *   rules makes a new filter, which keeps the rules that stay.
+ *
+ *   Every rule counts the messages it is the first rule to match, in
+ *   the order above.
+ *
+ *   The rules of the client are read from the file given by the
+ *   chat.filter system property, one rule per line, e.g.
+ *
+ *   mute TrollBot
+ *   drop IsTyping
+ *   highlight deploy
+ *   regex \bbuild (failed|broken)\b
+ *
+ *   Empty lines and lines starting with # are skipped.
+ *
+ *   @see ChatClient#received
+ *   @see InboundDispatcher
+ *   @version $Revision:$
+ */
+public class MessageFilter
+{
+   // Constants -----------------------------------------------------
+   static final String FILE = System.getProperty("chat.filter");
+
+   // Attributes ----------------------------------------------------
+   List rules; // Rule
+   Map muted = new HashMap(); // Sender -> Rule
+   Map dropped = new HashMap(); // Type -> Rule
+   KeywordMatcher keywords;
+   Pattern[] patterns;
+   Rule[] patternRules;
+
+   // Static --------------------------------------------------------
+   /**
+    *   The filter of the file given by chat.filter, or null if none is.
+    */
+   public static MessageFilter getDefault()
+      throws IOException
+   {
+      if (FILE == null)
+         return null;
+      return load(new File(FILE));
+   }
+
+   public static MessageFilter load(File file)
+      throws IOException
+   {
+      Reader in = new InputStreamReader(new FileInputStream(file), "UTF-8");
+      try
+      {
+         return load(in);
+      } finally
+      {
+         in.close();
+      }
+   }
+
+   /**
+    *   Read the rules, one per line.
+    */
+   public static MessageFilter load(Reader reader)
+      throws IOException
+   {
+      BufferedReader in = new BufferedReader(reader);
+      List rules = new ArrayList();
+      String line;
+      int number = 0;
+      while ((line = in.readLine()) != null)
+      {
+         number++;
+         line = line.trim();
+         if (line.length() == 0 || line.startsWith("#"))
+            continue;
+
+         int space = line.indexOf(' ');
+         if (space == -1)
+            throw new IOException("Line "+number+": rule without argument: "+line);
+         try
+         {
+            rules.add(new Rule(line.substring(0, space), line.substring(space+1).trim()));
+         } catch (IllegalArgumentException e)
+         {
+            throw new IOException("Line "+number+": "+e.getMessage());
+         }
+      }
+      return new MessageFilter(rules);
+   }
+
+   // Constructors --------------------------------------------------
+   /**
+    *   Compile the rules.
+    */
+   public MessageFilter(Collection rules)
+   {
+      this.rules = Collections.unmodifiableList(new ArrayList(rules));
+
+      List words = new ArrayList();
+      List wordRules = new ArrayList();
+      List regexRules = new ArrayList();
+      Iterator rlist = rules.iterator();
+      while (rlist.hasNext())
+      {
+         Rule rule = (Rule)rlist.next();
+         String kind = rule.getKind();
+         if (kind.equals(Rule.MUTE))
+         {
+            if (!muted.containsKey(rule.getPattern()))
+               muted.put(rule.getPattern(), rule);
+         } else if (kind.equals(Rule.DROP))
+         {
+            if (!dropped.containsKey(rule.getPattern()))
+               dropped.put(rule.getPattern(), rule);
+         } else if (kind.equals(Rule.HIGHLIGHT))
+         {
+            words.add(rule.getPattern());
+            wordRules.add(rule);
+         } else
+         {
+            regexRules.add(rule);
+         }
+      }
+
+      if (!words.isEmpty())
+         keywords = new KeywordMatcher((String[])words.toArray(new String[words.size()]), wordRules.toArray());
+
+      patternRules = (Rule[])regexRules.toArray(new Rule[regexRules.size()]);
+      patterns = new Pattern[patternRules.length];
+      for (int i = 0; i < patterns.length; i++)
+         patterns[i] = patternRules[i].pattern;
+   }
+
+   // Public --------------------------------------------------------
+   public List getRules()
+   {
+      return rules;
+   }
+
+   /**
+    *   A filter with the rule added.
+    */
+   public MessageFilter with(Rule rule)
+   {
+      List changed = new ArrayList(rules);
+      changed.add(rule);
+      return new MessageFilter(changed);
+   }
+
+   /**
+    *   A filter without the rules equal to the given one.
+    */
+   public MessageFilter without(Rule rule)
+   {
+      List changed = new ArrayList(rules);
+      changed.removeAll(Collections.singleton(rule));
+      return new MessageFilter(changed);
+   }
+
+   /**
+    *   The first rule that matches the message, or null if none does.
+    *   Mute and drop rules come first.
+    */
+   public Rule match(Message message)
+   {
+      Rule rule = null;
+      if (!muted.isEmpty())
+         rule = (Rule)muted.get(message.getSender());
+      if (rule == null && !dropped.isEmpty())
+         rule = (Rule)dropped.get(message.getType());
+      if (rule == null && message.getContent() instanceof String)
+      {
+         String text = (String)message.getContent();
+         if (keywords != null)
+            rule = (Rule)keywords.find(text);
+         for (int i = 0; rule == null && i < patterns.length; i++)
+         {
+            if (patterns[i].matcher(text).find())
+               rule = patternRules[i];
+         }
+      }
+
+      if (rule != null)
+         rule.hits.incrementAndGet();
+      return rule;
+   }
+
+   /**
+    *   Return the messages that are not dropped. If any of them are
+    *   highlighted, the highlight rules of the messages returned are put
+    *   in highlights[0], with null for the others.
+    */
+   public Collection filter(Collection messages, Rule[][] highlights)
+   {
+      List result = null;
+      Rule[] found = null;
+      int index = 0;
+      Iterator mlist = messages.iterator();
+      while (mlist.hasNext())
+      {
+         Message message = (Message)mlist.next();
+         Rule rule = match(message);
+         if (rule != null && rule.isDrop())
+         {
+            if (result == null)
+            {
+               result = new ArrayList(messages.size());
+               Iterator copy = messages.iterator();
+               for (int i = 0; i < index; i++)
+                  result.add(copy.next());
+            }
+         } else
+         {
+            if (rule != null)
+            {
+               if (found == null)
+                  found = new Rule[messages.size()];
+               found[result == null ? index : result.size()] = rule;
+            }
+            if (result != null)
+               result.add(message);
+         }
+         index++;
+      }
+
+      highlights[0] = found;
+      return result != null ? result : messages;
+   }
+
+   /**
+    *   The rules with their hits, one per line.
+    */
+   public String toString()
+   {
+      StringBuffer buf = new StringBuffer();
+      for (int i = 0; i < rules.size(); i++)
+      {
+         Rule rule = (Rule)rules.get(i);
+         buf.append(rule).append(": ").append(rule.getHits()).append(" hits\n");
+      }
+      return buf.toString();
+   }
+
+   // Inner classes -------------------------------------------------
+   /**
+    *   A rule, with the count of messages it matched. The count is kept
+    *   by the filters made from the rule.
+    */
+   public static class Rule
+   {
+      public static final String MUTE = "mute";
+      public static final String DROP = "drop";
+      public static final String HIGHLIGHT = "highlight";
+      public static final String REGEX = "regex";
+
+      String kind;
+      String argument;
+      Pattern pattern; // Regex rules
+      AtomicLong hits = new AtomicLong();
+
+      /**
+       *   Create a rule of one of the kinds above.
+       *
+       *   @exception IllegalArgumentException if the kind is unknown or
+       *   the pattern of a regex rule is not valid
+       */
+      public Rule(String kind, String argument)
+      {
+         if (!(kind.equals(MUTE) || kind.equals(DROP) || kind.equals(HIGHLIGHT) || kind.equals(REGEX)))
+            throw new IllegalArgumentException("Unknown rule: "+kind);
+         if (argument.length() == 0)
+            throw new IllegalArgumentException("Empty "+kind+" rule");
+
+         this.kind = kind;
+         this.argument = argument;
+         if (kind.equals(REGEX))
+            pattern = Pattern.compile(argument);
+      }
+
+      public String getKind()
+      {
+         return kind;
+      }
+
+      public String getPattern()
+      {
+         return argument;
+      }
+
+      /**
+       *   Whether the messages matched are dropped, rather than
+       *   highlighted.
+       */
+      public boolean isDrop()
+      {
+         return kind.equals(MUTE) || kind.equals(DROP);
+      }
+
+      public long getHits()
+      {
+         return hits.get();
+      }
+
+      public boolean equals(Object obj)
+      {
+         if (!(obj instanceof Rule))
+            return false;
+         Rule rule = (Rule)obj;
+         return kind.equals(rule.kind) && argument.equals(rule.argument);
+      }
+
+      public int hashCode()
+      {
+         return kind.hashCode()*31+argument.hashCode();
+      }
+
+      public String toString()
+      {
+         return kind+" "+argument;
+      }
+   }
+
+   /**
+    *   Aho-Corasick automaton for a set of keywords, ignoring case. The
+    *   trie of the keywords is compiled into a table of transitions over
+    *   the characters that occur in them, so a text is searched with one
+    *   lookup per character however many keywords there are.
+    */
+   static class KeywordMatcher
+   {
+      short[] symbols; // Character -> column, 0 for characters in no keyword
+      int columns;
+      int[] transitions; // State*columns+column -> state
+      Object[] outputs; // State -> value of the keyword ending there, or of its longest suffix that is one
+
+      KeywordMatcher(String[] words, Object[] values)
+      {
+         // Columns of the characters
+         int max = 0;
+         for (int i = 0; i < words.length; i++)
+         {
+            char[] chars = words[i].toCharArray();
+            for (int c = 0; c < chars.length; c++)
+            {
+               chars[c] = lowerCase(chars[c]);
+               max = Math.max(max, chars[c]);
+            }
+            words[i] = new String(chars);
+         }
+         symbols = new short[max+1];
+         columns = 1;
+         for (int i = 0; i < words.length; i++)
+         {
+            for (int c = 0; c < words[i].length(); c++)
+            {
+               char ch = words[i].charAt(c);
+               if (symbols[ch] == 0)
+                  symbols[ch] = (short)columns++;
+            }
+         }
+
+         // Trie, with -1 for no transition
+         int size = 1;
+         for (int i = 0; i < words.length; i++)
+            size += words[i].length();
+         transitions = new int[size*columns];
+         Arrays.fill(transitions, -1);
+         outputs = new Object[size];
+         int states = 1;
+         for (int i = 0; i < words.length; i++)
+         {
+            int state = 0;
+            for (int c = 0; c < words[i].length(); c++)
+            {
+               int cell = state*columns+symbols[words[i].charAt(c)];
+               if (transitions[cell] == -1)
+                  transitions[cell] = states++;
+               state = transitions[cell];
+            }
+            if (outputs[state] == null)
+               outputs[state] = values[i];
+         }
+
+         // Failure links, breadth first, folded into the transitions
+         int[] failure = new int[states];
+         LinkedList queue = new LinkedList();
+         for (int column = 0; column < columns; column++)
+         {
+            int next = transitions[column];
+            if (next == -1 || column == 0)
+            {
+               transitions[column] = 0;
+            } else
+            {
+               failure[next] = 0;
+               queue.add(new Integer(next));
+            }
+         }
+         while (!queue.isEmpty())
+         {
+            int state = ((Integer)queue.removeFirst()).intValue();
+            if (outputs[state] == null)
+               outputs[state] = outputs[failure[state]];
+            for (int column = 0; column < columns; column++)
+            {
+               int cell = state*columns+column;
+               int next = transitions[cell];
+               int fallback = transitions[failure[state]*columns+column];
+               if (next == -1 || column == 0)
+               {
+                  transitions[cell] = fallback;
+               } else
+               {
+                  failure[next] = fallback;
+                  queue.add(new Integer(next));
+               }
+            }
+         }
+      }
+
+      /**
+       *   The value of the first keyword found in the text, or null.
+       */
+      Object find(String text)
+      {
+         int state = 0;
+         int length = text.length();
+         for (int i = 0; i < length; i++)
+         {
+            char ch = lowerCase(text.charAt(i));
+            state = transitions[state*columns+(ch < symbols.length ? symbols[ch] : 0)];
+            if (outputs[state] != null)
+               return outputs[state];
+         }
+         return null;
+      }
+
+      static char lowerCase(char ch)
+      {
+         if (ch >= 'A' && ch <= 'Z')
+            return (char)(ch+'a'-'A');
+         if (ch < 128)
+            return ch;
+         return Character.toLowerCase(ch);
+      }
+   }
+}
@@ -0,0 +1,379 @@
+/*
+ * Copyright 1999 by dreamBean Software,
+ * All rights reserved.
+ */
+package chat.client;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.StringTokenizer;
+import java.util.TreeMap;
+
+import chat.interfaces.Message;
+
+/**
+ *   Inverted index of the messages of one topic journal, for searching
+ *   the local history. The sender and the text of every message are
+ *   split into terms, and every term has a posting list of the messages
+ *   it is found in, kept as a sorted int array of journal offsets from
+ *   the first message indexed.
+ *
+ *   Queries are terms separated by spaces, which must all be found:
+ *
+ *   - term: messages with the whole word, in any case
+ *   - prefix*: messages with a word starting with the prefix
+ *   - from:sender: messages of the sender
+ *
+ *   The index is kept in memory and rebuilt from the journal when it is
+ *   opened. Messages are added by the MessageLog on a thread of its
+ *   own as they are journaled, so searches made while the index is being
+ *   built only find what it has reached. The number of postings is
+ *   bounded by chat.index.maxPostings; once it is reached the oldest
+ *   quarter of the messages is dropped from the index.
+ *
+ *   @see MessageLog#getIndex
+ *   @see MessageJournal
+ *   @version $Revision:$
+ */
+public class MessageIndex
+{
+   // Constants -----------------------------------------------------
+   public static final boolean ENABLED = Boolean.valueOf(System.getProperty("chat.index", "true")).booleanValue();
+   public static final int DEFAULT_MAX_POSTINGS = Integer.getInteger("chat.index.maxPostings", 4*1024*1024).intValue();
+
+   static final String SENDER = "from:";
+   static final int MIN_TERM = 2;
+   static final int MAX_TERM = 32;
+
+   // Messages read from the journal at a time when rebuilding
+   static final int REBUILD_PAGE = 1024;
+
+   // Attributes ----------------------------------------------------
+   Map terms = new HashMap(); // Term -> Postings
+   TreeMap sorted = new TreeMap(); // Term -> Postings, for prefixes
+   Map senders = new HashMap(); // Sender in lower case -> Postings
+
+   long base = -1; // Offset of id 0
+   long next; // Offset of the next message to index
+   int floor; // Messages below this id were dropped
+   long postings;
+   int maxPostings;
+   int messages;
+
+   // Constructors --------------------------------------------------
+   public MessageIndex()
+   {
+      this(DEFAULT_MAX_POSTINGS);
+   }
+
+   public MessageIndex(int maxPostings)
+   {
+      this.maxPostings = maxPostings;
+   }
+
+   // Static --------------------------------------------------------
+   /**
+    *   Add the terms of the text to the list, in lower case.
+    */
+   static void tokenize(String text, List result)
+   {
+      int length = text.length();
+      int start = -1;
+      for (int i = 0; i <= length; i++)
+      {
+         boolean letter = i < length && Character.isLetterOrDigit(text.charAt(i));
+         if (letter && start == -1)
+         {
+            start = i;
+         } else if (!letter && start != -1)
+         {
+            if (i-start >= MIN_TERM)
+               result.add(text.substring(start, Math.min(i, start+MAX_TERM)).toLowerCase());
+            start = -1;
+         }
+      }
+   }
+
+   // Public --------------------------------------------------------
+   /**
+    *   Add the message journaled at the given offset. Offsets must be
+    *   added in order, and those indexed already are skipped.
+    */
+   public synchronized void add(long offset, Message message)
+   {
+      if (offset < next)
+         return;
+      if (base == -1)
+         base = offset;
+      next = offset+1;
+      int id = (int)(offset-base);
+
+      List words = new ArrayList();
+      String sender = message.getSender() == null ? "" : message.getSender();
+      tokenize(sender, words);
+      if (message.getContent() instanceof String)
+         tokenize((String)message.getContent(), words);
+
+      for (int i = 0; i < words.size(); i++)
+      {
+         String word = (String)words.get(i);
+         Postings list = (Postings)terms.get(word);
+         if (list == null)
+         {
+            list = new Postings();
+            terms.put(word, list);
+            sorted.put(word, list);
+         }
+         if (list.add(id))
+            postings++;
+      }
+
+      String key = sender.toLowerCase();
+      Postings list = (Postings)senders.get(key);
+      if (list == null)
+         senders.put(key, list = new Postings());
+      list.add(id);
+      postings++;
+      messages++;
+
+      if (postings > maxPostings)
+         evict(floor+(id+1-floor)/4);
+   }
+
+   /**
+    *   Add the messages of the journal that are not indexed yet.
+    */
+   public void rebuild(MessageJournal journal)
+      throws IOException
+   {
+      long offset;
+      synchronized (this)
+      {
+         offset = Math.max(next, journal.getFirstOffset());
+      }
+
+      List entries;
+      while (!(entries = journal.read(offset, REBUILD_PAGE)).isEmpty())
+      {
+         for (int i = 0; i < entries.size(); i++)
+         {
+            MessageJournal.Entry entry = (MessageJournal.Entry)entries.get(i);
+            add(entry.getOffset(), entry.getMessage());
+            offset = entry.getOffset()+1;
+         }
+      }
+   }
+
+   /**
+    *   The offsets of the newest messages that match the query, newest
+    *   first.
+    */
+   public synchronized long[] search(String query, int max)
+   {
+      List lists = new ArrayList();
+      StringTokenizer tokens = new StringTokenizer(query);
+      while (tokens.hasMoreTokens())
+      {
+         String token = tokens.nextToken().toLowerCase();
+         if (token.startsWith(SENDER) && token.length() > SENDER.length())
+         {
+            lists.add(senders.get(token.substring(SENDER.length())));
+         } else if (token.endsWith("*"))
+         {
+            List words = new ArrayList();
+            tokenize(token, words);
+            if (words.size() == 1)
+               lists.add(prefix((String)words.get(0)));
+            else
+               lists.add(null);
+         } else
+         {
+            List words = new ArrayList();
+            tokenize(token, words);
+            for (int i = 0; i < words.size(); i++)
+               lists.add(terms.get(words.get(i)));
+         }
+      }
+      if (lists.isEmpty() || lists.contains(null))
+         return new long[0];
+
+      // Go through the shortest list from the newest on
+      Postings[] all = (Postings[])lists.toArray(new Postings[lists.size()]);
+      Arrays.sort(all);
+      long[] found = new long[Math.min(max, all[0].size)];
+      int count = 0;
+      for (int i = all[0].size-1; i >= 0 && count < found.length; i--)
+      {
+         int id = all[0].ids[i];
+         if (id < floor)
+            break;
+
+         boolean match = true;
+         for (int l = 1; l < all.length && match; l++)
+            match = all[l].contains(id);
+         if (match)
+            found[count++] = base+id;
+      }
+
+      long[] result = new long[count];
+      System.arraycopy(found, 0, result, 0, count);
+      return result;
+   }
+
+   /**
+    *   The newest entries of the journal that match the query, newest
+    *   first.
+    */
+   public List find(MessageJournal journal, String query, int max)
+      throws IOException
+   {
+      long[] offsets = search(query, max);
+      List found = new ArrayList(offsets.length);
+      for (int i = 0; i < offsets.length; i++)
+         found.addAll(journal.read(offsets[i], 1)); // Unless dropped by retention
+      return found;
+   }
+
+   public synchronized int getMessageCount()
+   {
+      return messages;
+   }
+
+   public synchronized int getTermCount()
+   {
+      return terms.size();
+   }
+
+   public synchronized long getPostingCount()
+   {
+      return postings;
+   }
+
+   public String toString()
+   {
+      return "MessageIndex["+getMessageCount()+" messages, "+getTermCount()+" terms, "+getPostingCount()+" postings]";
+   }
+
+   // Package protected ---------------------------------------------
+   /**
+    *   The messages with a term starting with the prefix.
+    */
+   Postings prefix(String prefix)
+   {
+      Map matching = sorted.subMap(prefix, prefix+Character.MAX_VALUE);
+      if (matching.size() == 1)
+         return (Postings)matching.values().iterator().next();
+
+      BitSet ids = new BitSet();
+      Iterator lists = matching.values().iterator();
+      while (lists.hasNext())
+      {
+         Postings list = (Postings)lists.next();
+         for (int i = 0; i < list.size; i++)
+            ids.set(list.ids[i]);
+      }
+
+      Postings union = new Postings(ids.cardinality());
+      for (int id = ids.nextSetBit(0); id >= 0; id = ids.nextSetBit(id+1))
+         union.ids[union.size++] = id;
+      return union;
+   }
+
+   /**
+    *   Drop the messages below the given id from the index.
+    */
+   void evict(int id)
+   {
+      floor = id;
+      postings = evict(sorted.values().iterator());
+      messages = (int)evict(senders.values().iterator());
+      postings += messages;
+
+      Iterator lists = terms.values().iterator();
+      while (lists.hasNext())
+      {
+         if (((Postings)lists.next()).size == 0)
+            lists.remove();
+      }
+   }
+
+   /**
+    *   Drop the ids below the floor from the lists, and the lists left
+    *   empty. Return the number of ids kept.
+    */
+   long evict(Iterator lists)
+   {
+      long kept = 0;
+      while (lists.hasNext())
+      {
+         Postings list = (Postings)lists.next();
+         list.removeBelow(floor);
+         if (list.size == 0)
+            lists.remove();
+         kept += list.size;
+      }
+      return kept;
+   }
+
+   // Inner classes -------------------------------------------------
+   /**
+    *   Sorted ids of the messages a term is found in.
+    */
+   static class Postings
+      implements Comparable
+   {
+      int[] ids;
+      int size;
+
+      Postings()
+      {
+         this(4);
+      }
+
+      Postings(int capacity)
+      {
+         ids = new int[Math.max(1, capacity)];
+      }
+
+      /**
+       *   Add the id, unless it was the last one added.
+       */
+      boolean add(int id)
+      {
+         if (size > 0 && ids[size-1] == id)
+            return false;
+         if (size == ids.length)
+            ids = Arrays.copyOf(ids, size+(size >> 1)+1);
+         ids[size++] = id;
+         return true;
+      }
+
+      boolean contains(int id)
+      {
+         return Arrays.binarySearch(ids, 0, size, id) >= 0;
+      }
+
+      void removeBelow(int id)
+      {
+         int from = Arrays.binarySearch(ids, 0, size, id);
+         if (from < 0)
+            from = -from-1;
+         size -= from;
+         System.arraycopy(ids, from, ids, 0, size);
+         if (size < ids.length/4)
+            ids = Arrays.copyOf(ids, Math.max(1, size*2));
+      }
+
+      public int compareTo(Object o)
+      {
+         int other = ((Postings)o).size;
+         return size < other ? -1 : (size == other ? 0 : 1);
+      }
+   }
+}
@@ -0,0 +1,441 @@
+/*
+ * Copyright 1999 by dreamBean Software,
+ * All rights reserved.
+ */
+package chat.client;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import chat.interfaces.Message;
+
+/**
+ *   Append-only journal of the messages of one topic. The journal is a
+ *   sequence of memory-mapped segment files, each holding the records
+ *   from a base offset on, and an index file per segment which holds the
+ *   end position of every record. A record can therefore be found from
+ *   its offset without reading the segment, and pages of history are
+ *   decoded straight from the mapped file.
+ *
+ *   A new segment is started when the current one is full, and the
+ *   oldest segments are deleted when there are more than maxSegments,
+ *   so the disk space used by a topic is bounded.
+ *
+ *   Record layout: length (int), timestamp (long), sender, type (both
+ *   as short length + UTF-8), content kind (byte) and content (int
+ *   length + bytes), where the content is UTF-8 for strings and Java
+ *   serialization for anything else.
+ *
+ *   @see MessageLog
+ *   @see Scrollback
+ *   @version $Revision:$
+ */
+public class MessageJournal
+{
+   // Constants -----------------------------------------------------
+   public static final int DEFAULT_SEGMENT_SIZE = Integer.getInteger("chat.log.segmentSize", 8*1024*1024).intValue();
+   public static final int DEFAULT_MAX_SEGMENTS = Integer.getInteger("chat.log.maxSegments", 8).intValue();
+
+   static final Charset UTF8 = Charset.forName("UTF-8");
+
+   static final byte CONTENT_NULL = 0;
+   static final byte CONTENT_STRING = 1;
+   static final byte CONTENT_SERIALIZED = 2;
+
+   // The smallest possible record, used to size the index
+   static final int MIN_RECORD_SIZE = 4+8+2+2+1+4;
+
+   // Sender and type lengths are stored as unsigned shorts
+   static final int MAX_STRING_LENGTH = 0xFFFF;
+
+   // Attributes ----------------------------------------------------
+   File dir;
+   int segmentSize;
+   int maxSegments;
+
+   List segments = new ArrayList();
+   Segment active;
+
+   // Constructors --------------------------------------------------
+   public MessageJournal(File dir)
+      throws IOException
+   {
+      this(dir, DEFAULT_SEGMENT_SIZE, DEFAULT_MAX_SEGMENTS);
+   }
+
+   public MessageJournal(File dir, int segmentSize, int maxSegments)
+      throws IOException
+   {
+      this.dir = dir;
+      this.segmentSize = segmentSize;
+      this.maxSegments = Math.max(1, maxSegments);
+
+      if (!dir.isDirectory() && !dir.mkdirs())
+         throw new IOException("Could not create journal directory "+dir);
+
+      // Open existing segments, oldest first
+      String[] names = dir.list(new FilenameFilter()
+      {
+         public boolean accept(File dir, String name)
+         {
+            return name.endsWith(".log");
+         }
+      });
+      Arrays.sort(names);
+      for (int i = 0; i < names.length; i++)
+      {
+         long base = Long.parseLong(names[i].substring(0, names[i].length()-4));
+         segments.add(new Segment(base));
+      }
+
+      if (segments.isEmpty())
+         segments.add(new Segment(0));
+      active = (Segment)segments.get(segments.size()-1);
+   }
+
+   // Public --------------------------------------------------------
+   /**
+    *   Append the message and return its offset.
+    */
+   public synchronized long append(Message message)
+      throws IOException
+   {
+      if (segments.isEmpty())
+         throw new IOException("Journal is closed: "+dir);
+
+      byte[] record = encode(message, System.currentTimeMillis());
+      if (record.length > segmentSize)
+         throw new IOException("Message too large for journal: "+record.length+" bytes");
+
+      if (!active.hasRoom(record.length))
+         roll();
+
+      return active.append(record);
+   }
+
+   /**
+    *   Offset of the oldest message still in the journal.
+    */
+   public synchronized long getFirstOffset()
+   {
+      return ((Segment)segments.get(0)).base;
+   }
+
+   /**
+    *   Offset that the next appended message will get.
+    */
+   public synchronized long getNextOffset()
+   {
+      return active.base+active.count;
+   }
+
+   /**
+    *   Read at most count entries from the given offset on. Offsets that
+    *   have been removed by retention are skipped.
+    */
+   public synchronized List read(long offset, int count)
+      throws IOException
+   {
+      List entries = new ArrayList(Math.min(count, 1024));
+      offset = Math.max(offset, getFirstOffset());
+      long end = Math.min(getNextOffset(), offset+count);
+      int s = findSegment(offset);
+      while (offset < end && s < segments.size())
+      {
+         Segment segment = (Segment)segments.get(s);
+         while (offset < end && offset < segment.base+segment.count)
+         {
+            entries.add(segment.read((int)(offset-segment.base), offset));
+            offset++;
+         }
+         s++;
+      }
+      return entries;
+   }
+
+   /**
+    *   Find the newest messages whose sender or text content contains
+    *   the given text, searching backwards from before the given offset.
+    */
+   public synchronized List find(String text, long before, int max)
+      throws IOException
+   {
+      List found = new ArrayList();
+      String lower = text.toLowerCase();
+      long offset = Math.min(before, getNextOffset())-1;
+      long first = getFirstOffset();
+      while (offset >= first && found.size() < max)
+      {
+         Segment segment = (Segment)segments.get(findSegment(offset));
+         Entry entry = segment.read((int)(offset-segment.base), offset);
+         Message message = entry.getMessage();
+         if (message.getSender().toLowerCase().indexOf(lower) != -1
+            || (message.getContent() instanceof String && ((String)message.getContent()).toLowerCase().indexOf(lower) != -1))
+            found.add(entry);
+         offset--;
+      }
+      return found;
+   }
+
+   public synchronized void close()
+      throws IOException
+   {
+      for (int i = 0; i < segments.size(); i++)
+         ((Segment)segments.get(i)).close();
+      segments.clear();
+   }
+
+   // Package protected ---------------------------------------------
+   void roll()
+      throws IOException
+   {
+      active.force();
+      active = new Segment(active.base+active.count);
+      segments.add(active);
+
+      // Retention
+      while (segments.size() > maxSegments)
+      {
+         Segment oldest = (Segment)segments.remove(0);
+         oldest.delete();
+      }
+   }
+
+   int findSegment(long offset)
+   {
+      for (int i = segments.size()-1; i > 0; i--)
+      {
+         if (((Segment)segments.get(i)).base <= offset)
+            return i;
+      }
+      return 0;
+   }
+
+   static byte[] encode(Message message, long timestamp)
+      throws IOException
+   {
+      byte[] sender = message.getSender().getBytes(UTF8);
+      byte[] type = message.getType().getBytes(UTF8);
+      if (sender.length > MAX_STRING_LENGTH || type.length > MAX_STRING_LENGTH)
+         throw new IOException("Sender or type too long for journal: "+sender.length+"/"+type.length+" bytes");
+
+      byte kind;
+      byte[] content;
+      Object value = message.getContent();
+      if (value == null)
+      {
+         kind = CONTENT_NULL;
+         content = new byte[0];
+      } else if (value instanceof String)
+      {
+         kind = CONTENT_STRING;
+         content = ((String)value).getBytes(UTF8);
+      } else
+      {
+         kind = CONTENT_SERIALIZED;
+         ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+         ObjectOutputStream out = new ObjectOutputStream(bytes);
+         out.writeObject(value);
+         out.close();
+         content = bytes.toByteArray();
+      }
+
+      int length = 8+2+sender.length+2+type.length+1+4+content.length;
+      ByteBuffer buf = ByteBuffer.allocate(4+length);
+      buf.putInt(length);
+      buf.putLong(timestamp);
+      buf.putShort((short)sender.length).put(sender);
+      buf.putShort((short)type.length).put(type);
+      buf.put(kind);
+      buf.putInt(content.length).put(content);
+      return buf.array();
+   }
+
+   static Entry decode(ByteBuffer buf, long offset)
+      throws IOException
+   {
+      buf.getInt(); // Length
+      long timestamp = buf.getLong();
+      String sender = getString(buf, buf.getShort() & 0xFFFF);
+      String type = getString(buf, buf.getShort() & 0xFFFF);
+      byte kind = buf.get();
+      int length = buf.getInt();
+
+      Object content = null;
+      if (kind == CONTENT_STRING)
+      {
+         content = getString(buf, length);
+      } else if (kind == CONTENT_SERIALIZED)
+      {
+         byte[] bytes = new byte[length];
+         buf.get(bytes);
+         try
+         {
+            content = new ObjectInputStream(new ByteArrayInputStream(bytes)).readObject();
+         } catch (ClassNotFoundException e)
+         {
+            throw new IOException("Could not read message content: "+e);
+         }
+      }
+
+      return new Entry(offset, timestamp, new Message(sender, type, content));
+   }
+
+   static String getString(ByteBuffer buf, int length)
+   {
+      byte[] bytes = new byte[length];
+      buf.get(bytes);
+      return new String(bytes, UTF8);
+   }
+
+   // Inner classes -------------------------------------------------
+   /**
+    *   A message read from the journal.
+    */
+   public static class Entry
+   {
+      long offset;
+      long timestamp;
+      Message message;
+
+      Entry(long offset, long timestamp, Message message)
+      {
+         this.offset = offset;
+         this.timestamp = timestamp;
+         this.message = message;
+      }
+
+      public long getOffset()
+      {
+         return offset;
+      }
+
+      public long getTimestamp()
+      {
+         return timestamp;
+      }
+
+      public Message getMessage()
+      {
+         return message;
+      }
+   }
+
+   /**
+    *   One segment file and its index. Entry i of the index holds the
+    *   end position of record i in the segment, so the number of records
+    *   is the number of non-zero entries.
+    */
+   class Segment
+   {
+      long base;
+      File logFile;
+      File indexFile;
+      MappedByteBuffer log;
+      MappedByteBuffer index;
+      int count;
+      int position;
+
+      Segment(long base)
+         throws IOException
+      {
+         this.base = base;
+         String name = String.valueOf(base);
+         while (name.length() < 20)
+            name = "0"+name;
+         logFile = new File(dir, name+".log");
+         indexFile = new File(dir, name+".idx");
+
+         log = map(logFile, segmentSize);
+         index = map(indexFile, (segmentSize/MIN_RECORD_SIZE)*4);
+
+         // Recover the number of records, the index is zero after the last
+         int low = 0;
+         int high = index.capacity()/4;
+         while (low < high)
+         {
+            int mid = (low+high) >>> 1;
+            if (index.getInt(mid*4) != 0)
+               low = mid+1;
+            else
+               high = mid;
+         }
+         count = low;
+         position = count == 0 ? 0 : index.getInt((count-1)*4);
+      }
+
+      boolean hasRoom(int length)
+      {
+         return position+length <= log.capacity() && (count+1)*4 <= index.capacity();
+      }
+
+      long append(byte[] record)
+      {
+         // Write the record before the index entry that makes it visible
+         ByteBuffer buf = log.duplicate();
+         buf.position(position);
+         buf.put(record);
+         position += record.length;
+         index.putInt(count*4, position);
+         return base+(count++);
+      }
+
+      Entry read(int i, long offset)
+         throws IOException
+      {
+         ByteBuffer buf = log.duplicate();
+         buf.position(i == 0 ? 0 : index.getInt((i-1)*4));
+         return decode(buf, offset);
+      }
+
+      void force()
+      {
+         log.force();
+         index.force();
+      }
+
+      void close()
+      {
+         force();
+         log = null;
+         index = null;
+      }
+
+      void delete()
+      {
+         log = null;
+         index = null;
+         logFile.delete();
+         indexFile.delete();
+      }
+
+      MappedByteBuffer map(File file, int size)
+         throws IOException
+      {
+         RandomAccessFile raf = new RandomAccessFile(file, "rw");
+         try
+         {
+            // Segments written with a larger size are kept at their size
+            if (raf.length() < size)
+               raf.setLength(size);
+            return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+         } finally
+         {
+            raf.close();
+         }
+      }
+   }
+}
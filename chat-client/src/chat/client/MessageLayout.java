@@ -0,0 +1,139 @@
+/*
+ * Copyright 1999 by dreamBean Software,
+ * All rights reserved.
+ */
+package chat.client;
+
+import java.awt.Color;
+
+import chat.interfaces.Message;
+
+/**
+ *   A message formatted, styled and wrapped for the message history. It
+ *   is made by the MessageRenderer off the event thread, and is never
+ *   changed after, so the event thread only has to draw its rows.
+ *
+ *   The first row starts with the sender, drawn in bold in the color of
+ *   the sender. The rows after are indented. System messages have no
+ *   sender and are drawn in italics. Messages highlighted by a filter
+ *   rule are drawn on a background of their own.
+ *
+ *   @see MessageRenderer
+ *   @see MessageStore
+ *   @version $Revision:$
+ */
+public class MessageLayout
+{
+   // Attributes ----------------------------------------------------
+   final Message message;
+   final int width;
+   final Color color;
+   final boolean highlighted;
+   final int prefixLength;
+   final int prefixWidth;
+   final Row[] rows;
+
+   // Constructors --------------------------------------------------
+   /**
+    *   Create the layout of a message wrapped to the given width, or not
+    *   wrapped if it is 0. The color is null for system messages.
+    */
+   public MessageLayout(Message message, int width, String[] texts, Color color, boolean highlighted, int prefixLength, int prefixWidth)
+   {
+      this.message = message;
+      this.width = width;
+      this.color = color;
+      this.highlighted = highlighted;
+      this.prefixLength = prefixLength;
+      this.prefixWidth = prefixWidth;
+
+      rows = new Row[texts.length];
+      for (int i = 0; i < texts.length; i++)
+         rows[i] = new Row(this, i, texts[i]);
+   }
+
+   // Public --------------------------------------------------------
+   public Message getMessage()
+   {
+      return message;
+   }
+
+   public int getWidth()
+   {
+      return width;
+   }
+
+   public boolean isSystem()
+   {
+      return color == null;
+   }
+
+   public Color getColor()
+   {
+      return color;
+   }
+
+   public boolean isHighlighted()
+   {
+      return highlighted;
+   }
+
+   /**
+    *   The number of characters of the first row that are the sender.
+    */
+   public int getPrefixLength()
+   {
+      return prefixLength;
+   }
+
+   public int getPrefixWidth()
+   {
+      return prefixWidth;
+   }
+
+   /**
+    *   The rows, which must not be changed.
+    */
+   public Row[] getRows()
+   {
+      return rows;
+   }
+
+   // Inner classes -------------------------------------------------
+   /**
+    *   One row of the layout, which is one line of the history.
+    */
+   public static class Row
+   {
+      final MessageLayout layout;
+      final int index;
+      final String text;
+
+      Row(MessageLayout layout, int index, String text)
+      {
+         this.layout = layout;
+         this.index = index;
+         this.text = text;
+      }
+
+      public MessageLayout getLayout()
+      {
+         return layout;
+      }
+
+      public int getIndex()
+      {
+         return index;
+      }
+
+      public String getText()
+      {
+         return text;
+      }
+
+      public String toString()
+      {
+         return text;
+      }
+   }
+}
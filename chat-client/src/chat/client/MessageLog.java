@@ -0,0 +1,166 @@
+/*
+ * Copyright 1999 by dreamBean Software,
+ * All rights reserved.
+ */
+package chat.client;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+
+import chat.interfaces.Message;
+import chat.interfaces.TopicInfo;
+
+/**
+ *   Local message history of a client, with one MessageJournal per
+ *   topic in a sub directory of the log directory.
+ *
+ *   Unless chat.index is false every journal also has a MessageIndex,
+ *   which is rebuilt from the journal when it is first used and gets the
+ *   appended messages on a thread of its own.
+ *
+ *   @see MessageJournal
+ *   @see MessageIndex
+ *   @see ChatClient#setMessageLog
+ *   @version $Revision:$
+ */
+public class MessageLog
+{
+   // Attributes ----------------------------------------------------
+   File dir;
+   Map journals = new HashMap(); // Topic name -> MessageJournal
+   Map indexes = new HashMap(); // Topic name -> MessageIndex
+   ExecutorService indexer;
+   boolean closed;
+
+   // Static --------------------------------------------------------
+   /**
+    *   The log directory for the given user, which is chat.log.dir if
+    *   set and .chat/log in the home directory otherwise.
+    */
+   public static File getDefaultDirectory(String user)
+   {
+      String base = System.getProperty("chat.log.dir");
+      File dir = base != null ? new File(base) : new File(new File(System.getProperty("user.home"), ".chat"), "log");
+      return new File(dir, toFileName(user));
+   }
+
+   static String toFileName(String name)
+   {
+      StringBuffer buf = new StringBuffer(name.length());
+      for (int i = 0; i < name.length(); i++)
+      {
+         char c = name.charAt(i);
+         buf.append(Character.isLetterOrDigit(c) || c == '-' || c == '_' ? c : '_');
+      }
+      return buf.toString();
+   }
+
+   // Constructors --------------------------------------------------
+   public MessageLog(File dir)
+   {
+      this.dir = dir;
+   }
+
+   // Public --------------------------------------------------------
+   public synchronized MessageJournal getJournal(TopicInfo topic)
+      throws IOException
+   {
+      String name = topic.toString();
+      MessageJournal journal = (MessageJournal)journals.get(name);
+      if (journal == null)
+      {
+         if (closed)
+            throw new IOException("Message log is closed");
+         journal = new MessageJournal(new File(dir, toFileName(name)));
+         journals.put(name, journal);
+      }
+      return journal;
+   }
+
+   /**
+    *   The index of the journal of the topic. A new index is rebuilt in
+    *   the background, and until then finds only part of the journal.
+    */
+   public synchronized MessageIndex getIndex(TopicInfo topic)
+      throws IOException
+   {
+      String name = topic.toString();
+      MessageIndex index = (MessageIndex)indexes.get(name);
+      if (index == null)
+      {
+         final MessageJournal journal = getJournal(topic);
+         final MessageIndex rebuilt = index = new MessageIndex();
+         indexes.put(name, index);
+         
+         if (indexer == null)
+            indexer = ClientExecutors.newSerialExecutor("MessageLog-indexer");
+         indexer.execute(new Runnable()
+         {
+            public void run()
+            {
+               try
+               {
+                  rebuilt.rebuild(journal);
+               } catch (IOException e)
+               {
+                  e.printStackTrace();
+               }
+            }
+         });
+      }
+      return index;
+   }
+   
+   public long append(TopicInfo topic, final Message message)
+      throws IOException
+   {
+      final long offset = getJournal(topic).append(message);
+      if (MessageIndex.ENABLED)
+      {
+         // The indexer is shut down and dropped by close()
+         synchronized (this)
+         {
+            if (!closed)
+            {
+               final MessageIndex index = getIndex(topic);
+               indexer.execute(new Runnable()
+               {
+                  public void run()
+                  {
+                     index.add(offset, message);
+                  }
+               });
+            }
+         }
+      }
+      return offset;
+   }
+
+   public synchronized void close()
+   {
+      closed = true;
+      if (indexer != null)
+      {
+         indexer.shutdownNow();
+         indexer = null;
+      }
+      indexes.clear();
+      
+      Iterator iter = journals.values().iterator();
+      while (iter.hasNext())
+      {
+         try
+         {
+            ((MessageJournal)iter.next()).close();
+         } catch (IOException e)
+         {
+            e.printStackTrace();
+         }
+      }
+      journals.clear();
+   }
+}
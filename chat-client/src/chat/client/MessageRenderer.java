@@ -0,0 +1,392 @@
+/*
+ * Copyright 1999 by dreamBean Software,
+ * All rights reserved.
+ */
+package chat.client;
+
+import java.awt.Color;
+import java.awt.Component;
+import java.awt.Font;
+import java.awt.FontMetrics;
+import java.awt.Graphics;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.swing.JComponent;
+import javax.swing.JList;
+import javax.swing.ListCellRenderer;
+import javax.swing.SwingUtilities;
+
+import chat.interfaces.Message;
+
+/**
+ *   The rendering stage of the message history. Messages are formatted,
+ *   styled and wrapped to the width of the list into MessageLayouts on
+ *   a thread of their own, and the rows of the layouts are added to the
+ *   history on the event thread in batches. The event thread then only
+ *   draws the strings of the rows, at the places worked out before.
+ *
+ *   Layouts are made in the order the messages are rendered, and added
+ *   in that order. When the width of the list changes, the histories are
+ *   wrapped anew in the same way, and keep their old rows meanwhile.
+ *
+ *   The renderer is also the cell renderer of the list, and gives it a
+ *   fixed cell height, so the list never measures its rows.
+ *
+ *   @see MessageLayout
+ *   @see ChatGUI
+ *   @version $Revision:$
+ */
+public class MessageRenderer
+   implements ListCellRenderer
+{
+   // Constants -----------------------------------------------------
+   static final int INSET = 2;
+   static final int INDENT = 16;
+   static final String TAB = "    ";
+
+   // Sender colors, picked by the hash of the name
+   static final Color[] COLORS =
+   {
+      new Color(0x1f4e9c), new Color(0x9c1f1f), new Color(0x1f7a3a), new Color(0x7a1f8c),
+      new Color(0xa05a00), new Color(0x00707a), new Color(0x5a5a00), new Color(0x8c1f5a),
+   };
+   static final Color SYSTEM_COLOR = Color.gray;
+   static final Color HIGHLIGHT_COLOR = new Color(0xfff2a8);
+
+   // Attributes ----------------------------------------------------
+   Font plain;
+   Font bold;
+   Font italic;
+   FontMetrics plainMetrics;
+   FontMetrics boldMetrics;
+   FontMetrics italicMetrics;
+   int lineHeight;
+
+   volatile int width; // Wrap width, or 0 to not wrap
+
+   ExecutorService executor = ClientExecutors.newSerialExecutor("MessageRenderer");
+   Queue rendered = new ConcurrentLinkedQueue(); // Object[] { store, rows, offset, done }
+   AtomicBoolean flushing = new AtomicBoolean();
+
+   RowPainter painter = new RowPainter();
+
+   // Constructors --------------------------------------------------
+   /**
+    *   Create a renderer for the given list, and make it the cell
+    *   renderer of the list.
+    */
+   public MessageRenderer(JList list)
+   {
+      plain = list.getFont();
+      bold = plain.deriveFont(Font.BOLD);
+      italic = plain.deriveFont(Font.ITALIC);
+      plainMetrics = list.getFontMetrics(plain);
+      boldMetrics = list.getFontMetrics(bold);
+      italicMetrics = list.getFontMetrics(italic);
+      lineHeight = Math.max(plainMetrics.getHeight(), Math.max(boldMetrics.getHeight(), italicMetrics.getHeight()))+1;
+
+      list.setCellRenderer(this);
+      list.setFixedCellHeight(lineHeight);
+   }
+
+   // Public --------------------------------------------------------
+   /**
+    *   Lay out the message in the background and add it to the store,
+    *   then run done, on the event thread.
+    */
+   public void render(Message message, long offset, MessageStore store, Runnable done)
+   {
+      render(message, false, offset, store, done);
+   }
+
+   public void render(final Message message, final boolean highlighted, final long offset, final MessageStore store, final Runnable done)
+   {
+      executor.execute(new Runnable()
+      {
+         public void run()
+         {
+            MessageLayout layout = layout(message, highlighted, width);
+            rendered.add(new Object[] { store, layout.getRows(), new Long(offset), done });
+            if (flushing.compareAndSet(false, true))
+            {
+               SwingUtilities.invokeLater(new Runnable()
+               {
+                  public void run()
+                  {
+                     flush();
+                  }
+               });
+            }
+         }
+      });
+   }
+
+   /**
+    *   The message as a single row, not wrapped, for the scrollback.
+    */
+   public MessageLayout.Row format(Message message)
+   {
+      return layout(message, false, 0).getRows()[0];
+   }
+
+   /**
+    *   Set the width to wrap to, in pixels. Called on the event thread
+    *   when the list is resized, which should then relayout the shown
+    *   history.
+    */
+   public void setWidth(int width)
+   {
+      this.width = Math.max(0, width-2*INSET);
+   }
+
+   public int getLineHeight()
+   {
+      return lineHeight;
+   }
+
+   /**
+    *   Wrap the messages of the store anew if they were wrapped to
+    *   another width. Called on the event thread.
+    */
+   public void relayout(final MessageStore store)
+   {
+      long[] offsets = new long[store.size];
+      Object[] lines = store.getLines(offsets);
+      if (lines.length == 0 || !(lines[lines.length-1] instanceof MessageLayout.Row)
+          || ((MessageLayout.Row)lines[lines.length-1]).getLayout().getWidth() == width)
+         return;
+
+      executor.execute(new Runnable()
+      {
+         public void run()
+         {
+            // Take the lines once the messages rendered before are in
+            final Object[][] snapshot = new Object[2][];
+            final int[] modifications = new int[1];
+            try
+            {
+               SwingUtilities.invokeAndWait(new Runnable()
+               {
+                  public void run()
+                  {
+                     long[] offsets = new long[store.size];
+                     snapshot[0] = store.getLines(offsets);
+                     Long[] boxed = new Long[offsets.length];
+                     for (int i = 0; i < offsets.length; i++)
+                        boxed[i] = new Long(offsets[i]);
+                     snapshot[1] = boxed;
+                     modifications[0] = store.modifications;
+                  }
+               });
+            } catch (Exception e)
+            {
+               return;
+            }
+
+            final List newLines = new ArrayList(snapshot[0].length);
+            final List newOffsets = new ArrayList(snapshot[0].length);
+            int wrap = width;
+            for (int i = 0; i < snapshot[0].length; i++)
+            {
+               Object line = snapshot[0][i];
+               Long offset = (Long)snapshot[1][i];
+               if (!(line instanceof MessageLayout.Row))
+               {
+                  newLines.add(line);
+                  newOffsets.add(offset);
+               } else if (((MessageLayout.Row)line).getIndex() == 0)
+               {
+                  MessageLayout old = ((MessageLayout.Row)line).getLayout();
+                  MessageLayout.Row[] rows = layout(old.getMessage(), old.isHighlighted(), wrap).getRows();
+                  for (int r = 0; r < rows.length; r++)
+                  {
+                     newLines.add(rows[r]);
+                     newOffsets.add(r == 0 ? offset : new Long(MessageStore.CONTINUATION));
+                  }
+               }
+            }
+
+            SwingUtilities.invokeLater(new Runnable()
+            {
+               public void run()
+               {
+                  if (store.modifications == modifications[0])
+                     store.setLines(newLines, newOffsets);
+                  else
+                     relayout(store); // Changed meanwhile
+               }
+            });
+         }
+      });
+   }
+
+   /**
+    *   Format, style and wrap the message. May be called on any thread.
+    */
+   public MessageLayout layout(Message message, boolean highlighted, int width)
+   {
+      boolean system = message.getSender() == null || message.getSender().equals(Message.SYSTEM);
+      String text = String.valueOf(message.getContent());
+      if (text.indexOf('\t') != -1)
+         text = text.replaceAll("\t", TAB);
+
+      String prefix = system ? "" : message.getSender()+": ";
+      int prefixWidth = boldMetrics.stringWidth(prefix);
+      FontMetrics metrics = system ? italicMetrics : plainMetrics;
+
+      List rows = new ArrayList();
+      if (width == 0)
+      {
+         rows.add(prefix+text.replace('\n', ' '));
+      } else
+      {
+         int start = 0;
+         while (start <= text.length())
+         {
+            int end = text.indexOf('\n', start);
+            if (end == -1)
+               end = text.length();
+            wrap(text, start, end, rows, prefix, prefixWidth, metrics, width);
+            start = end+1;
+         }
+      }
+
+      Color color = system ? null : COLORS[(message.getSender().hashCode() & 0x7fffffff) % COLORS.length];
+      return new MessageLayout(message, width, (String[])rows.toArray(new String[rows.size()]), color, highlighted, prefix.length(), prefixWidth);
+   }
+
+   /**
+    *   Stop rendering.
+    */
+   public void close()
+   {
+      executor.shutdown();
+   }
+
+   // ListCellRenderer implementation -------------------------------
+   public Component getListCellRendererComponent(JList list,
+                                                 Object value,
+                                                 int index,
+                                                 boolean isSelected,
+                                                 boolean cellHasFocus)
+   {
+      painter.value = value;
+      if (isSelected)
+         painter.setBackground(list.getSelectionBackground());
+      else if (value instanceof MessageLayout.Row && ((MessageLayout.Row)value).getLayout().isHighlighted())
+         painter.setBackground(HIGHLIGHT_COLOR);
+      else
+         painter.setBackground(list.getBackground());
+      painter.setForeground(isSelected ? list.getSelectionForeground() : list.getForeground());
+      return painter;
+   }
+
+   // Package protected ---------------------------------------------
+   /**
+    *   Add what was rendered to the stores. Called on the event thread.
+    */
+   void flush()
+   {
+      flushing.set(false);
+      Object[] next;
+      while ((next = (Object[])rendered.poll()) != null)
+      {
+         ((MessageStore)next[0]).add((Object[])next[1], ((Long)next[2]).longValue());
+         if (next[3] != null)
+            ((Runnable)next[3]).run();
+      }
+   }
+
+   /**
+    *   Wrap the text from start to end at spaces, or anywhere in words
+    *   that are too long for a row.
+    */
+   void wrap(String text, int start, int end, List rows, String prefix, int prefixWidth, FontMetrics metrics, int width)
+   {
+      do
+      {
+         boolean first = rows.isEmpty();
+         int available = first ? width-prefixWidth : width-INDENT;
+         int used = 0;
+         int last = start;
+         int space = -1;
+         while (last < end)
+         {
+            used += metrics.charWidth(text.charAt(last));
+            if (used > available && last > start)
+               break;
+            if (text.charAt(last) == ' ')
+               space = last;
+            last++;
+         }
+
+         int cut = last;
+         if (last < end && text.charAt(last) == ' ')
+            space = cut;
+         else if (last < end && space > start)
+            cut = space;
+         rows.add(first ? prefix+text.substring(start, cut) : text.substring(start, cut));
+
+         start = cut;
+         while (start < end && text.charAt(start) == ' ' && cut == space)
+            start++;
+      } while (start < end);
+   }
+
+   // Inner classes -------------------------------------------------
+   /**
+    *   Draws one row at the places worked out by the layout.
+    */
+   class RowPainter
+      extends JComponent
+   {
+      Object value;
+
+      RowPainter()
+      {
+         setOpaque(true);
+      }
+
+      protected void paintComponent(Graphics g)
+      {
+         g.setColor(getBackground());
+         g.fillRect(0, 0, getWidth(), getHeight());
+
+         int baseline = plainMetrics.getAscent();
+         if (!(value instanceof MessageLayout.Row))
+         {
+            g.setFont(plain);
+            g.setColor(getForeground());
+            g.drawString(String.valueOf(value), INSET, baseline);
+            return;
+         }
+
+         MessageLayout.Row row = (MessageLayout.Row)value;
+         MessageLayout layout = row.getLayout();
+         if (layout.isSystem())
+         {
+            g.setFont(italic);
+            g.setColor(SYSTEM_COLOR);
+            g.drawString(row.getText(), row.getIndex() == 0 ? INSET : INSET+INDENT, baseline);
+         } else if (row.getIndex() == 0)
+         {
+            g.setFont(bold);
+            g.setColor(layout.getColor());
+            g.drawString(row.getText().substring(0, layout.getPrefixLength()), INSET, baseline);
+            g.setFont(plain);
+            g.setColor(getForeground());
+            g.drawString(row.getText().substring(layout.getPrefixLength()), INSET+layout.getPrefixWidth(), baseline);
+         } else
+         {
+            g.setFont(plain);
+            g.setColor(getForeground());
+            g.drawString(row.getText(), INSET+INDENT, baseline);
+         }
+      }
+   }
+}
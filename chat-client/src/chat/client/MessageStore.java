@@ -0,0 +1,237 @@
+/*
+ * Copyright 1999 by dreamBean Software,
+ * All rights reserved.
+ */
+package chat.client;
+
+import java.util.Arrays;
+import java.util.List;
+
+import javax.swing.AbstractListModel;
+
+/**
+ *   Message history of the chat GUI. The lines are kept in a ring buffer
+ *   of fixed capacity, so once it is full every new line replaces the
+ *   oldest one and memory use stays bounded however long the client runs.
+ *
+ *   The store is a ListModel so that it can be shown in a JList, which
+ *   only renders the rows that are visible. Like all Swing models it must
+ *   only be used on the event thread.
+ *
+ *   If a Scrollback is set, the older history from the journal is shown
+ *   in front of the lines in the ring buffer. Journaled lines that leave
+ *   the ring buffer then stay visible, as part of the scrollback.
+ *
+ *   A message may take several lines, such as the wrapped rows made by
+ *   the MessageRenderer. They are added together, and leave the ring
+ *   buffer together.
+ *
+ *   @see ChatGUI
+ *   @see Scrollback
+ *   @version $Revision:$
+ */
+public class MessageStore
+   extends AbstractListModel
+{
+   // Constants -----------------------------------------------------
+   public static final int DEFAULT_CAPACITY = Integer.getInteger("chat.history.size", 5000).intValue();
+
+   // Offset of the lines that continue the line before
+   static final long CONTINUATION = -2;
+
+   // Attributes ----------------------------------------------------
+   Object[] lines;
+   long[] offsets; // Journal offset of each line, or -1
+   int start; // Index of the oldest line
+   int size;
+   int modifications;
+   
+   Scrollback scrollback;
+
+   // Constructors --------------------------------------------------
+   public MessageStore()
+   {
+      this(DEFAULT_CAPACITY);
+   }
+
+   public MessageStore(int capacity)
+   {
+      lines = new Object[Math.max(1, capacity)];
+      offsets = new long[lines.length];
+   }
+
+   // Public --------------------------------------------------------
+   public void add(Object line)
+   {
+      add(line, -1);
+   }
+
+   /**
+    *   Add a line that was written to the journal at the given offset.
+    */
+   public void add(Object line, long offset)
+   {
+      add(new Object[] { line }, offset);
+   }
+
+   /**
+    *   Add the lines of a message that was written to the journal at the
+    *   given offset. Messages that the scrollback shows already are not
+    *   added again.
+    */
+   public void add(Object[] rows, long offset)
+   {
+      if (scrollback != null && offset >= 0 && offset < scrollback.getEnd())
+         return;
+
+      int count = Math.min(rows.length, lines.length);
+      for (int i = 0; i < count; i++)
+         append(rows[i], i == 0 ? offset : CONTINUATION);
+
+      // The rest of a message leaves with its first line
+      while (size > 0 && offsets[start] == CONTINUATION)
+         removeOldest();
+      modifications++;
+   }
+
+   public void clear()
+   {
+      int last = getSize()-1;
+      Arrays.fill(lines, null);
+      start = 0;
+      size = 0;
+      scrollback = null;
+      modifications++;
+      if (last >= 0)
+         fireIntervalRemoved(this, 0, last);
+   }
+
+   /**
+    *   Clear the store and show the given scrollback in front of the
+    *   lines added from now on.
+    */
+   public void setScrollback(Scrollback scrollback)
+   {
+      clear();
+      this.scrollback = scrollback;
+      if (getSize() > 0)
+         fireIntervalAdded(this, 0, getSize()-1);
+   }
+
+   public Scrollback getScrollback()
+   {
+      return scrollback;
+   }
+
+   public int getCapacity()
+   {
+      return lines.length;
+   }
+
+   // ListModel implementation --------------------------------------
+   public int getSize()
+   {
+      return getScrollbackSize()+size;
+   }
+
+   public Object getElementAt(int index)
+   {
+      int older = getScrollbackSize();
+      if (index < 0 || index >= older+size)
+         throw new IndexOutOfBoundsException("Index:"+index+", size:"+getSize());
+
+      if (index < older)
+         return scrollback.get(index);
+      return lines[(start+index-older) % lines.length];
+   }
+
+   // Package protected ---------------------------------------------
+   /**
+    *   The lines of the ring buffer, oldest first, and their offsets.
+    */
+   Object[] getLines(long[] lineOffsets)
+   {
+      Object[] result = new Object[size];
+      for (int i = 0; i < size; i++)
+      {
+         result[i] = lines[(start+i) % lines.length];
+         lineOffsets[i] = offsets[(start+i) % lines.length];
+      }
+      return result;
+   }
+
+   /**
+    *   Replace the lines of the ring buffer, as when the messages have
+    *   been wrapped anew. If there are more than fit, the oldest are
+    *   dropped.
+    */
+   void setLines(List newLines, List newOffsets)
+   {
+      int older = getScrollbackSize();
+      int oldSize = size;
+
+      Arrays.fill(lines, null);
+      int from = Math.max(0, newLines.size()-lines.length);
+      while (from < newLines.size() && ((Long)newOffsets.get(from)).longValue() == CONTINUATION)
+         from++;
+      start = 0;
+      size = newLines.size()-from;
+      for (int i = 0; i < size; i++)
+      {
+         lines[i] = newLines.get(from+i);
+         offsets[i] = ((Long)newOffsets.get(from+i)).longValue();
+      }
+      modifications++;
+
+      int common = Math.min(oldSize, size);
+      if (common > 0)
+         fireContentsChanged(this, older, older+common-1);
+      if (size > oldSize)
+         fireIntervalAdded(this, older+oldSize, older+size-1);
+      else if (size < oldSize)
+         fireIntervalRemoved(this, older+size, older+oldSize-1);
+   }
+
+   void append(Object line, long offset)
+   {
+      if (size == lines.length)
+      {
+         // Full - drop the oldest line, or move it to the scrollback
+         int older = getScrollbackSize();
+         long dropped = offsets[start];
+         lines[start] = line;
+         offsets[start] = offset;
+         start = (start+1) % lines.length;
+
+         int added = scrollback != null && dropped >= 0 ? scrollback.extendTo(dropped+1) : 0;
+         if (added == 0)
+            fireIntervalRemoved(this, older, older);
+         else if (added > 1)
+            fireIntervalAdded(this, older, older+added-2);
+      } else
+      {
+         int i = (start+size) % lines.length;
+         lines[i] = line;
+         offsets[i] = offset;
+         size++;
+      }
+
+      int last = getSize()-1;
+      fireIntervalAdded(this, last, last);
+   }
+
+   void removeOldest()
+   {
+      int older = getScrollbackSize();
+      lines[start] = null;
+      start = (start+1) % lines.length;
+      size--;
+      fireIntervalRemoved(this, older, older);
+   }
+
+   // Private -------------------------------------------------------
+   private int getScrollbackSize()
+   {
+      return scrollback == null ? 0 : scrollback.getSize();
+   }
+}
@@ -0,0 +1,296 @@
+/*
+ * Copyright 1999 by dreamBean Software,
+ * All rights reserved.
+ */
+package chat.client;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.swing.SwingUtilities;
+
+import chat.interfaces.Message;
+
+/**
+ *   Publisher of the messages a client receives, for clients without a
+ *   GUI such as bots and archivers. Any number of subscribers can be
+ *   added, each with a buffer of its own. A subscriber gets messages as
+ *   it requests them, on a thread of the stream, and every subscriber
+ *   gets its signals one at a time and in order, as in the reactive
+ *   streams of java.util.concurrent.Flow.
+ *
+ *   A subscriber that falls behind fills its buffer. A stream driven by
+ *   a headless client then waits for the subscriber, and so the inbound
+ *   queue fills and holds up the server. The event thread cannot wait,
+ *   so there the subscriber gets an error and is dropped.
+ *
+ *   @see ChatClient#addMessageReceiver
+ *   @see InboundDispatcher#setHeadless
+ *   @version $Revision:$
+ */
+public class MessageStream
+   implements ChatClient.MessageReceiver
+{
+   // Constants -----------------------------------------------------
+   public static final int DEFAULT_BUFFER_SIZE = Integer.getInteger("chat.stream.bufferSize", 1024).intValue();
+
+   // Attributes ----------------------------------------------------
+   ChatClient client;
+   List deliveries = new CopyOnWriteArrayList();
+   ExecutorService executor = ClientExecutors.newPerTaskExecutor("MessageStream");
+
+   // Constructors --------------------------------------------------
+   /**
+    *   Create a stream of the messages received by the client.
+    */
+   public MessageStream(ChatClient client)
+   {
+      this.client = client;
+      client.addMessageReceiver(this);
+   }
+
+   // Public --------------------------------------------------------
+   /**
+    *   Add a subscriber of the messages of all topics.
+    */
+   public void subscribe(Subscriber subscriber)
+   {
+      subscribe(subscriber, null, DEFAULT_BUFFER_SIZE);
+   }
+
+   /**
+    *   Add a subscriber of the messages of the named topic, or of all
+    *   topics if null, which buffers up to the given number of messages
+    *   that it has not requested yet.
+    */
+   public void subscribe(Subscriber subscriber, String topic, int bufferSize)
+   {
+      Delivery delivery = new Delivery(subscriber, topic, bufferSize);
+      deliveries.add(delivery);
+      delivery.drain();
+   }
+
+   public int getSubscriberCount()
+   {
+      return deliveries.size();
+   }
+
+   /**
+    *   Stop taking messages from the client, and complete the
+    *   subscribers once they have the messages in their buffers.
+    */
+   public void close()
+   {
+      client.removeMessageReceiver(this);
+      Iterator dlist = deliveries.iterator();
+      while (dlist.hasNext())
+         ((Delivery)dlist.next()).complete(null);
+      executor.shutdown();
+   }
+
+   // MessageReceiver implementation --------------------------------
+   public void handleMessage(Message message)
+   {
+      TopicView view = client.getLastView();
+      String topic = view == null ? null : view.getInfo().toString();
+      Iterator dlist = deliveries.iterator();
+      while (dlist.hasNext())
+      {
+         Delivery delivery = (Delivery)dlist.next();
+         if (delivery.topic == null || delivery.topic.equals(topic))
+            delivery.offer(message);
+      }
+   }
+
+   // Inner classes -------------------------------------------------
+   public interface Subscriber
+   {
+      /**
+       *   Called first, with the subscription to request messages from.
+       */
+      public void onSubscribe(Subscription subscription);
+
+      public void onNext(Message message);
+
+      /**
+       *   The subscription failed, and no more messages follow.
+       */
+      public void onError(Throwable error);
+
+      /**
+       *   The stream was closed, and no more messages follow.
+       */
+      public void onComplete();
+   }
+
+   public interface Subscription
+   {
+      /**
+       *   Request n more messages, in addition to the ones requested
+       *   before. Long.MAX_VALUE requests all of them.
+       */
+      public void request(long n);
+
+      /**
+       *   Stop the messages. Some that were on their way may still
+       *   arrive.
+       */
+      public void cancel();
+   }
+
+   /**
+    *   The buffer and demand of one subscriber. Signals are sent by
+    *   one task at a time, which is started when there is something to
+    *   send and none is running.
+    */
+   class Delivery
+      implements Subscription, Runnable
+   {
+      Subscriber subscriber;
+      String topic;
+      BlockingQueue buffer;
+      int bufferSize;
+
+      AtomicLong demand = new AtomicLong();
+      AtomicInteger work = new AtomicInteger();
+      boolean subscribed;
+      volatile boolean cancelled;
+      volatile boolean done;
+      volatile Throwable error;
+      boolean terminated;
+
+      Delivery(Subscriber subscriber, String topic, int bufferSize)
+      {
+         this.subscriber = subscriber;
+         this.topic = topic;
+         this.bufferSize = bufferSize;
+         this.buffer = new ArrayBlockingQueue(bufferSize);
+      }
+
+      void offer(Message message)
+      {
+         if (done)
+            return;
+
+         if (!buffer.offer(message))
+         {
+            if (SwingUtilities.isEventDispatchThread())
+            {
+               complete(new IllegalStateException("Subscriber fell behind by "+bufferSize+" messages"));
+               return;
+            }
+
+            try
+            {
+               buffer.put(message);
+            } catch (InterruptedException e)
+            {
+               Thread.currentThread().interrupt();
+               return;
+            }
+         }
+         drain();
+      }
+
+      /**
+       *   End the subscription, with an error if not null.
+       */
+      void complete(Throwable error)
+      {
+         this.error = error;
+         done = true;
+         deliveries.remove(this);
+         drain();
+      }
+
+      void drain()
+      {
+         if (work.getAndIncrement() == 0)
+            executor.execute(this);
+      }
+
+      // Subscription implementation -------------------------------
+      public void request(long n)
+      {
+         if (n <= 0)
+         {
+            complete(new IllegalArgumentException("Requested "+n+" messages"));
+            return;
+         }
+
+         long current, next;
+         do
+         {
+            current = demand.get();
+            next = current+n < 0 ? Long.MAX_VALUE : current+n;
+         } while (!demand.compareAndSet(current, next));
+         drain();
+      }
+
+      public void cancel()
+      {
+         cancelled = true;
+         done = true;
+         deliveries.remove(this);
+         buffer.clear(); // Lets an offer waiting for room go on
+         drain();
+      }
+
+      // Runnable implementation -----------------------------------
+      public void run()
+      {
+         int missed = 1;
+         do
+         {
+            if (!subscribed)
+            {
+               subscribed = true;
+               subscriber.onSubscribe(this);
+            }
+
+            long requested = demand.get();
+            long sent = 0;
+            while (sent != requested && !cancelled && error == null)
+            {
+               Message message = (Message)buffer.poll();
+               if (message == null)
+                  break;
+
+               try
+               {
+                  subscriber.onNext(message);
+               } catch (Throwable e)
+               {
+                  // A broken subscriber gets nothing more
+                  e.printStackTrace();
+                  cancel();
+               }
+               sent++;
+            }
+            if (sent > 0 && requested != Long.MAX_VALUE)
+               demand.addAndGet(-sent);
+
+            if (cancelled)
+            {
+               buffer.clear();
+            } else if (done && !terminated && (error != null || buffer.isEmpty()))
+            {
+               terminated = true;
+               buffer.clear();
+               if (error != null)
+                  subscriber.onError(error);
+               else
+                  subscriber.onComplete();
+            }
+
+            missed = work.addAndGet(-missed);
+         } while (missed != 0);
+      }
+   }
+}
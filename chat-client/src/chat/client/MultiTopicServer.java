@@ -0,0 +1,28 @@
+/*
+ * Copyright 1999 by dreamBean Software,
+ * All rights reserved.
+ */
+package chat.client;
+
+import chat.interfaces.TopicServer;
+
+/**
+ *   Topic server that lets a listener subscribe to several topics at
+ *   once, and tells listeners that implement TopicMessageListener which
+ *   topic their messages are for. Clients of servers without it keep to
+ *   one subscription at a time.
+ *
+ *   The same listener may also be added for several listener infos. It
+ *   then gets each message of a topic once, however many of its infos
+ *   are subscribed to the topic, which is what lets a SharedConnection
+ *   serve many sessions with one listener.
+ *
+ *   @see TopicMessageListener
+ *   @see SharedConnection
+ *   @see ChatClient#subscribe
+ *   @version $Revision:$
+ */
+public interface MultiTopicServer
+   extends TopicServer
+{
+}
@@ -0,0 +1,435 @@
+/*
+ * Copyright 1999 by dreamBean Software,
+ * All rights reserved.
+ */
+package chat.client;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ *   One end of a framed connection of the NIO transport. A frame is
+ *
+ *      int length, int id, byte code, payload
+ *
+ *   where the length counts everything after itself. Requests carry an
+ *   id that is echoed in the reply, so that any number of requests can
+ *   be outstanding on the connection. Messages pushed by the server use
+ *   id 0, with the topic they were published on, if any.
+ *
+ *   Payloads are encoded with the MessageCodec of the connection, or
+ *   with Java serialization if chat.nio.codec is false. Either is
+ *   accepted when reading.
+ *
+ *   Frames can be sent from any thread. They are queued and written by
+ *   the reactor thread, which copies as many queued frames as fit into
+ *   a direct buffer for every write. Frames are read into a direct
+ *   buffer and handed to frameReceived on the reactor thread.
+ *
+ *   @see NioTransport
+ *   @see NioServer
+ *   @version $Revision:$
+ */
+abstract class NioConnection
+{
+   // Constants -----------------------------------------------------
+   static final int HEADER = 9;
+   static final int BUFFER_SIZE = Integer.getInteger("chat.nio.bufferSize", 65536).intValue();
+   static final int MAX_FRAME = Integer.getInteger("chat.nio.maxFrame", 16*1024*1024).intValue();
+   static final boolean CODEC = !"false".equals(System.getProperty("chat.nio.codec"));
+
+   static final int PUSH_ID = 0;
+
+   // Request codes
+   static final byte ADD_LISTENER = 1;
+   static final byte REMOVE_LISTENER = 2;
+   static final byte SUBSCRIBE = 3;
+   static final byte UNSUBSCRIBE = 4;
+   static final byte GET_TOPIC_INFOS = 5;
+   static final byte PUBLISH = 6;
+   static final byte PUBLISH_BATCH = 7;
+   static final byte GET_LISTENER_INFOS = 8;
+   static final byte GET_LISTENER_COUNT = 9;
+   static final byte GET_LISTENER_PAGE = 10;
+   static final byte GET_SEQUENCE = 11;
+   static final byte GET_MESSAGES = 12;
+   static final byte GET_CAPABILITIES = 13;
+   static final byte GET_TOPIC_VERSION = 14;
+   static final byte GET_TOPIC_COUNT = 15;
+   static final byte GET_TOPIC_PAGE = 16;
+
+   // Reply codes
+   static final byte OK = 64;
+   static final byte ERROR = 65;
+   static final byte PUSH = 66;
+
+   // Topic capabilities, returned by SUBSCRIBE
+   static final int BATCH = 1;
+   static final int CATCH_UP = 2;
+   static final int PAGED = 4;
+
+   // Server capabilities, returned by GET_CAPABILITIES
+   static final int MULTI_TOPIC = 8;
+   static final int PAGED_TOPICS = 16;
+
+   // Attributes ----------------------------------------------------
+   NioReactor reactor;
+   SocketChannel channel;
+   SelectionKey key;
+
+   ByteBuffer readBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+   ByteBuffer writeBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+   Queue outbound = new ConcurrentLinkedQueue(); // ByteBuffer
+   ByteBuffer current; // Frame partly copied into the write buffer
+   AtomicBoolean writing = new AtomicBoolean();
+   boolean readPaused; // Only used on the reactor thread
+
+   // The dictionaries of the codec require that frames are queued in
+   // the order they are encoded, so both happen under its lock
+   MessageCodec encoder = new MessageCodec();
+   MessageCodec decoder = new MessageCodec();
+
+   volatile boolean closed;
+
+   // Constructors --------------------------------------------------
+   NioConnection(NioReactor reactor, SocketChannel channel)
+      throws IOException
+   {
+      this.reactor = reactor;
+      this.channel = channel;
+      channel.configureBlocking(false);
+      channel.socket().setTcpNoDelay(true);
+   }
+
+   // Package protected ---------------------------------------------
+   /**
+    *   Register with the reactor. Frames sent before registration has
+    *   completed are written once it has.
+    */
+   void start()
+   {
+      reactor.execute(new Runnable()
+      {
+         public void run()
+         {
+            try
+            {
+               key = channel.register(reactor.selector, SelectionKey.OP_READ, NioConnection.this);
+            } catch (IOException e)
+            {
+               close(e);
+            }
+         }
+      });
+   }
+
+   void send(int id, byte code, Object payload)
+      throws IOException
+   {
+      if (closed)
+         throw new IOException("Connection closed");
+
+      synchronized (encoder)
+      {
+         // A frame that fails leaves the dictionaries as they were, so
+         // the connection is still good
+         ByteBuffer buffer;
+         if (CODEC)
+         {
+            ByteBuffer encoded = encoder.encode(payload);
+            buffer = ByteBuffer.allocate(HEADER+encoded.remaining());
+            buffer.position(HEADER);
+            buffer.put(encoded);
+            buffer.flip();
+         } else
+         {
+            FrameBuffer frame = new FrameBuffer();
+            frame.write(new byte[HEADER]);
+            ObjectOutputStream out = new ObjectOutputStream(frame);
+            out.writeObject(payload);
+            out.flush();
+            buffer = frame.toByteBuffer();
+         }
+
+         if (buffer.remaining() > MAX_FRAME)
+         {
+            // Not sent, so neither are its symbols
+            if (CODEC)
+               encoder.discard();
+            throw new IOException("Frame too large:"+buffer.remaining());
+         }
+
+         buffer.putInt(0, buffer.remaining()-4);
+         buffer.putInt(4, id);
+         buffer.put(8, code);
+         outbound.add(buffer);
+      }
+
+      if (writing.compareAndSet(false, true))
+      {
+         reactor.execute(new Runnable()
+         {
+            public void run()
+            {
+               try
+               {
+                  write();
+               } catch (IOException e)
+               {
+                  close(e);
+               }
+            }
+         });
+      }
+   }
+
+   /**
+    *   Read what is available and handle the complete frames. Called
+    *   on the reactor thread.
+    */
+   void read()
+      throws IOException
+   {
+      if (channel.read(readBuffer) < 0)
+      {
+         close(null);
+         return;
+      }
+
+      readBuffer.flip();
+      int needed = 0;
+      while (readBuffer.remaining() >= 4)
+      {
+         int length = readBuffer.getInt(readBuffer.position());
+         if (length < HEADER-4 || length > MAX_FRAME)
+            throw new IOException("Bad frame length:"+length);
+
+         if (readBuffer.remaining() < 4+length)
+         {
+            needed = 4+length;
+            break;
+         }
+
+         int end = readBuffer.position()+4+length;
+         readBuffer.getInt();
+         int id = readBuffer.getInt();
+         byte code = readBuffer.get();
+
+         ByteBuffer payload = readBuffer.slice();
+         payload.limit(length-(HEADER-4));
+         frameReceived(id, code, payload);
+         readBuffer.position(end);
+      }
+      readBuffer.compact();
+
+      // Make room for a frame larger than the buffer
+      if (needed > readBuffer.capacity())
+      {
+         ByteBuffer larger = ByteBuffer.allocateDirect(needed);
+         readBuffer.flip();
+         larger.put(readBuffer);
+         readBuffer = larger;
+      }
+   }
+
+   /**
+    *   Write queued frames until the socket is full or the queue is
+    *   empty. Called on the reactor thread.
+    */
+   void write()
+      throws IOException
+   {
+      if (key == null || closed)
+         return;
+
+      while (true)
+      {
+         while (writeBuffer.hasRemaining())
+         {
+            if (current == null)
+            {
+               current = (ByteBuffer)outbound.poll();
+               if (current == null)
+                  break;
+            }
+
+            if (current.remaining() <= writeBuffer.remaining())
+            {
+               writeBuffer.put(current);
+               current = null;
+            } else
+            {
+               ByteBuffer part = current.duplicate();
+               part.limit(part.position()+writeBuffer.remaining());
+               writeBuffer.put(part);
+               current.position(part.position());
+            }
+         }
+
+         writeBuffer.flip();
+         channel.write(writeBuffer);
+         boolean written = !writeBuffer.hasRemaining();
+         writeBuffer.compact();
+
+         if (!written)
+         {
+            // Socket is full, continue when it is writable
+            key.interestOps(readOps() | SelectionKey.OP_WRITE);
+            return;
+         }
+
+         if (current == null && outbound.isEmpty())
+            break;
+      }
+
+      key.interestOps(readOps());
+      writing.set(false);
+
+      // Frames queued after the queue was found empty
+      if (!outbound.isEmpty() && writing.compareAndSet(false, true))
+         key.interestOps(readOps() | SelectionKey.OP_WRITE);
+   }
+
+   /**
+    *   Stop reading frames, so that the other end is slowed down by the
+    *   socket filling up. Called on the reactor thread.
+    */
+   void pauseReading()
+   {
+      readPaused = true;
+      if (key != null && key.isValid())
+         key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+   }
+
+   /**
+    *   Read frames again after pauseReading. May be called from any
+    *   thread.
+    */
+   void resumeReading()
+   {
+      reactor.execute(new Runnable()
+      {
+         public void run()
+         {
+            readPaused = false;
+            if (key != null && key.isValid())
+               key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+         }
+      });
+   }
+
+   int readOps()
+   {
+      return readPaused ? 0 : SelectionKey.OP_READ;
+   }
+
+   void close(Exception cause)
+   {
+      if (closed)
+         return;
+      closed = true;
+
+      if (key != null)
+         key.cancel();
+      try
+      {
+         channel.close();
+      } catch (IOException e)
+      {
+         // Ignore
+      }
+
+      closed(cause);
+   }
+
+   /**
+    *   Decode a payload. The buffer is only valid during the call.
+    */
+   Object decode(ByteBuffer payload)
+      throws IOException
+   {
+      if (!MessageCodec.isSerialized(payload))
+         return decoder.decode(payload);
+
+      try
+      {
+         return new ObjectInputStream(new BufferInputStream(payload)).readObject();
+      } catch (ClassNotFoundException e)
+      {
+         IOException ex = new IOException("Could not decode frame");
+         ex.initCause(e);
+         throw ex;
+      }
+   }
+
+   /**
+    *   Handle a frame. Called on the reactor thread, so this must not
+    *   block.
+    */
+   abstract void frameReceived(int id, byte code, ByteBuffer payload)
+      throws IOException;
+
+   /**
+    *   The connection was closed, by either end or because of the
+    *   given error.
+    */
+   abstract void closed(Exception cause);
+
+   // Inner classes -------------------------------------------------
+   /**
+    *   Byte array stream that hands out its buffer without a copy.
+    */
+   static class FrameBuffer
+      extends ByteArrayOutputStream
+   {
+      FrameBuffer()
+      {
+         super(256);
+      }
+
+      ByteBuffer toByteBuffer()
+      {
+         return ByteBuffer.wrap(buf, 0, count);
+      }
+   }
+
+   static class BufferInputStream
+      extends InputStream
+   {
+      ByteBuffer buffer;
+
+      BufferInputStream(ByteBuffer buffer)
+      {
+         this.buffer = buffer;
+      }
+
+      public int read()
+      {
+         return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+      }
+
+      public int read(byte[] b, int off, int len)
+      {
+         if (!buffer.hasRemaining())
+            return -1;
+         len = Math.min(len, buffer.remaining());
+         buffer.get(b, off, len);
+         return len;
+      }
+
+      public int available()
+      {
+         return buffer.remaining();
+      }
+   }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright 1999 by dreamBean Software,
+ * All rights reserved.
+ */
+package chat.client;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ *   A selector thread that does all socket I/O of its connections.
+ *   Other threads hand work to it with execute, which wakes up the
+ *   selector.
+ *
+ *   @see NioConnection
+ *   @version $Revision:$
+ */
+class NioReactor
+   implements Runnable
+{
+   // Attributes ----------------------------------------------------
+   Selector selector;
+   Queue tasks = new ConcurrentLinkedQueue(); // Runnable
+   Thread thread;
+   volatile boolean running = true;
+
+   // Constructors --------------------------------------------------
+   NioReactor(String name)
+      throws IOException
+   {
+      selector = Selector.open();
+      thread = new Thread(this, name);
+      thread.setDaemon(true);
+      thread.start();
+   }
+
+   // Package protected ---------------------------------------------
+   /**
+    *   Run the task on the selector thread.
+    */
+   void execute(Runnable task)
+   {
+      tasks.add(task);
+      selector.wakeup();
+   }
+
+   void close()
+   {
+      running = false;
+      selector.wakeup();
+   }
+
+   // Runnable implementation ---------------------------------------
+   public void run()
+   {
+      try
+      {
+         while (running)
+         {
+            selector.select();
+
+            Runnable task;
+            while ((task = (Runnable)tasks.poll()) != null)
+               task.run();
+
+            Iterator keys = selector.selectedKeys().iterator();
+            while (keys.hasNext())
+            {
+               SelectionKey key = (SelectionKey)keys.next();
+               keys.remove();
+               handle(key);
+            }
+         }
+      } catch (IOException e)
+      {
+         e.printStackTrace();
+      } finally
+      {
+         Iterator keys = selector.keys().iterator();
+         while (keys.hasNext())
+         {
+            Object attachment = ((SelectionKey)keys.next()).attachment();
+            if (attachment instanceof NioConnection)
+               ((NioConnection)attachment).close(null);
+         }
+
+         try
+         {
+            selector.close();
+         } catch (IOException e)
+         {
+            // Ignore
+         }
+      }
+   }
+
+   // Private -------------------------------------------------------
+   void handle(SelectionKey key)
+   {
+      Object attachment = key.attachment();
+      if (attachment instanceof NioServer)
+      {
+         if (key.isValid() && key.isAcceptable())
+            ((NioServer)attachment).accept();
+         return;
+      }
+
+      NioConnection connection = (NioConnection)attachment;
+      try
+      {
+         if (key.isValid() && key.isReadable())
+            connection.read();
+         if (key.isValid() && key.isWritable())
+            connection.write();
+      } catch (IOException e)
+      {
+         connection.close(e);
+      } catch (CancelledKeyException e)
+      {
+         connection.close(null);
+      }
+   }
+}
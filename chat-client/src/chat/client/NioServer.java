@@ -0,0 +1,476 @@
+/*
+ * Copyright 1999 by dreamBean Software,
+ * All rights reserved.
+ */
+package chat.client;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import chat.interfaces.ListenerInfo;
+import chat.interfaces.Message;
+import chat.interfaces.MessageListener;
+import chat.interfaces.Topic;
+import chat.interfaces.TopicInfo;
+import chat.interfaces.TopicServer;
+
+/**
+ *   Serves a topic server over the NIO transport. Used to run the load
+ *   generator and benchmarks against the LocalTopicServer over a real
+ *   socket, and to put the RMI server behind the NIO protocol.
+ *
+ *   The requests of a connection are executed in order on a worker
+ *   pool, so that a slow call does not hold up the reactor or other
+ *   connections. Messages for the listener of a connection are pushed
+ *   in the batches they are published in. A connection may add several
+ *   listener infos, as a SharedConnection does for its sessions.
+ *
+ *   @see NioTransport
+ *   @see LocalTopicServer
+ *   @version $Revision:$
+ */
+public class NioServer
+{
+   // Constants -----------------------------------------------------
+   static final int WORKERS = Integer.getInteger("chat.nio.workers", 4).intValue();
+
+   // Attributes ----------------------------------------------------
+   TopicServer server;
+   ServerSocketChannel channel;
+   NioReactor reactor;
+   ExecutorService workers;
+
+   // Constructors --------------------------------------------------
+   /**
+    *   Serve the given server on the given port, or on any free port
+    *   if the port is 0.
+    */
+   public NioServer(TopicServer server, int port)
+      throws IOException
+   {
+      this.server = server;
+
+      workers = Executors.newFixedThreadPool(WORKERS, new ThreadFactory()
+      {
+         int count = 0;
+
+         public synchronized Thread newThread(Runnable r)
+         {
+            Thread t = new Thread(r, "NioServer-worker-"+(count++));
+            t.setDaemon(true);
+            return t;
+         }
+      });
+
+      channel = ServerSocketChannel.open();
+      channel.socket().bind(new InetSocketAddress(port));
+      channel.configureBlocking(false);
+
+      reactor = new NioReactor("NioServer-reactor");
+      reactor.execute(new Runnable()
+      {
+         public void run()
+         {
+            try
+            {
+               channel.register(reactor.selector, SelectionKey.OP_ACCEPT, NioServer.this);
+            } catch (IOException e)
+            {
+               e.printStackTrace();
+            }
+         }
+      });
+   }
+
+   // Public --------------------------------------------------------
+   public int getPort()
+   {
+      return channel.socket().getLocalPort();
+   }
+
+   public void close()
+   {
+      reactor.close();
+      workers.shutdown();
+      try
+      {
+         channel.close();
+      } catch (IOException e)
+      {
+         // Ignore
+      }
+   }
+
+   // Package protected ---------------------------------------------
+   /**
+    *   Accept a connection. Called on the reactor thread.
+    */
+   void accept()
+   {
+      try
+      {
+         SocketChannel client = channel.accept();
+         if (client != null)
+            new ServerConnection(reactor, client).start();
+      } catch (IOException e)
+      {
+         e.printStackTrace();
+      }
+   }
+
+   // Inner classes -------------------------------------------------
+   /**
+    *   Server end of a connection. It is the listener registered with
+    *   the server for the client.
+    */
+   class ServerConnection
+      extends NioConnection
+      implements TopicMessageListener, Runnable
+   {
+      Queue requests = new ConcurrentLinkedQueue(); // Request
+      AtomicBoolean scheduled = new AtomicBoolean();
+
+      // Only used by the worker executing the requests
+      Map infos = new HashMap(); // Listener name -> ListenerInfo
+      Map subscriptions = new HashMap(); // Listener name -> Set of topic names
+      Map topics = new HashMap(); // Topic name -> Topic
+      Map topicInfos = new HashMap(); // Topic name -> TopicInfo
+
+      ServerConnection(NioReactor reactor, SocketChannel channel)
+         throws IOException
+      {
+         super(reactor, channel);
+      }
+
+      void frameReceived(int id, byte code, ByteBuffer payload)
+         throws IOException
+      {
+         requests.add(new Request(id, code, (Object[])decode(payload)));
+         if (scheduled.compareAndSet(false, true))
+            workers.execute(this);
+      }
+
+      /**
+       *   Leave the topics and remove the listener of a client that is
+       *   gone.
+       */
+      void closed(Exception cause)
+      {
+         requests.add(new Request(PUSH_ID, (byte)0, null));
+         try
+         {
+            if (scheduled.compareAndSet(false, true))
+               workers.execute(this);
+         } catch (RejectedExecutionException e)
+         {
+            // The server is closed, and so is the topic server
+         }
+      }
+
+      // Runnable implementation ------------------------------------
+      public void run()
+      {
+         Request request;
+         while ((request = (Request)requests.poll()) != null)
+         {
+            if (request.args == null)
+            {
+               cleanup();
+               continue;
+            }
+
+            try
+            {
+               Object result = execute(request.code, request.args);
+               send(request.id, OK, result);
+            } catch (IOException e)
+            {
+               // Connection closed, cleanup is queued
+            } catch (Exception e)
+            {
+               try
+               {
+                  send(request.id, ERROR, e);
+               } catch (IOException ex)
+               {
+                  // Connection closed, cleanup is queued
+               }
+            }
+         }
+
+         // Requests may have been queued after the queue was found empty
+         scheduled.set(false);
+         if (!requests.isEmpty() && scheduled.compareAndSet(false, true))
+            workers.execute(this);
+      }
+
+      Object execute(byte code, Object[] args)
+         throws Exception
+      {
+         switch (code)
+         {
+            case ADD_LISTENER:
+            {
+               ListenerInfo info = (ListenerInfo)args[0];
+               server.addListener(info, this);
+               infos.put(info.getName(), info);
+               return null;
+            }
+
+            case REMOVE_LISTENER:
+            {
+               ListenerInfo info = getListenerInfo(args[0]);
+               server.removeListener(info);
+               infos.remove(info.getName());
+               Set names = (Set)subscriptions.remove(info.getName());
+               if (names != null)
+               {
+                  Iterator iter = names.iterator();
+                  while (iter.hasNext())
+                     forget((String)iter.next());
+               }
+               return null;
+            }
+
+            case SUBSCRIBE:
+            {
+               TopicInfo topicInfo = getTopicInfo((TopicInfo)args[0]);
+               ListenerInfo info = getListenerInfo(args[1]);
+               Topic topic = server.subscribe(topicInfo, info);
+               topics.put(topicInfo.toString(), topic);
+               topicInfos.put(topicInfo.toString(), topicInfo);
+
+               Set names = (Set)subscriptions.get(info.getName());
+               if (names == null)
+               {
+                  names = new HashSet();
+                  subscriptions.put(info.getName(), names);
+               }
+               names.add(topicInfo.toString());
+
+               int capabilities = 0;
+               if (topic instanceof BatchTopic)
+                  capabilities |= BATCH;
+               if (topic instanceof CatchUpTopic)
+                  capabilities |= CATCH_UP;
+               if (topic instanceof PagedTopic)
+                  capabilities |= PAGED;
+               return new Integer(capabilities);
+            }
+
+            case UNSUBSCRIBE:
+            {
+               TopicInfo topicInfo = getTopicInfo((TopicInfo)args[0]);
+               ListenerInfo info = getListenerInfo(args[1]);
+               server.unsubscribe(topicInfo, info);
+
+               Set names = (Set)subscriptions.get(info.getName());
+               if (names != null && names.remove(topicInfo.toString()))
+                  forget(topicInfo.toString());
+               return null;
+            }
+
+            case GET_CAPABILITIES:
+            {
+               int capabilities = 0;
+               if (server instanceof MultiTopicServer)
+                  capabilities |= MULTI_TOPIC;
+               if (server instanceof PagedTopicServer)
+                  capabilities |= PAGED_TOPICS;
+               return new Integer(capabilities);
+            }
+
+            case GET_TOPIC_INFOS:
+               return new ArrayList(server.getTopicInfos());
+
+            case GET_TOPIC_VERSION:
+               return new Long(((PagedTopicServer)server).getTopicVersion());
+
+            case GET_TOPIC_COUNT:
+               return new Integer(((PagedTopicServer)server).getTopicCount());
+
+            case GET_TOPIC_PAGE:
+            {
+               Collection page = ((PagedTopicServer)server).getTopicInfos(((Long)args[0]).longValue(), ((Integer)args[1]).intValue(), ((Integer)args[2]).intValue());
+               return page == null ? null : new ArrayList(page);
+            }
+
+            case PUBLISH:
+               getTopic(args[0]).publishMessage((Message)args[1]);
+               return null;
+
+            case PUBLISH_BATCH:
+            {
+               Topic topic = getTopic(args[0]);
+               if (topic instanceof BatchTopic)
+               {
+                  ((BatchTopic)topic).publishMessages((Collection)args[1]);
+               } else
+               {
+                  Iterator iter = ((Collection)args[1]).iterator();
+                  while (iter.hasNext())
+                     topic.publishMessage((Message)iter.next());
+               }
+               return null;
+            }
+
+            case GET_LISTENER_INFOS:
+               return new ArrayList(getTopic(args[0]).getListenerInfos());
+
+            case GET_LISTENER_COUNT:
+               return new Integer(((PagedTopic)getTopic(args[0])).getListenerCount());
+
+            case GET_LISTENER_PAGE:
+               return new ArrayList(((PagedTopic)getTopic(args[0])).getListenerInfos(((Integer)args[1]).intValue(), ((Integer)args[2]).intValue()));
+
+            case GET_SEQUENCE:
+               return new Long(((CatchUpTopic)getTopic(args[0])).getSequence(getListenerInfo(args[1])));
+
+            case GET_MESSAGES:
+               return new ArrayList(((CatchUpTopic)getTopic(args[0])).getMessages(((Long)args[1]).longValue(), ((Long)args[2]).longValue()));
+
+            default:
+               throw new RemoteException("Unknown request:"+code);
+         }
+      }
+
+      /**
+       *   Infos arrive as copies, so they are mapped to the instances
+       *   the server knows.
+       */
+      ListenerInfo getListenerInfo(Object listenerInfo)
+      {
+         ListenerInfo known = (ListenerInfo)infos.get(((ListenerInfo)listenerInfo).getName());
+         return known != null ? known : (ListenerInfo)listenerInfo;
+      }
+
+      /**
+       *   Drop the topic once no listener of the connection is
+       *   subscribed to it.
+       */
+      void forget(String topicName)
+      {
+         Iterator iter = subscriptions.values().iterator();
+         while (iter.hasNext())
+         {
+            if (((Set)iter.next()).contains(topicName))
+               return;
+         }
+         topics.remove(topicName);
+         topicInfos.remove(topicName);
+      }
+
+      TopicInfo getTopicInfo(TopicInfo topicInfo)
+         throws RemoteException
+      {
+         TopicInfo known = (TopicInfo)topicInfos.get(topicInfo.toString());
+         if (known != null)
+            return known;
+
+         Iterator iter = server.getTopicInfos().iterator();
+         while (iter.hasNext())
+         {
+            TopicInfo serverInfo = (TopicInfo)iter.next();
+            if (serverInfo.toString().equals(topicInfo.toString()))
+               return serverInfo;
+         }
+         return topicInfo;
+      }
+
+      Topic getTopic(Object topicInfo)
+         throws RemoteException
+      {
+         Topic topic = (Topic)topics.get(topicInfo.toString());
+         if (topic == null)
+            throw new RemoteException("Not subscribed to "+topicInfo);
+         return topic;
+      }
+
+      void cleanup()
+      {
+         try
+         {
+            Iterator ilist = infos.values().iterator();
+            while (ilist.hasNext())
+            {
+               ListenerInfo info = (ListenerInfo)ilist.next();
+               Set names = (Set)subscriptions.get(info.getName());
+               if (names != null)
+               {
+                  Iterator iter = names.iterator();
+                  while (iter.hasNext())
+                     server.unsubscribe((TopicInfo)topicInfos.get(iter.next()), info);
+               }
+               server.removeListener(info);
+            }
+         } catch (RemoteException e)
+         {
+            // Server is gone too
+         }
+         infos.clear();
+         subscriptions.clear();
+         topics.clear();
+         topicInfos.clear();
+      }
+
+      // MessageListener implementation -----------------------------
+      public void messagePublished(Collection messages)
+         throws RemoteException
+      {
+         messagePublished(null, messages);
+      }
+
+      public void messagePublished(Message message)
+         throws RemoteException
+      {
+         messagePublished(null, Collections.singletonList(message));
+      }
+
+      // TopicMessageListener implementation ------------------------
+      public void messagePublished(TopicInfo topic, Collection messages)
+         throws RemoteException
+      {
+         try
+         {
+            send(PUSH_ID, PUSH, new Object[] { topic, new ArrayList(messages) });
+         } catch (IOException e)
+         {
+            throw new RemoteException("Client connection closed", e);
+         }
+      }
+   }
+
+   static class Request
+   {
+      int id;
+      byte code;
+      Object[] args;
+
+      Request(int id, byte code, Object[] args)
+      {
+         this.id = id;
+         this.code = code;
+         this.args = args;
+      }
+   }
+}
@@ -0,0 +1,512 @@
+/*
+ * Copyright 1999 by dreamBean Software,
+ * All rights reserved.
+ */
+package chat.client;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.rmi.ConnectException;
+import java.rmi.RemoteException;
+import java.rmi.ServerException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import chat.interfaces.ListenerInfo;
+import chat.interfaces.MessageListener;
+import chat.interfaces.Topic;
+import chat.interfaces.TopicInfo;
+import chat.interfaces.TopicServer;
+
+/**
+ *   Transport over a single non-blocking socket to a NioServer. All
+ *   calls of the client share the connection: each call is sent as a
+ *   request frame and waits for the reply with the same id, so calls
+ *   from different threads are pipelined instead of each waiting for a
+ *   connection of its own. Messages for the listener are pushed by the
+ *   server in batches on the same connection, and handed to the listener
+ *   in order by a thread of the connection, so that the reactor never
+ *   waits for a listener. Once chat.nio.maxPushes batches are waiting
+ *   for it, the connection stops reading until half of them are handed
+ *   over. If the server end is a MultiTopicServer, so is the server
+ *   returned by connect.
+ *
+ *   The I/O of all NIO transports in the JVM is done by one reactor
+ *   thread. The server address is given by the chat.nio.host and
+ *   chat.nio.port system properties.
+ *
+ *   @see Transport
+ *   @see NioServer
+ *   @see NioConnection
+ *   @version $Revision:$
+ */
+public class NioTransport
+   implements Transport
+{
+   // Constants -----------------------------------------------------
+   static final String HOST = System.getProperty("chat.nio.host", ChatClient.REMOTE_SERVER);
+   static final int PORT = Integer.getInteger("chat.nio.port", 4242).intValue();
+   static final long TIMEOUT = Long.getLong("chat.nio.timeout", 30000).longValue();
+   static final int MAX_PUSHES = Integer.getInteger("chat.nio.maxPushes", 64).intValue();
+
+   // Attributes ----------------------------------------------------
+   String host;
+   int port;
+   Connection connection;
+
+   // Static --------------------------------------------------------
+   static NioReactor reactor;
+
+   static synchronized NioReactor getReactor()
+      throws IOException
+   {
+      if (reactor == null)
+         reactor = new NioReactor("NioTransport-reactor");
+      return reactor;
+   }
+
+   // Constructors --------------------------------------------------
+   public NioTransport()
+   {
+      this(HOST, PORT);
+   }
+
+   public NioTransport(String host, int port)
+   {
+      this.host = host;
+      this.port = port;
+   }
+
+   // Transport implementation --------------------------------------
+   /**
+    *   Open the connection, or a new one if the last one was closed.
+    */
+   public synchronized TopicServer connect()
+      throws RemoteException
+   {
+      if (connection == null || connection.closed)
+      {
+         try
+         {
+            SocketChannel channel = SocketChannel.open(new InetSocketAddress(host, port));
+            connection = new Connection(getReactor(), channel);
+            connection.start();
+         } catch (IOException e)
+         {
+            throw new ConnectException("Could not connect to "+host+":"+port, e);
+         }
+      }
+
+      int capabilities = ((Integer)connection.call(NioConnection.GET_CAPABILITIES, new Object[0])).intValue();
+      boolean paged = (capabilities & NioConnection.PAGED_TOPICS) != 0;
+      if ((capabilities & NioConnection.MULTI_TOPIC) != 0)
+         return paged ? new PagedMultiServer(connection) : new MultiServer(connection);
+      return paged ? new PagedServer(connection) : new Server(connection);
+   }
+
+   /**
+    *   The listener gets its messages from the connection it is added
+    *   on, so it needs no exporting.
+    */
+   public MessageListener export(MessageListener listener)
+   {
+      return listener;
+   }
+
+   public synchronized void close()
+   {
+      if (connection != null)
+      {
+         connection.close(null);
+         connection = null;
+      }
+   }
+
+   // Object overrides ----------------------------------------------
+   public String toString()
+   {
+      return "nio-"+host+"-"+port;
+   }
+
+   // Inner classes -------------------------------------------------
+   /**
+    *   Client end of the connection. Keeps the outstanding calls by id.
+    */
+   static class Connection
+      extends NioConnection
+   {
+      Map calls = new ConcurrentHashMap(); // Integer -> Call
+      AtomicInteger ids = new AtomicInteger();
+      volatile MessageListener listener;
+
+      ExecutorService pusher = ClientExecutors.newSerialExecutor("NioTransport-push");
+      AtomicInteger pushes = new AtomicInteger(); // Waiting for the pusher
+
+      Connection(NioReactor reactor, SocketChannel channel)
+         throws IOException
+      {
+         super(reactor, channel);
+      }
+
+      Object call(byte code, Object[] args)
+         throws RemoteException
+      {
+         int id = ids.incrementAndGet();
+         if (id == PUSH_ID)
+            id = ids.incrementAndGet();
+
+         Call call = new Call();
+         Integer key = new Integer(id);
+         calls.put(key, call);
+         try
+         {
+            send(id, code, args);
+            return call.get();
+         } catch (IOException e)
+         {
+            throw new ConnectException("Connection to server lost", e);
+         } finally
+         {
+            calls.remove(key);
+         }
+      }
+
+      void frameReceived(int id, byte code, ByteBuffer payload)
+         throws IOException
+      {
+         if (code == PUSH)
+         {
+            // Decoded here, as the decoder depends on the frame order
+            final Object[] push = (Object[])decode(payload);
+            if (pushes.incrementAndGet() >= MAX_PUSHES)
+               pauseReading();
+            try
+            {
+               pusher.execute(new Runnable()
+               {
+                  public void run()
+                  {
+                     try
+                     {
+                        pushed((TopicInfo)push[0], (Collection)push[1]);
+                     } finally
+                     {
+                        if (pushes.decrementAndGet() == MAX_PUSHES/2)
+                           resumeReading();
+                     }
+                  }
+               });
+            } catch (RejectedExecutionException e)
+            {
+               // Closed
+            }
+            return;
+         }
+
+         Call call = (Call)calls.get(new Integer(id));
+         if (call != null)
+            call.done(code, decode(payload));
+      }
+
+      /**
+       *   Hand pushed messages to the listener. Called by the pusher.
+       */
+      void pushed(TopicInfo topic, Collection messages)
+      {
+         MessageListener l = listener;
+         try
+         {
+            if (l instanceof TopicMessageListener && topic != null)
+               ((TopicMessageListener)l).messagePublished(topic, messages);
+            else if (l != null)
+               l.messagePublished(messages);
+         } catch (Exception e)
+         {
+            e.printStackTrace();
+         }
+      }
+
+      void closed(Exception cause)
+      {
+         pusher.shutdown();
+         Iterator iter = calls.values().iterator();
+         while (iter.hasNext())
+         {
+            ((Call)iter.next()).done(NioConnection.ERROR, new ConnectException("Connection to server lost", cause));
+         }
+      }
+   }
+
+   /**
+    *   An outstanding call, completed by the reactor thread.
+    */
+   static class Call
+   {
+      boolean done;
+      byte code;
+      Object result;
+
+      synchronized void done(byte code, Object result)
+      {
+         if (done)
+            return;
+
+         this.code = code;
+         this.result = result;
+         done = true;
+         notifyAll();
+      }
+
+      synchronized Object get()
+         throws RemoteException
+      {
+         long end = System.currentTimeMillis()+TIMEOUT;
+         try
+         {
+            while (!done)
+            {
+               long wait = end-System.currentTimeMillis();
+               if (wait <= 0)
+                  throw new ConnectException("No reply from server in "+TIMEOUT+" ms");
+               wait(wait);
+            }
+         } catch (InterruptedException e)
+         {
+            Thread.currentThread().interrupt();
+            throw new RemoteException("Interrupted while waiting for server", e);
+         }
+
+         if (code == NioConnection.ERROR)
+         {
+            if (result instanceof RemoteException)
+               throw (RemoteException)result;
+            throw new ServerException("Call failed on server", (Exception)result);
+         }
+         return result;
+      }
+   }
+
+   /**
+    *   The topic server as seen through a connection.
+    */
+   static class Server
+      implements TopicServer
+   {
+      Connection connection;
+      int listenerCount; // Infos added, several for a SharedConnection
+
+      Server(Connection connection)
+      {
+         this.connection = connection;
+      }
+
+      public void addListener(ListenerInfo info, MessageListener listener)
+         throws RemoteException
+      {
+         synchronized (this)
+         {
+            connection.listener = listener;
+            listenerCount++;
+         }
+         connection.call(NioConnection.ADD_LISTENER, new Object[] { info });
+      }
+
+      public void removeListener(ListenerInfo info)
+         throws RemoteException
+      {
+         connection.call(NioConnection.REMOVE_LISTENER, new Object[] { info });
+         synchronized (this)
+         {
+            if (--listenerCount <= 0)
+            {
+               connection.listener = null;
+               listenerCount = 0;
+            }
+         }
+      }
+
+      /**
+       *   The returned topic implements the optional topic interfaces
+       *   that the topic on the server implements.
+       */
+      public Topic subscribe(TopicInfo topicInfo, ListenerInfo info)
+         throws RemoteException
+      {
+         int capabilities = ((Integer)connection.call(NioConnection.SUBSCRIBE, new Object[] { topicInfo, info })).intValue();
+
+         // Only interfaces whose every call the connection carries
+         List interfaces = new ArrayList();
+         interfaces.add(Topic.class);
+         if ((capabilities & NioConnection.BATCH) != 0 && TopicHandler.supports(BatchTopic.class))
+            interfaces.add(BatchTopic.class);
+         if ((capabilities & NioConnection.CATCH_UP) != 0 && TopicHandler.supports(CatchUpTopic.class))
+            interfaces.add(CatchUpTopic.class);
+         if ((capabilities & NioConnection.PAGED) != 0 && TopicHandler.supports(PagedTopic.class))
+            interfaces.add(PagedTopic.class);
+
+         return (Topic)Proxy.newProxyInstance(NioTransport.class.getClassLoader(),
+                                              (Class[])interfaces.toArray(new Class[interfaces.size()]),
+                                              new TopicHandler(connection, topicInfo));
+      }
+
+      public void unsubscribe(TopicInfo topicInfo, ListenerInfo info)
+         throws RemoteException
+      {
+         connection.call(NioConnection.UNSUBSCRIBE, new Object[] { topicInfo, info });
+      }
+
+      public Collection getTopicInfos()
+         throws RemoteException
+      {
+         return (Collection)connection.call(NioConnection.GET_TOPIC_INFOS, new Object[0]);
+      }
+
+      // The calls of PagedTopicServer, which only the subclasses
+      // declaring it make available
+      public long getTopicVersion()
+         throws RemoteException
+      {
+         return ((Long)connection.call(NioConnection.GET_TOPIC_VERSION, new Object[0])).longValue();
+      }
+
+      public int getTopicCount()
+         throws RemoteException
+      {
+         return ((Integer)connection.call(NioConnection.GET_TOPIC_COUNT, new Object[0])).intValue();
+      }
+
+      public Collection getTopicInfos(long version, int from, int count)
+         throws RemoteException
+      {
+         return (Collection)connection.call(NioConnection.GET_TOPIC_PAGE, new Object[] { new Long(version), new Integer(from), new Integer(count) });
+      }
+   }
+
+   static class MultiServer
+      extends Server
+      implements MultiTopicServer
+   {
+      MultiServer(Connection connection)
+      {
+         super(connection);
+      }
+   }
+
+   static class PagedServer
+      extends Server
+      implements PagedTopicServer
+   {
+      PagedServer(Connection connection)
+      {
+         super(connection);
+      }
+   }
+
+   static class PagedMultiServer
+      extends MultiServer
+      implements PagedTopicServer
+   {
+      PagedMultiServer(Connection connection)
+      {
+         super(connection);
+      }
+   }
+
+   /**
+    *   Maps the calls on a topic to requests on the connection. Every
+    *   request is sent with the topic and the arguments of the call.
+    */
+   static class TopicHandler
+      implements InvocationHandler
+   {
+      Connection connection;
+      TopicInfo info;
+
+      /**
+       *   The request of a call, or 0 if the connection does not carry
+       *   it.
+       */
+      static byte getRequest(Method method)
+      {
+         String name = method.getName();
+         int count = method.getParameterTypes().length;
+         if (name.equals("publishMessage") && count == 1)
+            return NioConnection.PUBLISH;
+         else if (name.equals("publishMessages") && count == 1)
+            return NioConnection.PUBLISH_BATCH;
+         else if (name.equals("getListenerInfos") && count == 0)
+            return NioConnection.GET_LISTENER_INFOS;
+         else if (name.equals("getListenerInfos") && count == 2)
+            return NioConnection.GET_LISTENER_PAGE;
+         else if (name.equals("getListenerCount") && count == 0)
+            return NioConnection.GET_LISTENER_COUNT;
+         else if (name.equals("getSequence") && count == 1)
+            return NioConnection.GET_SEQUENCE;
+         else if (name.equals("getMessages") && count == 2)
+            return NioConnection.GET_MESSAGES;
+         return 0;
+      }
+
+      /**
+       *   Whether the connection carries every call of the interface.
+       */
+      static boolean supports(Class type)
+      {
+         Method[] methods = type.getMethods();
+         for (int i = 0; i < methods.length; i++)
+         {
+            if (getRequest(methods[i]) == 0)
+               return false;
+         }
+         return true;
+      }
+
+      TopicHandler(Connection connection, TopicInfo info)
+      {
+         this.connection = connection;
+         this.info = info;
+      }
+
+      public Object invoke(Object proxy, Method method, Object[] args)
+         throws Throwable
+      {
+         if (method.getDeclaringClass() == Object.class)
+         {
+            String name = method.getName();
+            if (name.equals("equals"))
+               return Boolean.valueOf(proxy == args[0]);
+            else if (name.equals("hashCode"))
+               return new Integer(System.identityHashCode(proxy));
+            return "Topic["+info+"]";
+         }
+
+         // Only calls of Topic itself can be missing, see supports
+         byte code = getRequest(method);
+         if (code == 0)
+            throw new ServerException("Not supported by the NIO transport:"+method.getName());
+
+         int count = args == null ? 0 : args.length;
+         Object[] request = new Object[count+1];
+         request[0] = info;
+         for (int i = 0; i < count; i++)
+            request[i+1] = args[i];
+
+         // The collection may not be one the codec knows
+         if (code == NioConnection.PUBLISH_BATCH)
+            request[1] = new ArrayList((Collection)args[0]);
+         return connection.call(code, request);
+      }
+   }
+}
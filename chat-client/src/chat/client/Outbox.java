@@ -0,0 +1,665 @@
+/*
+ * Copyright 1999 by dreamBean Software,
+ * All rights reserved.
+ */
+package chat.client;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+import chat.interfaces.Message;
+
+/**
+ *   Durable queue of the messages published by a client, so that they
+ *   survive lost connections and restarts. Only chat messages go through
+ *   the outbox; typing changes and the like would be stale by the time
+ *   they were sent again. A message is appended to the
+ *   outbox file before it is sent, and removed once the server has taken
+ *   it. Messages are written and sent by a thread of the outbox, in the
+ *   order they were published.
+ *
+ *   The file is synced as given by chat.outbox.sync: GROUP syncs once
+ *   for all the messages written together, which is as durable as EACH,
+ *   which syncs after every message, at a fraction of the syncs. NONE
+ *   leaves it to the operating system.
+ *
+ *   Once sending a message fails because the connection was lost, the
+ *   outbox sends no more until replay is called, which the client does
+ *   when it is reconnected, and then sends all the messages not taken
+ *   yet again, in order. Messages of topics that the client is not
+ *   subscribed to, as after a restart, are kept until it subscribes.
+ *
+ *   A message may reach the server twice, if the connection was lost
+ *   after the server took it but before the client heard so. If the
+ *   chat.outbox.keys system property is true the messages are sent with
+ *   an idempotency key, which receivers use to drop the copies. The
+ *   server must then be able to load KeyedContent.
+ *
+ *   As not every server can take keys, and copies are shown twice
+ *   without them, the outbox is only used if the chat.outbox system
+ *   property is true.
+ *
+ *   @see ChatClient#setOutbox
+ *   @see KeyedContent
+ *   @version $Revision:$
+ */
+public class Outbox
+   implements Runnable
+{
+   // Constants -----------------------------------------------------
+   public static final boolean ENABLED = Boolean.getBoolean("chat.outbox");
+   public static final boolean KEYS = Boolean.getBoolean("chat.outbox.keys");
+   public static final Sync DEFAULT_SYNC = Sync.valueOf(System.getProperty("chat.outbox.sync", "GROUP"));
+
+   public enum Sync { GROUP, EACH, NONE }
+
+   static final int MAGIC = 0x43484f42;
+   static final int HEADER = 4;
+   static final byte RECORD = 1;
+   static final byte ACK = 2;
+
+   // Most messages written with one sync
+   static final int MAX_GROUP = 1024;
+
+   // The file is emptied once nothing is pending and it is this large
+   static final long COMPACT_SIZE = 1 << 20;
+
+   // Wait before sending again what the publish queue could not take
+   static final long RETRY_DELAY = 100; // ms
+
+   // Attributes ----------------------------------------------------
+   File file;
+   Sync sync;
+   RandomAccessFile raf;
+   FileChannel channel;
+   long origin = new Random().nextLong(); // Of the messages added since opened
+   long nextSequence = 1;
+
+   Sender sender;
+   LinkedList added = new LinkedList(); // Entry, not written yet
+   LinkedList acked = new LinkedList(); // Long, not written yet
+   Map pending = new LinkedHashMap(); // Sequence -> Entry, written and not taken
+   boolean replay;
+   boolean stalled;
+   boolean retry; // Replay after RETRY_DELAY
+   int epoch;
+   Set blocked = new HashSet(); // Topics not subscribed to, until the next replay
+   boolean closed;
+
+   // Held while sending, so that no message is sent once the sender is removed
+   Object sending = new Object();
+   Thread writer;
+
+   // Statistics
+   long written;
+   long syncs;
+
+   // Static --------------------------------------------------------
+   /**
+    *   The outbox file of the user on the server, in the directory given
+    *   by chat.outbox.dir or else .chat/outbox in the home directory.
+    */
+   public static File getDefaultFile(String server, String user)
+   {
+      String base = System.getProperty("chat.outbox.dir");
+      File dir = base != null ? new File(base) : new File(new File(System.getProperty("user.home"), ".chat"), "outbox");
+      return new File(new File(dir, MessageLog.toFileName(server)), MessageLog.toFileName(user));
+   }
+
+   // Constructors --------------------------------------------------
+   public Outbox(File file)
+      throws IOException
+   {
+      this(file, DEFAULT_SYNC);
+   }
+
+   /**
+    *   Open the outbox file, which is created if it does not exist. The
+    *   messages in it that were not taken are pending.
+    */
+   public Outbox(File file, Sync sync)
+      throws IOException
+   {
+      this.file = file;
+      this.sync = sync;
+      if (file.getParentFile() != null)
+         file.getParentFile().mkdirs();
+      open();
+
+      writer = new Thread(this, "ChatClient-outbox");
+      writer.setDaemon(true);
+      writer.start();
+   }
+
+   // Public --------------------------------------------------------
+   /**
+    *   Add a message for the topic of the given name. The returned
+    *   future is completed once the server has taken the message. It
+    *   fails only if the server refused it or the outbox is closed, not
+    *   when the connection is lost, as the message is then sent again.
+    */
+   public synchronized PublishFuture publish(String topic, Message message)
+   {
+      PublishFuture future = new PublishFuture(message);
+      if (closed)
+      {
+         future.fail(new IllegalStateException("Outbox is closed"));
+         return future;
+      }
+
+      added.add(new Entry(topic, origin, nextSequence++, message, future));
+      notifyAll();
+      return future;
+   }
+
+   /**
+    *   Send the messages with the given sender, starting with the ones
+    *   pending. Without a sender, as when logging out, no messages are
+    *   sent. Returns once sending has stopped if it is null.
+    */
+   public void setSender(Sender sender)
+   {
+      synchronized (sending)
+      {
+         synchronized (this)
+         {
+            this.sender = sender;
+            replay = sender != null;
+            notifyAll();
+         }
+      }
+   }
+
+   /**
+    *   Send all the messages not taken yet again, in order, as when the
+    *   connection was restored or a topic subscribed to.
+    */
+   public synchronized void replay()
+   {
+      replay = true;
+      notifyAll();
+   }
+
+   /**
+    *   The number of messages that were not taken yet.
+    */
+   public synchronized int getPending()
+   {
+      return pending.size()+added.size();
+   }
+
+   /**
+    *   The number of messages written, and the number of syncs.
+    */
+   public synchronized long[] getStatistics()
+   {
+      return new long[] { written, syncs };
+   }
+
+   /**
+    *   Write the messages published so far and close the file. The
+    *   messages not taken stay in it.
+    */
+   public void close()
+   {
+      synchronized (this)
+      {
+         closed = true;
+         notifyAll();
+      }
+
+      try
+      {
+         writer.join();
+      } catch (InterruptedException e)
+      {
+         Thread.currentThread().interrupt();
+      }
+
+      try
+      {
+         channel.close();
+      } catch (IOException e)
+      {
+         e.printStackTrace();
+      }
+   }
+
+   // Runnable implementation ---------------------------------------
+   public void run()
+   {
+      List batch = new ArrayList();
+      List acks = new ArrayList();
+      while (true)
+      {
+         boolean all;
+         boolean last;
+         synchronized (this)
+         {
+            while (!closed && added.isEmpty() && acked.isEmpty() && !replay)
+            {
+               try
+               {
+                  if (retry)
+                  {
+                     wait(RETRY_DELAY);
+                     if (retry)
+                     {
+                        retry = false;
+                        replay = true;
+                     }
+                  } else
+                  {
+                     wait();
+                  }
+               } catch (InterruptedException e)
+               {
+                  // Closed below
+               }
+            }
+
+            while (!added.isEmpty() && batch.size() < MAX_GROUP)
+               batch.add(added.removeFirst());
+            acks.addAll(acked);
+            acked.clear();
+            last = closed && added.isEmpty();
+
+            all = replay && !closed;
+            if (all)
+            {
+               replay = false;
+               stalled = false;
+               retry = false;
+               epoch++;
+               blocked.clear();
+            }
+         }
+
+         try
+         {
+            write(batch, acks);
+            synchronized (this)
+            {
+               for (int i = 0; i < batch.size(); i++)
+               {
+                  Entry entry = (Entry)batch.get(i);
+                  pending.put(new Long(entry.sequence), entry);
+               }
+            }
+         } catch (IOException e)
+         {
+            // The messages are not durable, so they are not sent
+            e.printStackTrace();
+            for (int i = 0; i < batch.size(); i++)
+               ((Entry)batch.get(i)).future.fail(e);
+            batch.clear();
+         }
+
+         if (last)
+            return;
+
+         if (all)
+         {
+            synchronized (this)
+            {
+               batch = new ArrayList(pending.values());
+            }
+         }
+         send(batch);
+         batch.clear();
+         acks.clear();
+
+         compact();
+      }
+   }
+
+   // Package protected ---------------------------------------------
+   /**
+    *   Read the messages of the file that were not taken, and write
+    *   them to a new file without the rest. A record that was not
+    *   completely written ends the file.
+    */
+   void open()
+      throws IOException
+   {
+      // The file is only deleted once the new one is complete, so if
+      // it is gone the new one is what is left of the last open
+      File temp = new File(file.getPath()+".tmp");
+      if (!file.exists() && temp.exists() && !temp.renameTo(file))
+         throw new IOException("Could not recover "+file+" from "+temp);
+
+      if (file.exists() && file.length() >= HEADER)
+      {
+         byte[] bytes = new byte[(int)file.length()];
+         RandomAccessFile in = new RandomAccessFile(file, "r");
+         try
+         {
+            in.readFully(bytes);
+         } finally
+         {
+            in.close();
+         }
+
+         DataInputStream data = new DataInputStream(new ByteArrayInputStream(bytes));
+         if (data.readInt() != MAGIC)
+            throw new IOException("Not an outbox file: "+file);
+         try
+         {
+            while (data.available() > 0)
+            {
+               byte type = data.readByte();
+               long sequence = data.readLong();
+               nextSequence = Math.max(nextSequence, sequence+1);
+               if (type == ACK)
+               {
+                  pending.remove(new Long(sequence));
+               } else if (type == RECORD)
+               {
+                  long entryOrigin = data.readLong();
+                  String topic = data.readUTF();
+                  byte[] encoded = new byte[data.readInt()];
+                  int crc = data.readInt();
+                  data.readFully(encoded);
+                  if (crc != crc(encoded))
+                     break;
+                  Message message = (Message)new MessageCodec().decode(ByteBuffer.wrap(encoded));
+                  pending.put(new Long(sequence), new Entry(topic, entryOrigin, sequence, message, null));
+               } else
+               {
+                  break;
+               }
+            }
+         } catch (IOException e)
+         {
+            // Torn record
+         }
+      }
+
+      // Rewrite with only what is pending
+      temp.delete();
+      raf = new RandomAccessFile(temp, "rw");
+      channel = raf.getChannel();
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      DataOutputStream out = new DataOutputStream(bytes);
+      out.writeInt(MAGIC);
+      Iterator entries = pending.values().iterator();
+      while (entries.hasNext())
+         writeRecord(out, (Entry)entries.next());
+      channel.write(ByteBuffer.wrap(bytes.toByteArray()));
+      channel.force(true);
+      channel.close();
+
+      if (!temp.renameTo(file))
+      {
+         file.delete();
+         if (!temp.renameTo(file))
+            throw new IOException("Could not replace "+file);
+      }
+
+      raf = new RandomAccessFile(file, "rw");
+      channel = raf.getChannel();
+      channel.position(channel.size());
+   }
+
+   /**
+    *   Write the messages and acknowledgements to the end of the file
+    *   and sync it as configured.
+    */
+   void write(List batch, List acks)
+      throws IOException
+   {
+      if (batch.isEmpty() && acks.isEmpty())
+         return;
+
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      DataOutputStream out = new DataOutputStream(bytes);
+      for (int i = 0; i < acks.size(); i++)
+      {
+         out.writeByte(ACK);
+         out.writeLong(((Long)acks.get(i)).longValue());
+      }
+
+      int synced = 0;
+      for (int i = 0; i < batch.size(); i++)
+      {
+         writeRecord(out, (Entry)batch.get(i));
+         if (sync == Sync.EACH)
+         {
+            flush(bytes, true);
+            synced++;
+         }
+      }
+
+      if (bytes.size() > 0)
+      {
+         boolean force = sync == Sync.GROUP && !batch.isEmpty();
+         flush(bytes, force);
+         if (force)
+            synced++;
+      }
+
+      synchronized (this)
+      {
+         written += batch.size();
+         syncs += synced;
+      }
+   }
+
+   void writeRecord(DataOutputStream out, Entry entry)
+      throws IOException
+   {
+      ByteBuffer encoded = new MessageCodec().encode(entry.message);
+      byte[] data = new byte[encoded.remaining()];
+      encoded.get(data);
+
+      out.writeByte(RECORD);
+      out.writeLong(entry.sequence);
+      out.writeLong(entry.origin);
+      out.writeUTF(entry.topic);
+      out.writeInt(data.length);
+      out.writeInt(crc(data));
+      out.write(data);
+   }
+
+   void flush(ByteArrayOutputStream bytes, boolean force)
+      throws IOException
+   {
+      ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+      while (buffer.hasRemaining())
+         channel.write(buffer);
+      bytes.reset();
+      if (force)
+         channel.force(false);
+   }
+
+   static int crc(byte[] data)
+   {
+      CRC32 crc = new CRC32();
+      crc.update(data, 0, data.length);
+      return (int)crc.getValue();
+   }
+
+   /**
+    *   Send the messages in order, unless sending is stalled or their
+    *   topic is blocked.
+    */
+   void send(List entries)
+   {
+      synchronized (sending)
+      {
+         for (int i = 0; i < entries.size(); i++)
+         {
+            final Entry entry = (Entry)entries.get(i);
+            final int sentEpoch;
+            Sender target;
+            synchronized (this)
+            {
+               if (stalled || sender == null)
+                  return;
+               if (entry.sending || blocked.contains(entry.topic) || !pending.containsKey(new Long(entry.sequence)))
+                  continue;
+               entry.sending = true;
+               target = sender;
+               sentEpoch = epoch;
+            }
+
+            final PublishFuture sent = target.send(entry);
+            if (sent == null)
+            {
+               synchronized (this)
+               {
+                  entry.sending = false;
+                  blocked.add(entry.topic);
+               }
+               continue;
+            }
+
+            sent.addListener(new Runnable()
+            {
+               public void run()
+               {
+                  sent(entry, sent.getException(), sentEpoch);
+               }
+            });
+         }
+      }
+   }
+
+   /**
+    *   The server took the message, or sending it failed. Only messages
+    *   the server took or refused are done with.
+    */
+   void sent(Entry entry, Exception e, int sentEpoch)
+   {
+      synchronized (this)
+      {
+         entry.sending = false;
+         if (e instanceof RemoteException)
+         {
+            // Sent again on the next replay, or now if that was before
+            if (sentEpoch == epoch)
+               stalled = true;
+            else
+               replay = true;
+            notifyAll();
+            return;
+         }
+         if (e instanceof IllegalStateException)
+         {
+            // The publish queue was full or closed, so the message never
+            // reached the server. Sent again a little later
+            if (sentEpoch == epoch)
+            {
+               stalled = true;
+               retry = true;
+            }
+            notifyAll();
+            return;
+         }
+
+         pending.remove(new Long(entry.sequence));
+         acked.add(new Long(entry.sequence));
+         notifyAll();
+      }
+
+      if (entry.future != null)
+      {
+         if (e == null)
+            entry.future.complete();
+         else
+            entry.future.fail(e);
+      }
+   }
+
+   /**
+    *   Empty the file once nothing is pending, if it has grown large.
+    */
+   void compact()
+   {
+      try
+      {
+         synchronized (this)
+         {
+            if (!pending.isEmpty() || !added.isEmpty() || !acked.isEmpty() || channel.size() < COMPACT_SIZE)
+               return;
+            channel.truncate(HEADER);
+            channel.position(HEADER);
+         }
+      } catch (IOException e)
+      {
+         e.printStackTrace();
+      }
+   }
+
+   // Inner classes -------------------------------------------------
+   /**
+    *   Sends the messages of the outbox.
+    */
+   public interface Sender
+   {
+      /**
+       *   Send the message of the entry to its topic, or return null if
+       *   not subscribed to it.
+       */
+      public PublishFuture send(Entry entry);
+   }
+
+   /**
+    *   A message of the outbox.
+    */
+   public static class Entry
+   {
+      String topic;
+      long origin;
+      long sequence;
+      Message message;
+      PublishFuture future; // Null if published before a restart
+      boolean sending;
+
+      Entry(String topic, long origin, long sequence, Message message, PublishFuture future)
+      {
+         this.topic = topic;
+         this.origin = origin;
+         this.sequence = sequence;
+         this.message = message;
+         this.future = future;
+      }
+
+      public String getTopic()
+      {
+         return topic;
+      }
+
+      public Message getMessage()
+      {
+         return message;
+      }
+
+      /**
+       *   The given form of the message, such as compressed, with the
+       *   idempotency key of the message.
+       */
+      public Message withKey(Message sent)
+      {
+         return new Message(sent.getSender(), sent.getType(), new KeyedContent(origin, sequence, sent.getContent()));
+      }
+   }
+}
@@ -0,0 +1,28 @@
+/*
+ * Copyright 1999 by dreamBean Software,
+ * All rights reserved.
+ */
+package chat.client;
+
+import java.rmi.RemoteException;
+import java.util.Collection;
+
+import chat.interfaces.Topic;
+
+/**
+ *   Optional extension of Topic for servers that can return the user
+ *   list of a topic a page at a time. Large rosters are then loaded in
+ *   the background instead of in one call.
+ *
+ *   @see UserListModel#load
+ *   @version $Revision:$
+ */
+public interface PagedTopic
+   extends Topic
+{
+   public int getListenerCount()
+      throws RemoteException;
+
+   public Collection getListenerInfos(int from, int count)
+      throws RemoteException;
+}
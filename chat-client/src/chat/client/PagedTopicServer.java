@@ -0,0 +1,41 @@
+/*
+ * Copyright 1999 by dreamBean Software,
+ * All rights reserved.
+ */
+package chat.client;
+
+import java.rmi.RemoteException;
+import java.util.Collection;
+
+import chat.interfaces.TopicServer;
+
+/**
+ *   Optional extension of TopicServer for servers that can tell whether
+ *   their topic list has changed and return it a page at a time. A
+ *   client with a saved topic directory then only has to compare the
+ *   version to know it is current, and otherwise loads the pages it
+ *   shows instead of the whole list.
+ *
+ *   @see TopicDirectory
+ *   @version $Revision:$
+ */
+public interface PagedTopicServer
+   extends TopicServer
+{
+   /**
+    *   The version of the topic list. It is increased by one for every
+    *   topic created or removed.
+    */
+   public long getTopicVersion()
+      throws RemoteException;
+
+   public int getTopicCount()
+      throws RemoteException;
+
+   /**
+    *   Get the topics from..from+count of the list at the given version,
+    *   or null if the list has changed since.
+    */
+   public Collection getTopicInfos(long version, int from, int count)
+      throws RemoteException;
+}
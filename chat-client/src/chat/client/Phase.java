@@ -0,0 +1,153 @@
+/*
+ * Copyright 1999 by dreamBean Software,
+ * All rights reserved.
+ */
+package chat.client;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ *   A group of concurrent tasks that ends as a whole. Tasks are forked
+ *   on an executor and join waits for all of them, so that no task of a
+ *   phase outlives it. The first task to fail cancels the others, and
+ *   its exception is thrown by join.
+ *
+ *   <pre>
+ *   Phase login = new Phase("login", executor);
+ *   for (int i = 0; i &lt; clients.length; i++)
+ *      login.fork(new Login(clients[i]));
+ *   login.join();
+ *   </pre>
+ *
+ *   @see ClientExecutors
+ *   @see LoadGenerator
+ *   @version $Revision:$
+ */
+public class Phase
+{
+   // Attributes ----------------------------------------------------
+   String name;
+   ExecutorService executor;
+   List futures = new ArrayList();
+   Exception failure;
+   long start = System.nanoTime();
+   long end;
+
+   // Constructors --------------------------------------------------
+   public Phase(String name, ExecutorService executor)
+   {
+      this.name = name;
+      this.executor = executor;
+   }
+
+   // Public --------------------------------------------------------
+   /**
+    *   Start the task, unless a task of the phase has failed already.
+    */
+   public void fork(final Callable task)
+   {
+      synchronized (this)
+      {
+         if (failure != null)
+            return;
+      }
+
+      Future future = executor.submit(new Callable()
+      {
+         public Object call()
+            throws Exception
+         {
+            try
+            {
+               return task.call();
+            } catch (Exception e)
+            {
+               failed(e);
+               throw e;
+            }
+         }
+      });
+
+      synchronized (this)
+      {
+         futures.add(future);
+         if (failure != null)
+            future.cancel(true);
+      }
+   }
+
+   /**
+    *   Wait for all tasks to end, and throw the exception of the first
+    *   task that failed.
+    */
+   public void join()
+      throws Exception
+   {
+      Object[] all;
+      synchronized (this)
+      {
+         all = futures.toArray();
+      }
+
+      for (int i = 0; i < all.length; i++)
+      {
+         try
+         {
+            ((Future)all[i]).get();
+         } catch (CancellationException e)
+         {
+            // Cancelled by a failure
+         } catch (ExecutionException e)
+         {
+            // Recorded when it failed
+         }
+      }
+      end = System.nanoTime();
+
+      synchronized (this)
+      {
+         if (failure != null)
+            throw failure;
+      }
+   }
+
+   public String getName()
+   {
+      return name;
+   }
+
+   /**
+    *   The time from creating the phase until it was joined, in ns.
+    */
+   public long getElapsed()
+   {
+      return (end == 0 ? System.nanoTime() : end) - start;
+   }
+
+   public String toString()
+   {
+      return name+": "+futures.size()+" tasks in "+getElapsed()/1000000+" ms";
+   }
+
+   // Private -------------------------------------------------------
+   void failed(Exception e)
+   {
+      Object[] all;
+      synchronized (this)
+      {
+         if (failure != null)
+            return;
+         failure = e;
+         all = futures.toArray();
+      }
+
+      for (int i = 0; i < all.length; i++)
+         ((Future)all[i]).cancel(true);
+   }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright 1999 by dreamBean Software,
+ * All rights reserved.
+ */
+package chat.client;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import chat.interfaces.Message;
+
+/**
+ *   The result of an asynchronous publish. The future is completed by
+ *   the publish pipeline once the server has accepted the message, or
+ *   has failed with the exception that prevented it from being sent.
+ *
+ *   Listeners are run on the thread that completes the future, which is
+ *   usually the publisher thread, so they must not block.
+ *
+ *   @see PublishPipeline
+ *   @version $Revision:$
+ */
+public class PublishFuture
+   implements Future
+{
+   // Attributes ----------------------------------------------------
+   Message message;
+   boolean done;
+   Exception exception;
+   List listeners;
+
+   // Static --------------------------------------------------------
+   static PublishFuture failed(Message message, Exception e)
+   {
+      PublishFuture future = new PublishFuture(message);
+      future.fail(e);
+      return future;
+   }
+
+   // Constructors --------------------------------------------------
+   public PublishFuture(Message message)
+   {
+      this.message = message;
+   }
+
+   // Public --------------------------------------------------------
+   public Message getMessage()
+   {
+      return message;
+   }
+
+   /**
+    *   The reason the message was not published, or null if it was
+    *   published or is still pending.
+    */
+   public synchronized Exception getException()
+   {
+      return exception;
+   }
+
+   public void addListener(Runnable listener)
+   {
+      synchronized (this)
+      {
+         if (!done)
+         {
+            if (listeners == null)
+               listeners = new ArrayList();
+            listeners.add(listener);
+            return;
+         }
+      }
+
+      listener.run();
+   }
+
+   // Future implementation -----------------------------------------
+   public boolean cancel(boolean mayInterruptIfRunning)
+   {
+      // Messages can not be taken back once queued
+      return false;
+   }
+
+   public boolean isCancelled()
+   {
+      return false;
+   }
+
+   public synchronized boolean isDone()
+   {
+      return done;
+   }
+
+   public synchronized Object get()
+      throws InterruptedException, ExecutionException
+   {
+      while (!done)
+         wait();
+      return getResult();
+   }
+
+   public synchronized Object get(long timeout, TimeUnit unit)
+      throws InterruptedException, ExecutionException, TimeoutException
+   {
+      long end = System.nanoTime()+unit.toNanos(timeout);
+      while (!done)
+      {
+         long remaining = end-System.nanoTime();
+         if (remaining <= 0)
+            throw new TimeoutException();
+         TimeUnit.NANOSECONDS.timedWait(this, remaining);
+      }
+      return getResult();
+   }
+
+   // Package protected ---------------------------------------------
+   void complete()
+   {
+      finish(null);
+   }
+
+   void fail(Exception e)
+   {
+      finish(e);
+   }
+
+   // Private -------------------------------------------------------
+   private Object getResult()
+      throws ExecutionException
+   {
+      if (exception != null)
+         throw new ExecutionException(exception);
+      return message;
+   }
+
+   private void finish(Exception e)
+   {
+      List toRun;
+      synchronized (this)
+      {
+         if (done)
+            return;
+
+         done = true;
+         exception = e;
+         toRun = listeners;
+         listeners = null;
+         notifyAll();
+      }
+
+      if (toRun != null)
+      {
+         for (int i = 0; i < toRun.size(); i++)
+         {
+            try
+            {
+               ((Runnable)toRun.get(i)).run();
+            } catch (RuntimeException re)
+            {
+               re.printStackTrace();
+            }
+         }
+      }
+   }
+}
@@ -0,0 +1,315 @@
+/*
+ * Copyright 1999 by dreamBean Software,
+ * All rights reserved.
+ */
+package chat.client;
+
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import chat.interfaces.Message;
+import chat.interfaces.Topic;
+
+/**
+ *   Outbound message pipeline. Messages are put on a bounded queue and
+ *   sent by a dedicated publisher thread, so callers never wait for the
+ *   server. The publisher collects messages into batches of at most
+ *   batchSize messages, waiting at most linger ms for a batch to fill,
+ *   and sends each batch in one call if the topic is a BatchTopic.
+ *
+ *   What happens when the queue is full is decided by the backpressure
+ *   policy: BLOCK waits for room, DROP_OLDEST fails the oldest queued
+ *   message to make room, and FAIL_FAST fails the new message.
+ *
+ *   @see ChatClient#publishMessage
+ *   @see PublishFuture
+ *   @version $Revision:$
+ */
+public class PublishPipeline
+   implements Runnable
+{
+   // Constants -----------------------------------------------------
+   public static final int DEFAULT_QUEUE_SIZE = Integer.getInteger("chat.publish.queueSize", 1024).intValue();
+   public static final int DEFAULT_BATCH_SIZE = Integer.getInteger("chat.publish.batchSize", 64).intValue();
+   public static final long DEFAULT_LINGER = Long.getLong("chat.publish.linger", 5).longValue();
+   public static final Backpressure DEFAULT_BACKPRESSURE = Backpressure.valueOf(System.getProperty("chat.publish.backpressure", "BLOCK"));
+
+   public enum Backpressure { BLOCK, DROP_OLDEST, FAIL_FAST }
+
+   // Put on the queue by close, after the last message to send
+   static final Pending CLOSE = new Pending(null, null);
+
+   // Attributes ----------------------------------------------------
+   BlockingQueue queue;
+   int batchSize;
+   long linger;
+   Backpressure backpressure;
+
+   Thread publisher;
+   volatile boolean closed;
+
+   // Held to publish, and taken exclusively to close, so that nothing is
+   // queued after the publisher was told to stop
+   ReadWriteLock closeLock = new ReentrantReadWriteLock();
+
+   // Constructors --------------------------------------------------
+   public PublishPipeline()
+   {
+      this(DEFAULT_QUEUE_SIZE, DEFAULT_BATCH_SIZE, DEFAULT_LINGER, DEFAULT_BACKPRESSURE);
+   }
+
+   public PublishPipeline(int queueSize, int batchSize, long linger, Backpressure backpressure)
+   {
+      this.queue = new ArrayBlockingQueue(queueSize);
+      this.batchSize = batchSize;
+      this.linger = linger;
+      this.backpressure = backpressure;
+
+      publisher = new Thread(this, "ChatClient-publisher");
+      publisher.setDaemon(true);
+      publisher.start();
+   }
+
+   // Public --------------------------------------------------------
+   /**
+    *   Queue a message for publishing on the given topic.
+    */
+   public PublishFuture publish(Topic topic, Message message)
+   {
+      PublishFuture future = new PublishFuture(message);
+      closeLock.readLock().lock();
+      try
+      {
+         if (closed)
+            future.fail(new IllegalStateException("Publisher is closed"));
+         else
+            enqueue(new Pending(topic, future));
+      } finally
+      {
+         closeLock.readLock().unlock();
+      }
+      return future;
+   }
+
+   public int getQueueDepth()
+   {
+      return queue.size();
+   }
+
+   /**
+    *   Stop accepting messages, send what is already queued and stop
+    *   the publisher thread. The publisher is not interrupted, as that
+    *   would fail the call to the server it may be making.
+    */
+   public void close()
+   {
+      closeLock.writeLock().lock();
+      try
+      {
+         if (closed)
+            return;
+         closed = true;
+      } finally
+      {
+         closeLock.writeLock().unlock();
+      }
+
+      boolean interrupted = false;
+      while (true)
+      {
+         try
+         {
+            queue.put(CLOSE);
+            break;
+         } catch (InterruptedException e)
+         {
+            interrupted = true;
+         }
+      }
+      try
+      {
+         publisher.join();
+      } catch (InterruptedException e)
+      {
+         interrupted = true;
+      }
+      if (interrupted)
+         Thread.currentThread().interrupt();
+   }
+
+   // Runnable implementation ---------------------------------------
+   public void run()
+   {
+      List batch = new ArrayList(batchSize);
+      boolean last = false;
+      while (!last)
+      {
+         try
+         {
+            nextBatch(batch);
+         } catch (InterruptedException e)
+         {
+            // Only close stops the publisher
+         }
+
+         if (!batch.isEmpty() && batch.get(batch.size()-1) == CLOSE)
+         {
+            batch.remove(batch.size()-1);
+            last = true;
+         }
+
+         if (!batch.isEmpty())
+            send(batch);
+         batch.clear();
+      }
+   }
+
+   // Package protected ---------------------------------------------
+   /**
+    *   Queue the message as the backpressure policy says. Called with
+    *   the read lock held, so a blocked put holds up close until the
+    *   publisher makes room.
+    */
+   void enqueue(Pending pending)
+   {
+      PublishFuture future = pending.future;
+      switch (backpressure)
+      {
+         case BLOCK:
+            try
+            {
+               queue.put(pending);
+            } catch (InterruptedException e)
+            {
+               Thread.currentThread().interrupt();
+               future.fail(e);
+            }
+            break;
+
+         case DROP_OLDEST:
+            while (!queue.offer(pending))
+            {
+               Pending oldest = (Pending)queue.poll();
+               if (oldest != null)
+                  oldest.future.fail(new IllegalStateException("Dropped, publish queue is full"));
+            }
+            break;
+
+         case FAIL_FAST:
+            if (!queue.offer(pending))
+               future.fail(new IllegalStateException("Publish queue is full"));
+            break;
+      }
+   }
+
+   /**
+    *   Wait for the first message, then fill the batch until it is full,
+    *   the linger time has passed or the pipeline is closed.
+    */
+   void nextBatch(List batch)
+      throws InterruptedException
+   {
+      batch.add(queue.take());
+      queue.drainTo(batch, batchSize-batch.size());
+
+      long end = System.nanoTime()+TimeUnit.MILLISECONDS.toNanos(linger);
+      while (batch.size() < batchSize && batch.get(batch.size()-1) != CLOSE)
+      {
+         long remaining = end-System.nanoTime();
+         if (remaining <= 0)
+            break;
+
+         Object next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+         if (next == null)
+            break;
+         batch.add(next);
+         queue.drainTo(batch, batchSize-batch.size());
+      }
+   }
+
+   /**
+    *   Send the batch, one call per run of messages for the same topic.
+    *   Once a call fails the remaining messages of the run fail too, as
+    *   they would otherwise be delivered out of order.
+    */
+   void send(List batch)
+   {
+      int start = 0;
+      while (start < batch.size())
+      {
+         Topic topic = ((Pending)batch.get(start)).topic;
+         int end = start+1;
+         while (end < batch.size() && ((Pending)batch.get(end)).topic == topic)
+            end++;
+
+         List run = batch.subList(start, end);
+         int sent = 0;
+         try
+         {
+            if (topic instanceof BatchTopic)
+            {
+               List messages = new ArrayList(run.size());
+               for (int i = 0; i < run.size(); i++)
+                  messages.add(((Pending)run.get(i)).future.getMessage());
+               long callStart = ClientMetrics.ENABLED ? System.nanoTime() : 0;
+               ((BatchTopic)topic).publishMessages(messages);
+               if (ClientMetrics.ENABLED)
+                  ClientMetrics.METRICS.published(callStart, run.size());
+               sent = run.size();
+               for (int i = 0; i < run.size(); i++)
+                  ((Pending)run.get(i)).future.complete();
+            } else
+            {
+               for (int i = 0; i < run.size(); i++)
+               {
+                  PublishFuture future = ((Pending)run.get(i)).future;
+                  long callStart = ClientMetrics.ENABLED ? System.nanoTime() : 0;
+                  topic.publishMessage(future.getMessage());
+                  if (ClientMetrics.ENABLED)
+                     ClientMetrics.METRICS.published(callStart, 1);
+                  sent++;
+                  future.complete();
+               }
+            }
+         } catch (RemoteException e)
+         {
+            failed(run, sent, e);
+         } catch (RuntimeException e)
+         {
+            failed(run, sent, e);
+         }
+
+         start = end;
+      }
+   }
+
+   /**
+    *   Fail the messages of the run that were not sent.
+    */
+   void failed(List run, int sent, Exception e)
+   {
+      if (ClientMetrics.ENABLED)
+         ClientMetrics.METRICS.publishFailures.addAndGet(run.size()-sent);
+      for (int i = sent; i < run.size(); i++)
+         ((Pending)run.get(i)).future.fail(e);
+   }
+
+   // Inner classes -------------------------------------------------
+   static class Pending
+   {
+      Topic topic;
+      PublishFuture future;
+
+      Pending(Topic topic, PublishFuture future)
+      {
+         this.topic = topic;
+         this.future = future;
+      }
+   }
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright 1999 by dreamBean Software,
+ * All rights reserved.
+ */
+package chat.client;
+
+import java.rmi.RemoteException;
+import java.util.Timer;
+import java.util.TimerTask;
+
+/**
+ *   Restores the connection of a client, or of a shared connection,
+ *   after it has been lost. The reconnect is retried on a background
+ *   thread with jittered exponential backoff until it succeeds or the
+ *   client logs out.
+ *
+ *   The reconnector also runs a heartbeat for topics that support it,
+ *   since a client that only receives messages would otherwise never
+ *   notice that the server has dropped it.
+ *
+ *   @see ChatClient#reconnect
+ *   @see SharedConnection#reconnect
+ *   @see Backoff
+ *   @version $Revision:$
+ */
+public class Reconnector
+   implements Runnable
+{
+   // Constants -----------------------------------------------------
+   static final long BASE_DELAY = Long.getLong("chat.reconnect.baseDelay", 250).longValue();
+   static final long MAX_DELAY = Long.getLong("chat.reconnect.maxDelay", 30000).longValue();
+   static final long HEARTBEAT = Long.getLong("chat.reconnect.heartbeat", 2000).longValue();
+
+   // Attributes ----------------------------------------------------
+   Target target;
+   Backoff backoff = new Backoff(BASE_DELAY, MAX_DELAY);
+   Thread thread;
+   boolean restoring; // Reconnected, and telling the target so
+   Exception lost; // Lost again meanwhile
+   Timer heartbeat;
+   volatile boolean stopped;
+
+   // Constructors --------------------------------------------------
+   public Reconnector(final Target target)
+   {
+      this.target = target;
+
+      if (HEARTBEAT > 0)
+      {
+         heartbeat = new Timer("ChatClient-heartbeat", true);
+         heartbeat.schedule(new TimerTask()
+         {
+            public void run()
+            {
+               if (!isReconnecting())
+               {
+                  try
+                  {
+                     if (!target.isConnected())
+                        start(new RemoteException("Dropped by server"));
+                  } catch (RemoteException e)
+                  {
+                     start(e);
+                  }
+               }
+            }
+         }, HEARTBEAT, HEARTBEAT);
+      }
+   }
+
+   // Public --------------------------------------------------------
+   /**
+    *   Start reconnecting, unless already doing so. If the connection
+    *   is lost again while the target is told it was restored, the
+    *   reconnector goes on once it has been told.
+    */
+   public synchronized void start(Exception cause)
+   {
+      if (stopped)
+         return;
+      if (thread != null)
+      {
+         if (restoring && lost == null)
+            lost = cause;
+         return;
+      }
+
+      thread = new Thread(this, "ChatClient-reconnector");
+      thread.setDaemon(true);
+      thread.start();
+
+      target.connectionLost(cause);
+   }
+
+   public synchronized boolean isReconnecting()
+   {
+      return thread != null;
+   }
+
+   public void stop()
+   {
+      Thread running;
+      synchronized (this)
+      {
+         stopped = true;
+         running = thread;
+      }
+
+      if (heartbeat != null)
+         heartbeat.cancel();
+      if (running != null)
+         running.interrupt();
+   }
+
+   // Runnable implementation ---------------------------------------
+   public void run()
+   {
+      try
+      {
+         while (!stopped)
+         {
+            Thread.sleep(backoff.nextDelay());
+            try
+            {
+               target.reconnect();
+               backoff.reset();
+               synchronized (this)
+               {
+                  restoring = true;
+               }
+               target.connectionRestored();
+
+               Exception cause;
+               synchronized (this)
+               {
+                  restoring = false;
+                  cause = lost;
+                  lost = null;
+                  if (cause == null)
+                  {
+                     thread = null;
+                     return;
+                  }
+               }
+               target.connectionLost(cause);
+            } catch (Exception e)
+            {
+               System.err.println("Reconnect attempt "+backoff.getAttempts()+" failed: "+e);
+            }
+         }
+      } catch (InterruptedException e)
+      {
+         // Stopped
+      } finally
+      {
+         synchronized (this)
+         {
+            thread = null;
+            restoring = false;
+            lost = null;
+         }
+      }
+   }
+
+   // Inner classes -------------------------------------------------
+   /**
+    *   What is being reconnected.
+    */
+   public interface Target
+   {
+      public boolean isConnected()
+         throws RemoteException;
+
+      public void reconnect()
+         throws RemoteException;
+
+      public void connectionLost(Exception cause);
+
+      public void connectionRestored();
+   }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright 1999 by dreamBean Software,
+ * All rights reserved.
+ */
+package chat.client;
+
+import java.rmi.NoSuchObjectException;
+import java.rmi.NotBoundException;
+import java.rmi.RMISecurityManager;
+import java.rmi.RemoteException;
+import java.rmi.ServerException;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.rmi.server.UnicastRemoteObject;
+
+import chat.interfaces.MessageListener;
+import chat.interfaces.TopicServer;
+
+/**
+ *   Transport that looks up the topic server in the RMI registry and
+ *   exports the listener as an RMI object. The registry host is given
+ *   by the chat.rmi.host system property.
+ *
+ *   @see Transport
+ *   @version $Revision:$
+ */
+public class RmiTransport
+   implements Transport
+{
+   // Constants -----------------------------------------------------
+   static final String TOPIC_SERVER = "chat-server";
+   static final String HOST = System.getProperty("chat.rmi.host", ChatClient.REMOTE_SERVER);
+
+   // Attributes ----------------------------------------------------
+   String host;
+   MessageListener exported;
+
+   // Constructors --------------------------------------------------
+   public RmiTransport()
+   {
+      this(HOST);
+   }
+
+   public RmiTransport(String host)
+   {
+      this.host = host;
+   }
+
+   // Transport implementation --------------------------------------
+   public TopicServer connect()
+      throws RemoteException
+   {
+      try
+      {
+         if (System.getSecurityManager() == null)
+            System.setSecurityManager(new RMISecurityManager());
+         Registry registry = LocateRegistry.getRegistry(host);
+         return (TopicServer)registry.lookup(TOPIC_SERVER);
+      } catch (NotBoundException e)
+      {
+         throw new ServerException("Could not access topic server", e);
+      }
+   }
+
+   public synchronized MessageListener export(MessageListener listener)
+      throws RemoteException
+   {
+      if (exported != listener)
+      {
+         UnicastRemoteObject.exportObject(listener, 0);
+         exported = listener;
+      }
+      return listener;
+   }
+
+   public synchronized void close()
+   {
+      if (exported == null)
+         return;
+
+      try
+      {
+         UnicastRemoteObject.unexportObject(exported, true);
+      } catch (NoSuchObjectException e)
+      {
+         // Already gone
+      }
+      exported = null;
+   }
+
+   // Object overrides ----------------------------------------------
+   public String toString()
+   {
+      return "rmi-"+host;
+   }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright 1999 by dreamBean Software,
+ * All rights reserved.
+ */
+package chat.client;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import chat.interfaces.Message;
+
+/**
+ *   The older part of the message history of a topic, read lazily from
+ *   its journal. Lines are loaded a page at a time when they are first
+ *   shown, and only a few pages are kept, so scrolling back through a
+ *   long history does not load it onto the heap.
+ *
+ *   The scrollback covers the journal from its first offset up to, but
+ *   not including, its end offset. The end is moved forward as lines
+ *   leave the MessageStore ring buffer.
+ *
+ *   @see MessageStore
+ *   @see MessageJournal
+ *   @version $Revision:$
+ */
+public class Scrollback
+{
+   // Constants -----------------------------------------------------
+   static final int PAGE_SIZE = 128;
+   static final int MAX_PAGES = 16;
+
+   // Attributes ----------------------------------------------------
+   MessageJournal journal;
+   Formatter formatter;
+   long first;
+   long end;
+
+   Map pages = new LinkedHashMap(MAX_PAGES, 0.75f, true)
+   {
+      protected boolean removeEldestEntry(Map.Entry eldest)
+      {
+         return size() > MAX_PAGES;
+      }
+   };
+
+   // Constructors --------------------------------------------------
+   /**
+    *   Create a scrollback of everything currently in the journal.
+    */
+   public Scrollback(MessageJournal journal, Formatter formatter)
+   {
+      this.journal = journal;
+      this.formatter = formatter;
+      this.first = journal.getFirstOffset();
+      this.end = journal.getNextOffset();
+   }
+
+   // Public --------------------------------------------------------
+   public int getSize()
+   {
+      return (int)(end-first);
+   }
+
+   public long getEnd()
+   {
+      return end;
+   }
+
+   /**
+    *   Move the end of the scrollback forward, and return the number of
+    *   lines added.
+    */
+   public int extendTo(long offset)
+   {
+      if (offset <= end)
+         return 0;
+
+      int added = (int)(offset-end);
+      end = offset;
+      return added;
+   }
+
+   public Object get(int index)
+   {
+      long offset = first+index;
+      Long page = new Long(offset/PAGE_SIZE);
+      Object[] lines = (Object[])pages.get(page);
+      int slot = (int)(offset % PAGE_SIZE);
+      if (lines == null || lines[slot] == null)
+      {
+         lines = load(page.longValue());
+         pages.put(page, lines);
+      }
+
+      return lines[slot] != null ? lines[slot] : "";
+   }
+
+   // Package protected ---------------------------------------------
+   Object[] load(long page)
+   {
+      Object[] lines = new Object[PAGE_SIZE];
+      try
+      {
+         List entries = journal.read(page*PAGE_SIZE, PAGE_SIZE);
+         for (int i = 0; i < entries.size(); i++)
+         {
+            MessageJournal.Entry entry = (MessageJournal.Entry)entries.get(i);
+            lines[(int)(entry.getOffset() % PAGE_SIZE)] = formatter.format(entry.getMessage());
+         }
+      } catch (IOException e)
+      {
+         e.printStackTrace();
+      }
+      return lines;
+   }
+
+   // Inner classes -------------------------------------------------
+   public interface Formatter
+   {
+      public Object format(Message message);
+   }
+}
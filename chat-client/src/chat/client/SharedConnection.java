@@ -0,0 +1,476 @@
+/*
+ * Copyright 1999 by dreamBean Software,
+ * All rights reserved.
+ */
+package chat.client;
+
+import java.rmi.RemoteException;
+import java.rmi.ServerException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import chat.interfaces.ListenerInfo;
+import chat.interfaces.Message;
+import chat.interfaces.MessageListener;
+import chat.interfaces.Topic;
+import chat.interfaces.TopicInfo;
+import chat.interfaces.TopicServer;
+
+/**
+ *   One connection to the server shared by many logical sessions, for
+ *   bots and load tests that simulate thousands of users in one JVM.
+ *
+ *   The sessions are ChatClients that share the transport, the one
+ *   listener registered with the server for all of them, the publish
+ *   pipeline, the reconnector and the topic list. The server sends each
+ *   message of a topic once to the shared listener, which hands it to
+ *   every session subscribed to the topic. Sessions themselves start no
+ *   threads.
+ *
+ *   While one session is subscribed to a topic the listener gets all of
+ *   its messages, so a session that subscribes after it is only handed
+ *   what follows its own join, which the server publishes as the last
+ *   message before the subscription.
+ *
+ *   This needs a MultiTopicServer, since other servers do not tell the
+ *   listener which topic, and so which sessions, a message is for.
+ *
+ *   @see ChatClient
+ *   @see MultiTopicServer
+ *   @version $Revision:$
+ */
+public class SharedConnection
+   implements TopicMessageListener
+{
+   // Attributes ----------------------------------------------------
+   Transport transport;
+   volatile TopicServer server;
+   MessageListener exported;
+
+   // Copy on write, so that sessions can share it without locking
+   List topicInfos = new CopyOnWriteArrayList();
+
+   Map sessions = new ConcurrentHashMap(); // ListenerInfo -> ChatClient
+   Map subscribers = new ConcurrentHashMap(); // TopicInfo -> Subscribers
+
+   PublishPipeline publisher;
+   Reconnector reconnector;
+
+   // Constructors --------------------------------------------------
+   public SharedConnection(Transport transport)
+      throws RemoteException
+   {
+      this.transport = transport;
+      server = transport.connect();
+      if (!(server instanceof MultiTopicServer))
+      {
+         transport.close();
+         throw new ServerException("The server can not share a connection between sessions");
+      }
+
+      exported = transport.export(this);
+      topicInfos.addAll(server.getTopicInfos());
+
+      reconnector = new Reconnector(new Reconnector.Target()
+      {
+         public boolean isConnected()
+            throws RemoteException
+         {
+            return SharedConnection.this.isConnected();
+         }
+
+         public void reconnect()
+            throws RemoteException
+         {
+            SharedConnection.this.reconnect();
+         }
+
+         public void connectionLost(Exception cause)
+         {
+            Iterator slist = sessions.values().iterator();
+            while (slist.hasNext())
+               ((ChatClient)slist.next()).fireConnectionLost(cause);
+         }
+
+         public void connectionRestored()
+         {
+            Iterator slist = sessions.values().iterator();
+            while (slist.hasNext())
+               ((ChatClient)slist.next()).fireConnectionRestored();
+         }
+      });
+   }
+
+   public SharedConnection(TopicServer server)
+      throws RemoteException
+   {
+      this(new DirectTransport(server));
+   }
+
+   // Public --------------------------------------------------------
+   /**
+    *   Create a session. It is registered with the server when it logs
+    *   in.
+    */
+   public ChatClient createSession()
+   {
+      return new ChatClient(this);
+   }
+
+   /**
+    *   The sessions that are logged in.
+    */
+   public Collection getSessions()
+   {
+      return new ArrayList(sessions.values());
+   }
+
+   /**
+    *   The topic list shared by the sessions. It is kept up to date as
+    *   topics are created and removed.
+    */
+   public List getTopicInfos()
+   {
+      return Collections.unmodifiableList(topicInfos);
+   }
+
+   public TopicServer getTopicServer()
+   {
+      return server;
+   }
+
+   public Transport getTransport()
+   {
+      return transport;
+   }
+
+   /**
+    *   Close the connection. The sessions should be logged out first.
+    */
+   public void close()
+   {
+      reconnector.stop();
+
+      PublishPipeline p;
+      synchronized (this)
+      {
+         p = publisher;
+         publisher = null;
+      }
+      if (p != null)
+         p.close();
+
+      transport.close();
+   }
+
+   // Package protected ---------------------------------------------
+   synchronized PublishPipeline getPublisher()
+   {
+      if (publisher == null)
+         publisher = new PublishPipeline();
+      return publisher;
+   }
+
+   void addSession(ChatClient session)
+      throws RemoteException
+   {
+      sessions.put(session.getClientInfo(), session);
+      try
+      {
+         server.addListener(session.getClientInfo(), exported);
+      } catch (RemoteException e)
+      {
+         sessions.remove(session.getClientInfo());
+         throw e;
+      }
+   }
+
+   void removeSession(ChatClient session)
+      throws RemoteException
+   {
+      sessions.remove(session.getClientInfo());
+      server.removeListener(session.getClientInfo());
+   }
+
+   /**
+    *   Subscribe the session to the topic. The first session subscribed
+    *   gets the messages of the topic from now on, the others from their
+    *   join on.
+    */
+   Topic subscribe(ChatClient session, TopicInfo topicInfo)
+      throws RemoteException
+   {
+      Subscribers topic = getSubscribers(topicInfo);
+      synchronized (topic)
+      {
+         if (topic.subscribed == 0)
+            topic.live.addIfAbsent(session);
+         else
+            topic.joining.addIfAbsent(session);
+         topic.greetings.add(session);
+
+         try
+         {
+            Topic result = server.subscribe(topicInfo, session.getClientInfo());
+            topic.subscribed++;
+            return result;
+         } catch (RemoteException e)
+         {
+            topic.remove(session);
+            throw e;
+         }
+      }
+   }
+
+   void unsubscribe(ChatClient session, TopicInfo topicInfo)
+      throws RemoteException
+   {
+      Subscribers topic = getSubscribers(topicInfo);
+      synchronized (topic)
+      {
+         try
+         {
+            server.unsubscribe(topicInfo, session.getClientInfo());
+         } finally
+         {
+            if (topic.remove(session))
+               topic.subscribed--;
+         }
+      }
+   }
+
+   void connectionFailed(Exception e)
+   {
+      reconnector.start(e);
+   }
+
+   /**
+    *   Ask a session that has a current topic, as only topics can tell
+    *   whether the server still knows the listener.
+    */
+   boolean isConnected()
+      throws RemoteException
+   {
+      Iterator slist = sessions.values().iterator();
+      while (slist.hasNext())
+      {
+         ChatClient session = (ChatClient)slist.next();
+         if (session.getCurrentView() != null)
+            return session.isConnected();
+      }
+      return server != null;
+   }
+
+   /**
+    *   Register all sessions with the server again and let them
+    *   resubscribe and catch up. The server has dropped their
+    *   subscriptions, so what arrives before a session resubscribes is
+    *   among what it catches up on.
+    */
+   void reconnect()
+      throws RemoteException
+   {
+      Object[] all = sessions.values().toArray();
+      for (int i = 0; i < all.length; i++)
+         ((ChatClient)all[i]).hold();
+
+      try
+      {
+         Iterator tlist = subscribers.values().iterator();
+         while (tlist.hasNext())
+            ((Subscribers)tlist.next()).clear();
+
+         server = transport.connect();
+         Collection current = server.getTopicInfos();
+         topicInfos.retainAll(current);
+         ((CopyOnWriteArrayList)topicInfos).addAllAbsent(current);
+
+         for (int i = 0; i < all.length; i++)
+         {
+            ChatClient session = (ChatClient)all[i];
+            session.server = server;
+            server.addListener(session.getClientInfo(), exported);
+            session.restore(current);
+         }
+      } finally
+      {
+         for (int i = 0; i < all.length; i++)
+            ((ChatClient)all[i]).release();
+      }
+   }
+
+   // MessageListener implementation --------------------------------
+   public void messagePublished(Collection messages)
+   {
+      messagePublished(null, messages);
+   }
+
+   public void messagePublished(Message message)
+   {
+      messagePublished(null, Collections.singletonList(message));
+   }
+
+   // TopicMessageListener implementation ---------------------------
+   /**
+    *   Hand the messages to the sessions subscribed to the topic.
+    *   Messages without a topic update the shared topic list, and are
+    *   passed on to the sessions that show it.
+    */
+   public void messagePublished(TopicInfo topicInfo, Collection messages)
+   {
+      if (topicInfo == null)
+      {
+         updateTopics(messages);
+
+         Iterator slist = sessions.values().iterator();
+         while (slist.hasNext())
+         {
+            ChatClient session = (ChatClient)slist.next();
+            if (session.topics != null)
+               session.messagePublished(null, messages);
+         }
+         return;
+      }
+
+      Subscribers topic = (Subscribers)subscribers.get(topicInfo);
+      if (topic == null)
+         return;
+      Object[] live = topic.live.toArray();
+
+      // Greetings are for the session that subscribed
+      Collection shared = messages;
+      Iterator mlist = messages.iterator();
+      while (mlist.hasNext())
+      {
+         if (((Message)mlist.next()).getType().equals(Message.GREETING))
+         {
+            shared = greet(topicInfo, topic, messages);
+            break;
+         }
+      }
+
+      if (shared.isEmpty())
+         return;
+
+      if (!topic.joining.isEmpty())
+         admit(topicInfo, topic, shared);
+
+      for (int i = 0; i < live.length; i++)
+         ((ChatClient)live[i]).messagePublished(topicInfo, shared);
+   }
+
+   // Private -------------------------------------------------------
+   Subscribers getSubscribers(TopicInfo topicInfo)
+   {
+      Subscribers topic = (Subscribers)subscribers.get(topicInfo);
+      if (topic == null)
+      {
+         ((ConcurrentHashMap)subscribers).putIfAbsent(topicInfo, new Subscribers());
+         topic = (Subscribers)subscribers.get(topicInfo);
+      }
+      return topic;
+   }
+
+   /**
+    *   Give the greetings to the sessions waiting for them and return
+    *   the other messages.
+    */
+   Collection greet(TopicInfo topicInfo, Subscribers topic, Collection messages)
+   {
+      List rest = new ArrayList();
+      Iterator mlist = messages.iterator();
+      while (mlist.hasNext())
+      {
+         Message message = (Message)mlist.next();
+         if (!message.getType().equals(Message.GREETING))
+         {
+            rest.add(message);
+            continue;
+         }
+
+         ChatClient session = (ChatClient)topic.greetings.poll();
+         if (session != null)
+            session.messagePublished(topicInfo, Collections.singletonList(message));
+      }
+      return rest;
+   }
+
+   /**
+    *   Find the joins of the joining sessions among the messages, and
+    *   hand each of them what follows its join.
+    */
+   void admit(TopicInfo topicInfo, Subscribers topic, Collection messages)
+   {
+      List list = messages instanceof List ? (List)messages : new ArrayList(messages);
+      for (int i = 0; i < list.size(); i++)
+      {
+         Message message = (Message)list.get(i);
+         if (!message.getType().equals(Message.USER_JOINED))
+            continue;
+
+         String name = ((ListenerInfo)message.getContent()).getName();
+         for (int j = 0; j < topic.joining.size(); j++)
+         {
+            ChatClient session = (ChatClient)topic.joining.get(j);
+            if (!session.getClientInfo().getName().equals(name))
+               continue;
+
+            topic.joining.remove(session);
+            topic.live.addIfAbsent(session);
+            if (i+1 < list.size())
+               session.messagePublished(topicInfo, new ArrayList(list.subList(i+1, list.size())));
+            break;
+         }
+      }
+   }
+
+   void updateTopics(Collection messages)
+   {
+      Iterator mlist = messages.iterator();
+      while (mlist.hasNext())
+      {
+         Message message = (Message)mlist.next();
+         if (message.getType().equals(Message.TOPIC_CREATED))
+            ((CopyOnWriteArrayList)topicInfos).addIfAbsent(message.getContent());
+         else if (message.getType().equals(Message.TOPIC_REMOVED))
+            topicInfos.remove(message.getContent());
+      }
+   }
+
+   // Inner classes -------------------------------------------------
+   /**
+    *   The sessions subscribed to a topic. Subscribing and leaving are
+    *   done with it locked, the lists are copy on write so that messages
+    *   are handed out without locking.
+    */
+   static class Subscribers
+   {
+      CopyOnWriteArrayList live = new CopyOnWriteArrayList(); // ChatClient
+      CopyOnWriteArrayList joining = new CopyOnWriteArrayList(); // ChatClient, until their join arrives
+      Queue greetings = new ConcurrentLinkedQueue(); // ChatClient, in the order they subscribed
+      int subscribed; // Sessions the server has subscribed
+
+      boolean remove(ChatClient session)
+      {
+         greetings.remove(session);
+         boolean removed = live.remove(session);
+         return joining.remove(session) || removed;
+      }
+
+      synchronized void clear()
+      {
+         live.clear();
+         joining.clear();
+         greetings.clear();
+         subscribed = 0;
+      }
+   }
+}
@@ -0,0 +1,320 @@
+/*
+ * Copyright 1999 by dreamBean Software,
+ * All rights reserved.
+ */
+package chat.client;
+
+import java.awt.GraphicsEnvironment;
+import java.awt.Graphics;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.StringTokenizer;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import javax.swing.JComponent;
+import javax.swing.JFrame;
+import javax.swing.SwingUtilities;
+
+import chat.interfaces.Message;
+import chat.interfaces.TopicInfo;
+
+/**
+ *   Measures the cold startup of the client. Every run is a new JVM,
+ *   which reports in milliseconds since the JVM was started:
+ *
+ *   - main: when main was entered
+ *   - first-frame: when the login card was first painted, unless headless
+ *   - connected: when the server was looked up and the topics loaded
+ *   - first-message: when the first message of a topic was received
+ *
+ *   together with the number of classes loaded by then. The client
+ *   connects in the background while the frame is shown, as ChatGUI
+ *   does, or after it with -serial.
+ *
+ *   Unless -remote is given, the runs connect with the NIO transport
+ *   to an in-process server of this JVM, so that the server is not
+ *   part of what is measured. Options for the JVMs of the runs are
+ *   given with -J, e.g. to use a class data sharing archive made by
+ *   the first run, which needs the classes to be in a jar:
+ *
+ *   StartupBenchmark -runs 1 -J-XX:ArchiveClassesAtExit=chat.jsa
+ *   StartupBenchmark -J-XX:SharedArchiveFile=chat.jsa
+ *
+ *   Usage: StartupBenchmark [-runs n] [-remote] [-serial] [-J<option>]*
+ *
+ *   @see ChatGUI
+ *   @see ChatBenchmark
+ *   @version $Revision:$
+ */
+public class StartupBenchmark
+{
+   // Constants -----------------------------------------------------
+   static final String RESULT = "startup:";
+   static final long TIMEOUT = 60000;
+
+   // Attributes ----------------------------------------------------
+   int runs = 5;
+   boolean remote;
+   boolean serial;
+   List options = new ArrayList();
+
+   // Static --------------------------------------------------------
+   public static void main(String[] args)
+      throws Exception
+   {
+      if (args.length > 0 && args[0].equals("-child"))
+      {
+         run(args[1], Boolean.valueOf(args[2]).booleanValue());
+         System.exit(0);
+      }
+
+      StartupBenchmark benchmark = new StartupBenchmark();
+      for (int i = 0; i < args.length; i++)
+      {
+         if (args[i].equals("-runs"))
+            benchmark.runs = Integer.parseInt(args[++i]);
+         else if (args[i].equals("-remote"))
+            benchmark.remote = true;
+         else if (args[i].equals("-serial"))
+            benchmark.serial = true;
+         else if (args[i].startsWith("-J"))
+            benchmark.options.add(args[i].substring(2));
+         else
+            throw new IllegalArgumentException("Unknown option:"+args[i]);
+      }
+
+      benchmark.run();
+      System.exit(0);
+   }
+
+   /**
+    *   One run, in a JVM of its own. The server is host:port, or the
+    *   default server if remote.
+    */
+   static void run(String server, boolean serial)
+      throws Exception
+   {
+      long started = ManagementFactory.getRuntimeMXBean().getStartTime();
+      Map times = new LinkedHashMap(); // Name -> Long
+      times.put("main", new Long(System.currentTimeMillis()-started));
+
+      Transport transport;
+      if (server.equals("remote"))
+      {
+         transport = ChatClient.createTransport();
+      } else
+      {
+         int colon = server.lastIndexOf(':');
+         transport = new NioTransport(server.substring(0, colon), Integer.parseInt(server.substring(colon+1)));
+      }
+      final ChatClient client = new ChatClient(transport);
+
+      // Connect while the frame is shown
+      ExecutorService executor = ClientExecutors.newSerialExecutor("StartupBenchmark-connect");
+      Callable connect = new Callable()
+      {
+         public Object call()
+            throws Exception
+         {
+            client.getTopicServer();
+            return new Long(System.currentTimeMillis());
+         }
+      };
+      Future connected = serial ? null : executor.submit(connect);
+
+      if (!GraphicsEnvironment.isHeadless())
+         times.put("first-frame", new Long(showFrame()-started));
+
+      if (connected == null)
+         connected = executor.submit(connect);
+      times.put("connected", new Long(((Long)connected.get()).longValue()-started));
+      executor.shutdown();
+
+      // Log in and wait for the first message of the first topic
+      final CountDownLatch received = new CountDownLatch(1);
+      final long[] receivedAt = new long[1];
+      client.addMessageReceiver(new ChatClient.MessageReceiver()
+      {
+         public void handleMessage(Message message)
+         {
+            if (received.getCount() > 0)
+            {
+               receivedAt[0] = System.currentTimeMillis();
+               received.countDown();
+            }
+         }
+      });
+      client.login("startup-"+ManagementFactory.getRuntimeMXBean().getName());
+      client.subscribe((TopicInfo)client.getTopicDirectory().getTopic(0));
+      if (!received.await(TIMEOUT, TimeUnit.MILLISECONDS))
+         throw new IllegalStateException("No message received");
+      times.put("first-message", new Long(receivedAt[0]-started));
+      times.put("classes", new Long(ManagementFactory.getClassLoadingMXBean().getTotalLoadedClassCount()));
+
+      client.logout();
+
+      StringBuffer line = new StringBuffer(RESULT);
+      Iterator entries = times.entrySet().iterator();
+      while (entries.hasNext())
+      {
+         Map.Entry entry = (Map.Entry)entries.next();
+         line.append(' ').append(entry.getKey()).append('=').append(entry.getValue());
+      }
+      System.out.println(line);
+   }
+
+   /**
+    *   Show the GUI in a frame and return when it was first painted. The
+    *   glass pane is painted last, so its first paint is the first frame.
+    */
+   static long showFrame()
+      throws Exception
+   {
+      final CountDownLatch painted = new CountDownLatch(1);
+      final long[] paintedAt = new long[1];
+      SwingUtilities.invokeLater(new Runnable()
+      {
+         public void run()
+         {
+            try
+            {
+               JFrame frame = new JFrame("Chat");
+               frame.getContentPane().add(new ChatGUI());
+               JComponent glass = new JComponent()
+               {
+                  protected void paintComponent(Graphics g)
+                  {
+                     if (painted.getCount() > 0)
+                     {
+                        paintedAt[0] = System.currentTimeMillis();
+                        painted.countDown();
+                     }
+                  }
+               };
+               frame.setGlassPane(glass);
+               glass.setVisible(true);
+               frame.setSize(600, 400);
+               frame.setVisible(true);
+            } catch (Exception e)
+            {
+               e.printStackTrace();
+            }
+         }
+      });
+
+      if (!painted.await(TIMEOUT, TimeUnit.MILLISECONDS))
+         throw new IllegalStateException("Frame not painted");
+      return paintedAt[0];
+   }
+
+   // Public --------------------------------------------------------
+   /**
+    *   Start the runs one after another and report the median of each
+    *   time.
+    */
+   public void run()
+      throws Exception
+   {
+      LocalTopicServer server = null;
+      NioServer nioServer = null;
+      String address = "remote";
+      if (!remote)
+      {
+         server = new LocalTopicServer();
+         server.addTopic("Startup", "Startup benchmark topic");
+         nioServer = new NioServer(server, 0);
+         address = "localhost:"+nioServer.getPort();
+      }
+
+      try
+      {
+         Map results = new LinkedHashMap(); // Name -> List of Long
+         for (int i = 0; i < runs; i++)
+         {
+            String line = runChild(address);
+            System.out.println("Run "+(i+1)+": "+line);
+
+            StringTokenizer values = new StringTokenizer(line);
+            while (values.hasMoreTokens())
+            {
+               String value = values.nextToken();
+               int equals = value.indexOf('=');
+               List list = (List)results.get(value.substring(0, equals));
+               if (list == null)
+                  results.put(value.substring(0, equals), list = new ArrayList());
+               list.add(Long.valueOf(value.substring(equals+1)));
+            }
+         }
+
+         StringBuffer medians = new StringBuffer("Median of "+runs+" runs ("+(serial ? "serial" : "staged")+"):");
+         Iterator entries = results.entrySet().iterator();
+         while (entries.hasNext())
+         {
+            Map.Entry entry = (Map.Entry)entries.next();
+            List list = (List)entry.getValue();
+            Collections.sort(list);
+            medians.append(' ').append(entry.getKey()).append('=').append(list.get(list.size()/2));
+         }
+         System.out.println(medians);
+         System.out.println("(ms since JVM start, classes loaded)");
+      } finally
+      {
+         if (nioServer != null)
+            nioServer.close();
+         if (server != null)
+            server.shutdown();
+      }
+   }
+
+   // Package protected ---------------------------------------------
+   /**
+    *   Run once in a new JVM with the class path, chat properties and
+    *   options of this one, and return the times it reported.
+    */
+   String runChild(String address)
+      throws Exception
+   {
+      List command = new ArrayList();
+      command.add(System.getProperty("java.home")+File.separator+"bin"+File.separator+"java");
+      command.add("-cp");
+      command.add(System.getProperty("java.class.path"));
+      Iterator names = System.getProperties().keySet().iterator();
+      while (names.hasNext())
+      {
+         String name = names.next().toString();
+         if (name.startsWith("chat.") || name.equals("java.awt.headless"))
+            command.add("-D"+name+"="+System.getProperty(name));
+      }
+      command.addAll(options);
+      command.addAll(Arrays.asList(new String[] { StartupBenchmark.class.getName(), "-child", address, String.valueOf(serial) }));
+
+      Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+      BufferedReader in = new BufferedReader(new InputStreamReader(process.getInputStream()));
+      String result = null;
+      String line;
+      while ((line = in.readLine()) != null)
+      {
+         if (line.startsWith(RESULT))
+            result = line.substring(RESULT.length()).trim();
+         else
+            System.out.println("  "+line);
+      }
+
+      if (process.waitFor() != 0 || result == null)
+         throw new IllegalStateException("Run failed with exit code "+process.exitValue());
+      return result;
+   }
+}
@@ -0,0 +1,611 @@
+/*
+ * Copyright 1999 by dreamBean Software,
+ * All rights reserved.
+ */
+package chat.client;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+
+import javax.swing.AbstractListModel;
+import javax.swing.ComboBoxModel;
+import javax.swing.SwingUtilities;
+
+import chat.interfaces.TopicInfo;
+import chat.interfaces.TopicServer;
+
+/**
+ *   The topics of the server, as a combo box model. Topics are kept in
+ *   an array with a hash index by name, so that a created topic is
+ *   appended and a removed one replaced by the last in O(1), instead of
+ *   the linear scans of DefaultComboBoxModel. A sorted index of the
+ *   lower case names finds the topics starting with a prefix.
+ *
+ *   The directory is saved to disk with the version of the topic list
+ *   it was loaded at. If the server is a PagedTopicServer, a saved
+ *   directory of the current version is used without loading anything
+ *   else. Otherwise only the size of the list is fetched, and pages are
+ *   loaded when they are first shown or searched. Topics created or
+ *   removed before all pages are loaded are applied once they are.
+ *
+ *   Like all Swing models it must only be changed on the event thread,
+ *   once it has been shown.
+ *
+ *   @see ChatClient#getTopics
+ *   @see PagedTopicServer
+ *   @version $Revision:$
+ */
+public class TopicDirectory
+   extends AbstractListModel
+   implements ComboBoxModel
+{
+   // Constants -----------------------------------------------------
+   static final int PAGE_SIZE = Integer.getInteger("chat.topics.pageSize", 500).intValue();
+   static final int MAGIC = 0x54444952; // "TDIR"
+   static final long UNKNOWN = -1;
+
+   // Shown for topics whose page is not loaded yet
+   static final Object LOADING = "...";
+
+   // Attributes ----------------------------------------------------
+   File file;
+   Object[] elements = new Object[16]; // TopicInfo, or null until its page is loaded
+   int size;
+   Map index = new HashMap(); // Name -> Integer position
+   TreeMap prefixes = new TreeMap(); // Lower case name and name -> TopicInfo
+   Object selected;
+
+   // The version of the list, or UNKNOWN
+   long version = UNKNOWN;
+
+   // Pages not loaded yet
+   PagedTopicServer server;
+   BitSet requested = new BitSet();
+   int missing;
+   List changes = new ArrayList(); // Object[] { Boolean created, TopicInfo }, until all pages are loaded
+   ExecutorService loader;
+
+   // Static --------------------------------------------------------
+   /**
+    *   The file to save the directory of the given server in, which is
+    *   in chat.topics.dir if set and .chat/topics in the home directory
+    *   otherwise.
+    */
+   public static File getDefaultFile(String server)
+   {
+      String base = System.getProperty("chat.topics.dir");
+      File dir = base != null ? new File(base) : new File(new File(System.getProperty("user.home"), ".chat"), "topics");
+      return new File(dir, MessageLog.toFileName(server));
+   }
+
+   static String getPrefixKey(Object topic)
+   {
+      String name = topic.toString();
+      return name.toLowerCase()+'\0'+name;
+   }
+
+   // Constructors --------------------------------------------------
+   /**
+    *   Create a directory that is saved in the given file, or not at
+    *   all if it is null.
+    */
+   public TopicDirectory(File file)
+   {
+      this.file = file;
+   }
+
+   // Public --------------------------------------------------------
+   /**
+    *   Load the directory of the server. A saved directory is used if it
+    *   is current, otherwise the first page is loaded now and the rest
+    *   when needed. Servers that can not page send the whole list.
+    */
+   public void load(TopicServer topicServer)
+      throws RemoteException
+   {
+      if (!(topicServer instanceof PagedTopicServer))
+      {
+         update(topicServer.getTopicInfos());
+         return;
+      }
+
+      PagedTopicServer paged = (PagedTopicServer)topicServer;
+      while (true)
+      {
+         long current = paged.getTopicVersion();
+         if (current == read())
+            return;
+
+         int count = paged.getTopicCount();
+         clear();
+         version = current;
+         if (count == 0)
+            return;
+
+         // Reserve the places of the topics, to be filled page by page
+         ensureCapacity(count);
+         size = count;
+         missing = (count+PAGE_SIZE-1)/PAGE_SIZE;
+         server = paged;
+
+         Collection first = paged.getTopicInfos(current, 0, PAGE_SIZE);
+         if (first != null)
+         {
+            requested.set(0);
+            fill(0, first);
+            return;
+         }
+         // Changed meanwhile, start over
+      }
+   }
+
+   /**
+    *   Make the directory hold the given topics, without touching the
+    *   topics that are still there. The version is then unknown.
+    */
+   public void update(Collection topicInfos)
+   {
+      Set current = new HashSet(topicInfos);
+      if (missing > 0)
+      {
+         // The missing pages are of no use anymore
+         clear();
+      }
+
+      for (int i = size-1; i >= 0; i--)
+      {
+         if (!current.contains(elements[i]))
+            remove(elements[i]);
+      }
+
+      Iterator tlist = topicInfos.iterator();
+      while (tlist.hasNext())
+         add(tlist.next());
+
+      version = UNKNOWN;
+   }
+
+   /**
+    *   Add a created topic, unless it is there already.
+    */
+   public void add(Object topic)
+   {
+      if (missing > 0)
+      {
+         changes.add(new Object[] { Boolean.TRUE, topic });
+         return;
+      }
+
+      if (version != UNKNOWN)
+         version++;
+      if (index.containsKey(topic.toString()))
+         return;
+
+      ensureCapacity(size+1);
+      elements[size] = topic;
+      index.put(topic.toString(), new Integer(size));
+      prefixes.put(getPrefixKey(topic), topic);
+      size++;
+      fireIntervalAdded(this, size-1, size-1);
+   }
+
+   /**
+    *   Remove a removed topic. The last topic takes its place.
+    */
+   public void remove(Object topic)
+   {
+      if (missing > 0)
+      {
+         changes.add(new Object[] { Boolean.FALSE, topic });
+         return;
+      }
+
+      if (version != UNKNOWN)
+         version++;
+      Integer position = (Integer)index.remove(topic.toString());
+      if (position == null)
+         return;
+
+      prefixes.remove(getPrefixKey(topic));
+      if (topic.equals(selected))
+         setSelectedItem(null);
+
+      int i = position.intValue();
+      int last = size-1;
+      if (i < last)
+      {
+         elements[i] = elements[last];
+         index.put(elements[i].toString(), position);
+      }
+      elements[last] = null;
+      size--;
+
+      if (i < last)
+         fireContentsChanged(this, i, i);
+      fireIntervalRemoved(this, last, last);
+   }
+
+   public boolean contains(Object topic)
+   {
+      return index.containsKey(topic.toString());
+   }
+
+   /**
+    *   The topics whose names start with the prefix, ignoring case, at
+    *   most max of them. Searching loads the pages still missing, so
+    *   the search may have to be repeated once they are.
+    */
+   public List find(String prefix, int max)
+   {
+      if (missing > 0)
+      {
+         for (int p = 0; p*PAGE_SIZE < size; p++)
+            request(p);
+      }
+
+      String from = prefix.toLowerCase();
+      SortedMap found = prefixes.subMap(from, from+Character.MAX_VALUE);
+      List result = new ArrayList(Math.min(max, found.size()));
+      Iterator tlist = found.values().iterator();
+      while (tlist.hasNext() && result.size() < max)
+         result.add(tlist.next());
+      return result;
+   }
+
+   /**
+    *   Get the topic at the given position, loading its page now if
+    *   needed. Unlike getElementAt it may be called on any thread.
+    */
+   public Object getTopic(int position)
+      throws RemoteException
+   {
+      Object topic = elements[position];
+      if (topic != null || server == null)
+         return topic;
+
+      Collection page = server.getTopicInfos(version, position/PAGE_SIZE*PAGE_SIZE, PAGE_SIZE);
+      if (page == null)
+         throw new RemoteException("Topic list changed while loading");
+      return new ArrayList(page).get(position % PAGE_SIZE);
+   }
+
+   public boolean isLoaded()
+   {
+      return missing == 0;
+   }
+
+   public long getVersion()
+   {
+      return version;
+   }
+
+   /**
+    *   Save the directory, if it is complete and of a known version.
+    *   The file is written in the background.
+    */
+   public void save()
+   {
+      if (file == null || missing > 0 || version == UNKNOWN)
+         return;
+
+      final long savedVersion = version;
+      final Object[] saved = Arrays.copyOf(elements, size);
+      getLoader().execute(new Runnable()
+      {
+         public void run()
+         {
+            try
+            {
+               write(savedVersion, saved);
+            } catch (IOException e)
+            {
+               System.err.println("Could not save topic directory: "+e);
+            }
+         }
+      });
+   }
+
+   /**
+    *   Stop loading pages. The directory is saved first.
+    */
+   public void close()
+   {
+      save();
+      if (loader != null)
+         loader.shutdown();
+   }
+
+   // ListModel implementation --------------------------------------
+   public int getSize()
+   {
+      return size;
+   }
+
+   public Object getElementAt(int position)
+   {
+      if (position < 0 || position >= size)
+         return null;
+
+      Object topic = elements[position];
+      if (topic != null)
+         return topic;
+
+      request(position/PAGE_SIZE);
+      return LOADING;
+   }
+
+   // ComboBoxModel implementation ----------------------------------
+   public void setSelectedItem(Object item)
+   {
+      if (item == LOADING)
+         return;
+      if (item == null ? selected == null : item.equals(selected))
+         return;
+
+      selected = item;
+      fireContentsChanged(this, -1, -1);
+   }
+
+   public Object getSelectedItem()
+   {
+      return selected;
+   }
+
+   // Package protected ---------------------------------------------
+   /**
+    *   Load the page in the background, unless done already.
+    */
+   void request(final int page)
+   {
+      if (server == null || requested.get(page))
+         return;
+      requested.set(page);
+
+      final PagedTopicServer pagedServer = server;
+      final long pageVersion = version;
+      getLoader().execute(new Runnable()
+      {
+         public void run()
+         {
+            try
+            {
+               final Collection topics = pagedServer.getTopicInfos(pageVersion, page*PAGE_SIZE, PAGE_SIZE);
+               SwingUtilities.invokeLater(new Runnable()
+               {
+                  public void run()
+                  {
+                     if (server != pagedServer || version != pageVersion)
+                        return; // Started over meanwhile
+                     
+                     if (topics != null)
+                        fill(page, topics);
+                     else
+                        reload();
+                  }
+               });
+            } catch (RemoteException e)
+            {
+               System.err.println("Could not load topics: "+e);
+               SwingUtilities.invokeLater(new Runnable()
+               {
+                  public void run()
+                  {
+                     requested.clear(page);
+                  }
+               });
+            }
+         }
+      });
+   }
+
+   /**
+    *   Put the topics of a loaded page in their places. Once all pages
+    *   are loaded the changes that came meanwhile are applied.
+    */
+   void fill(int page, Collection topics)
+   {
+      int start = page*PAGE_SIZE;
+      int end = start;
+      Iterator tlist = topics.iterator();
+      while (tlist.hasNext() && end < size)
+      {
+         Object topic = tlist.next();
+         elements[end] = topic;
+         index.put(topic.toString(), new Integer(end));
+         prefixes.put(getPrefixKey(topic), topic);
+         end++;
+      }
+      if (end > start)
+         fireContentsChanged(this, start, end-1);
+
+      if (--missing > 0)
+         return;
+
+      server = null;
+      List applied = changes;
+      changes = new ArrayList();
+      for (int i = 0; i < applied.size(); i++)
+      {
+         Object[] change = (Object[])applied.get(i);
+         if (((Boolean)change[0]).booleanValue())
+            add(change[1]);
+         else
+            remove(change[1]);
+      }
+      save();
+   }
+
+   /**
+    *   The list changed while its pages were loading, so load it again,
+    *   keeping the changes that came meanwhile.
+    */
+   void reload()
+   {
+      final PagedTopicServer pagedServer = server;
+      final List kept = changes;
+      getLoader().execute(new Runnable()
+      {
+         public void run()
+         {
+            final TopicDirectory loaded = new TopicDirectory(null);
+            try
+            {
+               loaded.load(pagedServer);
+            } catch (RemoteException e)
+            {
+               System.err.println("Could not load topics: "+e);
+               return;
+            }
+
+            SwingUtilities.invokeLater(new Runnable()
+            {
+               public void run()
+               {
+                  replace(loaded);
+                  changes.addAll(0, kept);
+               }
+            });
+         }
+      });
+   }
+
+   /**
+    *   Take over the contents of the other directory.
+    */
+   void replace(TopicDirectory other)
+   {
+      int oldSize = size;
+      elements = other.elements;
+      size = other.size;
+      index = other.index;
+      prefixes = other.prefixes;
+      version = other.version;
+      server = other.server;
+      requested = other.requested;
+      missing = other.missing;
+      changes = other.changes;
+
+      if (oldSize > 0)
+         fireIntervalRemoved(this, 0, oldSize-1);
+      if (size > 0)
+         fireIntervalAdded(this, 0, size-1);
+   }
+
+   void clear()
+   {
+      int oldSize = size;
+      Arrays.fill(elements, 0, size, null);
+      size = 0;
+      index.clear();
+      prefixes.clear();
+      server = null;
+      requested.clear();
+      missing = 0;
+      changes.clear();
+      version = UNKNOWN;
+      if (oldSize > 0)
+         fireIntervalRemoved(this, 0, oldSize-1);
+   }
+
+   void ensureCapacity(int capacity)
+   {
+      if (capacity > elements.length)
+         elements = Arrays.copyOf(elements, Math.max(capacity, elements.length*2));
+   }
+
+   synchronized ExecutorService getLoader()
+   {
+      if (loader == null)
+         loader = ClientExecutors.newSerialExecutor("ChatClient-topic-loader");
+      return loader;
+   }
+
+   /**
+    *   Read the saved directory and return its version, or UNKNOWN if
+    *   there is none.
+    */
+   long read()
+   {
+      if (file == null || !file.exists())
+         return UNKNOWN;
+
+      try
+      {
+         DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+         try
+         {
+            if (in.readInt() != MAGIC)
+               return UNKNOWN;
+
+            long savedVersion = in.readLong();
+            int count = in.readInt();
+            clear();
+            ensureCapacity(count);
+            for (int i = 0; i < count; i++)
+            {
+               TopicInfo topic = new TopicInfo(in.readUTF(), in.readUTF());
+               elements[i] = topic;
+               index.put(topic.toString(), new Integer(i));
+               prefixes.put(getPrefixKey(topic), topic);
+            }
+            size = count;
+            version = savedVersion;
+            return savedVersion;
+         } finally
+         {
+            in.close();
+         }
+      } catch (IOException e)
+      {
+         clear();
+         return UNKNOWN;
+      }
+   }
+
+   void write(long savedVersion, Object[] topics)
+      throws IOException
+   {
+      file.getParentFile().mkdirs();
+      File temp = new File(file.getPath()+".tmp");
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+      try
+      {
+         out.writeInt(MAGIC);
+         out.writeLong(savedVersion);
+         out.writeInt(topics.length);
+         for (int i = 0; i < topics.length; i++)
+         {
+            TopicInfo topic = (TopicInfo)topics[i];
+            out.writeUTF(topic.toString());
+            out.writeUTF(topic.getDescription() == null ? "" : topic.getDescription());
+         }
+      } finally
+      {
+         out.close();
+      }
+
+      file.delete();
+      if (!temp.renameTo(file))
+         throw new IOException("Could not rename "+temp+" to "+file);
+   }
+}
@@ -0,0 +1,31 @@
+/*
+ * Copyright 1999 by dreamBean Software,
+ * All rights reserved.
+ */
+package chat.client;
+
+import java.rmi.RemoteException;
+import java.util.Collection;
+
+import chat.interfaces.MessageListener;
+import chat.interfaces.TopicInfo;
+
+/**
+ *   Listener that is told which topic its messages were published on.
+ *   Servers that implement MultiTopicServer deliver messages to such a
+ *   listener through this method, so that a client subscribed to many
+ *   topics can route them without asking the server.
+ *
+ *   @see MultiTopicServer
+ *   @version $Revision:$
+ */
+public interface TopicMessageListener
+   extends MessageListener
+{
+   /**
+    *   Messages published on the given topic, or messages that are not
+    *   for any topic, such as topic list changes, if the topic is null.
+    */
+   public void messagePublished(TopicInfo topic, Collection messages)
+      throws RemoteException;
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright 1999 by dreamBean Software,
+ * All rights reserved.
+ */
+package chat.client;
+
+import java.rmi.RemoteException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.swing.ListModel;
+
+import chat.interfaces.Topic;
+import chat.interfaces.TopicInfo;
+
+/**
+ *   The state of the client for one topic: the subscription, the message
+ *   history, the users and the number of unread messages. Views stay
+ *   around while other topics are shown, so that switching back to a
+ *   topic needs no calls to the server.
+ *
+ *   The history and users are Swing models and must only be used on the
+ *   event thread.
+ *
+ *   @see ChatClient#subscribe
+ *   @version $Revision:$
+ */
+public class TopicView
+{
+   // Constants -----------------------------------------------------
+   static final int MAX_KEYS = 4096;
+
+   // Attributes ----------------------------------------------------
+   TopicInfo info;
+   volatile Topic topic;
+
+   MessageStore history = new MessageStore();
+   volatile UserListModel users;
+   AtomicInteger unread = new AtomicInteger();
+
+   // Sequence number tracking, used to catch up after a reconnect.
+   // See CatchUpTopic
+   volatile long base;
+   AtomicLong received = new AtomicLong();
+
+   ContentCompressor compressor = new ContentCompressor();
+
+   // Idempotency keys of the recent messages, see KeyedContent
+   Map keys = new LinkedHashMap()
+   {
+      protected boolean removeEldestEntry(Map.Entry eldest)
+      {
+         return size() > MAX_KEYS;
+      }
+   };
+
+   // Constructors --------------------------------------------------
+   public TopicView(TopicInfo info)
+   {
+      this.info = info;
+   }
+
+   // Public --------------------------------------------------------
+   public TopicInfo getInfo()
+   {
+      return info;
+   }
+
+   public ContentCompressor getCompressor()
+   {
+      return compressor;
+   }
+
+   /**
+    *   The subscribed topic, or null if the view is not subscribed.
+    */
+   public Topic getTopic()
+   {
+      return topic;
+   }
+
+   public boolean isSubscribed()
+   {
+      return topic != null;
+   }
+
+   public MessageStore getHistory()
+   {
+      return history;
+   }
+
+   public ListModel getUsers()
+   {
+      return users;
+   }
+
+   public int getUnread()
+   {
+      return unread.get();
+   }
+
+   public void clearUnread()
+   {
+      unread.set(0);
+   }
+
+   /**
+    *   The sequence number of the next message expected on the topic.
+    */
+   public long getSequence()
+   {
+      return base+received.get();
+   }
+
+   public String toString()
+   {
+      return info.toString();
+   }
+
+   // Package protected ---------------------------------------------
+   /**
+    *   Called with the topic returned by the server on every subscribe,
+    *   including the ones after a reconnect.
+    */
+   void subscribed(Topic topic, long base)
+   {
+      this.topic = topic;
+      this.base = base;
+   }
+
+   /**
+    *   Load the users off the event thread. The model is put in use
+    *   first, so that the joins and leaves that arrive while loading
+    *   are applied to it, and the users loaded are merged into it by
+    *   the applier.
+    */
+   void loadUsers(Executor applier)
+      throws RemoteException
+   {
+      UserListModel loading = new UserListModel();
+      users = loading;
+      loading.load(topic, applier);
+   }
+
+   void unsubscribed()
+   {
+      topic = null;
+      users = null;
+   }
+}
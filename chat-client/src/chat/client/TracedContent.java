@@ -0,0 +1,74 @@
+/*
+ * Copyright 1999 by dreamBean Software,
+ * All rights reserved.
+ */
+package chat.client;
+
+import java.io.Serializable;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ *   Content of a traced message. It wraps the real content with a trace
+ *   id and the time the message was sent, so that the receiver can tell
+ *   how long it took end to end. It shows as the real content, so
+ *   clients that do not trace still display it as usual, but the server
+ *   must be able to load the class, as the LocalTopicServer and
+ *   NioServer can.
+ *
+ *   Within one JVM the nanosecond clock is used, between JVMs the wall
+ *   clock, which is only as good as the clocks are in sync.
+ *
+ *   @see ClientMetrics#trace
+ *   @version $Revision:$
+ */
+public class TracedContent
+   implements Serializable
+{
+   // Constants -----------------------------------------------------
+   // Tells whether the sender shares our nanosecond clock
+   static final long ORIGIN = new Random().nextLong();
+
+   // Static --------------------------------------------------------
+   static AtomicLong nextId = new AtomicLong();
+
+   // Attributes ----------------------------------------------------
+   Object content;
+   long id;
+   long origin = ORIGIN;
+   long sentNanos = System.nanoTime();
+   long sentMillis = System.currentTimeMillis();
+
+   // Constructors --------------------------------------------------
+   public TracedContent(Object content)
+   {
+      this.content = content;
+      this.id = nextId.incrementAndGet();
+   }
+
+   // Public --------------------------------------------------------
+   public Object getContent()
+   {
+      return content;
+   }
+
+   public long getId()
+   {
+      return id;
+   }
+
+   /**
+    *   The time since the message was sent, in ns.
+    */
+   public long getAge()
+   {
+      if (origin == ORIGIN)
+         return System.nanoTime()-sentNanos;
+      return (System.currentTimeMillis()-sentMillis)*1000000L;
+   }
+
+   public String toString()
+   {
+      return String.valueOf(content);
+   }
+}
@@ -0,0 +1,311 @@
+/*
+ * Copyright 1999 by dreamBean Software,
+ * All rights reserved.
+ */
+package chat.client;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import chat.interfaces.Message;
+import chat.interfaces.TopicInfo;
+
+/**
+ *   Records the traffic of a client to a file, for TrafficReplay to play
+ *   back as load. Everything the client receives is recorded, including
+ *   joins, leaves and topic changes, and so is everything it publishes
+ *   and the topics it subscribes to and leaves, each with the time since
+ *   the event before it.
+ *
+ *   The file is compressed with GZIP. An event is a kind byte, the time
+ *   in us since the last event and the topic as varints, and for
+ *   messages the length and MessageCodec encoding of the message. Topics
+ *   are numbered in order of appearance and named the first time, and
+ *   the codec keeps its symbols across the file, so the names of senders
+ *   are written once.
+ *
+ *   Recording is on for the GUI if chat.record names a file.
+ *
+ *   @see TrafficReplay
+ *   @see ChatClient#setRecorder
+ *   @version $Revision:$
+ */
+public class TrafficRecorder
+{
+   // Constants -----------------------------------------------------
+   public static final String FILE = System.getProperty("chat.record");
+
+   public static final int IN = 1;
+   public static final int OUT = 2;
+   public static final int SUBSCRIBE = 3;
+   public static final int UNSUBSCRIBE = 4;
+
+   static final int MAGIC = 0x43485452; // CHTR
+   static final int VERSION = 1;
+
+   // Attributes ----------------------------------------------------
+   File file;
+   DataOutputStream out;
+   MessageCodec codec = new MessageCodec();
+   Map topics = new HashMap(); // Topic name -> Integer
+   long last = System.nanoTime();
+   long events;
+
+   // Static --------------------------------------------------------
+   /**
+    *   A recorder on the file named by chat.record, or null if it is not
+    *   set.
+    */
+   public static TrafficRecorder getDefault(String user)
+      throws IOException
+   {
+      return FILE == null ? null : new TrafficRecorder(new File(FILE), user);
+   }
+
+   /**
+    *   Read a recording. The user it was recorded by is put in user[0].
+    */
+   public static List load(File file, String[] user)
+      throws IOException
+   {
+      DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(file))));
+      try
+      {
+         if (in.readInt() != MAGIC)
+            throw new IOException("Not a recording:"+file);
+         if (in.readByte() != VERSION)
+            throw new IOException("Unknown recording version:"+file);
+         user[0] = in.readUTF();
+
+         List events = new ArrayList();
+         List names = new ArrayList();
+         MessageCodec codec = new MessageCodec();
+         byte[] buf = new byte[256];
+         long time = 0;
+         while (true)
+         {
+            int kind = in.read();
+            if (kind == -1)
+               break;
+
+            time += readVarLong(in);
+            int ref = (int)readVarLong(in);
+            String topic = null;
+            if (ref > names.size())
+               names.add(in.readUTF());
+            if (ref > 0)
+               topic = (String)names.get(ref-1);
+
+            Message message = null;
+            if (kind == IN || kind == OUT)
+            {
+               int length = (int)readVarLong(in);
+               if (length > buf.length)
+                  buf = new byte[Math.max(length, buf.length*2)];
+               in.readFully(buf, 0, length);
+               message = (Message)codec.decode(ByteBuffer.wrap(buf, 0, length));
+            }
+            events.add(new Event(kind, time, topic, message));
+         }
+         return events;
+      } catch (EOFException e)
+      {
+         throw new IOException("Truncated recording:"+file);
+      } finally
+      {
+         in.close();
+      }
+   }
+
+   static void writeVarLong(DataOutputStream out, long value)
+      throws IOException
+   {
+      while ((value & ~0x7FL) != 0)
+      {
+         out.write((int)(value & 0x7F) | 0x80);
+         value >>>= 7;
+      }
+      out.write((int)value);
+   }
+
+   static long readVarLong(DataInputStream in)
+      throws IOException
+   {
+      long value = 0;
+      for (int shift = 0; ; shift += 7)
+      {
+         int b = in.readUnsignedByte();
+         value |= (long)(b & 0x7F) << shift;
+         if ((b & 0x80) == 0)
+            return value;
+      }
+   }
+
+   // Constructors --------------------------------------------------
+   public TrafficRecorder(File file, String user)
+      throws IOException
+   {
+      this.file = file;
+      out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(file), 8192)));
+      out.writeInt(MAGIC);
+      out.writeByte(VERSION);
+      out.writeUTF(user);
+   }
+
+   // Public --------------------------------------------------------
+   /**
+    *   Messages received on the topic, or for no topic if null.
+    */
+   public synchronized void received(TopicInfo topic, Collection messages)
+   {
+      Iterator mlist = messages.iterator();
+      while (mlist.hasNext())
+         record(IN, topic, (Message)mlist.next());
+   }
+
+   public synchronized void published(TopicInfo topic, Message message)
+   {
+      record(OUT, topic, message);
+   }
+
+   public synchronized void subscribed(TopicInfo topic)
+   {
+      record(SUBSCRIBE, topic, null);
+   }
+
+   public synchronized void unsubscribed(TopicInfo topic)
+   {
+      record(UNSUBSCRIBE, topic, null);
+   }
+
+   public synchronized long getEventCount()
+   {
+      return events;
+   }
+
+   public File getFile()
+   {
+      return file;
+   }
+
+   public synchronized void close()
+   {
+      if (out == null)
+         return;
+
+      try
+      {
+         out.close();
+      } catch (IOException e)
+      {
+         e.printStackTrace();
+      }
+      out = null;
+   }
+
+   // Package protected ---------------------------------------------
+   /**
+    *   Write one event. A recording that fails is closed, and what was
+    *   written up to then is kept.
+    */
+   void record(int kind, TopicInfo topic, Message message)
+   {
+      if (out == null)
+         return;
+
+      try
+      {
+         long now = System.nanoTime();
+         out.write(kind);
+         writeVarLong(out, (now-last)/1000);
+         last += (now-last)/1000*1000; // Keeps the remainder for the next event
+
+         if (topic == null)
+         {
+            writeVarLong(out, 0);
+         } else
+         {
+            String name = topic.toString();
+            Integer ref = (Integer)topics.get(name);
+            if (ref == null)
+            {
+               ref = new Integer(topics.size()+1);
+               topics.put(name, ref);
+               writeVarLong(out, ref.intValue());
+               out.writeUTF(name);
+            } else
+            {
+               writeVarLong(out, ref.intValue());
+            }
+         }
+
+         if (message != null)
+         {
+            ByteBuffer encoded = codec.encode(message);
+            writeVarLong(out, encoded.remaining());
+            out.write(encoded.array(), encoded.arrayOffset()+encoded.position(), encoded.remaining());
+         }
+         events++;
+      } catch (IOException e)
+      {
+         e.printStackTrace();
+         close();
+      }
+   }
+
+   // Inner classes -------------------------------------------------
+   /**
+    *   One recorded event, at a time in us from the start.
+    */
+   public static class Event
+   {
+      int kind;
+      long time;
+      String topic;
+      Message message;
+
+      Event(int kind, long time, String topic, Message message)
+      {
+         this.kind = kind;
+         this.time = time;
+         this.topic = topic;
+         this.message = message;
+      }
+
+      public int getKind()
+      {
+         return kind;
+      }
+
+      public long getTime()
+      {
+         return time;
+      }
+
+      public String getTopic()
+      {
+         return topic;
+      }
+
+      public Message getMessage()
+      {
+         return message;
+      }
+   }
+}
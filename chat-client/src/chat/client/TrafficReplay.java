@@ -0,0 +1,474 @@
+/*
+ * Copyright 1999 by dreamBean Software,
+ * All rights reserved.
+ */
+package chat.client;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+import chat.interfaces.ListenerInfo;
+import chat.interfaces.Message;
+import chat.interfaces.TopicInfo;
+
+/**
+ *   Plays back a recording of a TrafficRecorder as load on an in-process
+ *   LocalTopicServer. Every user seen in the recording gets a client of
+ *   its own, which joins and leaves topics and publishes its messages at
+ *   the times they were recorded, or faster with -speed. With -speed max
+ *   the events are played back as fast as they can be. With -clients
+ *   more clients than users, the others subscribe to every topic to add
+ *   load, and with fewer the users share clients and so also share their
+ *   subscriptions.
+ *
+ *   The clients are headless. Every message published is tagged with a
+ *   sequence number at the end of its text, and the time from publishing
+ *   it until each client gets it goes into the latency histogram. The
+ *   replay ends once no messages have arrived for a second after the
+ *   last was published.
+ *
+ *   The results can be saved as a baseline with -save, and compared with
+ *   one with -baseline, which must have been played back at the same
+ *   speed and with as many clients. The exit code is then 1 if the
+ *   number of messages delivered or the throughput fell by more than the
+ *   tolerance, or if a latency percentile rose by more than the tolerance
+ *   and the slack in ms, so that a build running it fails.
+ *
+ *   Usage: TrafficReplay recording [-speed 1|10|max] [-clients n]
+ *                        [-save file] [-baseline file]
+ *                        [-tolerance 0.2] [-slack 1]
+ *
+ *   @see TrafficRecorder
+ *   @see LoadGenerator
+ *   @version $Revision:$
+ */
+public class TrafficReplay
+{
+   // Constants -----------------------------------------------------
+   static final char TAG = '\u001f';
+   static final long QUIET = 1000; // ms
+   static final long TIMEOUT = 60000; // ms
+
+   static final String[] PERCENTILES = { "p50", "p90", "p99", "p999" };
+   static final double[] PERCENTILE_VALUES = { 50, 90, 99, 99.9 };
+
+   // Results that must match those of the baseline
+   static final String[] SETTINGS = { "speed", "clients" };
+
+   // Actions, in the order they sort in at the same time
+   static final int ADD_TOPIC = 0;
+   static final int SUBSCRIBE = 1;
+   static final int PUBLISH = 2;
+   static final int UNSUBSCRIBE = 3;
+   static final int REMOVE_TOPIC = 4;
+
+   // Attributes ----------------------------------------------------
+   File recording;
+   double speed = 1; // 0 for as fast as possible
+   int clientCount = 0; // One per user
+   File save;
+   File baseline;
+   double tolerance = 0.2;
+   long slack = 1000000; // ns
+
+   String recordedBy;
+   Map users = new LinkedHashMap(); // Name -> Set of the topics subscribed to at the start
+   Map topics = new LinkedHashMap(); // Name -> TopicInfo of the topics there at the start
+   List actions = new ArrayList();
+   int publishes;
+
+   // Static --------------------------------------------------------
+   public static void main(String[] args)
+      throws Exception
+   {
+      TrafficReplay replay = new TrafficReplay();
+      for (int i = 0; i < args.length; i++)
+      {
+         if (args[i].equals("-speed"))
+            replay.speed = args[++i].equals("max") ? 0 : Double.parseDouble(args[i]);
+         else if (args[i].equals("-clients"))
+            replay.clientCount = Integer.parseInt(args[++i]);
+         else if (args[i].equals("-save"))
+            replay.save = new File(args[++i]);
+         else if (args[i].equals("-baseline"))
+            replay.baseline = new File(args[++i]);
+         else if (args[i].equals("-tolerance"))
+            replay.tolerance = Double.parseDouble(args[++i]);
+         else if (args[i].equals("-slack"))
+            replay.slack = (long)(Double.parseDouble(args[++i])*1000000);
+         else if (args[i].startsWith("-") || replay.recording != null)
+            throw new IllegalArgumentException("Unknown option:"+args[i]);
+         else
+            replay.recording = new File(args[i]);
+      }
+      if (replay.recording == null)
+         throw new IllegalArgumentException("No recording given");
+
+      Properties result = replay.run();
+      if (replay.save != null)
+         store(result, replay.save);
+
+      if (replay.baseline != null)
+      {
+         List regressions = compare(load(replay.baseline), result, replay.tolerance, replay.slack);
+         for (int i = 0; i < regressions.size(); i++)
+            System.out.println("  REGRESSION: "+regressions.get(i));
+         System.out.println(regressions.isEmpty() ? "  No regressions against "+replay.baseline : "  "+regressions.size()+" regressions against "+replay.baseline);
+         System.exit(regressions.isEmpty() ? 0 : 1);
+      }
+      System.exit(0);
+   }
+
+   static Properties load(File file)
+      throws IOException
+   {
+      Properties properties = new Properties();
+      InputStream in = new FileInputStream(file);
+      try
+      {
+         properties.load(in);
+      } finally
+      {
+         in.close();
+      }
+      return properties;
+   }
+
+   static void store(Properties properties, File file)
+      throws IOException
+   {
+      OutputStream out = new FileOutputStream(file);
+      try
+      {
+         properties.store(out, "TrafficReplay baseline");
+      } finally
+      {
+         out.close();
+      }
+   }
+
+   /**
+    *   The ways in which the result is worse than the baseline.
+    */
+   static List compare(Properties baseline, Properties result, double tolerance, long slack)
+   {
+      List regressions = new ArrayList();
+      for (int i = 0; i < SETTINGS.length; i++)
+      {
+         String key = SETTINGS[i];
+         if (!result.getProperty(key, "").equals(baseline.getProperty(key, "")))
+            regressions.add(key+" "+result.getProperty(key)+", baseline "+baseline.getProperty(key));
+      }
+
+      // Some messages may be lost to leaves that overtake them
+      long expected = getLong(baseline, "delivered");
+      long delivered = getLong(result, "delivered");
+      if (delivered < expected*(1-tolerance))
+         regressions.add("delivered "+delivered+" messages, baseline "+expected);
+
+      long before = getLong(baseline, "throughput");
+      long now = getLong(result, "throughput");
+      if (now < before*(1-tolerance))
+         regressions.add("throughput "+now+" msg/s, baseline "+before+" msg/s");
+
+      for (int i = 0; i < PERCENTILES.length; i++)
+      {
+         String key = "latency."+PERCENTILES[i];
+         before = getLong(baseline, key);
+         now = getLong(result, key);
+         if (now > before*(1+tolerance)+slack)
+            regressions.add(key+" "+now+" ns, baseline "+before+" ns");
+      }
+      return regressions;
+   }
+
+   static long getLong(Properties properties, String key)
+   {
+      return Long.parseLong(properties.getProperty(key, "0"));
+   }
+
+   // Public --------------------------------------------------------
+   /**
+    *   Play back the recording, print the results and return them.
+    */
+   public Properties run()
+      throws Exception
+   {
+      String[] user = new String[1];
+      List events = TrafficRecorder.load(recording, user);
+      recordedBy = user[0];
+      plan(events);
+      System.out.println("Recording:"+recording+" by "+recordedBy+", "+events.size()+" events, "+users.size()+" users, "+topics.size()+" topics"
+         +" (speed "+(speed == 0 ? "max" : speed+"x")+")");
+
+      LocalTopicServer server = new LocalTopicServer();
+      Map topicInfos = new HashMap(); // Name -> TopicInfo
+      Iterator tlist = topics.values().iterator();
+      while (tlist.hasNext())
+      {
+         TopicInfo info = (TopicInfo)tlist.next();
+         topicInfos.put(info.toString(), server.addTopic(info.toString(), info.getDescription()));
+      }
+
+      // Clients, the users sharing them round robin if there are fewer
+      List names = new ArrayList(users.keySet());
+      int count = clientCount > 0 ? clientCount : names.size();
+      ChatClient[] clients = new ChatClient[count];
+      Map clientOf = new HashMap(); // User name -> ChatClient
+      Histogram latency = new Histogram("publish-to-delivery");
+      Histogram lag = new Histogram("schedule-lag");
+      AtomicLongArray sendTimes = new AtomicLongArray(Math.max(1, publishes));
+      Receiver receiver = new Receiver(sendTimes, latency);
+      try
+      {
+         for (int i = 0; i < count; i++)
+         {
+            clients[i] = new ChatClient(server);
+            clients[i].getInboundDispatcher().setHeadless(true);
+            clients[i].addMessageReceiver(receiver);
+            clients[i].login(i < names.size() ? (String)names.get(i) : "Observer "+i);
+         }
+         for (int i = 0; i < names.size(); i++)
+         {
+            ChatClient client = clients[i % count];
+            clientOf.put(names.get(i), client);
+            Iterator slist = ((Set)users.get(names.get(i))).iterator();
+            while (slist.hasNext())
+               client.subscribe((TopicInfo)topicInfos.get(slist.next()));
+         }
+         for (int i = names.size(); i < count; i++)
+         {
+            tlist = topicInfos.values().iterator();
+            while (tlist.hasNext())
+               clients[i].subscribe((TopicInfo)tlist.next());
+         }
+
+         // Play back
+         int seq = 0;
+         long start = System.nanoTime();
+         for (int i = 0; i < actions.size(); i++)
+         {
+            Action action = (Action)actions.get(i);
+            long due = start+(speed == 0 ? 0 : (long)(action.time*1000/speed));
+            long wait;
+            while ((wait = due-System.nanoTime()) > 0)
+               LockSupport.parkNanos(wait);
+            lag.record(System.nanoTime()-due);
+
+            ChatClient client = (ChatClient)clientOf.get(action.user);
+            TopicInfo topic = (TopicInfo)topicInfos.get(action.topic);
+            if (action.kind == ADD_TOPIC)
+            {
+               if (topic == null)
+                  topicInfos.put(action.topic, server.addTopic(action.topic, action.topic));
+            } else if (action.kind == REMOVE_TOPIC)
+            {
+               if (topic != null)
+                  server.removeTopic(topic);
+               topicInfos.remove(action.topic);
+            } else if (topic == null)
+            {
+               // Topic removed
+            } else if (action.kind == SUBSCRIBE)
+            {
+               client.subscribe(topic);
+            } else if (action.kind == UNSUBSCRIBE)
+            {
+               client.unsubscribe(topic);
+            } else
+            {
+               client.subscribe(topic); // Makes it current
+               Message message = action.message;
+               if (message.getContent() instanceof String)
+               {
+                  sendTimes.set(seq, System.nanoTime());
+                  message = new Message(message.getSender(), message.getType(), message.getContent()+String.valueOf(TAG)+seq);
+                  seq++;
+               }
+               client.publishMessage(message);
+            }
+         }
+         long published = System.nanoTime();
+
+         // Wait until the deliveries stop
+         long deadline = System.currentTimeMillis()+TIMEOUT;
+         while (System.currentTimeMillis() < deadline && System.nanoTime()-Math.max(published, receiver.last.get()) < QUIET*1000000)
+            Thread.sleep(10);
+         long end = Math.max(published, receiver.last.get());
+
+         Properties result = new Properties();
+         result.setProperty("speed", speed == 0 ? "max" : String.valueOf(speed));
+         result.setProperty("clients", String.valueOf(count));
+         result.setProperty("published", String.valueOf(seq));
+         result.setProperty("delivered", String.valueOf(latency.getCount()));
+         result.setProperty("elapsed", String.valueOf(end-start));
+         result.setProperty("throughput", String.valueOf(LoadGenerator.rate(latency.getCount(), end-start)));
+         for (int i = 0; i < PERCENTILES.length; i++)
+            result.setProperty("latency."+PERCENTILES[i], String.valueOf(latency.getPercentile(PERCENTILE_VALUES[i])));
+         result.setProperty("latency.max", String.valueOf(latency.getMax()));
+         result.setProperty("latency.mean", String.valueOf(latency.getMean()));
+         result.setProperty("lag.p99", String.valueOf(lag.getPercentile(99)));
+
+         System.out.println("  "+latency);
+         System.out.println("  "+lag);
+         System.out.println("  published:"+seq+" delivered:"+latency.getCount()+" in "+(end-start)/1000000+" ms"
+            +" delivery rate:"+result.getProperty("throughput")+" msg/s");
+         return result;
+      } finally
+      {
+         for (int i = 0; i < count; i++)
+         {
+            if (clients[i] != null && clients[i].getClientInfo() != null)
+               clients[i].logout();
+         }
+         server.shutdown();
+      }
+   }
+
+   // Package protected ---------------------------------------------
+   /**
+    *   Turn the events into the actions of the users, and work out which
+    *   topics they were subscribed to when the recording started.
+    */
+   void plan(List events)
+   {
+      Set seen = new HashSet(); // user+topic whose subscription is known
+      Set removed = new HashSet();
+      for (int i = 0; i < events.size(); i++)
+      {
+         TrafficRecorder.Event event = (TrafficRecorder.Event)events.get(i);
+         Message message = event.getMessage();
+         String topic = event.getTopic();
+         if (topic != null && !topics.containsKey(topic) && !removed.contains(topic))
+            topics.put(topic, new TopicInfo(topic, topic));
+
+         if (event.getKind() == TrafficRecorder.OUT)
+         {
+            publish(event, recordedBy, seen);
+         } else if (event.getKind() == TrafficRecorder.SUBSCRIBE)
+         {
+            action(event, SUBSCRIBE, recordedBy, seen);
+         } else if (event.getKind() == TrafficRecorder.UNSUBSCRIBE)
+         {
+            action(event, UNSUBSCRIBE, recordedBy, seen);
+         } else if (message.getType().equals(Message.USER_JOINED) || message.getType().equals(Message.USER_LEFT))
+         {
+            String name = ((ListenerInfo)message.getContent()).getName();
+            if (!name.equals(recordedBy) && topic != null)
+               action(event, message.getType().equals(Message.USER_JOINED) ? SUBSCRIBE : UNSUBSCRIBE, name, seen);
+         } else if (message.getType().equals(Message.TOPIC_CREATED) || message.getType().equals(Message.TOPIC_REMOVED))
+         {
+            String name = message.getContent().toString();
+            boolean created = message.getType().equals(Message.TOPIC_CREATED);
+            if (created)
+               removed.remove(name);
+            else if (!topics.containsKey(name))
+               removed.add(name);
+            actions.add(new Action(event.getTime(), created ? ADD_TOPIC : REMOVE_TOPIC, null, name, null));
+         } else if (message.getType().equals(Message.TEXT) && !Message.SYSTEM.equals(message.getSender())
+            && !recordedBy.equals(message.getSender()) && topic != null)
+         {
+            // Messages of the recording user come back, and were published already
+            publish(event, message.getSender(), seen);
+         }
+      }
+   }
+
+   void publish(TrafficRecorder.Event event, String user, Set seen)
+   {
+      // Publishing before joining means it was subscribed from the start
+      subscription(user, event.getTopic(), seen, true);
+      actions.add(new Action(event.getTime(), PUBLISH, user, event.getTopic(), event.getMessage()));
+      publishes++;
+   }
+
+   void action(TrafficRecorder.Event event, int kind, String user, Set seen)
+   {
+      // Leaving before joining means it was subscribed from the start
+      subscription(user, event.getTopic(), seen, kind == UNSUBSCRIBE);
+      actions.add(new Action(event.getTime(), kind, user, event.getTopic(), null));
+   }
+
+   void subscription(String user, String topic, Set seen, boolean subscribed)
+   {
+      Set initial = (Set)users.get(user);
+      if (initial == null)
+         users.put(user, initial = new HashSet());
+      if (seen.add(user+TAG+topic) && subscribed)
+         initial.add(topic);
+   }
+
+   // Inner classes -------------------------------------------------
+   static class Action
+   {
+      long time; // us
+      int kind;
+      String user;
+      String topic;
+      Message message;
+
+      Action(long time, int kind, String user, String topic, Message message)
+      {
+         this.time = time;
+         this.kind = kind;
+         this.user = user;
+         this.topic = topic;
+         this.message = message;
+      }
+   }
+
+   /**
+    *   Records the latency of the tagged messages every client gets.
+    */
+   static class Receiver
+      implements ChatClient.MessageReceiver
+   {
+      AtomicLongArray sendTimes;
+      Histogram latency;
+      AtomicLong last = new AtomicLong();
+
+      Receiver(AtomicLongArray sendTimes, Histogram latency)
+      {
+         this.sendTimes = sendTimes;
+         this.latency = latency;
+      }
+
+      public void handleMessage(Message message)
+      {
+         if (!message.getType().equals(Message.TEXT) || !(message.getContent() instanceof String))
+            return;
+
+         String content = (String)message.getContent();
+         int tag = content.lastIndexOf(TAG);
+         if (tag == -1)
+            return;
+
+         try
+         {
+            int seq = Integer.parseInt(content.substring(tag+1));
+            long now = System.nanoTime();
+            latency.record(now-sendTimes.get(seq));
+            last.set(now);
+         } catch (RuntimeException e)
+         {
+            // Not a tag of ours
+         }
+      }
+   }
+}
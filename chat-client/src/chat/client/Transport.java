@@ -0,0 +1,47 @@
+/*
+ * Copyright 1999 by dreamBean Software,
+ * All rights reserved.
+ */
+package chat.client;
+
+import java.rmi.RemoteException;
+
+import chat.interfaces.MessageListener;
+import chat.interfaces.TopicServer;
+
+/**
+ *   The way a client reaches the topic server. A transport resolves the
+ *   server and makes the listener of the client reachable from it, so
+ *   that the client itself only works with the TopicServer, Topic and
+ *   MessageListener operations.
+ *
+ *   The transport is selected with the chat.transport system property,
+ *   "rmi" (the default) or "nio".
+ *
+ *   @see RmiTransport
+ *   @see NioTransport
+ *   @see DirectTransport
+ *   @version $Revision:$
+ */
+public interface Transport
+{
+   /**
+    *   Get the topic server. Called again after the connection was
+    *   lost, in which case a new connection should be made.
+    */
+   public TopicServer connect()
+      throws RemoteException;
+
+   /**
+    *   Get the listener to register with the server for the given
+    *   local listener. May be called more than once for the same
+    *   listener.
+    */
+   public MessageListener export(MessageListener listener)
+      throws RemoteException;
+
+   /**
+    *   Release the connection and the exported listener.
+    */
+   public void close();
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright 1999 by dreamBean Software,
+ * All rights reserved.
+ */
+package chat.client;
+
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+import javax.swing.Timer;
+
+/**
+ *   Keeps track of who is typing, in both directions.
+ *
+ *   Outgoing, key presses are debounced into start and stop events. A
+ *   start is sent on the first key press and then at most once per
+ *   refresh interval while typing goes on, and a stop is sent once no
+ *   key has been pressed for the idle time.
+ *
+ *   Incoming, every start puts the user on a timer wheel, and the user
+ *   is removed when a stop or text message arrives or when the entry
+ *   expires. The wheel only ticks while someone is typing. The listener
+ *   is told about every user whose state changes, so that only that row
+ *   needs to be repainted.
+ *
+ *   All methods must be called on the event thread.
+ *
+ *   @see ChatGUI
+ *   @version $Revision:$
+ */
+public class TypingTracker
+   implements ActionListener
+{
+   // Constants -----------------------------------------------------
+   static final int REFRESH = Integer.getInteger("chat.typing.refresh", 4000).intValue();
+   static final int IDLE = Integer.getInteger("chat.typing.idle", 3000).intValue();
+
+   // Incoming entries expire after this time without a refresh
+   static final int EXPIRY = Integer.getInteger("chat.typing.expiry", 6000).intValue();
+
+   static final int TICK = 250;
+   static final int EXPIRY_TICKS = Math.max(1, EXPIRY/TICK);
+
+   // One slot more than the expiry, so an entry never wraps onto the current slot
+   static final int WHEEL_SIZE = EXPIRY_TICKS+1;
+
+   // Attributes ----------------------------------------------------
+   Listener listener;
+
+   // Outgoing
+   boolean typing;
+   long lastSent;
+   Timer idleTimer;
+
+   // Incoming
+   Set[] wheel = new Set[WHEEL_SIZE];
+   int current;
+   Map slots = new HashMap(); // User -> Integer slot
+   Timer ticker;
+
+   // Constructors --------------------------------------------------
+   public TypingTracker(Listener listener)
+   {
+      this.listener = listener;
+      for (int i = 0; i < wheel.length; i++)
+         wheel[i] = new HashSet();
+
+      idleTimer = new Timer(IDLE, new ActionListener()
+      {
+         public void actionPerformed(ActionEvent e)
+         {
+            if (typing)
+            {
+               typing = false;
+               TypingTracker.this.listener.sendTyping(false);
+            }
+         }
+      });
+      idleTimer.setRepeats(false);
+
+      ticker = new Timer(TICK, this);
+   }
+
+   // Public --------------------------------------------------------
+   /**
+    *   Called for every key pressed in the input field.
+    */
+   public void keyPressed()
+   {
+      long now = System.currentTimeMillis();
+      if (!typing || now-lastSent >= REFRESH)
+      {
+         typing = true;
+         lastSent = now;
+         listener.sendTyping(true);
+      }
+      idleTimer.restart();
+   }
+
+   /**
+    *   Called when the user has sent a message, which ends typing for
+    *   everyone that receives it.
+    */
+   public void messageSent()
+   {
+      typing = false;
+      idleTimer.stop();
+   }
+
+   public void started(String user)
+   {
+      int slot = (current+EXPIRY_TICKS) % WHEEL_SIZE;
+      Integer old = (Integer)slots.put(user, new Integer(slot));
+      if (old != null)
+         wheel[old.intValue()].remove(user);
+      wheel[slot].add(user);
+
+      if (old == null)
+      {
+         if (!ticker.isRunning())
+            ticker.start();
+         listener.typingChanged(user);
+      }
+   }
+
+   public void stopped(String user)
+   {
+      Integer slot = (Integer)slots.remove(user);
+      if (slot != null)
+      {
+         wheel[slot.intValue()].remove(user);
+         listener.typingChanged(user);
+      }
+   }
+
+   public boolean isTyping(String user)
+   {
+      return slots.containsKey(user);
+   }
+
+   public void stop()
+   {
+      idleTimer.stop();
+      ticker.stop();
+   }
+
+   // ActionListener implementation ---------------------------------
+   /**
+    *   Advance the wheel and expire the entries in the new slot.
+    */
+   public void actionPerformed(ActionEvent e)
+   {
+      current = (current+1) % WHEEL_SIZE;
+      Set due = wheel[current];
+      if (!due.isEmpty())
+      {
+         Iterator iter = due.iterator();
+         while (iter.hasNext())
+         {
+            String user = (String)iter.next();
+            slots.remove(user);
+            listener.typingChanged(user);
+         }
+         due.clear();
+      }
+
+      if (slots.isEmpty())
+         ticker.stop();
+   }
+
+   // Inner classes -------------------------------------------------
+   public interface Listener
+   {
+      /**
+       *   Tell the others that this user started or stopped typing.
+       */
+      public void sendTyping(boolean typing);
+
+      /**
+       *   The typing state of the given user has changed.
+       */
+      public void typingChanged(String user);
+   }
+}
@@ -0,0 +1,313 @@
+/*
+ * Copyright 1999 by dreamBean Software,
+ * All rights reserved.
+ */
+package chat.client;
+
+import java.rmi.RemoteException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+
+import javax.swing.AbstractListModel;
+
+import chat.interfaces.ListenerInfo;
+import chat.interfaces.Topic;
+
+/**
+ *   The user list of a topic. Users are kept sorted by name in an array,
+ *   with a hash index by name, so a join or leave is found in O(log n)
+ *   and membership is checked in O(1), instead of the linear scans of
+ *   DefaultListModel.
+ *
+ *   Changes made between beginUpdate and endUpdate are reported as one
+ *   range event, so a burst of joins and leaves causes one repaint.
+ *   Large rosters of topics that support paging are loaded in the
+ *   background, a page at a time.
+ *
+ *   It must only be changed on the thread the client applies messages
+ *   on, which is the event thread unless the InboundDispatcher of the
+ *   client is headless.
+ *
+ *   @see ChatClient#getUsers
+ *   @version $Revision:$
+ */
+public class UserListModel
+   extends AbstractListModel
+{
+   // Constants -----------------------------------------------------
+   static final int PAGE_SIZE = Integer.getInteger("chat.users.pageSize", 1000).intValue();
+
+   // Attributes ----------------------------------------------------
+   Object[] elements = new Object[16];
+   String[] keys = new String[16];
+   int size;
+   Map index = new HashMap(); // Name -> user
+
+   // Pending change range while updating
+   int updateDepth;
+   int firstChanged = Integer.MAX_VALUE;
+   int sizeBefore;
+
+   // Users that left while the roster was loading, null once loaded
+   Set departed = new HashSet();
+
+   // Static --------------------------------------------------------
+   static String getKey(Object user)
+   {
+      return user instanceof ListenerInfo ? ((ListenerInfo)user).getName() : user.toString();
+   }
+
+   // Public --------------------------------------------------------
+   /**
+    *   Load the users of the topic into the model, which may already
+    *   be in use. If the topic supports paging, the first page is
+    *   loaded now and the rest in the background. The users loaded are
+    *   merged by the applier, the executor that applies joins and
+    *   leaves, leaving out users that have left meanwhile.
+    */
+   public void load(Topic topic, final Executor applier)
+      throws RemoteException
+   {
+      boolean background = false;
+      try
+      {
+         if (topic instanceof PagedTopic)
+         {
+            final PagedTopic paged = (PagedTopic)topic;
+            final int count = paged.getListenerCount();
+            merge(paged.getListenerInfos(0, PAGE_SIZE), applier);
+            if (count > PAGE_SIZE)
+            {
+               Thread loader = ClientExecutors.newThreadFactory("ChatClient-roster-loader").newThread(new Runnable()
+               {
+                  public void run()
+                  {
+                     loadPages(paged, count, applier);
+                  }
+               });
+               loader.start();
+               background = true;
+            }
+         } else
+         {
+            merge(topic.getListenerInfos(), applier);
+         }
+      } finally
+      {
+         if (!background)
+            loaded(applier);
+      }
+   }
+
+   public boolean isLoading()
+   {
+      return departed != null;
+   }
+
+   public void add(Object user)
+   {
+      String key = getKey(user);
+      if (departed != null)
+         departed.remove(key);
+      if (index.containsKey(key))
+         return;
+
+      int pos = -Arrays.binarySearch(keys, 0, size, key)-1;
+      if (size == elements.length)
+      {
+         elements = Arrays.copyOf(elements, size*2);
+         keys = (String[])Arrays.copyOf(keys, size*2);
+      }
+      System.arraycopy(elements, pos, elements, pos+1, size-pos);
+      System.arraycopy(keys, pos, keys, pos+1, size-pos);
+      elements[pos] = user;
+      keys[pos] = key;
+      index.put(key, user);
+      size++;
+
+      if (updateDepth > 0)
+         changed(pos);
+      else
+         fireIntervalAdded(this, pos, pos);
+   }
+
+   public void remove(Object user)
+   {
+      String key = getKey(user);
+      if (departed != null)
+         departed.add(key);
+      if (index.remove(key) == null)
+         return;
+
+      int pos = Arrays.binarySearch(keys, 0, size, key);
+      System.arraycopy(elements, pos+1, elements, pos, size-pos-1);
+      System.arraycopy(keys, pos+1, keys, pos, size-pos-1);
+      size--;
+      elements[size] = null;
+      keys[size] = null;
+
+      if (updateDepth > 0)
+         changed(pos);
+      else
+         fireIntervalRemoved(this, pos, pos);
+   }
+
+   public void addAll(Collection users)
+   {
+      beginUpdate();
+      try
+      {
+         Iterator iter = users.iterator();
+         while (iter.hasNext())
+            add(iter.next());
+      } finally
+      {
+         endUpdate();
+      }
+   }
+
+   public void clear()
+   {
+      int last = size-1;
+      Arrays.fill(elements, 0, size, null);
+      Arrays.fill(keys, 0, size, null);
+      index.clear();
+      size = 0;
+      if (last >= 0)
+      {
+         if (updateDepth > 0)
+            changed(0);
+         else
+            fireIntervalRemoved(this, 0, last);
+      }
+   }
+
+   public boolean contains(Object user)
+   {
+      return index.containsKey(getKey(user));
+   }
+
+   /**
+    *   The row of the user with the given name, or -1.
+    */
+   public int indexOf(String name)
+   {
+      if (!index.containsKey(name))
+         return -1;
+      return Arrays.binarySearch(keys, 0, size, name);
+   }
+
+   /**
+    *   Start a batch of changes. They are reported by endUpdate as one
+    *   event covering the changed rows.
+    */
+   public void beginUpdate()
+   {
+      if (updateDepth++ == 0)
+      {
+         firstChanged = Integer.MAX_VALUE;
+         sizeBefore = size;
+      }
+   }
+
+   public void endUpdate()
+   {
+      // The model may have been put in use during a batch
+      if (updateDepth == 0)
+         return;
+      if (--updateDepth > 0 || firstChanged == Integer.MAX_VALUE)
+         return;
+
+      if (size > sizeBefore)
+         fireIntervalAdded(this, sizeBefore, size-1);
+      else if (size < sizeBefore)
+         fireIntervalRemoved(this, size, sizeBefore-1);
+
+      int last = Math.min(size, sizeBefore)-1;
+      if (firstChanged <= last)
+         fireContentsChanged(this, firstChanged, last);
+   }
+
+   // ListModel implementation --------------------------------------
+   public int getSize()
+   {
+      return size;
+   }
+
+   public Object getElementAt(int i)
+   {
+      if (i < 0 || i >= size)
+         throw new IndexOutOfBoundsException("Index:"+i+", size:"+size);
+      return elements[i];
+   }
+
+   // Private -------------------------------------------------------
+   private void changed(int pos)
+   {
+      firstChanged = Math.min(firstChanged, pos);
+   }
+
+   /**
+    *   Load the remaining pages on the loader thread and merge each one
+    *   on the applier.
+    */
+   private void loadPages(PagedTopic topic, int count, Executor applier)
+   {
+      try
+      {
+         for (int from = PAGE_SIZE; from < count; from += PAGE_SIZE)
+            merge(topic.getListenerInfos(from, PAGE_SIZE), applier);
+      } catch (RemoteException e)
+      {
+         e.printStackTrace();
+      } finally
+      {
+         loaded(applier);
+      }
+   }
+
+   /**
+    *   Add the users on the applier, leaving out users that have left
+    *   since loading started.
+    */
+   private void merge(final Collection users, Executor applier)
+   {
+      applier.execute(new Runnable()
+      {
+         public void run()
+         {
+            beginUpdate();
+            try
+            {
+               Iterator iter = users.iterator();
+               while (iter.hasNext())
+               {
+                  Object user = iter.next();
+                  if (!departed.contains(getKey(user)))
+                     add(user);
+               }
+            } finally
+            {
+               endUpdate();
+            }
+         }
+      });
+   }
+
+   private void loaded(Executor applier)
+   {
+      applier.execute(new Runnable()
+      {
+         public void run()
+         {
+            departed = null;
+         }
+      });
+   }
+}